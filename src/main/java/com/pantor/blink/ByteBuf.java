@@ -41,6 +41,8 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 
 /**
    The {@code ByteBuf} provides an implementaion of the {@code Buf}
@@ -326,6 +328,12 @@ public final class ByteBuf implements Buf
       {
          if (dst instanceof OutputStream)
             ((OutputStream)dst).write (data_, 0, pos);
+         else if (dst instanceof WritableByteChannel)
+         {
+            ByteBuffer bb = ByteBuffer.wrap (data_, 0, pos);
+            while (bb.hasRemaining ())
+               ((WritableByteChannel)dst).write (bb);
+         }
          else
             throw new IOException ("Unsupported output destination: " + dst);
          
@@ -376,6 +384,7 @@ public final class ByteBuf implements Buf
             System.arraycopy (data_, 0, newData, 0, pos);
             data_ = newData;
             bbView = null;
+            wordView = null;
          }
       }
    }
@@ -391,6 +400,7 @@ public final class ByteBuf implements Buf
          {
             data_ = emptyData;
             bbView = null;
+            wordView = null;
             pos = 0;
             end = 0;
          }
@@ -470,6 +480,284 @@ public final class ByteBuf implements Buf
       return s.toString ();
    }
 
+   // Returns the w bytes directly following the current position as
+   // an unsigned little endian value without moving the position. This
+   // is used by the VLC decoder for multi-byte values. When there is
+   // room in the underlying array, all bytes are fetched in a single
+   // eight byte load through a little endian view and then masked to
+   // the actual width
+
+   long getLittleEndian (int w)
+   {
+      int p = pos + 1;
+      if (p + 8 <= data_.length)
+      {
+         long v = getWordView ().getLong (p);
+         if (w < 8)
+            return v & ((1L << (w << 3)) - 1);
+         else
+            return v;
+      }
+      else
+      {
+         long v = 0;
+         for (int i = 0; i < w; ++ i)
+            v |= (long)(data_ [p + i] & 0xff) << (i << 3);
+         return v;
+      }
+   }
+   
+   // Bulk VLC coding of primitive arrays. The loops work directly on
+   // the underlying array and handle single byte values, which
+   // dominate in most sequences, inline. Longer values are passed on
+   // to the regular VLC coder. Nine byte values in f64 sequences are
+   // loaded and stored as whole words through the little endian view
+
+   void readU32Array (int [] dst) throws BlinkException.Decode
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = d [p];
+         if (b >= 0)
+         {
+            dst [i] = b;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readU32 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readI32Array (int [] dst) throws BlinkException.Decode
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = d [p];
+         if (b >= 0)
+         {
+            dst [i] = (b << 25) >> 25;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readI32 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readU64Array (long [] dst) throws BlinkException.Decode
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = d [p];
+         if (b >= 0)
+         {
+            dst [i] = b;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readU64 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readI64Array (long [] dst) throws BlinkException.Decode
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = d [p];
+         if (b >= 0)
+         {
+            dst [i] = ((long)b << 57) >> 57;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readI64 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeU32Array (int [] val)
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         int v = val [i];
+         if (v >= 0 && v < 0x80)
+            d [p ++] = (byte)v;
+         else
+         {
+            pos = p;
+            Vlc.writeU32 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeI32Array (int [] val)
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         int v = val [i];
+         if (v >= -64 && v < 64)
+            d [p ++] = (byte)(v & 0x7f);
+         else
+         {
+            pos = p;
+            Vlc.writeI32 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeU64Array (long [] val)
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = val [i];
+         if (v >= 0 && v < 0x80)
+            d [p ++] = (byte)v;
+         else
+         {
+            pos = p;
+            Vlc.writeU64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeI64Array (long [] val)
+   {
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = val [i];
+         if (v >= -64 && v < 64)
+            d [p ++] = (byte)(v & 0x7f);
+         else
+         {
+            pos = p;
+            Vlc.writeI64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readF64Array (double [] dst) throws BlinkException.Decode
+   {
+      byte [] d = data_;
+      ByteBuffer wv = getWordView ();
+      int p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         if (d [p] == (byte)0xc8 && p + 9 <= d.length)
+         {
+            dst [i] = Double.longBitsToDouble (wv.getLong (p + 1));
+            p += 9;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Double.longBitsToDouble (Vlc.readU64 (this));
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeF64Array (double [] val)
+   {
+      byte [] d = data_;
+      ByteBuffer wv = getWordView ();
+      int p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = Double.doubleToLongBits (val [i]);
+         if ((v >= 0x0080000000000000L || v < -36028797018963968L) &&
+             p + 9 <= d.length)
+         {
+            d [p] = (byte)0xc8;
+            wv.putLong (p + 1, v);
+            p += 9;
+         }
+         else
+         {
+            pos = p;
+            Vlc.writeI64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   // Writes a string with its size preamble if all characters are
+   // ASCII, in which case the UTF-8 encoding is the characters
+   // themselves. Returns false and leaves the position unchanged if
+   // the string contains any other character. The caller must have
+   // reserved space for the preamble and the characters
+
+   boolean writeAsciiString (String val)
+   {
+      int len = val.length ();
+      int start = pos;
+      Vlc.writeU32 (len, this);
+      byte [] d = data_;
+      int p = pos;
+      for (int i = 0; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c >= 0x0080)
+         {
+            pos = start;
+            return false;
+         }
+         d [p + i] = (byte)c;
+      }
+      pos = p + len;
+      return true;
+   }
+
+   private ByteBuffer getWordView ()
+   {
+      if (wordView == null)
+         wordView = ByteBuffer.wrap (data_).order (ByteOrder.LITTLE_ENDIAN);
+      return wordView;
+   }
+   
    public ByteBuffer getByteBuffer ()
    {
       if (bbView == null)
@@ -483,6 +771,7 @@ public final class ByteBuf implements Buf
    private int end;
    private byte [] data_;
    private ByteBuffer bbView;
+   private ByteBuffer wordView;
    private final boolean isFixed;
    private final static byte [] emptyData = new byte [0];
 }
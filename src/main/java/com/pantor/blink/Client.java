@@ -42,6 +42,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Executor;
 
 /**
    The {@code Client} class provides a basic Blink-capable UDP or TCP client.
@@ -253,6 +254,28 @@ public final class Client implements Runnable
       oreg.addObserver (name, obs);
    }
 
+   /**
+      Spreads the decoding of messages received over TCP over the
+      specified number of decoder threads. The read loop thread then
+      only frames the messages and hands them to the decoder threads
+      as partitioned by the specified key extractor. Messages with
+      the same key are dispatched in order, but observers will be
+      called concurrently from several threads. This must be set
+      before the read loop is started. See {@link PartitionedReader}
+      for details.
+
+      @param decoderThreads the number of decoder threads, or zero
+      to decode on the read loop thread
+      @param keyExtractor the key extractor
+   */
+
+   public void setDecoderThreads (int decoderThreads,
+                                  PartitionedReader.KeyExtractor keyExtractor)
+   {
+      this.decoderThreads = decoderThreads;
+      this.keyExtractor = keyExtractor;
+   }
+   
    /**
       Runs the {@code readLoop}
     */
@@ -290,13 +313,16 @@ public final class Client implements Runnable
          {
             is = sock.getInputStream ();
             Buf buf = DirectBuf.newInstance (4096);
-            for (;;)
-            {
-               if (! buf.fillFrom (is))
-                  break;
-               buf.flip ();
-               rd.read (buf);
-            }
+            if (decoderThreads > 0)
+               readPartitioned (is, buf);
+            else
+               for (;;)
+               {
+                  if (! buf.fillFrom (is))
+                     break;
+                  buf.flip ();
+                  rd.read (buf);
+               }
             
             log.info (sock + ": closed");
          }
@@ -330,6 +356,33 @@ public final class Client implements Runnable
       }
    }
 
+   /**
+      Creates a publisher of the messages received over TCP. This is
+      an alternative to the {@code readLoop} where messages are only
+      read from the socket while the subscriber has outstanding
+      demand. Messages are delivered both to the subscriber and to
+      any observers added to this client. The socket is closed when
+      the subscription terminates. See {@link MessagePublisher} for
+      details.
+
+      <p>The read loop must not be started for a client that is
+      consumed through a publisher.</p>
+
+      @param exec the executor to decode and deliver messages on
+      @return a publisher of received messages
+      @throws IOException if there is a socket problem
+   */
+
+   public MessagePublisher newPublisher (Executor exec)
+      throws IOException
+   {
+      if (sock == null)
+         throw new IllegalStateException (
+            "Publishers are only supported over TCP");
+      return new MessagePublisher (new CompactReader (om, oreg),
+                                   sock.getInputStream (), exec);
+   }
+
    /** Starts the {@code readLoop} of this client by creating a new thread */
    
    public void start ()
@@ -449,6 +502,47 @@ public final class Client implements Runnable
       os.close ();
    }
 
+   private void readPartitioned (InputStream is, Buf buf)
+      throws BlinkException, IOException
+   {
+      PartitionedReader rd =
+         new PartitionedReader (om, oreg, decoderThreads, keyExtractor);
+      boolean eof = false;
+      try
+      {
+         for (;;)
+         {
+            if (! buf.fillFrom (is))
+               break;
+            buf.flip ();
+            rd.read (buf);
+         }
+         eof = true;
+      }
+      finally
+      {
+         // Stop the decoder threads without masking the original
+         // exception
+
+         if (! eof)
+            closeQuietly (rd);
+      }
+
+      rd.close ();
+   }
+
+   private void closeQuietly (PartitionedReader rd)
+   {
+      try
+      {
+         rd.close ();
+      }
+      catch (BlinkException e)
+      {
+         log.warn ("%s: closed decoder threads: %s", sock, e);
+      }
+   }
+   
    private void checkPacketCompleteness (CompactReader rd)
    {
       if (! rd.isComplete ())
@@ -479,4 +573,6 @@ public final class Client implements Runnable
    private final ByteArrayOutputStream bs;
    private final Logger log = Logger.Manager.getLogger (Client.class);
    private PacketObserver packetObs;
+   private int decoderThreads;
+   private PartitionedReader.KeyExtractor keyExtractor;
 }
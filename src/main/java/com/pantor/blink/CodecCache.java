@@ -0,0 +1,194 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+// Holds the codec classes generated for an object model. All
+// compact readers and writers using the same object model share one
+// cache, so each decoder and encoder class is generated and loaded
+// once per binding rather than once per reader or writer. Instances
+// are still created per reader and writer, which lets each reader
+// bind its own observers.
+//
+// Codecs for the native binary, tag and JSON formats are kept apart
+// from the compact ones since all are keyed by the same bindings.
+//
+// Classes are keyed by binding. A binding that is replaced after a
+// schema change therefore gets new classes, and the classes of the
+// stale binding are dropped with it. Callers synchronize on the
+// cache while looking up, generating and storing classes.
+
+final class CodecCache
+{
+   private CodecCache ()
+   {
+   }
+
+   static CodecCache getInstance (ObjectModel om)
+   {
+      synchronized (caches)
+      {
+         CodecCache c = caches.get (om);
+         if (c == null)
+         {
+            c = new CodecCache ();
+            caches.put (om, c);
+         }
+         return c;
+      }
+   }
+
+   Class<?> getDecoder (ObjectModel.Binding bnd)
+   {
+      return decoders.get (bnd);
+   }
+
+   void putDecoder (ObjectModel.Binding bnd, Class<?> decClass)
+   {
+      decoders.put (bnd, decClass);
+   }
+
+   Class<?> getEncoder (ObjectModel.Binding bnd)
+   {
+      return encoders.get (bnd);
+   }
+
+   void putEncoder (ObjectModel.Binding bnd, Class<?> encClass)
+   {
+      encoders.put (bnd, encClass);
+   }
+
+   Class<?> getNativeDecoder (ObjectModel.Binding bnd)
+   {
+      return nativeDecoders.get (bnd);
+   }
+
+   void putNativeDecoder (ObjectModel.Binding bnd, Class<?> decClass)
+   {
+      nativeDecoders.put (bnd, decClass);
+   }
+
+   Class<?> getNativeEncoder (ObjectModel.Binding bnd)
+   {
+      return nativeEncoders.get (bnd);
+   }
+
+   void putNativeEncoder (ObjectModel.Binding bnd, Class<?> encClass)
+   {
+      nativeEncoders.put (bnd, encClass);
+   }
+
+   Class<?> getTagEncoder (ObjectModel.Binding bnd)
+   {
+      return tagEncoders.get (bnd);
+   }
+
+   void putTagEncoder (ObjectModel.Binding bnd, Class<?> encClass)
+   {
+      tagEncoders.put (bnd, encClass);
+   }
+
+   Class<?> getJsonEncoder (ObjectModel.Binding bnd)
+   {
+      return jsonEncoders.get (bnd);
+   }
+
+   void putJsonEncoder (ObjectModel.Binding bnd, Class<?> encClass)
+   {
+      jsonEncoders.put (bnd, encClass);
+   }
+
+   Class<?> getJsonDecoder (ObjectModel.Binding bnd)
+   {
+      return jsonDecoders.get (bnd);
+   }
+
+   void putJsonDecoder (ObjectModel.Binding bnd, Class<?> decClass)
+   {
+      jsonDecoders.put (bnd, decClass);
+   }
+
+   // Returns the name to use for a newly generated codec class. All
+   // codecs of an object model are defined in the same loader, so a
+   // class regenerated for a replaced binding gets a numbered suffix
+
+   synchronized String getUniqueClassName (String name)
+   {
+      Integer n = classNameCounts.get (name);
+      classNameCounts.put (name, n == null ? 1 : n + 1);
+      return n == null ? name : name + "_" + n;
+   }
+
+   Class<?> load (String name, byte [] b, Class<?> scope)
+   {
+      return dload.loadPrivileged (name, b, scope);
+   }
+
+   // Defines a hidden class nested with the scope, falling back to
+   // regular loading if hidden classes are not available
+
+   Class<?> loadHidden (String name, byte [] b, Class<?> scope)
+   {
+      Class<?> c = dload.loadHidden (name, b, scope);
+      if (c != null)
+         return c;
+      else
+         return load (name, b, scope);
+   }
+
+   private static final WeakHashMap<ObjectModel, CodecCache> caches =
+      new WeakHashMap<ObjectModel, CodecCache> ();
+   
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> decoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> encoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> nativeDecoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> nativeEncoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> tagEncoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> jsonEncoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final WeakHashMap<ObjectModel.Binding, Class<?>> jsonDecoders =
+      new WeakHashMap<ObjectModel.Binding, Class<?>> ();
+   private final HashMap<String, Integer> classNameCounts =
+      new HashMap<String, Integer> ();
+   private final DynClassLoader dload = new DynClassLoader ();
+}
@@ -82,4 +82,26 @@ public final class CodegenUtil
    {
       return DynClass.getDescriptor (mapArrayType (code));
    }
+
+   // Returns true if the specified group is used as the type of a
+   // static group field, single or sequence, anywhere in the
+   // schema. Generated codecs refer to the codecs of such groups by
+   // class name
+
+   static boolean isStaticComponent (Schema s, NsName name)
+      throws BlinkException
+   {
+      for (Schema.Group g : s.getGroups ())
+      {
+         for (Schema.Field f : g.getFields ())
+         {
+            Schema.TypeInfo t = s.resolve (f.getType ());
+            if (t.isGroup () && ! t.isDynamic () &&
+                t.getGroup ().getName ().equals (name))
+               return true;
+         }
+      }
+
+      return false;
+   }
 }
@@ -0,0 +1,1465 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+   The {@code ColumnarConverter} converts messages in the Blink
+   compact binary format into columnar tables, one table per message
+   type. It decodes the messages straight into growable primitive
+   column buffers driven by the schema of an {@code ObjectModel}. No
+   POJOs are created and nothing is allocated per message. The
+   tables can be written to a file in a simple columnar format that
+   can be memory mapped and read through a {@link ColumnarFile}.
+
+   <p>Each field of a message type maps to a column. Fields of a
+   super group come first and the fields of a static subgroup are
+   flattened into columns named by the path of the field, for
+   example {@code Price.Mantissa}. Values are stored as follows:</p>
+
+   <ul>
+   <li>integers, booleans, dates, times and fixed decimals are
+   stored as {@code i64} values. A fixed decimal is stored as its
+   significand and the column carries the scale. A {@code u64} value
+   above the range of an {@code i64} wraps to a negative value</li>
+   <li>floating point numbers and decimals are stored as {@code f64}
+   values. A decimal is converted to the nearest double</li>
+   <li>strings, binaries, fixed values and enums are dictionary
+   encoded. The column stores an {@code i32} code per value and the
+   dictionary holds the distinct values. The dictionary of an enum
+   column holds the symbol names in schema order, and a value
+   without a matching symbol is stored as the code -1</li>
+   </ul>
+
+   <p>The column of an optional field carries a presence bitmap with
+   one bit per row. An absent value still occupies a slot holding
+   zero, so that the value of row {@code i} is at index {@code i}.</p>
+
+   <p>A sequence of primitive values, strings, binaries or enums is
+   stored as a list column. The items of all rows are stored back to
+   back and the column carries the end index of each row. Sequences
+   of subgroups and dynamic subgroups are skipped.</p>
+
+   <p>The file starts with the eight byte magic {@code BLNKCOL1}
+   followed by the size of the directory as an {@code i64} and the
+   directory itself. All integers are little-endian. Strings are
+   UTF-8 encoded and prefixed by their size as an {@code i32}. Each
+   string and each block is padded to a multiple of eight bytes. The
+   directory holds the number of tables as an {@code i64} and for
+   each table:</p>
+
+   <ul>
+   <li>the name of the message type as a string, followed by its
+   type identifier, row count and column count as {@code i64}
+   values</li>
+   <li>for each column, the name and the Blink type code as strings,
+   the kind (0: {@code i64}, 1: {@code f64}, 2: dictionary codes),
+   the flags (1: optional, 2: list), the scale and an unused value
+   as {@code i32} values, and the value count followed by the file
+   offsets of the values, the presence bitmap, the row ends and the
+   dictionary as {@code i64} values. An offset is zero if the column
+   has no such block</li>
+   </ul>
+
+   <p>A dictionary block holds the entry count and the total size of
+   the entries in bytes as {@code i64} values, followed by the start
+   offset of each entry and the end offset of the last entry as
+   {@code i64} values, and then the bytes of the entries.</p>
+
+   <p>A converter is not thread safe. If a message turns out to be
+   malformed, the tables may hold a partial row and the converter
+   should be reset.</p>
+ */
+
+public final class ColumnarConverter
+{
+   /**
+      Creates a converter for messages defined in the schema of the
+      specified object model
+
+      @param om the object model that provides the schema
+    */
+
+   public ColumnarConverter (ObjectModel om)
+   {
+      this.om = om;
+   }
+
+   /**
+      Converts the messages in a byte array
+
+      @param data the compact encoded messages
+      @throws BlinkException if a message is malformed or refers to
+      a type that is not in the schema
+   */
+
+   public void read (byte [] data) throws BlinkException
+   {
+      read (data, 0, data.length);
+   }
+
+   /**
+      Converts the messages in a slice of a byte array
+
+      @param data the compact encoded messages
+      @param from the index of the first byte of the slice
+      @param len the size of the slice
+      @throws BlinkException if a message is malformed or refers to
+      a type that is not in the schema
+   */
+
+   public void read (byte [] data, int from, int len) throws BlinkException
+   {
+      read (new ByteBuf (data, from, len));
+   }
+
+   /**
+      Converts the messages read from an input stream until the end
+      of the stream
+
+      @param is the stream of compact encoded messages
+      @throws BlinkException if a message is malformed or refers to
+      a type that is not in the schema
+      @throws IOException if reading from the stream fails
+   */
+
+   public void read (InputStream is) throws BlinkException, IOException
+   {
+      byte [] chunk = new byte [ReadChunkSize];
+      for (;;)
+      {
+         int n = is.read (chunk);
+         if (n < 0)
+            break;
+         read (chunk, 0, n);
+      }
+   }
+
+   /**
+      Converts the messages in the specified byte source. A message
+      that is incomplete at the end of the source is kept and
+      completed by the next call to {@code read}.
+
+      @param src the compact encoded messages
+      @throws BlinkException if a message is malformed or refers to
+      a type that is not in the schema. The malformed message is not
+      added to its table
+   */
+
+   public void read (ByteSource src) throws BlinkException
+   {
+      if (pendLen > 0)
+      {
+         if (! fillPend (src))
+            return;
+         ByteBuf msg = new ByteBuf (pend, 0, pendLen);
+         pendLen = 0;
+         readMsg (msg, (int)Util.u32ToLong (Vlc.readU32 (msg)));
+      }
+
+      while (! src.empty ())
+      {
+         int start = src.getPos ();
+         if (getVlcSize (src.get ()) > src.available ())
+         {
+            stash (src);
+            return;
+         }
+
+         long size = Util.u32ToLong (Vlc.readU32 (src));
+         if (size > src.available ())
+         {
+            src.setPos (start);
+            stash (src);
+            return;
+         }
+
+         readMsg (src, (int)size);
+      }
+   }
+
+   /**
+      Returns {@code true} if no incomplete trailing message is
+      pending
+
+      @return {@code true} if all data read so far has been converted
+   */
+
+   public boolean isComplete ()
+   {
+      return pendLen == 0;
+   }
+
+   /**
+      Returns the number of messages converted so far
+
+      @return the message count
+   */
+
+   public long getMessageCount ()
+   {
+      return msgCount;
+   }
+
+   /**
+      Discards all tables and any incomplete trailing message
+   */
+
+   public void reset ()
+   {
+      tables.clear ();
+      tablesByTid.clear ();
+      pendLen = 0;
+      msgCount = 0;
+   }
+
+   /**
+      Writes all tables to a file
+
+      @param f the file to write
+      @throws IOException if writing fails
+      @throws BlinkException.Decode if an incomplete trailing message
+      is pending
+   */
+
+   public void write (File f) throws IOException, BlinkException.Decode
+   {
+      FileOutputStream os = new FileOutputStream (f);
+      try
+      {
+         write (os);
+      }
+      finally
+      {
+         os.close ();
+      }
+   }
+
+   /**
+      Writes all tables to an output stream. The tables are written
+      in the order their message types first appeared.
+
+      @param os the stream to write to
+      @throws IOException if writing fails
+      @throws BlinkException.Decode if an incomplete trailing message
+      is pending
+   */
+
+   public void write (OutputStream os) throws IOException, BlinkException.Decode
+   {
+      if (! isComplete ())
+         throw new BlinkException.Decode (
+            "Incomplete compact blink message. The converter needs " +
+            "more data to finish an incomplete trailing message");
+
+      // The directory has a fixed layout, so its size and the
+      // offsets of all blocks are known before anything is written
+
+      long dirSize = 8;
+      for (Table t : tables)
+      {
+         dirSize += getStrSize (t.name) + 24;
+         for (Column c : t.columns)
+            dirSize += getStrSize (c.name) + getStrSize (c.type) + 56;
+      }
+
+      long off = 16 + dirSize;
+      for (Table t : tables)
+         for (Column c : t.columns)
+            off = c.layout (off);
+
+      BlockWriter out = new BlockWriter (Channels.newChannel (os));
+      out.putBytes (Magic, 0, Magic.length);
+      out.putLong (dirSize);
+      out.putLong (tables.size ());
+      for (Table t : tables)
+      {
+         out.putStr (t.name);
+         out.putLong (t.tid);
+         out.putLong (t.rows);
+         out.putLong (t.columns.size ());
+         for (Column c : t.columns)
+         {
+            out.putStr (c.name);
+            out.putStr (c.type);
+            out.putInt (c.kind.ordinal ());
+            out.putInt ((c.presence != null ? ColumnarFile.OptionalFlag : 0) |
+                        (c.ends != null ? ColumnarFile.ListFlag : 0));
+            out.putInt (c.scale);
+            out.putInt (0);
+            out.putLong (c.count);
+            out.putLong (c.valuesOff);
+            out.putLong (c.presenceOff);
+            out.putLong (c.endsOff);
+            out.putLong (c.dictOff);
+         }
+      }
+
+      for (Table t : tables)
+         for (Column c : t.columns)
+            c.writeBlocks (out);
+
+      out.flush ();
+   }
+
+   // Message framing
+   //////////////////////////////////////////////////////////////////////
+
+   private void readMsg (ByteSource src, int size) throws BlinkException
+   {
+      int limit = src.getPos () + size;
+      int saveSize = src.size ();
+      src.setSize (limit);
+
+      // A message that fails part way has appended values to some
+      // of the columns of its table. They are removed again so that
+      // the columns stay aligned with the rows
+      
+      Table t = null;
+      int row = 0;
+      boolean done = false;
+      try
+      {
+         long tid = Vlc.readU64 (src);
+         t = tablesByTid.get (tid);
+         if (t == null)
+            t = createTable (tid);
+         row = t.rows;
+         t.readRow (src);
+         if (src.getPos () > limit)
+            throw prematureEndOfMsg (src);
+         done = true;
+      }
+      catch (ArrayIndexOutOfBoundsException e)
+      {
+         throw prematureEndOfMsg (src);
+      }
+      finally
+      {
+         if (! done && t != null)
+            t.truncate (row);
+      }
+
+      // Skip any extension
+
+      src.setSize (saveSize);
+      src.setPos (limit);
+      ++ msgCount;
+   }
+
+   private static BlinkException.Decode prematureEndOfMsg (ByteSource src)
+   {
+      return new BlinkException.Decode (
+         "Premature end of compact blink message", src);
+   }
+
+   private void stash (ByteSource src)
+   {
+      int n = src.available ();
+      reservePend (n);
+      src.read (pend, pendLen, n);
+      pendLen += n;
+   }
+
+   // Moves bytes into the pending message until it is complete or
+   // the source is exhausted
+
+   private boolean fillPend (ByteSource src) throws BlinkException.Decode
+   {
+      for (;;)
+      {
+         int need = getPendSize ();
+         if (pendLen >= need)
+            return true;
+         int n = Math.min (need - pendLen, src.available ());
+         if (n == 0)
+            return false;
+         reservePend (n);
+         src.read (pend, pendLen, n);
+         pendLen += n;
+      }
+   }
+
+   // Returns the size of the pending message including its size
+   // preamble, or the size of the preamble if it is still incomplete
+
+   private int getPendSize () throws BlinkException.Decode
+   {
+      int w = getVlcSize ((int)pend [0] & 0xff);
+      if (pendLen < w)
+         return w;
+      long size = Util.u32ToLong (Vlc.readU32 (new ByteBuf (pend, 0, w)));
+      if (size > Integer.MAX_VALUE - w)
+         throw new BlinkException.Decode (
+            "Compact blink message too large: " + size + " bytes");
+      return w + (int)size;
+   }
+
+   private void reservePend (int n)
+   {
+      if (pendLen + n > pend.length)
+         pend = Arrays.copyOf (pend, Math.max (pend.length * 2, pendLen + n));
+   }
+
+   private static int getVlcSize (int b)
+   {
+      if ((b & 0x80) == 0)
+         return 1;
+      else if ((b & 0x40) == 0)
+         return 2;
+      else
+         return 1 + (b & 0x3f);
+   }
+
+   private static void skipVlc (ByteSource src)
+   {
+      src.step (getVlcSize (src.get ()));
+   }
+
+   private static int readCount (ByteSource src) throws BlinkException.Decode
+   {
+      int n = Vlc.readU32 (src);
+      if (n < 0)
+         throw new BlinkException.Decode (
+            "Compact blink sequence or size too large", src);
+      return n;
+   }
+
+   // Tables and plans
+   //////////////////////////////////////////////////////////////////////
+
+   private Table createTable (long tid) throws BlinkException
+   {
+      Schema s = om.getSchema ();
+      for (Schema.Group g : s.getGroups ())
+         if (DefaultObjectModel.getCompactTid (g) == tid)
+         {
+            Table t = new Table (s, g, tid);
+            tablesByTid.put (tid, t);
+            tables.add (t);
+            return t;
+         }
+
+      throw new BlinkException.NoBinding (
+         String.format ("Unknown type id in blink message: 0x%s",
+                        Util.toU64HexStr (tid)));
+   }
+
+   private static final class Table
+   {
+      Table (Schema s, Schema.Group g, long tid) throws BlinkException
+      {
+         this.name = g.getName ().toString ();
+         this.tid = tid;
+         ArrayList<Op> plan = new ArrayList<Op> ();
+         addFields (s, g, "", false, plan, columns);
+         this.ops = plan.toArray (new Op [plan.size ()]);
+      }
+
+      void readRow (ByteSource src) throws BlinkException.Decode
+      {
+         for (Op op : ops)
+            op.read (src);
+         ++ rows;
+      }
+
+      // Drops the rows from the specified row on
+
+      void truncate (int r)
+      {
+         for (Column c : columns)
+            c.truncate (r);
+         rows = r;
+      }
+
+      final String name;
+      final long tid;
+      final Op [] ops;
+      final ArrayList<Column> columns = new ArrayList<Column> ();
+      int rows;
+   }
+
+   // Appends the operations reading the fields of a group, super
+   // group first. If cols is null the operations are only used for
+   // skipping and create no columns. Columns of fields inside an
+   // optional static group are nullable even if the fields are
+   // required.
+
+   private static void addFields (Schema s, Schema.Group g, String prefix,
+                                  boolean nullable, List<Op> plan,
+                                  List<Column> cols)
+      throws BlinkException
+   {
+      if (g.hasSuper ())
+         addFields (s, g.getSuperGroup (), prefix, nullable, plan, cols);
+      for (Schema.Field f : g)
+         plan.add (createOp (s, f, prefix + f.getName (), nullable, cols));
+   }
+
+   private static Op createOp (Schema s, Schema.Field f, String name,
+                               boolean nullable, List<Column> cols)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = s.resolve (f.getType ());
+      boolean opt = f.isOptional ();
+      boolean seq = t.isSequence ();
+
+      if (t.isDynamic ())
+         return new DynGroupOp (opt, seq);
+
+      if (t.isGroup ())
+      {
+         if (seq)
+         {
+            ArrayList<Op> item = new ArrayList<Op> ();
+            addFields (s, t.getGroup (), "", false, item, null);
+            return new GroupSeqOp (
+               new GroupOp (item.toArray (new Op [item.size ()]), false), opt);
+         }
+         else
+         {
+            ArrayList<Op> fields = new ArrayList<Op> ();
+            addFields (s, t.getGroup (), name + ".", nullable || opt, fields,
+                       cols);
+            return new GroupOp (fields.toArray (new Op [fields.size ()]), opt);
+         }
+      }
+
+      Column col = null;
+      if (t.isEnum ())
+      {
+         Schema.Enum e = t.getEnum ().getType ().toEnum ();
+         List<Schema.Symbol> syms = e.getSymbols ();
+
+         // Sort on the value with the symbol index in the low bits
+
+         long [] sorted = new long [syms.size ()];
+         for (int i = 0; i < sorted.length; ++ i)
+            sorted [i] = ((long)syms.get (i).getValue () << 32) | i;
+         Arrays.sort (sorted);
+         int [] vals = new int [sorted.length];
+         int [] codes = new int [sorted.length];
+         for (int i = 0; i < sorted.length; ++ i)
+         {
+            vals [i] = (int)(sorted [i] >> 32);
+            codes [i] = (int)sorted [i];
+         }
+
+         if (cols != null)
+         {
+            col = addColumn (cols, name, "Enum", ColumnarFile.Kind.Dict, 0,
+                             nullable || opt, seq);
+            for (Schema.Symbol sym : syms)
+               col.dict.add (sym.getName ().getBytes (Utf8));
+         }
+
+         return new EnumOp (col, opt, seq, vals, codes);
+      }
+
+      Schema.TypeCode code = t.getType ().getCode ();
+      String type = code.toString ();
+      switch (code)
+      {
+       case F64:
+          if (cols != null)
+             col = addColumn (cols, name, type, ColumnarFile.Kind.Float64, 0,
+                              nullable || opt, seq);
+          return new F64Op (col, opt, seq);
+
+       case Decimal:
+          if (cols != null)
+             col = addColumn (cols, name, type, ColumnarFile.Kind.Float64, 0,
+                              nullable || opt, seq);
+          return new DecimalOp (col, opt, seq);
+
+       case String: case Binary: case Fixed:
+          if (cols != null)
+             col = addColumn (cols, name, type, ColumnarFile.Kind.Dict, 0,
+                              nullable || opt, seq);
+          if (code == Schema.TypeCode.Fixed)
+             return new BytesOp (col, opt, seq,
+                                 ((Schema.FixedType)t.getType ()).getSize ());
+          else
+             return new BytesOp (col, opt, seq, -1);
+
+       default:
+          if (cols != null)
+          {
+             int scale = 0;
+             if (code == Schema.TypeCode.FixedDec)
+                scale = ((Schema.FixedDecType)t.getType ()).getScale ();
+             col = addColumn (cols, name, type, ColumnarFile.Kind.Int64, scale,
+                              nullable || opt, seq);
+          }
+          return new IntOp (col, opt, seq, code);
+      }
+   }
+
+   private static Column addColumn (List<Column> cols, String name,
+                                    String type, ColumnarFile.Kind kind,
+                                    int scale, boolean nullable, boolean list)
+   {
+      Column c = new Column (name, type, kind, scale, nullable, list);
+      cols.add (c);
+      return c;
+   }
+
+   // Operations
+   //////////////////////////////////////////////////////////////////////
+
+   private abstract static class Op
+   {
+      // Reads a field and appends a row to its columns
+
+      abstract void read (ByteSource src) throws BlinkException.Decode;
+
+      // Reads a field without storing it
+
+      abstract void skip (ByteSource src) throws BlinkException.Decode;
+
+      // Appends an absent row to the columns of the field. Used when
+      // an enclosing optional group is absent
+
+      abstract void appendNull ();
+   }
+
+   // A field stored in a single column, as a list column if the
+   // field is a sequence
+
+   private abstract static class ValueOp extends Op
+   {
+      ValueOp (Column col, boolean optional, boolean isSeq)
+      {
+         this.col = col;
+         this.optional = optional;
+         this.isSeq = isSeq;
+      }
+
+      @Override
+      final void read (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional && CompactReader.readNull (src))
+            col.appendNull ();
+         else
+         {
+            if (isSeq)
+            {
+               for (int n = readCount (src); n > 0; -- n)
+                  readValue (src);
+            }
+            else
+               readValue (src);
+            col.endRow ();
+         }
+      }
+
+      @Override
+      final void skip (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional && CompactReader.readNull (src))
+            return;
+         if (isSeq)
+         {
+            for (int n = readCount (src); n > 0; -- n)
+               skipValue (src);
+         }
+         else
+            skipValue (src);
+      }
+
+      @Override
+      final void appendNull ()
+      {
+         col.appendNull ();
+      }
+
+      abstract void readValue (ByteSource src) throws BlinkException.Decode;
+      abstract void skipValue (ByteSource src) throws BlinkException.Decode;
+
+      final Column col;
+      final boolean optional;
+      final boolean isSeq;
+   }
+
+   private static final class IntOp extends ValueOp
+   {
+      IntOp (Column col, boolean optional, boolean isSeq, Schema.TypeCode code)
+      {
+         super (col, optional, isSeq);
+         this.code = code;
+      }
+
+      @Override
+      void readValue (ByteSource src) throws BlinkException.Decode
+      {
+         // Unsigned values are masked to their width, which also
+         // accepts values written sign extended
+
+         long v;
+         switch (code)
+         {
+          case I8: v = CompactReader.readI8 (src); break;
+          case U8: v = Vlc.readU64 (src) & 0xffL; break;
+          case I16: v = CompactReader.readI16 (src); break;
+          case U16: v = Vlc.readU64 (src) & 0xffffL; break;
+          case I32: v = CompactReader.readI32 (src); break;
+          case U32: v = Vlc.readU64 (src) & 0xffffffffL; break;
+          case I64: v = CompactReader.readI64 (src); break;
+          case U64: v = CompactReader.readU64 (src); break;
+          case FixedDec: v = CompactReader.readFixedDec (src); break;
+          case Date: v = CompactReader.readDate (src); break;
+          case TimeOfDayMilli: v = CompactReader.readTimeOfDayMilli (src); break;
+          case TimeOfDayNano: v = CompactReader.readTimeOfDayNano (src); break;
+          case Nanotime: v = CompactReader.readNanotime (src); break;
+          case Millitime: v = CompactReader.readMillitime (src); break;
+          case Bool: v = CompactReader.readBool (src) ? 1 : 0; break;
+          default:
+             throw new BlinkException.Decode (
+                "Unexpected type in columnar conversion: " + code, src);
+         }
+
+         col.putLong (v);
+      }
+
+      @Override
+      void skipValue (ByteSource src)
+      {
+         skipVlc (src);
+      }
+
+      private final Schema.TypeCode code;
+   }
+
+   private static final class F64Op extends ValueOp
+   {
+      F64Op (Column col, boolean optional, boolean isSeq)
+      {
+         super (col, optional, isSeq);
+      }
+
+      @Override
+      void readValue (ByteSource src) throws BlinkException.Decode
+      {
+         col.putDouble (CompactReader.readF64 (src));
+      }
+
+      @Override
+      void skipValue (ByteSource src)
+      {
+         skipVlc (src);
+      }
+   }
+
+   private static final class DecimalOp extends ValueOp
+   {
+      DecimalOp (Column col, boolean optional, boolean isSeq)
+      {
+         super (col, optional, isSeq);
+      }
+
+      @Override
+      void readValue (ByteSource src) throws BlinkException.Decode
+      {
+         int exp = CompactReader.readI8 (src);
+         long mant = CompactReader.readI64 (src);
+         col.putDouble (toDouble (mant, exp));
+      }
+
+      @Override
+      void skipValue (ByteSource src)
+      {
+         skipVlc (src);
+         skipVlc (src);
+      }
+   }
+
+   // Strings, binaries and fixed values. The size is -1 unless the
+   // value is fixed. An optional fixed value that is not part of a
+   // sequence is preceded by a presence byte
+
+   private static final class BytesOp extends ValueOp
+   {
+      BytesOp (Column col, boolean optional, boolean isSeq, int fixedSize)
+      {
+         super (col, optional, isSeq);
+         this.fixedSize = fixedSize;
+         this.hasPresenceByte = fixedSize >= 0 && optional && ! isSeq;
+      }
+
+      @Override
+      void readValue (ByteSource src) throws BlinkException.Decode
+      {
+         int len = getSize (src);
+         col.putCode (col.dict.intern (src, len));
+         src.step (len);
+      }
+
+      @Override
+      void skipValue (ByteSource src) throws BlinkException.Decode
+      {
+         src.step (getSize (src));
+      }
+
+      private int getSize (ByteSource src) throws BlinkException.Decode
+      {
+         if (fixedSize >= 0)
+         {
+            if (hasPresenceByte)
+               src.step ();
+            return fixedSize;
+         }
+         else
+            return readCount (src);
+      }
+
+      private final int fixedSize;
+      private final boolean hasPresenceByte;
+   }
+
+   // Maps enum values to the index of the symbol in schema order.
+   // The values are sorted so that the codes can be found through a
+   // binary search
+
+   private static final class EnumOp extends ValueOp
+   {
+      EnumOp (Column col, boolean optional, boolean isSeq, int [] vals,
+              int [] codes)
+      {
+         super (col, optional, isSeq);
+         this.vals = vals;
+         this.codes = codes;
+      }
+
+      @Override
+      void readValue (ByteSource src) throws BlinkException.Decode
+      {
+         int pos = Arrays.binarySearch (vals, CompactReader.readI32 (src));
+         col.putCode (pos >= 0 ? codes [pos] : -1);
+      }
+
+      @Override
+      void skipValue (ByteSource src)
+      {
+         skipVlc (src);
+      }
+
+      private final int [] vals;
+      private final int [] codes;
+   }
+
+   // A static group. A present optional group is preceded by a
+   // presence byte
+
+   private static final class GroupOp extends Op
+   {
+      GroupOp (Op [] fields, boolean optional)
+      {
+         this.fields = fields;
+         this.optional = optional;
+      }
+
+      @Override
+      void read (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional)
+         {
+            if (CompactReader.readNull (src))
+            {
+               appendNull ();
+               return;
+            }
+            src.step ();
+         }
+
+         for (Op f : fields)
+            f.read (src);
+      }
+
+      @Override
+      void skip (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional)
+         {
+            if (CompactReader.readNull (src))
+               return;
+            src.step ();
+         }
+
+         for (Op f : fields)
+            f.skip (src);
+      }
+
+      @Override
+      void appendNull ()
+      {
+         for (Op f : fields)
+            f.appendNull ();
+      }
+
+      private final Op [] fields;
+      private final boolean optional;
+   }
+
+   private static final class GroupSeqOp extends Op
+   {
+      GroupSeqOp (Op item, boolean optional)
+      {
+         this.item = item;
+         this.optional = optional;
+      }
+
+      @Override
+      void read (ByteSource src) throws BlinkException.Decode
+      {
+         skip (src);
+      }
+
+      @Override
+      void skip (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional && CompactReader.readNull (src))
+            return;
+         for (int n = readCount (src); n > 0; -- n)
+            item.skip (src);
+      }
+
+      @Override
+      void appendNull ()
+      {
+      }
+
+      private final Op item;
+      private final boolean optional;
+   }
+
+   // Dynamic groups are size prefixed and skipped as a whole
+
+   private static final class DynGroupOp extends Op
+   {
+      DynGroupOp (boolean optional, boolean isSeq)
+      {
+         this.optional = optional;
+         this.isSeq = isSeq;
+      }
+
+      @Override
+      void read (ByteSource src) throws BlinkException.Decode
+      {
+         skip (src);
+      }
+
+      @Override
+      void skip (ByteSource src) throws BlinkException.Decode
+      {
+         if (optional && CompactReader.readNull (src))
+            return;
+         if (isSeq)
+         {
+            for (int n = readCount (src); n > 0; -- n)
+               src.step (readCount (src));
+         }
+         else
+            src.step (readCount (src));
+      }
+
+      @Override
+      void appendNull ()
+      {
+      }
+
+      private final boolean optional;
+      private final boolean isSeq;
+   }
+
+   private static double toDouble (long mant, int exp)
+   {
+      if (exp >= 0)
+         return exp < Pow10.length ? mant * Pow10 [exp]
+            : mant * Math.pow (10, exp);
+      else
+         return -exp < Pow10.length ? mant / Pow10 [-exp]
+            : mant / Math.pow (10, -exp);
+   }
+
+   // Columns
+   //////////////////////////////////////////////////////////////////////
+
+   private static final class Column
+   {
+      Column (String name, String type, ColumnarFile.Kind kind, int scale,
+              boolean nullable, boolean list)
+      {
+         this.name = name;
+         this.type = type;
+         this.kind = kind;
+         this.scale = scale;
+         switch (kind)
+         {
+          case Int64: longs = new long [InitialColumnSize]; break;
+          case Float64: doubles = new double [InitialColumnSize]; break;
+          default: codes = new int [InitialColumnSize]; break;
+         }
+         dict = kind == ColumnarFile.Kind.Dict ? new Dict () : null;
+         if (nullable)
+            presence = new long [InitialColumnSize / 64];
+         if (list)
+            ends = new int [InitialColumnSize];
+      }
+
+      void putLong (long v)
+      {
+         if (count == longs.length)
+            longs = Arrays.copyOf (longs, count * 2);
+         longs [count ++] = v;
+      }
+
+      void putDouble (double v)
+      {
+         if (count == doubles.length)
+            doubles = Arrays.copyOf (doubles, count * 2);
+         doubles [count ++] = v;
+      }
+
+      void putCode (int v)
+      {
+         if (count == codes.length)
+            codes = Arrays.copyOf (codes, count * 2);
+         codes [count ++] = v;
+      }
+
+      void endRow ()
+      {
+         if (presence != null)
+         {
+            int w = rows >>> 6;
+            if (w >= presence.length)
+               presence = Arrays.copyOf (
+                  presence, Math.max (w + 1, presence.length * 2));
+            presence [w] |= 1L << rows;
+         }
+         finishRow ();
+      }
+
+      void appendNull ()
+      {
+         if (ends == null)
+         {
+            switch (kind)
+            {
+             case Int64: putLong (0); break;
+             case Float64: putDouble (0); break;
+             default: putCode (0); break;
+            }
+         }
+         finishRow ();
+      }
+
+      // Drops any rows from the specified row on
+
+      void truncate (int r)
+      {
+         if (rows <= r)
+            return;
+         if (ends != null)
+            count = r > 0 ? ends [r - 1] : 0;
+         else
+            count = r;
+         if (presence != null)
+            for (int i = r; i < rows; ++ i)
+               presence [i >>> 6] &= ~ (1L << i);
+         rows = r;
+      }
+
+      private void finishRow ()
+      {
+         if (ends != null)
+         {
+            if (rows == ends.length)
+               ends = Arrays.copyOf (ends, rows * 2);
+            ends [rows] = count;
+         }
+         ++ rows;
+      }
+
+      // Assigns file offsets to the blocks of this column starting at
+      // the specified offset and returns the offset after the last
+      // block
+
+      long layout (long off)
+      {
+         valuesOff = off;
+         off += align (kind == ColumnarFile.Kind.Dict ? count * 4L : count * 8L);
+         if (presence != null)
+         {
+            presenceOff = off;
+            off += getPresenceWords () * 8L;
+         }
+         if (ends != null)
+         {
+            endsOff = off;
+            off += rows * 8L;
+         }
+         if (dict != null)
+         {
+            dictOff = off;
+            off += 16 + (dict.size + 1) * 8L + align (dict.dataLen);
+         }
+         return off;
+      }
+
+      void writeBlocks (BlockWriter out) throws IOException
+      {
+         switch (kind)
+         {
+          case Int64: out.putLongs (longs, count); break;
+          case Float64: out.putDoubles (doubles, count); break;
+          default: out.putInts (codes, count); break;
+         }
+
+         if (presence != null)
+         {
+            int words = getPresenceWords ();
+            for (int i = 0; i < words; ++ i)
+               out.putLong (i < presence.length ? presence [i] : 0);
+         }
+
+         if (ends != null)
+            for (int i = 0; i < rows; ++ i)
+               out.putLong (ends [i]);
+
+         if (dict != null)
+         {
+            out.putLong (dict.size);
+            out.putLong (dict.dataLen);
+            for (int i = 0; i < dict.size; ++ i)
+               out.putLong (dict.offs [i]);
+            out.putLong (dict.dataLen);
+            out.putBytes (dict.data, 0, dict.dataLen);
+            out.pad ();
+         }
+      }
+
+      private int getPresenceWords ()
+      {
+         return (rows + 63) >>> 6;
+      }
+
+      final String name;
+      final String type;
+      final ColumnarFile.Kind kind;
+      final int scale;
+      final Dict dict;
+      long [] longs;
+      double [] doubles;
+      int [] codes;
+      long [] presence;
+      int [] ends;
+      int count;
+      int rows;
+      long valuesOff;
+      long presenceOff;
+      long endsOff;
+      long dictOff;
+   }
+
+   // Dictionary of byte strings with open addressing. A slot holds
+   // the entry index plus one, or zero if the slot is empty. Lookups
+   // compare the entries directly against the source so that nothing
+   // is allocated for values already in the dictionary
+
+   private static final class Dict
+   {
+      int intern (ByteSource src, int len)
+      {
+         int h = 0;
+         for (int i = 0; i < len; ++ i)
+            h = 31 * h + src.get (i);
+         h = mix (h);
+
+         int mask = slots.length - 1;
+         for (int i = h & mask;; i = (i + 1) & mask)
+         {
+            int e = slots [i];
+            if (e == 0)
+               break;
+            if (hashes [e - 1] == h && matches (e - 1, src, len))
+               return e - 1;
+         }
+
+         reserveData (len);
+         for (int i = 0; i < len; ++ i)
+            data [dataLen + i] = (byte)src.get (i);
+         return addEntry (len, h);
+      }
+
+      void add (byte [] b)
+      {
+         int h = 0;
+         for (byte v : b)
+            h = 31 * h + ((int)v & 0xff);
+         reserveData (b.length);
+         System.arraycopy (b, 0, data, dataLen, b.length);
+         addEntry (b.length, mix (h));
+      }
+
+      private boolean matches (int e, ByteSource src, int len)
+      {
+         int from = offs [e];
+         if (offs [e + 1] - from != len)
+            return false;
+         for (int i = 0; i < len; ++ i)
+            if (data [from + i] != (byte)src.get (i))
+               return false;
+         return true;
+      }
+
+      private int addEntry (int len, int h)
+      {
+         int e = size ++;
+         if (size + 1 > offs.length)
+         {
+            offs = Arrays.copyOf (offs, offs.length * 2);
+            hashes = Arrays.copyOf (hashes, offs.length);
+         }
+         hashes [e] = h;
+         dataLen += len;
+         offs [size] = dataLen;
+
+         if (size * 2 > slots.length)
+            rehash (slots.length * 2);
+         else
+            insert (slots, e, h);
+         return e;
+      }
+
+      private void rehash (int capacity)
+      {
+         int [] next = new int [capacity];
+         for (int e = 0; e < size; ++ e)
+            insert (next, e, hashes [e]);
+         slots = next;
+      }
+
+      private static void insert (int [] slots, int e, int h)
+      {
+         int mask = slots.length - 1;
+         int i = h & mask;
+         while (slots [i] != 0)
+            i = (i + 1) & mask;
+         slots [i] = e + 1;
+      }
+
+      private void reserveData (int len)
+      {
+         if (dataLen + len > data.length)
+            data = Arrays.copyOf (data,
+                                  Math.max (data.length * 2, dataLen + len));
+      }
+
+      private static int mix (int h)
+      {
+         h *= 0x9e3779b9;
+         return h ^ (h >>> 16);
+      }
+
+      byte [] data = new byte [256];
+      int dataLen;
+      int [] offs = new int [16];
+      int [] hashes = new int [16];
+      int [] slots = new int [16];
+      int size;
+   }
+
+   // Output
+   //////////////////////////////////////////////////////////////////////
+
+   private static long align (long size)
+   {
+      return (size + 7) & ~7L;
+   }
+
+   private static long getStrSize (String s)
+   {
+      return align (4 + s.getBytes (Utf8).length);
+   }
+
+   private static final class BlockWriter
+   {
+      BlockWriter (WritableByteChannel ch)
+      {
+         this.ch = ch;
+      }
+
+      void putLong (long v) throws IOException
+      {
+         reserve (8);
+         buf.putLong (v);
+         pos += 8;
+      }
+
+      void putInt (int v) throws IOException
+      {
+         reserve (4);
+         buf.putInt (v);
+         pos += 4;
+      }
+
+      void putStr (String s) throws IOException
+      {
+         byte [] b = s.getBytes (Utf8);
+         putInt (b.length);
+         putBytes (b, 0, b.length);
+         pad ();
+      }
+
+      void putBytes (byte [] b, int from, int len) throws IOException
+      {
+         while (len > 0)
+         {
+            reserve (1);
+            int n = Math.min (len, buf.remaining ());
+            buf.put (b, from, n);
+            from += n;
+            len -= n;
+            pos += n;
+         }
+      }
+
+      void putLongs (long [] a, int count) throws IOException
+      {
+         for (int i = 0; i < count;)
+         {
+            reserve (8);
+            int n = Math.min (count - i, buf.remaining () / 8);
+            buf.asLongBuffer ().put (a, i, n);
+            buf.position (buf.position () + n * 8);
+            i += n;
+         }
+         pos += count * 8L;
+      }
+
+      void putDoubles (double [] a, int count) throws IOException
+      {
+         for (int i = 0; i < count;)
+         {
+            reserve (8);
+            int n = Math.min (count - i, buf.remaining () / 8);
+            buf.asDoubleBuffer ().put (a, i, n);
+            buf.position (buf.position () + n * 8);
+            i += n;
+         }
+         pos += count * 8L;
+      }
+
+      void putInts (int [] a, int count) throws IOException
+      {
+         for (int i = 0; i < count;)
+         {
+            reserve (4);
+            int n = Math.min (count - i, buf.remaining () / 4);
+            buf.asIntBuffer ().put (a, i, n);
+            buf.position (buf.position () + n * 4);
+            i += n;
+         }
+         pos += count * 4L;
+         pad ();
+      }
+
+      // Pads with zeros to the next multiple of eight bytes
+
+      void pad () throws IOException
+      {
+         int n = (int)(align (pos) - pos);
+         reserve (n);
+         for (int i = 0; i < n; ++ i)
+            buf.put ((byte)0);
+         pos += n;
+      }
+
+      void flush () throws IOException
+      {
+         buf.flip ();
+         while (buf.hasRemaining ())
+            ch.write (buf);
+         buf.clear ();
+      }
+
+      private void reserve (int n) throws IOException
+      {
+         if (buf.remaining () < n)
+            flush ();
+      }
+
+      private final WritableByteChannel ch;
+      private final ByteBuffer buf =
+         ByteBuffer.allocate (WriteBufferSize).order (ByteOrder.LITTLE_ENDIAN);
+      private long pos;
+   }
+
+   private static final byte [] Magic = ColumnarFile.Magic;
+   private static final Charset Utf8 = Charset.forName ("UTF-8");
+   private static final int ReadChunkSize = 1 << 20;
+   private static final int WriteBufferSize = 1 << 16;
+   private static final int InitialColumnSize = 256;
+   private static final double [] Pow10 = new double [23];
+
+   static
+   {
+      Pow10 [0] = 1;
+      for (int i = 1; i < Pow10.length; ++ i)
+         Pow10 [i] = Pow10 [i - 1] * 10;
+   }
+
+   private final ObjectModel om;
+   private final ArrayList<Table> tables = new ArrayList<Table> ();
+   private final LongMap<Table> tablesByTid = new LongMap<Table> ();
+   private byte [] pend = new byte [256];
+   private int pendLen;
+   private long msgCount;
+}
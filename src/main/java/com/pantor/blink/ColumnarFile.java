@@ -0,0 +1,501 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+   The {@code ColumnarFile} provides read access to a file written by
+   a {@link ColumnarConverter}. The blocks of the file are memory
+   mapped when the file is opened, so the values of a column are read
+   directly from the mapped file without being copied. See the
+   {@code ColumnarConverter} for a description of the file format.
+ */
+
+public final class ColumnarFile
+{
+   /**
+      The kind of values stored in a column
+   */
+
+   public static enum Kind
+   {
+      /** 64-bit integers */
+      Int64,
+      /** 64-bit floating point numbers */
+      Float64,
+      /** 32-bit dictionary codes */
+      Dict
+   }
+
+   /**
+      Opens and maps a columnar file
+
+      @param f the file to open
+      @throws IOException if the file cannot be read or is not a
+      columnar file
+   */
+
+   public ColumnarFile (File f) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile (f, "r");
+      try
+      {
+         FileChannel ch = raf.getChannel ();
+         if (ch.size () < 16)
+            throw notColumnar (f);
+         ByteBuffer head = map (ch, 0, 16);
+         byte [] magic = new byte [Magic.length];
+         head.get (magic);
+         if (! Arrays.equals (magic, Magic))
+            throw notColumnar (f);
+
+         ByteBuffer dir = map (ch, 16, head.getLong ());
+         long tableCount = dir.getLong ();
+         for (long i = 0; i < tableCount; ++ i)
+         {
+            Table t = new Table (ch, dir);
+            tables.add (t);
+            tableByName.put (t.getName (), t);
+         }
+      }
+      finally
+      {
+         raf.close ();
+      }
+   }
+
+   /**
+      Returns the tables of this file in the order they were written
+
+      @return a list of tables
+   */
+
+   public List<Table> getTables ()
+   {
+      return Collections.unmodifiableList (tables);
+   }
+
+   /**
+      Returns the table of the specified message type
+
+      @param name the qualified name of the message type
+      @return the table or {@code null} if there is no such table
+   */
+
+   public Table getTable (String name)
+   {
+      return tableByName.get (name);
+   }
+
+   /**
+      A table holding the messages of a single type
+   */
+
+   public static final class Table
+   {
+      Table (FileChannel ch, ByteBuffer dir) throws IOException
+      {
+         name = getStr (dir);
+         tid = dir.getLong ();
+         rows = (int)dir.getLong ();
+         long columnCount = dir.getLong ();
+         for (long i = 0; i < columnCount; ++ i)
+         {
+            Column c = new Column (ch, dir, rows);
+            columns.add (c);
+            columnByName.put (c.getName (), c);
+         }
+      }
+
+      /**
+         Returns the qualified name of the message type
+         @return the name of the type
+      */
+
+      public String getName () { return name; }
+
+      /**
+         Returns the compact type identifier of the message type
+         @return the type identifier
+      */
+
+      public long getTypeId () { return tid; }
+
+      /**
+         Returns the number of messages in this table
+         @return the row count
+      */
+
+      public int getRowCount () { return rows; }
+
+      /**
+         Returns the columns of this table in field order
+         @return a list of columns
+      */
+
+      public List<Column> getColumns ()
+      {
+         return Collections.unmodifiableList (columns);
+      }
+
+      /**
+         Returns the column of the specified field
+
+         @param name the name of the field. The name of a field in a
+         static subgroup is qualified by the name of the subgroup
+         field, for example {@code Price.Mantissa}
+         @return the column or {@code null} if there is no such column
+      */
+
+      public Column getColumn (String name)
+      {
+         return columnByName.get (name);
+      }
+
+      private final String name;
+      private final long tid;
+      private final int rows;
+      private final ArrayList<Column> columns = new ArrayList<Column> ();
+      private final HashMap<String, Column> columnByName =
+         new HashMap<String, Column> ();
+   }
+
+   /**
+      A column holding the values of a single field
+   */
+
+   public static final class Column
+   {
+      Column (FileChannel ch, ByteBuffer dir, int rows) throws IOException
+      {
+         this.rows = rows;
+         name = getStr (dir);
+         type = getStr (dir);
+         kind = Kind.values () [dir.getInt ()];
+         int flags = dir.getInt ();
+         scale = dir.getInt ();
+         dir.getInt (); // Unused
+         count = (int)dir.getLong ();
+         long valuesOff = dir.getLong ();
+         long presenceOff = dir.getLong ();
+         long endsOff = dir.getLong ();
+         long dictOff = dir.getLong ();
+
+         ByteBuffer values = map (ch, valuesOff,
+                                  count * (kind == Kind.Dict ? 4L : 8L));
+         longs = kind == Kind.Int64 ? values.asLongBuffer () : null;
+         doubles = kind == Kind.Float64 ? values.asDoubleBuffer () : null;
+         codes = kind == Kind.Dict ? values.asIntBuffer () : null;
+
+         if ((flags & OptionalFlag) != 0)
+            presence = map (ch, presenceOff, ((rows + 63) >>> 6) * 8L)
+               .asLongBuffer ();
+         else
+            presence = null;
+
+         if ((flags & ListFlag) != 0)
+            ends = map (ch, endsOff, rows * 8L).asLongBuffer ();
+         else
+            ends = null;
+
+         if (kind == Kind.Dict)
+         {
+            ByteBuffer head = map (ch, dictOff, 16);
+            int entries = (int)head.getLong ();
+            long dataLen = head.getLong ();
+            dictOffs = map (ch, dictOff + 16, (entries + 1) * 8L)
+               .asLongBuffer ();
+            dictData = map (ch, dictOff + 16 + (entries + 1) * 8L, dataLen);
+         }
+         else
+         {
+            dictOffs = null;
+            dictData = null;
+         }
+      }
+
+      /**
+         Returns the name of the field
+         @return the name of the column
+      */
+
+      public String getName () { return name; }
+
+      /**
+         Returns the name of the Blink type code of the field, for
+         example {@code U32}, {@code FixedDec} or {@code Enum}
+         @return the type of the column
+      */
+
+      public String getType () { return type; }
+
+      /**
+         Returns the kind of values stored in this column
+         @return the kind
+      */
+
+      public Kind getKind () { return kind; }
+
+      /**
+         Returns the scale of a fixed decimal column
+         @return the scale, or zero if this is not a fixed decimal column
+      */
+
+      public int getScale () { return scale; }
+
+      /**
+         Returns {@code true} if this column has a presence bitmap
+         @return {@code true} if values may be absent
+      */
+
+      public boolean isOptional () { return presence != null; }
+
+      /**
+         Returns {@code true} if this column holds sequences
+         @return {@code true} if this is a list column
+      */
+
+      public boolean isList () { return ends != null; }
+
+      /**
+         Returns the number of rows of this column
+         @return the row count
+      */
+
+      public int getRowCount () { return rows; }
+
+      /**
+         Returns the number of values stored in this column. This is
+         the same as the row count unless this is a list column
+         @return the value count
+      */
+
+      public int getValueCount () { return count; }
+
+      /**
+         Returns the value at the specified index of an {@code Int64}
+         column
+         @param i the value index
+         @return the value
+      */
+
+      public long getLong (int i) { return longs.get (i); }
+
+      /**
+         Returns the value at the specified index of a {@code Float64}
+         column
+         @param i the value index
+         @return the value
+      */
+
+      public double getDouble (int i) { return doubles.get (i); }
+
+      /**
+         Returns the code at the specified index of a {@code Dict}
+         column
+         @param i the value index
+         @return the code
+      */
+
+      public int getCode (int i) { return codes.get (i); }
+
+      /**
+         Returns a view of all values of an {@code Int64} column
+         @return a buffer of values
+      */
+
+      public LongBuffer getLongs () { return longs.duplicate (); }
+
+      /**
+         Returns a view of all values of a {@code Float64} column
+         @return a buffer of values
+      */
+
+      public DoubleBuffer getDoubles () { return doubles.duplicate (); }
+
+      /**
+         Returns a view of all codes of a {@code Dict} column
+         @return a buffer of codes
+      */
+
+      public IntBuffer getCodes () { return codes.duplicate (); }
+
+      /**
+         Returns {@code true} if the field is present in the specified
+         row
+
+         @param row the row index
+         @return {@code true} if the value is present
+      */
+
+      public boolean isPresent (int row)
+      {
+         return presence == null ||
+            (presence.get (row >>> 6) & (1L << row)) != 0;
+      }
+
+      /**
+         Returns the index of the first value of the specified row
+         of a list column
+
+         @param row the row index
+         @return the start index
+      */
+
+      public int getStart (int row)
+      {
+         return row == 0 ? 0 : (int)ends.get (row - 1);
+      }
+
+      /**
+         Returns the index after the last value of the specified row
+         of a list column
+
+         @param row the row index
+         @return the end index
+      */
+
+      public int getEnd (int row)
+      {
+         return (int)ends.get (row);
+      }
+
+      /**
+         Returns the number of entries in the dictionary of a
+         {@code Dict} column
+         @return the dictionary size
+      */
+
+      public int getDictSize ()
+      {
+         return dictOffs.capacity () - 1;
+      }
+
+      /**
+         Returns the dictionary entry of the specified code
+
+         @param code the code
+         @return the bytes of the entry, or {@code null} if the code
+         is negative
+      */
+
+      public byte [] getBytes (int code)
+      {
+         if (code < 0)
+            return null;
+         int from = (int)dictOffs.get (code);
+         byte [] b = new byte [(int)dictOffs.get (code + 1) - from];
+         ByteBuffer data = dictData.duplicate ();
+         data.position (from);
+         data.get (b);
+         return b;
+      }
+
+      /**
+         Returns the dictionary entry of the specified code as a string
+
+         @param code the code
+         @return the entry decoded as UTF-8, or {@code null} if the
+         code is negative
+      */
+
+      public String getString (int code)
+      {
+         byte [] b = getBytes (code);
+         return b != null ? new String (b, Utf8) : null;
+      }
+
+      private final String name;
+      private final String type;
+      private final Kind kind;
+      private final int scale;
+      private final int rows;
+      private final int count;
+      private final LongBuffer longs;
+      private final DoubleBuffer doubles;
+      private final IntBuffer codes;
+      private final LongBuffer presence;
+      private final LongBuffer ends;
+      private final LongBuffer dictOffs;
+      private final ByteBuffer dictData;
+   }
+
+   private static ByteBuffer map (FileChannel ch, long off, long len)
+      throws IOException
+   {
+      return ch.map (FileChannel.MapMode.READ_ONLY, off, len)
+         .order (ByteOrder.LITTLE_ENDIAN);
+   }
+
+   private static String getStr (ByteBuffer dir)
+   {
+      byte [] b = new byte [dir.getInt ()];
+      dir.get (b);
+      dir.position ((dir.position () + 7) & ~7);
+      return new String (b, Utf8);
+   }
+
+   private static IOException notColumnar (File f)
+   {
+      return new IOException ("Not a columnar blink file: " + f);
+   }
+
+   static final byte [] Magic =
+      { 'B', 'L', 'N', 'K', 'C', 'O', 'L', '1' };
+   static final int OptionalFlag = 1;
+   static final int ListFlag = 2;
+
+   private static final Charset Utf8 = Charset.forName ("UTF-8");
+
+   private final ArrayList<Table> tables = new ArrayList<Table> ();
+   private final HashMap<String, Table> tableByName =
+      new HashMap<String, Table> ();
+}
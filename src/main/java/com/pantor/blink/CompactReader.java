@@ -257,6 +257,72 @@ public final class CompactReader implements Reader
       compiler.setUseSchemaExchange (useSchemaExchange);
    }
    
+   /**
+      Sets the cache to use when decoding string fields. When a cache
+      is set, all string fields are looked up in the cache, except
+      fields annotated with {@code blink:cache="no"}. Fields annotated
+      with {@code blink:cache="yes"} are always looked up in the cache
+      of this reader. If no cache has been set when such a field is
+      decoded, a cache with the default capacity is created. Pass
+      {@code null} to disable caching of unannotated fields.
+
+      @param cache a string cache or {@code null}
+    */
+
+   public void setStringCache (StringCache cache)
+   {
+      this.stringCache = cache;
+      this.cacheAllStrings = cache != null;
+   }
+
+   /**
+      Returns the string cache used by this reader, or {@code null}
+      if there is none. The cache can be used to inspect hit rate
+      statistics.
+
+      @return the string cache or {@code null}
+    */
+
+   public StringCache getStringCache ()
+   {
+      return stringCache;
+   }
+
+   /**
+      Makes this reader define its generated decoders as hidden
+      classes that are nestmates of the bound POJO classes. A hidden
+      class can be unloaded on its own, and the JIT trusts its final
+      fields. Decoders of groups that are used as static subgroups
+      are always loaded normally since other decoders refer to them
+      by name. Has no effect on runtimes without hidden classes, that
+      is, before Java 15.
+
+      <p>Decoders are shared by all readers using the same object
+      model. The setting only applies to decoders that are generated
+      by this reader after the call.</p>
+
+      @param useHiddenClasses {@code true} enables hidden classes
+   */
+
+   public void setUseHiddenClasses (boolean useHiddenClasses)
+   {
+      compiler.setUseHiddenClasses (useHiddenClasses);
+   }
+
+   /**
+      Compiles decoders for all groups in the schema of the object
+      model that have bindings. Decoders are otherwise compiled when
+      the first message of each type is read.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll ();
+   }
+   
    /**
       Returns {@code true} if there is no partial message pending
 
@@ -404,6 +470,32 @@ public final class CompactReader implements Reader
       return src.readUtf8String (Vlc.readU32 (src));
    }
 
+   public static String readString (ByteSource src, CompactReader rd)
+      throws BlinkException.Decode
+   {
+      int size = Vlc.readU32 (src);
+      if (rd.cacheAllStrings)
+         return rd.stringCache.read (src, size);
+      else
+         return src.readUtf8String (size);
+   }
+
+   public static String readCachedString (ByteSource src, CompactReader rd)
+      throws BlinkException.Decode
+   {
+      int size = Vlc.readU32 (src);
+      return rd.getOrCreateStringCache ().read (src, size);
+   }
+
+   public static Utf8Slice readUtf8Slice (ByteSource src, Utf8Slice dst)
+      throws BlinkException.Decode
+   {
+      if (dst == null)
+         dst = new Utf8Slice ();
+      dst.read (src, Vlc.readU32 (src));
+      return dst;
+   }
+
    public static byte [] readBinary (ByteSource src)
       throws BlinkException.Decode
    {
@@ -466,8 +558,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       int [] v = new int [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readU32 (src);
+      Vlc.readU32Array (src, v);
       return v;
    }
 
@@ -476,8 +567,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       int [] v = new int [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readI32 (src);
+      Vlc.readI32Array (src, v);
       return v;
    }
    
@@ -486,8 +576,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       long [] v = new long [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readU64 (src);
+      Vlc.readU64Array (src, v);
       return v;
    }
 
@@ -496,8 +585,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       long [] v = new long [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readI64 (src);
+      Vlc.readI64Array (src, v);
       return v;
    }
 
@@ -522,8 +610,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       double [] v = new double [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Double.longBitsToDouble (Vlc.readU64 (src));
+      Vlc.readF64Array (src, v);
       return v;
    }
    
@@ -542,8 +629,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       int [] v = new int [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readU32 (src);
+      Vlc.readU32Array (src, v);
       return v;
    }
 
@@ -552,8 +638,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       int [] v = new int [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readU32 (src);
+      Vlc.readU32Array (src, v);
       return v;
    }
 
@@ -562,8 +647,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       long [] v = new long [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readU64 (src);
+      Vlc.readU64Array (src, v);
       return v;
    }
 
@@ -572,8 +656,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       long [] v = new long [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readI64 (src);
+      Vlc.readI64Array (src, v);
       return v;
    }
 
@@ -582,8 +665,7 @@ public final class CompactReader implements Reader
    {
       int size = Vlc.readU32 (src);
       long [] v = new long [size];
-      for (int i = 0; i < size; ++ i)
-         v [i] = Vlc.readI64 (src);
+      Vlc.readI64Array (src, v);
       return v;
    }
 
@@ -607,6 +689,27 @@ public final class CompactReader implements Reader
       return v;
    }
    
+   public static String [] readStringArray (ByteSource src, CompactReader rd)
+      throws BlinkException.Decode
+   {
+      int size = Vlc.readU32 (src);
+      String [] v = new String [size];
+      for (int i = 0; i < size; ++ i)
+         v [i] = readString (src, rd);
+      return v;
+   }
+
+   public static String [] readCachedStringArray (ByteSource src,
+                                                  CompactReader rd)
+      throws BlinkException.Decode
+   {
+      int size = Vlc.readU32 (src);
+      String [] v = new String [size];
+      for (int i = 0; i < size; ++ i)
+         v [i] = readCachedString (src, rd);
+      return v;
+   }
+   
    public static byte [][] readBinaryArray (ByteSource src)
       throws BlinkException.Decode
    {
@@ -798,6 +901,48 @@ public final class CompactReader implements Reader
       private final com.pantor.blink.SchemaExchangeDecoder dec;
    }
 
+   // Base class of generated decoders, both those generated ahead of
+   // time and those shared through the codec cache. Since the same
+   // class must serve all kinds of decoders, the way a decoded
+   // message is consumed is decided when the decoder is instantiated
+
+   public abstract static class PrecompiledDecoder extends Decoder
+   {
+      protected PrecompiledDecoder (
+         Class<?> type, Schema.Group grp, Observer obs,
+         com.pantor.blink.SchemaExchangeDecoder dec)
+      {
+         super (type, grp);
+         this.obs = obs;
+         this.dec = dec;
+      }
+
+      @Override void consume (Object o, Block block)
+         throws BlinkException
+      {
+         if (dec != null)
+         {
+            try
+            {
+               dec.decode (o);
+            }
+            finally
+            {
+               block.reclaim (o);
+            }
+         }
+         else
+         {
+            block.append (o);
+            if (obs != null)
+               obs.onObj (o, grp);
+         }
+      }
+
+      private final Observer obs;
+      private final com.pantor.blink.SchemaExchangeDecoder dec;
+   }
+
    private static final int MaxLingeringScratchArea = 1000000;
    
    private boolean readOrSuspendMsg (ByteSource src, long msgSize)
@@ -817,6 +962,38 @@ public final class CompactReader implements Reader
       return false;
    }
 
+   // Decodes all complete messages in the source into the block
+   // without dispatching them to observers. Used by the warmup
+   // harness to exercise the generated decoders on synthetic data.
+   // Strings are read through the specified cache instead of the
+   // cache of this reader, so that the synthetic strings neither
+   // evict real entries nor show up in its statistics
+
+   void readDetached (ByteSource src, Block block, StringCache cache)
+      throws BlinkException
+   {
+      Block stashedBlock = curBlock;
+      StringCache stashedCache = stringCache;
+      curBlock = block;
+      stringCache = cache;
+      try
+      {
+         while (! src.empty ())
+         {
+            int msgSize = Vlc.readU32 (src);
+            int limit = src.getPos () + msgSize;
+            long tid = Vlc.readU64 (src);
+            compiler.getDecoder (tid).decodeGrp (src, this, block);
+            src.setPos (limit);
+         }
+      }
+      finally
+      {
+         curBlock = stashedBlock;
+         stringCache = stashedCache;
+      }
+   }
+
    private void readMsg (ByteSource src, int msgSize) throws BlinkException
    {
       int limit = src.getPos () + msgSize;
@@ -965,6 +1142,70 @@ public final class CompactReader implements Reader
       }
    }
 
+   private StringCache getOrCreateStringCache ()
+   {
+      if (stringCache == null)
+         stringCache = new StringCache ();
+      return stringCache;
+   }
+   
+   // Frames the message starting at the specified offset from the
+   // current position of a source by inspecting only its size
+   // preamble. Returns the size of the message including the preamble
+   // if all of it is available. Otherwise it returns the negated number
+   // of bytes, counted from the offset, needed to make progress
+
+   static int frame (ByteSource src, int off, long maxMsgSize)
+      throws BlinkException.Decode
+   {
+      int avail = src.available () - off;
+      if (avail <= 0)
+         return -1;
+
+      int b = src.get (off);
+      int preamble;
+      long size;
+      if ((b & 0x80) == 0)
+      {
+         preamble = 1;
+         size = b;
+      }
+      else if ((b & 0x40) == 0)
+      {
+         if (avail < 2)
+            return -2;
+         preamble = 2;
+         size = (src.get (off + 1) << 6) | (b & 0x3f);
+      }
+      else
+      {
+         int w = b & 0x3f;
+         if (w > 4)
+            throw new BlinkException.Decode (
+               "VLC entity overflow (u32) in message size preamble");
+         if (avail < 1 + w)
+            return - (1 + w);
+         preamble = 1 + w;
+         size = 0;
+         for (int i = 0; i < w; ++ i)
+            size |= (long)src.get (off + 1 + i) << (i << 3);
+      }
+
+      if (size > maxMsgSize)
+         throw new BlinkException.Decode (
+            "Message size " + size + " exceeds the maximum " + maxMsgSize);
+
+      long total = preamble + size;
+      if (total > Integer.MAX_VALUE)
+         throw new BlinkException.Decode (
+            "Message size " + size + " is too large");
+
+      if (total <= avail)
+         return (int)total;
+      else
+         return - (int)total;
+   }
+   
    private BlinkException.Decode error (String msg, ByteSource context)
    {
       // FIXME
@@ -991,4 +1232,6 @@ public final class CompactReader implements Reader
    private Block curBlock;
    private int missingData;
    private int missingMsgSizeBytes;
+   private StringCache stringCache;
+   private boolean cacheAllStrings;
 }
@@ -35,8 +35,11 @@
 
 package com.pantor.blink;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
@@ -57,6 +60,7 @@ public final class CompactReaderCompiler
    {
       this.om = om;
       this.oreg = oreg;
+      this.cache = CodecCache.getInstance (om);
    }
 
    public CompactReader.Decoder getDecoder (long tid)
@@ -85,11 +89,56 @@ public final class CompactReaderCompiler
       getDecoder (name);
    }
 
+   // Compiles decoders for all groups in the schema that have a
+   // binding in the object model. Groups with type identifiers are
+   // also registered for lookup by identifier. Returns the number of
+   // primed groups
+
+   public int primeAll ()
+      throws BlinkException
+   {
+      int count = 0;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         prime (g.getName ());
+         if (g.hasId ())
+            getDecoder (bnd.getCompactTypeId ());
+         ++ count;
+      }
+
+      return count;
+   }
+
    public void primeEnum (ObjectModel.EnumBinding bnd)
       throws BlinkException
    {
       if (! enumDecs.contains (bnd.getEnum ().getName ()))
-         compileEnum (bnd);
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   // Makes this compiler define generated decoders as hidden classes
+   // when the runtime supports it. Only affects classes generated
+   // after the call, classes already in the codec cache are reused
+   // as is
+
+   public void setUseHiddenClasses (boolean useHiddenClasses)
+   {
+      this.useHiddenClasses = useHiddenClasses;
    }
 
    public void setUseSchemaExchange (boolean useSchemaExchange)
@@ -117,11 +166,13 @@ public final class CompactReaderCompiler
 
    //   package com.pantor.blink.dyn.compact;
    //
-   //   public final class <Ns>+<Name>_dec extends CompactReader.<Decoder>
+   //   public final class <Ns>+<Name>_dec
+   //      extends CompactReader.PrecompiledDecoder
    //   {
-   //      public <Ns>+<Name>_dec (Class type, Schema.Group grp, Observer obs)
+   //      public <Ns>+<Name>_dec (Class type, Schema.Group grp, Observer obs,
+   //                              SchemaExchangeDecoder dec)
    //      {
-   //         super (type, grp, obs);
+   //         super (type, grp, obs, dec);
    //      }
    //
    //      @Override
@@ -159,12 +210,24 @@ public final class CompactReaderCompiler
    //      }
    //   }
 
-   // <Decoder> is one of AppendingDecoder, DispatchingDecoder and
-   // SchemaExchangeDecoder depending on the message type and if an
-   // observer is available
+   // The generated class does not depend on the observer or on
+   // schema exchange. These are passed to the constructor, so the
+   // class is shared through the codec cache by all readers using
+   // the same object model. Generation is serialized on the cache so
+   // that readers racing for the same binding end up with a single
+   // class
    
    private CompactReader.Decoder compile (ObjectModel.GroupBinding bnd)
       throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd);
+      }
+   }
+
+   private CompactReader.Decoder compileShared (ObjectModel.GroupBinding bnd)
+      throws BlinkException
    {
       Schema.Group g = bnd.getGroup ();
       Observer obs = null;
@@ -172,37 +235,51 @@ public final class CompactReaderCompiler
       boolean isSchemaExchangeType = schemaExDec != null &&
          SchemaExchangeDecoder.isSchemaExchangeTypeId (g.getTypeId ());
 
-      String decBase;
-      String ctorSig;
-      int ctorArgCount;
-      
-      if (isSchemaExchangeType)
-      {
-         decBase = "com.pantor.blink.CompactReader$SchemaExchangeDecoder";
-         ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;" +
-            "Lcom/pantor/blink/SchemaExchangeDecoder;)V";
-         ctorArgCount = 3;
-      }
+      if (! isSchemaExchangeType)
+         obs = oreg != null ? oreg.findObserver (g) : null;
+
+      String decoderName;
+      if (classSink != null)
+         decoderName = PrecompiledCodecs.getDecoderClassName (bnd);
       else
       {
-         obs = oreg != null ? oreg.findObserver (g) : null;
-         if (obs != null)
-         {
-            decBase = "com.pantor.blink.CompactReader$DispatchingDecoder";
-            ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;" +
-               "Lcom/pantor/blink/Observer;)V";
-            ctorArgCount = 3;
-         }
-         else
-         {
-            decBase = "com.pantor.blink.CompactReader$AppendingDecoder";
-            ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;)V";
-            ctorArgCount = 2;
-         }
+         // Use a decoder generated ahead of time if there is one
+         // matching this binding
+         
+         Class<?> pre = PrecompiledCodecs.find (
+            PrecompiledCodecs.getDecoderClassName (bnd), bnd.getTargetType ());
+         if (pre != null)
+            return register (g, pre, createInstance (
+                                pre, bnd, obs, isSchemaExchangeType));
+
+         // Use a decoder generated by another reader if there is one
+         
+         Class<?> shared = cache.getDecoder (bnd);
+         if (shared != null)
+            return register (g, shared, createInstance (
+                                shared, bnd, obs, isSchemaExchangeType));
+         
+         decoderName = cache.getUniqueClassName (
+            getDecoderClassName (g.getName ()));
       }
-      
-      String decoderName = getDecoderClassName (g.getName ());
 
+      // A hidden class can not be referred to by name, so only
+      // codecs that are never called statically from other codecs
+      // are eligible
+
+      boolean hidden = useHiddenClasses && classSink == null &&
+         DynClassLoader.isHiddenClassSupported () &&
+         ! CodegenUtil.isStaticComponent (om.getSchema (), g.getName ());
+      if (hidden)
+         decoderName = cache.getUniqueClassName (
+            getHiddenDecoderClassName (bnd));
+      
+      String decBase = "com.pantor.blink.CompactReader$PrecompiledDecoder";
+      String ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;" +
+         "Lcom/pantor/blink/Observer;" +
+         "Lcom/pantor/blink/SchemaExchangeDecoder;)V";
+      int ctorArgCount = 4;
+      
       // Generate decoder class
       
       DynClass dc = new DynClass (decoderName);
@@ -306,21 +383,44 @@ public final class CompactReaderCompiler
 
       // Create an instance of the generated decoder
 
-      CompactReader.Decoder d;
-      if (isSchemaExchangeType)
-         d = createInstance (dc, bnd, schemaExDec);
-      else if (obs != null)
-         d = createInstance (dc, bnd, obs);
+      Class<?> decClass;
+      if (hidden)
+         decClass = cache.loadHidden (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
       else
-         d = createInstance (dc, bnd, null);
-         
-      // Store this instance for future lookups
-      
+         decClass = load (dc, bnd.getTargetType ());
+      if (classSink == null)
+         cache.putDecoder (bnd, decClass);
+      return register (g, decClass, createInstance (
+                          decClass, bnd, obs, isSchemaExchangeType));
+   }
+
+   // Stores a decoder and the name of its class for future lookups
+
+   private CompactReader.Decoder register (Schema.Group g, Class<?> decClass,
+                                           CompactReader.Decoder d)
+   {
       decByName.put (g.getName (), d);
- 
+      classByName.put (g.getName (), decClass.getName ());
       return d;
    }
 
+   private Class<?> load (DynClass dc, Class<?> scope)
+   {
+      byte [] b = dc.render ();
+      if (classSink != null)
+         classSink.put (dc.getName (), b);
+      return cache.load (dc.getName (), b, scope);
+   }
+
+   // Makes this compiler generate classes to be used ahead of time
+   // and collect the class files in the specified map
+   
+   void setPrecompiledClassSink (Map<String, byte []> classSink)
+   {
+      this.classSink = classSink;
+   }
+
    private static String getClassName (NsName nm)
    {
       if (nm.isQualified ())
@@ -334,6 +434,13 @@ public final class CompactReaderCompiler
       return "com.pantor.blink.dyn.compact." + getClassName (nm) + "_dec";
    }
 
+   // Hidden classes must be in the same package as their nest host
+
+   private static String getHiddenDecoderClassName (ObjectModel.Binding bnd)
+   {
+      return bnd.getTargetType ().getName () + "+compact_dec";
+   }
+
    private static String getReadSignature (String tgt)
    {
       return
@@ -371,11 +478,20 @@ public final class CompactReaderCompiler
    {
       Schema.TypeInfo t = f.getFieldType ();
       Schema.TypeCode c = t.getType ().getCode ();
+      if (c == Schema.TypeCode.String && isUtf8SliceField (f))
+      {
+         compileUtf8SliceField (f, dc);
+         return;
+      }
+      
       dc.aload0 (); // src, #depth: 2
       String decMtod = "read" + c.toString ();
       Class<?> retType = mapType (c);
       requireSetterArgType (f, retType);
-      invokeReader (dc, decMtod, getDescriptor (retType));
+      if (c == Schema.TypeCode.String)
+         compileStringRead (f, dc, decMtod, getDescriptor (retType));
+      else
+         invokeReader (dc, decMtod, getDescriptor (retType));
    }
    
    private void compilePrimitiveArrayField (ObjectModel.Field f, DynClass dc)
@@ -387,9 +503,94 @@ public final class CompactReaderCompiler
       Class<?> retType = mapArrayType (c);
       requireSetterArgType (f, retType);
       dc.aload0 (); // src, #depth: 2
-      dc.invokeStatic ("com/pantor/blink/CompactReader", decMtod,
-                       "(Lcom/pantor/blink/ByteSource;)" +
-                       getDescriptor (retType));
+      if (c == Schema.TypeCode.String)
+         compileStringRead (f, dc, decMtod, getDescriptor (retType));
+      else
+         dc.invokeStatic ("com/pantor/blink/CompactReader", decMtod,
+                          "(Lcom/pantor/blink/ByteSource;)" +
+                          getDescriptor (retType));
+   }
+
+   // A string field is bound to a Utf8Slice if the setter takes a
+   // slice, or if there is no setter and the getter returns one. The
+   // bytes are read into the slice returned by the getter, if any:
+   //
+   //   tgt.setX (CompactReader.readUtf8Slice (src, tgt.getX ()))
+
+   private static boolean isUtf8SliceField (ObjectModel.Field f)
+   {
+      Method setter = f.getSetter ();
+      if (setter != null)
+         return hasSetterArgType (f, Utf8Slice.class);
+      else
+         return getGetterRetType (f) == Utf8Slice.class;
+   }
+
+   private static Class<?> getGetterRetType (ObjectModel.Field f)
+   {
+      Method getter = f.getGetter ();
+      if (getter != null)
+         return getter.getReturnType ();
+      else
+         return null;
+   }
+   
+   private void compileUtf8SliceField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      dc.aload0 (); // src, #depth: 2
+      if (getGetterRetType (f) == Utf8Slice.class)
+      {
+         dc.aload1 (); // target, #depth: 3
+         dc.invoke (f.getGetter ()); // #depth: 3
+      }
+      else
+         dc.aconstNull (); // #depth: 3
+      dc.invokeStatic ("com/pantor/blink/CompactReader", "readUtf8Slice",
+                       "(Lcom/pantor/blink/ByteSource;" +
+                       "Lcom/pantor/blink/Utf8Slice;)" +
+                       "Lcom/pantor/blink/Utf8Slice;");
+   }
+   
+   // String fields may be looked up in the string cache of the
+   // reader. This is controlled by the blink:cache annotation on the
+   // field: "yes" always uses the cache, "no" never uses it, and no
+   // annotation uses the cache if one has been set on the reader
+
+   private final static NsName BlinkCache = NsName.get ("blink", "cache");
+
+   private void compileStringRead (ObjectModel.Field f, DynClass dc,
+                                   String decMtod, String retType)
+      throws BlinkException
+   {
+      Schema.Field sf = f.getField ();
+      String mode = sf.getAnnot (BlinkCache);
+      if (mode == null)
+         mode = sf.getType ().getAnnot (BlinkCache);
+
+      if (mode == null)
+      {
+         dc.aload2 (); // rd, #depth: 3
+         dc.invokeStatic ("com/pantor/blink/CompactReader", decMtod,
+                          "(Lcom/pantor/blink/ByteSource;" +
+                          "Lcom/pantor/blink/CompactReader;)" + retType);
+      }
+      else if (mode.equals ("yes"))
+      {
+         dc.aload2 (); // rd, #depth: 3
+         dc.invokeStatic ("com/pantor/blink/CompactReader",
+                          decMtod.replace ("readString", "readCachedString"),
+                          "(Lcom/pantor/blink/ByteSource;" +
+                          "Lcom/pantor/blink/CompactReader;)" + retType);
+      }
+      else if (mode.equals ("no"))
+         dc.invokeStatic ("com/pantor/blink/CompactReader", decMtod,
+                          "(Lcom/pantor/blink/ByteSource;)" + retType);
+      else
+         throw new BlinkException.Binding (
+            "Bad blink:cache annotation value on field '" + f +
+            "': expected 'yes' or 'no' but got '" + mode + "'",
+            f.getLocation ());
    }
    
    private void compile (ObjectModel.Binding bnd, ObjectModel.Field f,
@@ -429,7 +630,7 @@ public final class CompactReaderCompiler
             requireSetterArgType (f, comp.getTargetType ());
             primeEnum (comp);
             dc.aload0 (); // src, #depth: 2
-            dc.invokeStatic (getDecoderClassName (t.getEnum ().getName ()),
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
                              "read",
                              getReadEnumSignature (comp));
          }
@@ -454,7 +655,7 @@ public final class CompactReaderCompiler
                f, DynClass.getArrayClass (comp.getTargetType ()));
             primeEnum (comp);
             dc.aload0 (); // src, #depth: 2
-            dc.invokeStatic (getDecoderClassName (t.getEnum ().getName ()),
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
                              "readArray",
                              getReadEnumArraySignature (comp));
          }
@@ -703,7 +904,7 @@ public final class CompactReaderCompiler
          String sig = getReadSignature (comp.getTargetType ().getName ());
          dc.aload0 (); // src, #depth: 2
          dc.aload2 (); // Reader, #depth: 3
-         dc.invokeStatic (getDecoderClassName (compName), "read", sig);
+         dc.invokeStatic (classByName.get (compName), "read", sig);
       }
    }
 
@@ -747,7 +948,7 @@ public final class CompactReaderCompiler
          String sig = getReadArraySignature (comp.getTargetType ().getName ());
          dc.aload0 (); // src, #depth: 2
          dc.aload2 (); // Reader, #depth: 3
-         dc.invokeStatic (getDecoderClassName (compName), "readArray", sig);
+         dc.invokeStatic (classByName.get (compName), "readArray", sig);
       }
    }
 
@@ -760,7 +961,13 @@ public final class CompactReaderCompiler
    //   {
    //      public static T read (ByteSource src)
    //      {
-   //         return map.get (CompactReader.readI32 (src));
+   //         switch (CompactReader.readI32 (src))
+   //         {
+   //          case 0: return T.Red;
+   //          case 1: return T.Green;
+   //          case 2: return T.Blue;
+   //          default: return null;
+   //         }
    //      }
    //  
    //      public static T [] readArray (ByteSource src)
@@ -771,24 +978,41 @@ public final class CompactReaderCompiler
    //           tgt [i] = read (src);
    //         return tgt;
    //      }
-   //
-   //      private final static HashMap<Integer, T> map;
-   //
-   //      static
-   //      {
-   //         map = new HashMap<Integer, T> ();
-   //         map.put (0, T.Red);
-   //         map.put (1, T.Green);
-   //         map.put (2, T.Blue);
-   //      }
-   //      
    //   }
+   //
+   // The switch is emitted as a tableswitch when the symbol values
+   // are reasonably dense, and as a lookupswitch otherwise. Values
+   // that do not match any symbol, or that match a symbol without a
+   // corresponding Java enum constant, decode as null.
    
    private void compileEnum (ObjectModel.EnumBinding bnd)
       throws BlinkException
    {
       Schema.Define d = bnd.getEnum ();
-      String decoderName = getDecoderClassName (d.getName ());
+      String decoderName;
+      if (classSink != null)
+         decoderName = PrecompiledCodecs.getDecoderClassName (bnd);
+      else
+      {
+         String preName = PrecompiledCodecs.getDecoderClassName (bnd);
+         if (PrecompiledCodecs.find (preName, bnd.getTargetType ()) != null)
+         {
+            classByName.put (d.getName (), preName);
+            enumDecs.add (d.getName ());
+            return;
+         }
+
+         Class<?> shared = cache.getDecoder (bnd);
+         if (shared != null)
+         {
+            classByName.put (d.getName (), shared.getName ());
+            enumDecs.add (d.getName ());
+            return;
+         }
+         
+         decoderName = cache.getUniqueClassName (
+            getDecoderClassName (d.getName ()));
+      }
 
       // Generate decoder class
       
@@ -796,21 +1020,61 @@ public final class CompactReaderCompiler
       dc.setFlags (DynClass.ClassFlag.Final);
 
       Class<?> enumType = bnd.getTargetType ();
+      String enumDesc = "L" + DynClass.toInternal (enumType) + ";";
 
-      dc.addField ("map", "Ljava/util/HashMap;", DynClass.FieldFlag.Private,
-                   DynClass.FieldFlag.Final, DynClass.FieldFlag.Static);
+      TreeMap<Integer, String> constByVal = new TreeMap<Integer, String> ();
+      for (ObjectModel.Symbol sym : bnd)
+      {
+         if (sym.getTargetName () != null)
+            constByVal.put (sym.getSymbol ().getValue (),
+                            sym.getTargetName ());
+         else
+            constByVal.remove (sym.getSymbol ().getValue ());
+      }
       
       // static T read (src)
 
       dc.startPublicStaticMethod ("read", getReadEnumSignature (bnd));
-      dc.getStatic (decoderName, "map", "Ljava/util/HashMap;");
       dc.aload0 (); // src
       invokeReader (dc, "readI32", "I");
-      dc.invokeStatic ("java.lang.Integer", "valueOf",
-                       "(I)Ljava/lang/Integer;");
-      dc.invokeVirtual ("java.util.HashMap", "get",
-                        "(Ljava/lang/Object;)Ljava/lang/Object;")
-         .checkCast (enumType).areturn ().setMaxStack (2).endMethod ();
+
+      int unknown = dc.declareLabel ();
+      int count = constByVal.size ();
+      int [] vals = new int [count];
+      int [] labels = new int [count];
+      int pos = 0;
+      for (Integer v : constByVal.keySet ())
+      {
+         vals [pos] = v;
+         labels [pos] = dc.declareLabel ();
+         ++ pos;
+      }
+
+      if (count > 0 && isDense (vals))
+      {
+         int low = vals [0];
+         int [] table = new int [vals [count - 1] - low + 1];
+         Arrays.fill (table, unknown);
+         for (int i = 0; i < count; ++ i)
+            table [vals [i] - low] = labels [i];
+         dc.tableswitch (low, table, unknown);
+      }
+      else
+         dc.lookupswitch (vals, labels, unknown);
+
+      pos = 0;
+      for (String constName : constByVal.values ())
+      {
+         dc.label (labels [pos ++])
+            .getStatic (enumType, constName, enumDesc)
+            .areturn ();
+      }
+
+      dc.label (unknown)
+         .aconstNull ()
+         .areturn ()
+         .setMaxStack (1)
+         .endMethod ();
 
       // public static T [] readArray (src)
 
@@ -843,59 +1107,45 @@ public final class CompactReaderCompiler
          .setMaxStack (3)
          .endMethod ();
       
-      // static init
-      
-      dc.startMethod ("<clinit>", "()V", DynClass.MtodFlag.Static);
-
-      dc.new_ ("java.util.HashMap");
-      dc.dup ();
-      dc.invokeSpecial ("java.util.HashMap", "<init>", "()V");
-      dc.dup ();
-      dc.putStatic (decoderName, "map", "Ljava/util/HashMap;");
-      dc.astore0 ();
-      
-      for (ObjectModel.Symbol sym : bnd)
-      {
-         dc.aload0 ();
-         dc.ldc (sym.getSymbol ().getValue ());
-         dc.invokeStatic ("java.lang.Integer", "valueOf",
-                          "(I)Ljava/lang/Integer;");
-         if (sym.getTargetName () != null)
-         {
-            dc.ldc (sym.getTargetName ());
-            // FIXME: Replace with static field access
-            dc.invokeStatic (enumType, "valueOf", "(Ljava/lang/String;)L" +
-                             DynClass.toInternal (enumType) + ";");
-         }
-         else
-            dc.aconstNull ();
-         
-         dc.invokeVirtual (
-            "java.util.HashMap", "put",
-            "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-         dc.pop ();
-      }
-
-      dc.return_ ();
-      dc.setMaxStack (3);
-      dc.endMethod ();
-
       // Load the class
 
-      dload.loadPrivileged (dc, enumType);
+      Class<?> decClass = load (dc, enumType);
+      if (classSink == null)
+         cache.putDecoder (bnd, decClass);
 
+      classByName.put (d.getName (), decoderName);
       enumDecs.add (d.getName ());
    }
+
+   // A table switch is used when at least a third of the slots in
+   // the value range are populated
+
+   private static boolean isDense (int [] sortedVals)
+   {
+      long range = (long)sortedVals [sortedVals.length - 1] - sortedVals [0] + 1;
+      return range <= 3L * sortedVals.length + 4;
+   }
    
    private CompactReader.Decoder createInstance (
-      DynClass dc, ObjectModel.GroupBinding bnd, Object obsOrExDec)
+      Class<?> decClass, ObjectModel.GroupBinding bnd, Observer obs,
+      boolean isSchemaExchangeType)
       throws BlinkException
    {
       try
       {
          Class<?> tgtType = bnd.getTargetType ();
-         Class<?> decClass = dload.loadPrivileged (dc, tgtType);
-         if (obsOrExDec != null)
+         Object obsOrExDec = isSchemaExchangeType ? schemaExDec : obs;
+         if (CompactReader.PrecompiledDecoder.class.isAssignableFrom (
+                decClass))
+         {
+            Constructor<?> ctor = decClass.getConstructor (
+               Class.class, Schema.Group.class, Observer.class,
+               SchemaExchangeDecoder.class);
+            return (CompactReader.Decoder)ctor.newInstance (
+               tgtType, bnd.getGroup (), isSchemaExchangeType ? null : obs,
+               isSchemaExchangeType ? schemaExDec : null);
+         }
+         else if (obsOrExDec != null)
          {
             Constructor<?> ctor;
             if (obsOrExDec instanceof SchemaExchangeDecoder)
@@ -939,13 +1189,17 @@ public final class CompactReaderCompiler
       }
    }
 
-   private final HashMap<Long, CompactReader.Decoder> decByTid =
-      new HashMap<Long, CompactReader.Decoder> ();
+   private final LongMap<CompactReader.Decoder> decByTid =
+      new LongMap<CompactReader.Decoder> ();
    private final HashMap<NsName, CompactReader.Decoder> decByName =
       new HashMap<NsName, CompactReader.Decoder> ();
    private final ObserverRegistry oreg;
    private final ObjectModel om;
-   private final DynClassLoader dload = new DynClassLoader ();
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final CodecCache cache;
+   private boolean useHiddenClasses;
    private final HashSet<NsName> enumDecs = new HashSet <NsName> ();
    private SchemaExchangeDecoder schemaExDec;
+   private Map<String, byte []> classSink;
 }
@@ -188,6 +188,41 @@ public final class CompactWriter implements Writer
       sink.close ();
    }
 
+   /**
+      Makes this writer define its generated encoders as hidden
+      classes that are nestmates of the bound POJO classes. A hidden
+      class can be unloaded on its own, and the JIT trusts its final
+      fields. Encoders of groups that are used as static subgroups
+      are always loaded normally since other encoders refer to them
+      by name. Has no effect on runtimes without hidden classes, that
+      is, before Java 15.
+
+      <p>Encoders are shared by all writers using the same object
+      model. The setting only applies to encoders that are generated
+      by this writer after the call.</p>
+
+      @param useHiddenClasses {@code true} enables hidden classes
+   */
+
+   public void setUseHiddenClasses (boolean useHiddenClasses)
+   {
+      compiler.setUseHiddenClasses (useHiddenClasses);
+   }
+
+   /**
+      Compiles encoders for all groups in the schema of the object
+      model that have bindings. Encoders are otherwise compiled when
+      the first object of each type is written.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll (schemaExEnc);
+   }
+
    /**
       Enables or disables in-band schema exchange. Disabled by default
 
@@ -353,6 +388,31 @@ public final class CompactWriter implements Writer
 
    public static void writeString (String val, ByteSink sink)
       throws BlinkException.Encode
+   {
+      // Copy ASCII strings straight into the memory of the known
+      // buffer types, avoiding a sink call per character
+
+      if (sink instanceof ByteBuf)
+      {
+         reserve (sink, Vlc.Int32MaxSize + val.length ());
+         if (((ByteBuf)sink).writeAsciiString (val))
+            return;
+      }
+      else if (sink instanceof DirectBuf)
+      {
+         reserve (sink, Vlc.Int32MaxSize + val.length ());
+         if (((DirectBuf)sink).writeAsciiString (val))
+            return;
+      }
+
+      writeStringCharwise (val, sink);
+   }
+
+   // Writes a string through the sink interface one character at a
+   // time. Also used by PerfTest as a baseline for the bulk path
+   
+   static void writeStringCharwise (String val, ByteSink sink)
+      throws BlinkException.Encode
    {
       // Optimize for ASCII strings shorter than 128 UTF-8 encoded bytes
       
@@ -406,6 +466,15 @@ public final class CompactWriter implements Writer
       sink.setPos (save);
    }
 
+   public static void writeUtf8Slice (Utf8Slice val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      int size = val.size ();
+      Vlc.writeU32 (size, sink);
+      reserve (sink, size);
+      val.writeTo (sink);
+   }
+
    public static void writeBinary (byte [] val, ByteSink sink)
       throws BlinkException.Encode
    {
@@ -469,8 +538,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int32MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeU32 (val [i], sink);
+      Vlc.writeU32Array (val, sink);
    }
 
    public static void writeI32Array (int [] val, ByteSink sink)
@@ -478,8 +546,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int32MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeI32 (val [i], sink);
+      Vlc.writeI32Array (val, sink);
    }
 
    public static void writeU64Array (long [] val, ByteSink sink)
@@ -487,8 +554,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeU64 (val [i], sink);
+      Vlc.writeU64Array (val, sink);
    }
 
    public static void writeI64Array (long [] val, ByteSink sink)
@@ -496,8 +562,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeI64 (val [i], sink);
+      Vlc.writeI64Array (val, sink);
    }
 
    public static void writeFixedDecArray (long [] val, ByteSink sink)
@@ -525,8 +590,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeI64 (Double.doubleToLongBits (val [i]), sink);
+      Vlc.writeF64Array (val, sink);
    }
 
    public static void writeDecimalArray (Decimal [] val, ByteSink sink)
@@ -543,8 +607,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int32MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeU32 (val [i], sink);
+      Vlc.writeU32Array (val, sink);
    }
 
    public static void writeTimeOfDayMilliArray (int [] val, ByteSink sink)
@@ -552,8 +615,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int32MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeU32 (val [i], sink);
+      Vlc.writeU32Array (val, sink);
    }
 
    public static void writeTimeOfDayNanoArray (long [] val, ByteSink sink)
@@ -561,8 +623,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeU64 (val [i], sink);
+      Vlc.writeU64Array (val, sink);
    }
 
    public static void writeNanotimeArray (long [] val, ByteSink sink)
@@ -570,8 +631,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeI64 (val [i], sink);
+      Vlc.writeI64Array (val, sink);
    }
 
    public static void writeMillitimeArray (long [] val, ByteSink sink)
@@ -579,8 +639,7 @@ public final class CompactWriter implements Writer
    {
       Vlc.writeU32 (val.length, sink);
       reserve (sink, val.length * Vlc.Int64MaxSize);
-      for (int i = 0; i < val.length; ++ i)
-         Vlc.writeI64 (val [i], sink);
+      Vlc.writeI64Array (val, sink);
    }
 
    public static void writeBoolArray (boolean [] val, ByteSink sink)
@@ -644,14 +703,388 @@ public final class CompactWriter implements Writer
       sink.write (0);
    }
 
+   // The following size functions return the exact number of bytes
+   // the corresponding write function will produce. They are called
+   // from the generated size methods of the encoders
+
+   public static int sizeU8 (byte val)
+   {
+      return Vlc.getU32Size ((int)val);
+   }
+
+   public static int sizeI8 (byte val)
+   {
+      return Vlc.getI32Size ((int)val);
+   }
+
+   public static int sizeU16 (short val)
+   {
+      return Vlc.getU32Size ((int)val);
+   }
+
+   public static int sizeI16 (short val)
+   {
+      return Vlc.getI32Size ((int)val);
+   }
+
+   public static int sizeU32 (int val)
+   {
+      return Vlc.getU32Size (val);
+   }
+
+   public static int sizeI32 (int val)
+   {
+      return Vlc.getI32Size (val);
+   }
+
+   public static int sizeU64 (long val)
+   {
+      return Vlc.getU64Size (val);
+   }
+
+   public static int sizeI64 (long val)
+   {
+      return Vlc.getI64Size (val);
+   }
+
+   public static int sizeFixedDec (long val)
+   {
+      return Vlc.getI64Size (val);
+   }
+
+   public static int sizeBoxedFixedDec (FixedDec val, int scale)
+   {
+      return Vlc.getI64Size (
+         FixedDec.rescale (val.getSignificand (), val.getScale (), scale));
+   }
+
+   public static int sizeF64 (double val)
+   {
+      return Vlc.getU64Size (Double.doubleToLongBits (val));
+   }
+
+   public static int sizeEnumVal (Integer val)
+   {
+      return Vlc.getI32Size (val != null ? val.intValue () : 0);
+   }
+
+   public static int sizeDecimal (Decimal val)
+   {
+      return Vlc.getI32Size (val.getExponent ()) +
+         Vlc.getI64Size (val.getSignificand ());
+   }
+
+   public static int sizeDate (int val)
+   {
+      return Vlc.getU32Size (val);
+   }
+
+   public static int sizeTimeOfDayMilli (int val)
+   {
+      return Vlc.getU32Size (val);
+   }
+
+   public static int sizeTimeOfDayNano (long val)
+   {
+      return Vlc.getU64Size (val);
+   }
+
+   public static int sizeNanotime (long val)
+   {
+      return Vlc.getI64Size (val);
+   }
+
+   public static int sizeMillitime (long val)
+   {
+      return Vlc.getI64Size (val);
+   }
+
+   public static int sizeBool (boolean val)
+   {
+      return 1;
+   }
+
+   public static int sizeString (String val) throws BlinkException.Encode
+   {
+      int size = Utf8Util.getSize (val);
+      return Vlc.getU32Size (size) + size;
+   }
+
+   public static int sizeUtf8Slice (Utf8Slice val)
+   {
+      int size = val.size ();
+      return Vlc.getU32Size (size) + size;
+   }
+
+   public static int sizeBinary (byte [] val)
+   {
+      return Vlc.getU32Size (val.length) + val.length;
+   }
+
+   public static int sizeU8Array (byte [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getU32Size ((int)val [i]);
+      return size;
+   }
+
+   public static int sizeI8Array (byte [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getI32Size ((int)val [i]);
+      return size;
+   }
+
+   public static int sizeU16Array (short [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getU32Size ((int)val [i]);
+      return size;
+   }
+
+   public static int sizeI16Array (short [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getI32Size ((int)val [i]);
+      return size;
+   }
+
+   public static int sizeU32Array (int [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getU32Size (val [i]);
+      return size;
+   }
+
+   public static int sizeI32Array (int [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getI32Size (val [i]);
+      return size;
+   }
+
+   public static int sizeU64Array (long [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getU64Size (val [i]);
+      return size;
+   }
+
+   public static int sizeI64Array (long [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getI64Size (val [i]);
+      return size;
+   }
+
+   public static int sizeFixedDecArray (long [] val)
+   {
+      return sizeI64Array (val);
+   }
+
+   public static int sizeBoxedFixedDecArray (FixedDec [] val, int scale)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += sizeBoxedFixedDec (val [i], scale);
+      return size;
+   }
+
+   // Sequences of doubles are written as signed integers, see
+   // Vlc.writeF64Array
+   
+   public static int sizeF64Array (double [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += Vlc.getI64Size (Double.doubleToLongBits (val [i]));
+      return size;
+   }
+
+   public static int sizeDecimalArray (Decimal [] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += sizeDecimal (val [i]);
+      return size;
+   }
+
+   public static int sizeDateArray (int [] val)
+   {
+      return sizeU32Array (val);
+   }
+
+   public static int sizeTimeOfDayMilliArray (int [] val)
+   {
+      return sizeU32Array (val);
+   }
+
+   public static int sizeTimeOfDayNanoArray (long [] val)
+   {
+      return sizeU64Array (val);
+   }
+
+   public static int sizeNanotimeArray (long [] val)
+   {
+      return sizeI64Array (val);
+   }
+
+   public static int sizeMillitimeArray (long [] val)
+   {
+      return sizeI64Array (val);
+   }
+
+   public static int sizeBoolArray (boolean [] val)
+   {
+      return Vlc.getU32Size (val.length) + val.length;
+   }
+
+   public static int sizeStringArray (String [] val)
+      throws BlinkException.Encode
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += sizeString (val [i]);
+      return size;
+   }
+
+   public static int sizeBinaryArray (byte [][] val)
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += sizeBinary (val [i]);
+      return size;
+   }
+
+   public static int sizeFixedArray (byte [][] val, int fixedSize)
+   {
+      return Vlc.getU32Size (val.length) + val.length * fixedSize;
+   }
+
+   int sizeObjectArray (Object [] val) throws BlinkException
+   {
+      int size = Vlc.getU32Size (val.length);
+      for (int i = 0; i < val.length; ++ i)
+         size += sizeObject (val [i]);
+      return size;
+   }
+
+   int sizeObject (Object o) throws BlinkException
+   {
+      // Only peek at the cache, the object is looked up and counted
+      // once when it is written
+
+      if (encodedCache != null && schemaExEnc == null)
+      {
+         byte [] cached = encodedCache.peek (o);
+         if (cached != null)
+            return cached.length;
+      }
+      
+      Encoder enc = compiler.getEncoder (o.getClass (), schemaExEnc);
+      enc.requireTid ();
+      int size = enc.size (o, this);
+      return getPreambleSize (size) + size;
+   }
+
+   /**
+      Returns the exact number of bytes the specified message will
+      occupy when written by this writer, including the size
+      preamble. Any pending schema exchange definitions are not
+      included.
+
+      @param o the message
+      @return the encoded size in bytes
+      @throws BlinkException if there is a schema or binding problem
+   */
+
+   public int encodedSize (Object o) throws BlinkException
+   {
+      return sizeObject (o);
+   }
+
+   /**
+      Makes this writer compute the exact size of each message before
+      encoding it. The buffer can then be reserved exactly and the
+      size preamble written up front, so large messages are encoded
+      in a single pass without moving the encoded body. The size
+      computation traverses the message once more, so this only pays
+      off for messages larger than {@code Vlc.TwoByteUintMax} bytes
+      or for sinks where reservation is expensive.
+
+      @param useExactSizing {@code true} if messages should be sized
+      before they are encoded
+   */
+
+   public void setUseExactSizing (boolean useExactSizing)
+   {
+      this.useExactSizing = useExactSizing;
+   }
+
+   /**
+      Attaches a cache of pre-encoded messages to this writer. Any
+      message found in the cache is written by copying its cached
+      bytes instead of being encoded. The cache is not consulted
+      when schema exchange is enabled, since cached messages carry no
+      schema definitions.
+
+      @param cache the cache, or {@code null} to detach the current
+      cache
+      @throws IllegalArgumentException if the cache uses another
+      object model than this writer
+   */
+
+   public void setEncodedMessageCache (EncodedMessageCache cache)
+   {
+      if (cache != null && cache.getObjectModel () !=
+          compiler.getObjectModel ())
+         throw new IllegalArgumentException (
+            "The cache must use the same object model as the writer");
+      this.encodedCache = cache;
+   }
+   
+   // The size preamble is always at least two bytes, see writeObject
+   
+   private static int getPreambleSize (int size)
+   {
+      if (size <= Vlc.TwoByteUintMax)
+         return 2;
+      else
+         return Vlc.getUintSize (size);
+   }
+   
    public void writeObject (Object o) throws BlinkException
    {
+      if (encodedCache != null && schemaExEnc == null)
+      {
+         byte [] cached = encodedCache.get (o);
+         if (cached != null)
+         {
+            reserve (sink, cached.length);
+            sink.write (cached);
+            return;
+         }
+      }
+      
       Encoder enc = null;
       
       try
       {
          enc = compiler.getEncoder (o.getClass (), schemaExEnc);
          enc.requireTid ();
+         if (useExactSizing)
+         {
+            writeSized (o, enc);
+            return;
+         }
          reserve (sink, enc.getTidSize () + 2 /* Size preamble */);
          sink.step (2); // Reserve space for a two byte length preamble
          int start = sink.getPos ();
@@ -682,6 +1115,35 @@ public final class CompactWriter implements Writer
       }
    }
 
+   private void writeSized (Object o, Encoder enc) throws BlinkException
+   {
+      int size = enc.size (o, this);
+      reserve (sink, getPreambleSize (size) + size);
+      if (size <= Vlc.TwoByteUintMax)
+         Vlc.write14 (size, sink);
+      else
+         Vlc.writeU32 (size, sink);
+      enc.encode (o, sink, this);
+   }
+   
+   // Encodes an object into the specified sink instead of the sink
+   // of this writer. Used by the warmup harness to exercise the
+   // generated encoders without producing any output
+
+   void writeDetached (Object o, ByteSink dst) throws BlinkException
+   {
+      ByteSink stashedSink = sink;
+      sink = dst;
+      try
+      {
+         writeObject (o);
+      }
+      finally
+      {
+         sink = stashedSink;
+      }
+   }
+
    private static final int AutoFlushThreshold = 4096 - 256;
 
    //////////////////////////////////////////////////////////////////////
@@ -698,6 +1160,24 @@ public final class CompactWriter implements Writer
       protected abstract void encode (Object o, ByteSink sink, CompactWriter wr)
          throws BlinkException.Encode, BlinkException.Binding;
       
+      protected abstract int size (Object o, CompactWriter wr)
+         throws BlinkException;
+
+      // Sizes dynamic groups and objects on behalf of generated
+      // encoders, which live in other packages
+
+      protected static int sizeObject (Object o, CompactWriter wr)
+         throws BlinkException
+      {
+         return wr.sizeObject (o);
+      }
+
+      protected static int sizeObjectArray (Object [] val, CompactWriter wr)
+         throws BlinkException
+      {
+         return wr.sizeObjectArray (val);
+      }
+      
       public int getTidSize () { return tid.length; }
 
       public void requireTid () throws BlinkException
@@ -751,6 +1231,8 @@ public final class CompactWriter implements Writer
    private ByteBuf defBuf;
    private final CompactWriterCompiler compiler;
    private boolean useAutoFlush;
+   private boolean useExactSizing;
+   private EncodedMessageCache encodedCache;
    private SchemaExchangeEncoder schemaExEnc;
    private SchemaExchangeObserver schemaExObs =
       new SchemaExchangeObserver () {
@@ -37,6 +37,7 @@ package com.pantor.blink;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.ArrayList;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
@@ -51,6 +52,7 @@ public final class CompactWriterCompiler
    public CompactWriterCompiler (ObjectModel om)
    {
       this.om = om;
+      this.cache = CodecCache.getInstance (om);
    }
 
    public CompactWriter.Encoder getEncoder (Class<?> cl) throws BlinkException
@@ -88,11 +90,53 @@ public final class CompactWriterCompiler
       getEncoder (name);
    }
 
+   // Compiles encoders for all groups in the schema that have a
+   // binding in the object model, and registers them for lookup by
+   // class. Returns the number of primed groups
+
+   public int primeAll (SchemaExchangeEncoder schemaExEnc)
+      throws BlinkException
+   {
+      int count = 0;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         getEncoder (bnd.getTargetType (), schemaExEnc);
+         ++ count;
+      }
+
+      return count;
+   }
+
    public void primeEnum (ObjectModel.EnumBinding bnd)
       throws BlinkException.Binding
    {
       if (! enumEncs.contains (bnd.getEnum ().getName ()))
-         compileEnum (bnd);
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   // Makes this compiler define generated encoders as hidden classes
+   // when the runtime supports it. Only affects classes generated
+   // after the call, classes already in the codec cache are reused
+   // as is
+
+   public void setUseHiddenClasses (boolean useHiddenClasses)
+   {
+      this.useHiddenClasses = useHiddenClasses;
    }
 
    public ObjectModel getObjectModel ()
@@ -147,6 +191,25 @@ public final class CompactWriterCompiler
    //      {
    //         ... encode blank fields to sink ...
    //      }
+   //
+   //      @Override
+   //      public int size (Object src, CompactWriter wr)
+   //      {
+   //         return tid.length + innerSize ((T)src, wr);
+   //      }
+   //
+   //      public static int sizeArray (T [] objs, CompactWriter wr)
+   //      {
+   //         int size = CompactWriter.sizeU32 (objs.length);
+   //         for (int i = 0; i < size; ++ i)
+   //           size += innerSize (objs [i], wr);
+   //         return size;
+   //      }
+   //
+   //      public static int innerSize (T src, CompactWriter wr)
+   //      {
+   //         ... sum of the encoded sizes of the fields of src ...
+   //      }
    //   }
 
    private final static class SizeContext
@@ -189,16 +252,64 @@ public final class CompactWriterCompiler
       private int size;
    }
    
+   // The generated class is shared through the codec cache by all
+   // writers using the same object model. Generation is serialized
+   // on the cache so that writers racing for the same binding end up
+   // with a single class
+   
    private CompactWriter.Encoder compile (ObjectModel.GroupBinding bnd,
                                           SchemaExchangeEncoder schemaExEnc)
       throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd, schemaExEnc);
+      }
+   }
+
+   private CompactWriter.Encoder compileShared (
+      ObjectModel.GroupBinding bnd, SchemaExchangeEncoder schemaExEnc)
+      throws BlinkException
    {
       Schema.Group g = bnd.getGroup ();
 
       if (schemaExEnc != null)
          schemaExEnc.declare (g);
 
-      String encoderName = getEncoderClassName (g.getName ());
+      String encoderName;
+      if (classSink != null)
+         encoderName = PrecompiledCodecs.getEncoderClassName (bnd);
+      else
+      {
+         // Use an encoder generated ahead of time if there is one
+         // matching this binding
+         
+         Class<?> pre = PrecompiledCodecs.find (
+            PrecompiledCodecs.getEncoderClassName (bnd), bnd.getTargetType ());
+         if (pre != null)
+            return register (g, pre, createInstance (getTid (bnd), pre, bnd));
+
+         // Use an encoder generated by another writer if there is one
+         
+         Class<?> shared = cache.getEncoder (bnd);
+         if (shared != null)
+            return register (g, shared, createInstance (getTid (bnd), shared,
+                                                        bnd));
+         
+         encoderName = cache.getUniqueClassName (
+            getEncoderClassName (g.getName ()));
+      }
+
+      // A hidden class can not be referred to by name, so only
+      // codecs that are never called statically from other codecs
+      // are eligible
+
+      boolean hidden = useHiddenClasses && classSink == null &&
+         DynClassLoader.isHiddenClassSupported () &&
+         ! CodegenUtil.isStaticComponent (om.getSchema (), g.getName ());
+      if (hidden)
+         encoderName = cache.getUniqueClassName (
+            getHiddenEncoderClassName (bnd));
 
       // Generate encoder class
       
@@ -302,25 +413,119 @@ public final class CompactWriterCompiler
       
       dc.return_ ().setMaxStack (2).endMethod ();
 
+      // int size (src, wr)
+
+      String innerSizeSig = getInnerSizeSignature (bnd);
+
+      dc.startPublicMethod ("size", "(Ljava/lang/Object;" +
+                            "Lcom/pantor/blink/CompactWriter;)I")
+         .aload0 () // this
+         .getField ("com.pantor.blink.CompactWriter$Encoder", "tid", "[B")
+         .arrayLength ()
+         .aload1 ().checkCast (srcName).aload2 ()
+         .invokeStatic (encoderName, "innerSize", innerSizeSig)
+         .iadd ()
+         .ireturn ().setMaxStack (3).endMethod ();
+
+      // public static int sizeArray (T [] objs, wr)
+
+      int sizeLoop = dc.declareLabel ();
+      int sizeLoopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("sizeArray", getSizeArraySignature (bnd));
+      dc.aload0 () // objs
+         .arrayLength ()
+         .dup ()
+         .istore2 (); // len
+      invokeSizer (dc, "sizeU32", "I");
+      dc.istore (4) // size
+         .iconst0 ()
+         .istore3 () // i = 0
+         .label (sizeLoop)
+         .iload3 () // i
+         .iload2 () // len
+         .ifIcmpGe (sizeLoopEnd) // jump if i >= len
+         .iload (4) // size
+         .aload0 () // objs
+         .iload3 () // i
+         .aaload () // objs [i]
+         .aload1 () // wr
+         .invokeStatic (encoderName, "innerSize", innerSizeSig)
+         .iadd ()
+         .istore (4) // size += innerSize (objs [i], wr)
+         .iinc (3, 1) // ++ i
+         .goto_ (sizeLoop)
+         .label (sizeLoopEnd)
+         .iload (4)
+         .ireturn ()
+         .setMaxStack (3)
+         .endMethod ();
+
+      // static int innerSize (src, wr)
+
+      dc.startPublicStaticMethod ("innerSize", innerSizeSig);
+      dc.iconst0 ().istore2 (); // size
+
+      // Emit size instructions for each field
+      
+      for (ObjectModel.Field f : bnd)
+      {
+         compileSize (f, dc);
+         dc.iload2 ().iadd ().istore2 (); // size += <field size>
+      }
+
+      dc.iload2 ().ireturn ().setMaxStack (4).endMethod ();
+
       // Create an instance of the generated encoder
       
-      byte [] tid = null;
+      Class<?> encClass;
+      if (hidden)
+         encClass = cache.loadHidden (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
+      else
+         encClass = load (dc, bnd.getTargetType ());
+      if (classSink == null)
+         cache.putEncoder (bnd, encClass);
+      return register (g, encClass, createInstance (getTid (bnd), encClass,
+                                                    bnd));
+   }
 
+   private static byte [] getTid (ObjectModel.GroupBinding bnd)
+   {
       Buf tidBuf = new ByteBuf (Vlc.Int64MaxSize);
       Vlc.writeU64 (bnd.getCompactTypeId (), tidBuf);
       tidBuf.flip ();
-      tid = new byte [tidBuf.size ()];
+      byte [] tid = new byte [tidBuf.size ()];
       tidBuf.read (tid);
-      
-      CompactWriter.Encoder enc = createInstance (tid, dc, bnd);
+      return tid;
+   }
 
-      // Store this instance for future lookups
-      
+   // Stores an encoder and the name of its class for future lookups
+
+   private CompactWriter.Encoder register (Schema.Group g, Class<?> encClass,
+                                           CompactWriter.Encoder enc)
+   {
       encByName.put (g.getName (), enc);
-      
+      classByName.put (g.getName (), encClass.getName ());
       return enc;
    }
 
+   private Class<?> load (DynClass dc, Class<?> scope)
+   {
+      byte [] b = dc.render ();
+      if (classSink != null)
+         classSink.put (dc.getName (), b);
+      return cache.load (dc.getName (), b, scope);
+   }
+
+   // Makes this compiler generate classes to be used ahead of time
+   // and collect the class files in the specified map
+   
+   void setPrecompiledClassSink (Map<String, byte []> classSink)
+   {
+      this.classSink = classSink;
+   }
+
    private static String getClassName (NsName nm)
    {
       if (nm.isQualified ())
@@ -334,6 +539,13 @@ public final class CompactWriterCompiler
       return "com.pantor.blink.dyn.compact." + getClassName (nm) + "_enc";
    }
 
+   // Hidden classes must be in the same package as their nest host
+
+   private static String getHiddenEncoderClassName (ObjectModel.Binding bnd)
+   {
+      return bnd.getTargetType ().getName () + "+compact_enc";
+   }
+
    private static String getEncodeArraySignature (String src)
    {
       return "([L" + DynClass.toInternal (src) +
@@ -353,6 +565,28 @@ public final class CompactWriterCompiler
          ";Lcom/pantor/blink/ByteSink;Lcom/pantor/blink/CompactWriter;)V";
    }
 
+   private static String getInnerSizeSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/CompactWriter;)I";
+   }
+
+   private static String getSizeArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/CompactWriter;)I";
+   }
+
+   private static String getSizeEnumSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) + ";)I";
+   }
+
+   private static String getSizeEnumArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([L" + DynClass.toInternal (bnd.getTargetType ()) + ";)I";
+   }
+
    private static String getEncodeEnumArraySignature (ObjectModel.Binding bnd)
    {
       return "([L" + DynClass.toInternal (bnd.getTargetType ()) +
@@ -370,6 +604,196 @@ public final class CompactWriterCompiler
       invokeWriter (dc, m, "");
    }
 
+   private static void invokeSizer (DynClass dc, String m, String t)
+   {
+      dc.invokeStatic ("com/pantor/blink/CompactWriter", m, "(" + t + ")I");
+   }
+
+   // Emits instructions that leave the encoded size of a field on the
+   // stack. The structure mirrors compile below, so that the size
+   // always matches what the encoder will produce
+   
+   private void compileSize (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Schema.Field sf = f.getField ();
+      Method getter = f.getGetter ();
+
+      if (getter == null)
+      {
+         dc.ldc (getBlankSize (sf, t));
+         return;
+      }
+
+      int putNull = dc.declareLabel ();
+      int end = dc.declareLabel ();
+
+      if (sf.isOptional ())
+      {
+         dc.aload0 (); // src
+         Method pred = f.getPredicate ();
+         if (pred != null)
+            dc.invoke (pred);
+         else
+            throw new RuntimeException ("missing has" + sf.getName ());
+         dc.ifEq (putNull); // Jump if not present
+      }
+
+      dc.aload0 (); // src
+      dc.invoke (getter);
+
+      Schema.TypeCode code = t.isPrimitive () ? t.getType ().getCode () : null;
+      
+      if (! t.isSequence ())
+      {
+         if (t.isPrimitive ())
+         {
+            if (code == Schema.TypeCode.Fixed)
+            {
+               requireGetterRetType (f, byte [].class);
+               Schema.FixedType ft = (Schema.FixedType)t.getType ();
+               dc.pop ();
+               dc.ldc (ft.getSize () + (sf.isOptional () ? 1 : 0));
+            }
+            else if (code == Schema.TypeCode.FixedDec &&
+                     FixedDec.class.isAssignableFrom (getter.getReturnType ()))
+            {
+               Schema.FixedDecType ft = (Schema.FixedDecType)t.getType ();
+               dc.ldc (ft.getScale ());
+               invokeSizer (dc, "sizeBoxedFixedDec",
+                            "Lcom/pantor/blink/FixedDec;I");
+            }
+            else if (code == Schema.TypeCode.String &&
+                     hasGetterRetType (f, Utf8Slice.class))
+               invokeSizer (dc, "sizeUtf8Slice", "Lcom/pantor/blink/Utf8Slice;");
+            else
+            {
+               Class<?> argType = mapType (code);
+               requireGetterRetType (f, argType);
+               invokeSizer (dc, "size" + code.toString (),
+                            getDescriptor (argType));
+            }
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireGetterRetType (f, comp.getTargetType ());
+            primeEnum (comp);
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "size", getSizeEnumSignature (comp));
+         }
+         else if (t.isDynamic () || t.isObject ())
+         {
+            dc.aload1 (); // wr
+            dc.invokeStatic ("com/pantor/blink/CompactWriter$Encoder",
+                             "sizeObject",
+                             "(Ljava/lang/Object;" +
+                             "Lcom/pantor/blink/CompactWriter;)I");
+         }
+         else
+         {
+            ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+            primeGroup (comp.getGroup ().getName ());
+            dc.aload1 (); // wr
+            dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                             "innerSize", getInnerSizeSignature (comp));
+            if (sf.isOptional ())
+               dc.iconst1 ().iadd (); // Presence byte
+         }
+      }
+      else
+      {
+         if (t.isPrimitive ())
+         {
+            Class<?> compType = getter.getReturnType ().getComponentType ();
+            if (code == Schema.TypeCode.Fixed)
+            {
+               requireGetterRetType (f, byte [][].class);
+               Schema.FixedType ft = (Schema.FixedType)t.getType ();
+               dc.ldc (ft.getSize ());
+               invokeSizer (dc, "sizeFixedArray", "[[BI");
+            }
+            else if (code == Schema.TypeCode.FixedDec &&
+                     FixedDec.class.isAssignableFrom (compType))
+            {
+               Schema.FixedDecType ft = (Schema.FixedDecType)t.getType ();
+               dc.ldc (ft.getScale ());
+               invokeSizer (dc, "sizeBoxedFixedDecArray",
+                            "[Lcom/pantor/blink/FixedDec;I");
+            }
+            else
+            {
+               Class<?> argType = mapArrayType (code);
+               requireGetterRetType (f, argType);
+               invokeSizer (dc, "size" + code.toString () + "Array",
+                            getDescriptor (argType));
+            }
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireGetterRetType (
+               f, DynClass.getArrayClass (comp.getTargetType ()));
+            primeEnum (comp);
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "sizeArray", getSizeEnumArraySignature (comp));
+         }
+         else if (t.isObject () || t.isDynamic ())
+         {
+            dc.aload1 (); // wr
+            dc.invokeStatic ("com/pantor/blink/CompactWriter$Encoder",
+                             "sizeObjectArray",
+                             "([Ljava/lang/Object;" +
+                             "Lcom/pantor/blink/CompactWriter;)I");
+         }
+         else
+         {
+            ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+            primeGroup (comp.getGroup ().getName ());
+            dc.aload1 (); // wr
+            dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                             "sizeArray", getSizeArraySignature (comp));
+         }
+      }
+
+      if (sf.isOptional ())
+      {
+         dc.goto_ (end);
+         dc.label (putNull);
+         dc.iconst1 (); // Null byte
+      }
+      
+      dc.label (end);
+   }
+
+   // Returns the size of the blank value written by compileBlankField
+   
+   private int getBlankSize (Schema.Field sf, Schema.TypeInfo t)
+      throws BlinkException
+   {
+      if (sf.isOptional ())
+         return 1;
+      else if (t.isEnum ())
+      {
+         Schema.Enum e = t.getEnum ().getType ().toEnum ();
+         return Vlc.getI32Size (e.getSymbols ().get (0).getValue ());
+      }
+      else if (t.isGroup () && ! t.isSequence () && ! t.isDynamic ())
+      {
+         int size = 0;
+         for (ObjectModel.Field f : om.getGroupBinding (t.getGroup ().getName ()))
+         {
+            Schema.Field inner = f.getField ();
+            size += getBlankSize (inner,
+                                  om.getSchema ().resolve (inner.getType ()));
+         }
+         return size;
+      }
+      else
+         return 1;
+   }
+
    private void compile (ObjectModel.Binding bnd, ObjectModel.Field f,
                          DynClass dc, SizeContext scx)
       throws BlinkException
@@ -461,6 +885,13 @@ public final class CompactWriterCompiler
       Schema.TypeInfo t = f.getFieldType ();
       Schema.TypeCode code = t.getType ().getCode ();
       Class<?> argType = mapType (code);
+      if (code == Schema.TypeCode.String &&
+          hasGetterRetType (f, Utf8Slice.class))
+      {
+         invokeWriter (dc, "writeUtf8Slice", "Lcom/pantor/blink/Utf8Slice;");
+         scx.addGuard (dc);
+         return;
+      }
       requireGetterRetType (f, argType);
       invokeWriter (dc, "write" + code.toString (), getDescriptor (argType));
       if (code == Schema.TypeCode.String || code == Schema.TypeCode.Binary)
@@ -564,7 +995,7 @@ public final class CompactWriterCompiler
       
       primeEnum (comp);
       dc.aload1 (); // sink, #depth: 2
-      dc.invokeStatic (getEncoderClassName (t.getEnum ().getName ()),
+      dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
                        "encode", getEncodeEnumSignature (comp));
       scx.addSize (Vlc.Int32MaxSize);
    }
@@ -591,7 +1022,7 @@ public final class CompactWriterCompiler
       requireGetterRetType (f, DynClass.getArrayClass (comp.getTargetType ()));
       primeEnum (comp);
       dc.aload1 (); // sink, #depth: 2
-      dc.invokeStatic (getEncoderClassName (t.getEnum ().getName ()),
+      dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
                        "encodeArray",
                        getEncodeEnumArraySignature (comp));
    }
@@ -623,7 +1054,7 @@ public final class CompactWriterCompiler
          }
          dc.aload1 (); // sink, #depth: 2
          dc.aload2 (); // Writer, #depth: 3
-         dc.invokeStatic (getEncoderClassName (comp.getGroup ().getName ()),
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
                           "innerEncode", getInnerEncodeSignature (comp));
          scx.addGuard (dc);
       }
@@ -650,7 +1081,7 @@ public final class CompactWriterCompiler
             getEncodeArraySignature (comp.getTargetType ().getName ());
          dc.aload1 (); // sink, #depth: 2
          dc.aload2 (); // Writer, #depth: 3
-         dc.invokeStatic (getEncoderClassName (comp.getGroup ().getName ()),
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
                           "encodeArray", sig);
       }
    }
@@ -697,7 +1128,7 @@ public final class CompactWriterCompiler
       {
          primeGroup (t.getGroup ().getName ());
          dc.aload (sinkReg); // sink, #depth: 2
-         dc.invokeStatic (getEncoderClassName (t.getGroup ().getName ()),
+         dc.invokeStatic (classByName.get (t.getGroup ().getName ()),
                           "encodeBlank", "(Lcom/pantor/blink/ByteSink;)V");
          scx.addGuard (dc);
       }
@@ -753,6 +1184,19 @@ public final class CompactWriterCompiler
    //           encode (src [i], sink);
    //      }
    //
+   //      public static int size (T sym)
+   //      {
+   //         return CompactWriter.sizeEnumVal (map.get (sym));
+   //      }
+   //  
+   //      public static int sizeArray (T [] syms)
+   //      {
+   //         int size = CompactWriter.sizeU32 (syms.length);
+   //         for (int i = 0; i < syms.length; ++ i)
+   //           size += size (syms [i]);
+   //         return size;
+   //      }
+   //
    //      private final static java.util.EnumMap<T, Integer> map;
    //      
    //      static
@@ -769,7 +1213,30 @@ public final class CompactWriterCompiler
       throws BlinkException.Binding
    {
       Schema.Define d = bnd.getEnum ();
-      String encoderName = getEncoderClassName (d.getName ());
+      String encoderName;
+      if (classSink != null)
+         encoderName = PrecompiledCodecs.getEncoderClassName (bnd);
+      else
+      {
+         String preName = PrecompiledCodecs.getEncoderClassName (bnd);
+         if (PrecompiledCodecs.find (preName, bnd.getTargetType ()) != null)
+         {
+            classByName.put (d.getName (), preName);
+            enumEncs.add (d.getName ());
+            return;
+         }
+
+         Class<?> shared = cache.getEncoder (bnd);
+         if (shared != null)
+         {
+            classByName.put (d.getName (), shared.getName ());
+            enumEncs.add (d.getName ());
+            return;
+         }
+         
+         encoderName = cache.getUniqueClassName (
+            getEncoderClassName (d.getName ()));
+      }
 
       // Generate encoder class
       
@@ -824,6 +1291,51 @@ public final class CompactWriterCompiler
          .setMaxStack (2)
          .endMethod ();
       
+      // public static int size (sym)
+
+      dc.startPublicStaticMethod ("size", getSizeEnumSignature (bnd))
+         .getStatic (encoderName, "map", "Ljava/util/EnumMap;")
+         .aload0 () // sym
+         .invokeVirtual ("java.util.EnumMap", "get",
+                         "(Ljava/lang/Object;)Ljava/lang/Object;")
+         .checkCast ("java.lang.Integer");
+      invokeSizer (dc, "sizeEnumVal", "Ljava/lang/Integer;");
+      dc.ireturn ().setMaxStack (2).endMethod ();
+
+      // public static int sizeArray (syms)
+
+      int sizeLoop = dc.declareLabel ();
+      int sizeLoopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("sizeArray",
+                                  getSizeEnumArraySignature (bnd));
+      dc.aload0 () // syms
+         .arrayLength ()
+         .dup ()
+         .istore1 (); // len
+      invokeSizer (dc, "sizeU32", "I");
+      dc.istore3 () // size
+         .iconst0 ()
+         .istore2 () // i = 0
+         .label (sizeLoop)
+         .iload2 () // i
+         .iload1 () // len
+         .ifIcmpGe (sizeLoopEnd) // jump if i >= len
+         .iload3 () // size
+         .aload0 () // syms
+         .iload2 () // i
+         .aaload () // syms [i]
+         .invokeStatic (encoderName, "size", getSizeEnumSignature (bnd))
+         .iadd ()
+         .istore3 () // size += size (syms [i])
+         .iinc (2, 1) // ++ i
+         .goto_ (sizeLoop)
+         .label (sizeLoopEnd)
+         .iload3 ()
+         .ireturn ()
+         .setMaxStack (3)
+         .endMethod ();
+      
       // static init
       
       dc.startMethod ("<clinit>", "()V", DynClass.MtodFlag.Static);
@@ -858,19 +1370,22 @@ public final class CompactWriterCompiler
 
       // Load the class
 
-      dload.loadPrivileged (dc, enumType);
+      Class<?> encClass = load (dc, enumType);
+      if (classSink == null)
+         cache.putEncoder (bnd, encClass);
 
+      classByName.put (d.getName (), encoderName);
       enumEncs.add (d.getName ());
    }
 
-   private CompactWriter.Encoder createInstance (byte [] tid, DynClass dc,
+   private CompactWriter.Encoder createInstance (byte [] tid,
+                                                 Class<?> encClass,
                                                  ObjectModel.GroupBinding bnd)
       throws BlinkException.Binding
    {
       try
       {
          Class<?> tgtType = bnd.getTargetType ();
-         Class<?> encClass = dload.loadPrivileged (dc, tgtType);
          Constructor<?> ctor = encClass.getConstructor (
             byte [].class, Class.class, Schema.Group.class);
          
@@ -930,6 +1445,10 @@ public final class CompactWriterCompiler
    private final HashMap<NsName, CompactWriter.Encoder> encByName =
       new HashMap<NsName, CompactWriter.Encoder> ();
    private final ObjectModel om;
-   private final DynClassLoader dload = new DynClassLoader ();
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final CodecCache cache;
+   private boolean useHiddenClasses;
    private final HashSet<NsName> enumEncs = new HashSet <NsName> ();
+   private Map<String, byte []> classSink;
 }
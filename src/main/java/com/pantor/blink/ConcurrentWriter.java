@@ -0,0 +1,316 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   The {@code ConcurrentWriter} class is a thread safe writer for the
+   Blink compact binary format that can be shared by several
+   producer threads.
+
+   <p>Each producer encodes messages on its own thread into a private
+   buffer, using a {@link CompactWriter} of its own that shares the
+   compiled encoders of the object model. It then claims a region of
+   the exact size in a shared ring buffer by advancing an atomic
+   cursor, copies the encoded bytes into the region and publishes
+   it. Regions are published in the order they were claimed, so each
+   message appears whole and the order of messages from any single
+   producer is preserved.</p>
+
+   <p>A single flusher at a time writes the contiguous published
+   prefix of the ring buffer to the output stream. Any thread calling
+   {@code flush} may act as the flusher, and producers that find the
+   ring buffer full help flushing it.</p>
+
+   <p>An output error is sticky. Once writing to the stream has
+   failed, every later call that needs to write to the stream,
+   including producers waiting for space in the ring buffer, throws
+   an {@code IOException} and nothing more is written.</p>
+
+   <p>Schema exchange is not supported.</p>
+ */
+
+public final class ConcurrentWriter implements Writer
+{
+   /**
+      The default ring buffer capacity is 1M
+   */
+   
+   public static final int DefaultCapacity = 1 << 20;
+
+   /**
+      Creates a writer that encodes messages as defined by the
+      specified object model and writes them to the specified stream
+
+      @param om an object model
+      @param os the stream to write to
+   */
+
+   public ConcurrentWriter (ObjectModel om, OutputStream os)
+   {
+      this (om, os, DefaultCapacity);
+   }
+
+   /**
+      Creates a writer with a ring buffer of the specified capacity.
+      A single message must not be larger than the capacity.
+
+      @param om an object model
+      @param os the stream to write to
+      @param capacity the ring buffer capacity in bytes
+   */
+
+   public ConcurrentWriter (ObjectModel om, OutputStream os, int capacity)
+   {
+      if (capacity < 1)
+         throw new IllegalArgumentException ("Capacity must be positive");
+      this.om = om;
+      this.os = os;
+      this.ring = new byte [capacity];
+   }
+
+   @Override
+   public void write (Object o) throws BlinkException, IOException
+   {
+      Producer p = producers.get ();
+      p.buf.clear ();
+      p.wr.writeObject (o);
+      p.buf.flip ();
+      publish (p.buf);
+   }
+
+   @Override
+   public void write (Object [] objs) throws BlinkException, IOException
+   {
+      write (objs, 0, objs.length);
+   }
+
+   @Override
+   public void write (Object [] objs, int from, int len)
+      throws BlinkException, IOException
+   {
+      for (int i = from; i < from + len; ++ i)
+         write (objs [i]);
+   }
+
+   @Override
+   public void write (Iterable<?> objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Writes all messages published so far to the output stream and
+      flushes the stream. Messages that are claimed but not yet
+      published by other producers are left for a later flush.
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void flush () throws IOException
+   {
+      synchronized (flushLock)
+      {
+         drain ();
+         os.flush ();
+      }
+   }
+
+   /**
+      Does nothing since producers keep no pending messages of their
+      own
+   */
+   
+   @Override
+   public void softFlush ()
+   {
+   }
+
+   /**
+      Writes all messages claimed before this call, waiting for their
+      producers to publish them, and closes the stream. Messages
+      claimed after this call starts may be lost.
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void close () throws IOException
+   {
+      long end = claimed.get ();
+      try
+      {
+         for (;;)
+         {
+            synchronized (flushLock)
+            {
+               drain ();
+               if (flushed.get () >= end)
+                  break;
+            }
+
+            // Let producers that are still copying publish, and
+            // producers waiting for space take the flush lock
+
+            Thread.yield ();
+         }
+      }
+      finally
+      {
+         synchronized (flushLock)
+         {
+            os.close ();
+         }
+      }
+   }
+
+   /**
+      Returns the ring buffer capacity
+
+      @return the capacity in bytes
+   */
+
+   public int getCapacity () { return ring.length; }
+
+   private void publish (ByteBuf msg) throws BlinkException, IOException
+   {
+      int size = msg.size ();
+      int cap = ring.length;
+      if (size > cap)
+         throw new BlinkException.Encode (
+            "Message of " + size + " bytes does not fit in a ring buffer " +
+            "of " + cap + " bytes");
+
+      long start = claimed.getAndAdd (size);
+      boolean filled = false;
+      try
+      {
+         // Wait for the flusher to free the region
+
+         while (start + size - flushed.get () > cap)
+         {
+            synchronized (flushLock)
+            {
+               drain ();
+            }
+            if (start + size - flushed.get () > cap)
+               Thread.yield ();
+         }
+
+         int off = (int)(start % cap);
+         int first = Math.min (size, cap - off);
+         msg.read (ring, off, first);
+         if (first < size)
+            msg.read (ring, 0, size - first);
+         filled = true;
+      }
+      finally
+      {
+         // An unfilled region is poisoned by a failure so that it
+         // never reaches the stream
+
+         if (! filled && failure == null)
+            failure = new IOException (
+               "A message could not be copied into the ring buffer");
+
+         // Publish in claim order, even if the region could not be
+         // filled, so that later producers are never blocked
+
+         while (published.get () != start)
+            Thread.yield ();
+         published.set (start + size);
+      }
+   }
+
+   // Writes the contiguous published prefix to the stream. Must be
+   // called with the flush lock held
+   
+   private void drain () throws IOException
+   {
+      if (failure != null)
+         throw new IOException ("An earlier output error stopped the writer",
+                                failure);
+
+      long from = flushed.get ();
+      long to = published.get ();
+      if (to == from)
+         return;
+
+      int cap = ring.length;
+      int off = (int)(from % cap);
+      int len = (int)(to - from);
+      int first = Math.min (len, cap - off);
+      try
+      {
+         os.write (ring, off, first);
+         if (first < len)
+            os.write (ring, 0, len - first);
+      }
+      catch (IOException e)
+      {
+         failure = e;
+         throw e;
+      }
+      flushed.set (to);
+   }
+
+   private final class Producer
+   {
+      final ByteBuf buf = new ByteBuf ();
+      final CompactWriter wr = new CompactWriter (om, buf);
+   }
+
+   private final ThreadLocal<Producer> producers = new ThreadLocal<Producer> () {
+         @Override protected Producer initialValue ()
+         {
+            return new Producer ();
+         }
+      };
+
+   private final ObjectModel om;
+   private final OutputStream os;
+   private final byte [] ring;
+   private final Object flushLock = new Object ();
+   private final AtomicLong claimed = new AtomicLong ();
+   private final AtomicLong published = new AtomicLong ();
+   private final AtomicLong flushed = new AtomicLong ();
+   private volatile IOException failure;
+}
@@ -190,6 +190,13 @@ import java.io.InputStreamReader;
    <p>where {@code ...} means one of the six name variants used in the
    patterns above.</p>
 
+   <p>Fields of the Blink type string can be bound to either {@code
+   String} or {@link Utf8Slice}. A {@code Utf8Slice} is a mutable
+   holder that the decoder fills in place if the getter returns an
+   existing instance, which avoids allocating a new string per decoded
+   field. The setter may be omitted for such fields, in which case the
+   getter must return the holder to fill.</p>
+
    <p>This object model maps Blink enums to classes using the same
    lookup method as it uses for groups. It then maps the individual
    enum symbols, {@code <sym>}, or their aliases, to the first
@@ -561,18 +568,36 @@ public final class DefaultObjectModel extends Dependee.Impl
       }
    }
 
+   // The getters first look in the published snapshot without
+   // taking any lock. Only a miss, that is the first lookup of a
+   // binding or a lookup after a schema change, goes to the internal
+   // maps under the monitor and publishes a new snapshot if any
+   // bindings were added. All bindings created while resolving a
+   // single lookup, such as a full refresh, are published at once.
+   // This is done also when the lookup fails, since a refresh may
+   // have replaced bindings that are already in the snapshot.
+   
    @Override
    public GroupBinding getGroupBinding (long tid)
       throws BlinkException
    {
-      // FIXME: use TLS
+      GroupBinding b = snapshot.grpBndByTid.get (tid);
+      if (b != null)
+         return b;
+
       synchronized (monitor)
       {
-         GroupBinding b = grpBndByTid.get (tid);
-         if (b != null)
+         try
+         {
+            b = grpBndByTid.get (tid);
+            if (b == null)
+               b = compileByTid (tid);
             return b;
-         else
-            return compileByTid (tid);
+         }
+         finally
+         {
+            publishChanges ();
+         }
       }
    }
    
@@ -580,14 +605,23 @@ public final class DefaultObjectModel extends Dependee.Impl
    public GroupBinding getGroupBinding (NsName name)
       throws BlinkException
    {
+      GroupBinding b = snapshot.grpBndByName.get (name);
+      if (b != null)
+         return b;
+
       synchronized (monitor)
       {
-         // FIXME: use TLS
-         GroupBinding b = grpBndByName.get (name);
-         if (b != null)
+         try
+         {
+            b = grpBndByName.get (name);
+            if (b == null)
+               b = compileByName (name);
             return b;
-         else
-            return compileByName (name);
+         }
+         finally
+         {
+            publishChanges ();
+         }
       }
    }
 
@@ -595,14 +629,23 @@ public final class DefaultObjectModel extends Dependee.Impl
    public GroupBinding getGroupBinding (Class<?> cl)
       throws BlinkException
    {
+      GroupBinding b = snapshot.grpBndByClass.get (cl);
+      if (b != null)
+         return b;
+
       synchronized (monitor)
       {
-         // FIXME: use TLS
-         GroupBinding b = grpBndByClass.get (cl);
-         if (b != null)
+         try
+         {
+            b = grpBndByClass.get (cl);
+            if (b == null)
+               b = compileByClass (cl);
             return b;
-         else
-            return compileByClass (cl);
+         }
+         finally
+         {
+            publishChanges ();
+         }
       }
    }
 
@@ -610,15 +653,67 @@ public final class DefaultObjectModel extends Dependee.Impl
    public EnumBinding getEnumBinding (NsName name)
       throws BlinkException
    {
+      EnumBinding b = snapshot.enumBndByName.get (name);
+      if (b != null)
+         return b;
+
       synchronized (monitor)
       {
-         // FIXME: use TLS
-         EnumBinding b = enumBndByName.get (name);
-         if (b != null)
+         try
+         {
+            b = enumBndByName.get (name);
+            if (b == null)
+               b = compileEnum (name);
             return b;
-         else
-            return compileEnum (name);
+         }
+         finally
+         {
+            publishChanges ();
+         }
+      }
+   }
+
+   // Bindings are added to the internal maps before they are
+   // complete to allow circular references, so the maps can not be
+   // read without the monitor. Instead, a copy is published once a
+   // lookup has completed. A snapshot is never modified after it has
+   // been published
+
+   private static final class Snapshot
+   {
+      Snapshot ()
+      {
+         grpBndByTid = new LongMap<GroupBinding> ();
+         grpBndByName = new HashMap<NsName, GroupBinding> ();
+         enumBndByName = new HashMap<NsName, EnumBinding> ();
+         grpBndByClass = new HashMap<Class<?>, GroupBinding> ();
+      }
+
+      Snapshot (DefaultObjectModel om)
+      {
+         grpBndByTid = new LongMap<GroupBinding> (om.grpBndByTid);
+         grpBndByName = new HashMap<NsName, GroupBinding> (om.grpBndByName);
+         enumBndByName = new HashMap<NsName, EnumBinding> (om.enumBndByName);
+         grpBndByClass =
+            new HashMap<Class<?>, GroupBinding> (om.grpBndByClass);
       }
+      
+      final LongMap<GroupBinding> grpBndByTid;
+      final HashMap<NsName, GroupBinding> grpBndByName;
+      final HashMap<NsName, EnumBinding> enumBndByName;
+      final HashMap<Class<?>, GroupBinding> grpBndByClass;
+   }
+
+   private void publish ()
+   {
+      snapshot = new Snapshot (this);
+      unpublished = false;
+   }
+
+   private void publishChanges ()
+   {
+      if (unpublished)
+         publish ();
    }
 
    private boolean isIncludedClass (Class<?> c)
@@ -658,6 +753,8 @@ public final class DefaultObjectModel extends Dependee.Impl
 
          for (Schema.Group g : schema.getGroups ())
             compile (g);
+
+         unpublished = true;
       }
    }
 
@@ -700,7 +797,10 @@ public final class DefaultObjectModel extends Dependee.Impl
          if (b != null)
          {
             if (c != cl)
-               grpBndByClass.put (c, b);
+            {
+               grpBndByClass.put (cl, b);
+               unpublished = true;
+            }
             return b;
          }
       }
@@ -753,6 +853,7 @@ public final class DefaultObjectModel extends Dependee.Impl
          grpBndByTid.remove (grp.getCompactTypeId ());
       grpBndByName.remove (grp.getGroup ().getName ());
       removeAllSubclasses (grp.getTargetType ());
+      publish ();
       grp.notifyAllDependents ();
    }
 
@@ -761,6 +862,7 @@ public final class DefaultObjectModel extends Dependee.Impl
    {
       dirty = true;
       enumBndByName.remove (enm.getEnum ().getName ());
+      publish ();
       enm.notifyAllDependents ();
    }
 
@@ -1093,6 +1195,7 @@ public final class DefaultObjectModel extends Dependee.Impl
       GroupBinding b = new GroupBindingImpl (origin, tgtType, bindingFields);
       grpBndByName.put (origin.getName (), b);
       grpBndByClass.put (tgtType, b);
+      unpublished = true;
 
       long tid = b.getCompactTypeId ();
       if (grpBndByTid.containsKey (tid))
@@ -1122,6 +1225,7 @@ public final class DefaultObjectModel extends Dependee.Impl
       
       EnumBinding b = new EnumBindingImpl (d, tgtType, syms);
       enumBndByName.put (d.getName (), b);
+      unpublished = true;
       return b;
    }
 
@@ -1305,22 +1409,22 @@ public final class DefaultObjectModel extends Dependee.Impl
    }
 
    private final Object monitor = new Object ();
-   private final HashMap<Long, GroupBinding> grpBndByTid =
-      new HashMap<Long, GroupBinding> ();
+   private final LongMap<GroupBinding> grpBndByTid =
+      new LongMap<GroupBinding> ();
    private final HashMap<NsName, GroupBinding> grpBndByName =
       new HashMap<NsName, GroupBinding> ();
    private final HashMap<NsName, EnumBinding> enumBndByName =
       new HashMap<NsName, EnumBinding> ();
    private final HashMap<Class<?>, GroupBinding> grpBndByClass =
       new HashMap<Class<?>, GroupBinding> ();
-   private final HashMap<Long, Schema.Group> unboundByTid =
-      new HashMap<Long, Schema.Group> ();
+   private final LongMap<Schema.Group> unboundByTid =
+      new LongMap<Schema.Group> ();
    private final HashMap<NsName, Schema.Group> unboundByName =
       new HashMap<NsName, Schema.Group> ();
    private final HashMap<String, String> pkgByNs =
       new HashMap<String, String> ();
-   private final HashMap<Long, String> conflictByTid =
-      new HashMap<Long, String> ();
+   private final LongMap<String> conflictByTid =
+      new LongMap<String> ();
    private final Schema schema;
    private final Dependent schemaDep;
    private String pkg;
@@ -1333,6 +1437,8 @@ public final class DefaultObjectModel extends Dependee.Impl
    private Class<? extends java.lang.annotation.Annotation>
                    exclusiveMethodAnnot = NoBlink.class;
 
+   private volatile Snapshot snapshot = new Snapshot ();
+   private boolean unpublished;
    private boolean dirty = true;
    private boolean loadedBuiltinSchemas;
 }
@@ -35,20 +35,20 @@
 
 package com.pantor.blink;
 
-import java.util.HashMap;
 import java.util.ArrayList;
 import java.lang.reflect.Method;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
 import java.lang.annotation.Annotation;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public final class DefaultObsRegistry implements ObserverRegistry 
 {
    public enum LoadMode
    {
-      Public, Privileged
+      Public, Privileged, Hidden
    }
 
    /**
@@ -93,6 +93,14 @@ reg.addObserver (new MyObserver ());</pre>
       typically is the main class loader of the whole application, the
       generated classes will never be garbage collected, even when
       they are not used anymore.</p>
+
+      <p>With {@code LoadMode.Hidden} the generated classes are
+      defined as hidden classes that are nestmates of the POJO
+      observer. They have the same visibility as in the privileged
+      mode, but each class can be unloaded on its own once the
+      observer is no longer used. Hidden classes require Java 15 or
+      later. On earlier runtimes the privileged mode is used
+      instead.</p>
       
       @param om the object model
       @param loadMode specifies how to load dynamically generated
@@ -217,7 +225,12 @@ reg.addObserver (new MyObserver ());</pre>
       final Object obs;
    }
    
-   private void flush () throws BlinkException
+   // Flushing is serialized so that a thread that fails to find an
+   // observer while another thread is flushing waits for it to
+   // finish. This lets several readers on different threads share a
+   // registry
+
+   private synchronized void flush () throws BlinkException
    {
       if (dirty)
       {
@@ -427,7 +440,14 @@ reg.addObserver (new MyObserver ());</pre>
       {
          Class<?> obsClass;
          Class<?> pojoObsClass = obs.getClass ();
-         if (loadMode == LoadMode.Privileged)
+         if (loadMode == LoadMode.Hidden)
+         {
+            obsClass = dload.loadHidden (dc.getName (), dc.render (),
+                                         pojoObsClass);
+            if (obsClass == null)
+               obsClass = dload.loadPrivileged (dc, pojoObsClass);
+         }
+         else if (loadMode == LoadMode.Privileged)
             obsClass = dload.loadPrivileged (dc, pojoObsClass);
          else
             obsClass = dload.load (dc);
@@ -475,13 +495,13 @@ reg.addObserver (new MyObserver ());</pre>
    }
 
    private LoadMode loadMode;
-   private final HashMap<NsName, Observer> obsByName =
-      new HashMap <NsName, Observer> ();
+   private final ConcurrentHashMap<NsName, Observer> obsByName =
+      new ConcurrentHashMap<NsName, Observer> ();
    private final ObjectModel om;
    private final DynClassLoader dload;
    private final Dependent omDep;
    private final ArrayList<PendObs> pendObservers = new ArrayList<PendObs> ();
-   private Observer fallback;
+   private volatile Observer fallback;
    private static AtomicInteger uniqueId = new AtomicInteger ();
-   private boolean dirty = true;
+   private volatile boolean dirty = true;
 }
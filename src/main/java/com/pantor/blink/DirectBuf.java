@@ -481,6 +481,265 @@ public final class DirectBuf implements Buf
       return s.toString ();
    }
    
+   // Returns the w bytes directly following the current position as
+   // an unsigned little endian value without moving the position. On
+   // little endian platforms all bytes are fetched in a single
+   // unaligned eight byte load when it stays within the allocated
+   // memory
+
+   long getLittleEndian (int w)
+   {
+      long p = pos + 1;
+      if (IsNativeLittleEndian && p + 8 <= start + capacity)
+      {
+         long v = unsafe.getLong (p);
+         if (w < 8)
+            return v & ((1L << (w << 3)) - 1);
+         else
+            return v;
+      }
+      else
+      {
+         long v = 0;
+         for (int i = 0; i < w; ++ i)
+            v |= (long)(unsafe.getByte (p + i) & 0xff) << (i << 3);
+         return v;
+      }
+   }
+   
+   // Bulk VLC coding of primitive arrays. The loops work directly on
+   // the allocated memory and handle single byte values inline. Longer
+   // values are passed on to the regular VLC coder
+
+   void readU32Array (int [] dst) throws BlinkException.Decode
+   {
+      long p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = unsafe.getByte (p);
+         if (b >= 0)
+         {
+            dst [i] = b;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readU32 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readI32Array (int [] dst) throws BlinkException.Decode
+   {
+      long p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = unsafe.getByte (p);
+         if (b >= 0)
+         {
+            dst [i] = (b << 25) >> 25;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readI32 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readU64Array (long [] dst) throws BlinkException.Decode
+   {
+      long p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = unsafe.getByte (p);
+         if (b >= 0)
+         {
+            dst [i] = b;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readU64 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readI64Array (long [] dst) throws BlinkException.Decode
+   {
+      long p = pos;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         int b = unsafe.getByte (p);
+         if (b >= 0)
+         {
+            dst [i] = ((long)b << 57) >> 57;
+            ++ p;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Vlc.readI64 (this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   // Writes a string with its size preamble if all characters are
+   // ASCII. See ByteBuf.writeAsciiString
+
+   boolean writeAsciiString (String val)
+   {
+      int len = val.length ();
+      long start = pos;
+      Vlc.writeU32 (len, this);
+      long p = pos;
+      for (int i = 0; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c >= 0x0080)
+         {
+            pos = start;
+            return false;
+         }
+         unsafe.putByte (p + i, (byte)c);
+      }
+      pos = p + len;
+      return true;
+   }
+
+   void writeU32Array (int [] val)
+   {
+      long p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         int v = val [i];
+         if (v >= 0 && v < 0x80)
+            unsafe.putByte (p ++, (byte)v);
+         else
+         {
+            pos = p;
+            Vlc.writeU32 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeI32Array (int [] val)
+   {
+      long p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         int v = val [i];
+         if (v >= -64 && v < 64)
+            unsafe.putByte (p ++, (byte)(v & 0x7f));
+         else
+         {
+            pos = p;
+            Vlc.writeI32 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeU64Array (long [] val)
+   {
+      long p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = val [i];
+         if (v >= 0 && v < 0x80)
+            unsafe.putByte (p ++, (byte)v);
+         else
+         {
+            pos = p;
+            Vlc.writeU64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeI64Array (long [] val)
+   {
+      long p = pos;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = val [i];
+         if (v >= -64 && v < 64)
+            unsafe.putByte (p ++, (byte)(v & 0x7f));
+         else
+         {
+            pos = p;
+            Vlc.writeI64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void readF64Array (double [] dst) throws BlinkException.Decode
+   {
+      long p = pos;
+      long limit = start + capacity;
+      for (int i = 0; i < dst.length; ++ i)
+      {
+         if (IsNativeLittleEndian && unsafe.getByte (p) == (byte)0xc8 &&
+             p + 9 <= limit)
+         {
+            dst [i] = Double.longBitsToDouble (unsafe.getLong (p + 1));
+            p += 9;
+         }
+         else
+         {
+            pos = p;
+            dst [i] = Double.longBitsToDouble (Vlc.readU64 (this));
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   void writeF64Array (double [] val)
+   {
+      long p = pos;
+      long limit = start + capacity;
+      for (int i = 0; i < val.length; ++ i)
+      {
+         long v = Double.doubleToLongBits (val [i]);
+         if (IsNativeLittleEndian &&
+             (v >= 0x0080000000000000L || v < -36028797018963968L) &&
+             p + 9 <= limit)
+         {
+            unsafe.putByte (p, (byte)0xc8);
+            unsafe.putLong (p + 1, v);
+            p += 9;
+         }
+         else
+         {
+            pos = p;
+            Vlc.writeI64 (v, this);
+            p = pos;
+         }
+      }
+      pos = p;
+   }
+
+   private final static boolean IsNativeLittleEndian =
+      ByteOrder.nativeOrder () == ByteOrder.LITTLE_ENDIAN;
+   
    private final static sun.misc.Unsafe unsafe = getUnsafe ();
    private final static long ByteArrayOff =
       unsafe != null ? unsafe.arrayBaseOffset (byte [].class) : 0;
@@ -1540,10 +1540,20 @@ public final class DynClass
       return this;
    }
 
-   public DynClass lookupswitch ()
+   // Keys must be sorted in increasing order, labels [i] is the
+   // target of keys [i]
+
+   public DynClass lookupswitch (int [] keys, int [] labels, int dflt)
    {
-      // FIXME: implement at some point for completeness
-      throw new RuntimeException ("DynClass: lookupswitch not implemented yet");
+      if (keys.length != labels.length)
+         throw new RuntimeException ("DynClass: lookupswitch key and label " +
+                                     "count mismatch");
+      for (int i = 1; i < keys.length; ++ i)
+         if (keys [i - 1] >= keys [i])
+            throw new RuntimeException ("DynClass: lookupswitch keys must " +
+                                        "be sorted and unique");
+      curMtod.addIns (new SwitchIns (0xab, 0, keys, labels, dflt));
+      return this;
    }
 
    public DynClass lor ()
@@ -1723,10 +1733,12 @@ public final class DynClass
       return this;
    }
 
-   public DynClass tableswitch ()
+   // labels [i] is the target of the value low + i
+
+   public DynClass tableswitch (int low, int [] labels, int dflt)
    {
-      // FIXME: implement at some point for completeness
-      throw new RuntimeException ("DynClass: tableswitch not implemented yet");
+      curMtod.addIns (new SwitchIns (0xaa, low, null, labels, dflt));
+      return this;
    }
 
    //////////////////////////////////////////////////////////////////////
@@ -2490,6 +2502,84 @@ public final class DynClass
       int addr;
    }
 
+   private static class SwitchIns extends Ins
+   {
+      SwitchIns (int opc, int low, int [] keys, int [] labels, int dflt)
+      {
+         this.opc = (byte)opc;
+         this.low = low;
+         this.keys = keys;
+         this.labels = labels;
+         this.dflt = dflt;
+         this.offsets = new int [labels.length];
+      }
+
+      // The operands are aligned on a four byte boundary relative to
+      // the start of the code, so the size depends on the address
+
+      void resolveLabel (int addr, HashMap<Integer, Integer> jmpMap)
+      {
+         this.pad = (4 - ((addr + 1) & 3)) & 3;
+      }
+
+      void resolveJmp (int addr, HashMap<Integer, Integer> jmpMap)
+      {
+         dfltOffset = resolve (dflt, addr, jmpMap);
+         for (int i = 0; i < labels.length; ++ i)
+            offsets [i] = resolve (labels [i], addr, jmpMap);
+      }
+
+      private static int resolve (int label, int addr,
+                                  HashMap<Integer, Integer> jmpMap)
+      {
+         Integer a = jmpMap.get (label);
+         if (a == null)
+            throw new RuntimeException ("DynClass: Dangling label: " + label);
+         return a.intValue () - addr;
+      }
+
+      int getSize ()
+      {
+         if (keys != null)
+            return 1 + pad + 8 + 8 * labels.length; // lookupswitch
+         else
+            return 1 + pad + 12 + 4 * labels.length; // tableswitch
+      }
+
+      void write (DataOutputStream os) throws IOException
+      {
+         os.write (opc);
+         for (int i = 0; i < pad; ++ i)
+            os.write (0);
+         os.writeInt (dfltOffset);
+         if (keys != null)
+         {
+            os.writeInt (keys.length);
+            for (int i = 0; i < keys.length; ++ i)
+            {
+               os.writeInt (keys [i]);
+               os.writeInt (offsets [i]);
+            }
+         }
+         else
+         {
+            os.writeInt (low);
+            os.writeInt (low + labels.length - 1);
+            for (int i = 0; i < offsets.length; ++ i)
+               os.writeInt (offsets [i]);
+         }
+      }
+
+      final byte opc;
+      final int low;
+      final int [] keys;
+      final int [] labels;
+      final int dflt;
+      final int [] offsets;
+      int dfltOffset;
+      int pad;
+   }
+
    private static boolean isStatic (int flags)
    {
       return (flags & MtodFlag.Static.getVal ()) != 0;
@@ -35,6 +35,8 @@
 
 package com.pantor.blink;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 
 public final class DynClassLoader extends ClassLoader
@@ -64,29 +66,86 @@ public final class DynClassLoader extends ClassLoader
 
    public Class<?> loadPrivileged (DynClass dc, Class <?> scope)
    {
-      byte [] b = dc.render ();
+      return loadPrivileged (dc.getName (), dc.render (), scope);
+   }
+
+   public Class<?> loadPrivileged (String name, byte [] b, Class <?> scope)
+   {
       if (false)
-         dump (dc, b);
+         dump (name, b);
 
       try
       {
          // Try to load class with the loader of the specified scope
          ClassLoader priv = scope.getClassLoader ();
-         return (Class<?>)defc.invoke (priv, dc.getName (), b, 0, b.length);
+         return (Class<?>)defc.invoke (priv, name, b, 0, b.length);
       }
       catch (Exception ignored)
       {
          // Fallback to non-privileged loading
-         return defineClass (dc.getName (), b, 0, b.length);
+         return defineClass (name, b, 0, b.length);
       }   
    }
 
+   /**
+      Returns {@code true} if the runtime supports hidden classes
+
+      @return {@code true} if hidden classes are supported
+   */
+   
+   public static boolean isHiddenClassSupported ()
+   {
+      return defineHidden != null;
+   }
+
+   /**
+      Defines a hidden class that is a nestmate of the specified
+      scope. The name must be in the same package as the scope. A
+      hidden class can not be referenced by name from other classes,
+      but it can be unloaded as soon as it is unreachable, independent
+      of any class loader, and its final fields are trusted by the JIT.
+
+      @param name the name of the class
+      @param b the class file
+      @param scope the class to be the nest host
+      @return the hidden class, or {@code null} if hidden classes are
+      not supported or the class could not be defined in the scope
+   */
+
+   public Class<?> loadHidden (String name, byte [] b, Class<?> scope)
+   {
+      if (defineHidden == null)
+         return null;
+
+      if (false)
+         dump (name, b);
+
+      try
+      {
+         Object lookup = privateLookupIn.invoke (
+            null, scope, MethodHandles.lookup ());
+         Object hidden = defineHidden.invoke (lookup, b, true, nestmate);
+         return (Class<?>)lookupClass.invoke (hidden);
+      }
+      catch (Exception e)
+      {
+         // Not accessible from here, or the scope lives in another
+         // package than the class
+         return null;
+      }
+   }
+
    private void dump (DynClass dc, byte [] b)
+   {
+      dump (dc.getName (), b);
+   }
+   
+   private void dump (String name, byte [] b)
    {
       try
       {
          java.io.FileOutputStream f =
-            new java.io.FileOutputStream (dc.getName () + ".class");
+            new java.io.FileOutputStream (name + ".class");
          f.write (b);
          f.close ();
       }
@@ -96,4 +155,44 @@ public final class DynClassLoader extends ClassLoader
    }
 
    private final Method defc;
+
+   // Lookup.defineHiddenClass is only available in Java 15 and
+   // later, so it is resolved reflectively
+
+   private static final Method privateLookupIn;
+   private static final Method defineHidden;
+   private static final Method lookupClass;
+   private static final Object nestmate;
+
+   static
+   {
+      Method pli = null;
+      Method dhc = null;
+      Method lc = null;
+      Object nm = null;
+      try
+      {
+         Class<?> lookupType = MethodHandles.Lookup.class;
+         Class<?> optType = Class.forName (
+            "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+         pli = MethodHandles.class.getMethod (
+            "privateLookupIn", Class.class, lookupType);
+         dhc = lookupType.getMethod (
+            "defineHiddenClass", byte [].class, boolean.class,
+            Array.newInstance (optType, 0).getClass ());
+         lc = lookupType.getMethod ("lookupClass");
+         nm = Array.newInstance (optType, 1);
+         Array.set (nm, 0, optType.getField ("NESTMATE").get (null));
+      }
+      catch (Exception e)
+      {
+         pli = null;
+         dhc = null;
+      }
+
+      privateLookupIn = pli;
+      defineHidden = dhc;
+      lookupClass = lc;
+      nestmate = nm;
+   }
 }
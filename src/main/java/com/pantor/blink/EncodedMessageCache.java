@@ -0,0 +1,405 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   The {@code EncodedMessageCache} class holds messages in their
+   encoded compact binary form so that they can be written repeatedly
+   without being encoded again.
+
+   <p>This is intended for immutable or rarely changing reference
+   data, such as instrument definitions, that is sent to every new
+   session or on every snapshot request. Messages are added to the
+   cache explicitly through {@code put}, and are keyed by object
+   identity. A writer with the cache attached through {@link
+   CompactWriter#setEncodedMessageCache} then copies the cached bytes
+   straight into its sink whenever it is asked to write the same
+   object.</p>
+
+   <p>A message that changes must be invalidated, or put again with a
+   new version. The cache does not detect changes to cached
+   objects.</p>
+
+   <p>The total number of cached bytes is bounded. When a new entry
+   would exceed the limit, the least recently used entries are
+   evicted. Recency is approximate: a lookup stamps the entry with
+   the number of puts made so far, so entries used since the same
+   put are considered equally recent.</p>
+
+   <p>The cache is thread safe and can be shared between writers of
+   different sessions, but all writers must use the same object
+   model as the cache. Lookups do not lock. Only {@code put}, {@code
+   invalidate} and {@code clear} are serialized.</p>
+ */
+
+public final class EncodedMessageCache
+{
+   /**
+      The default maximum number of cached bytes
+   */
+   
+   public static final int DefaultMaxBytes = 16 * 1024 * 1024;
+
+   /**
+      Creates a cache with the {@code DefaultMaxBytes} limit
+
+      @param om the object model to encode with
+   */
+
+   public EncodedMessageCache (ObjectModel om)
+   {
+      this (om, DefaultMaxBytes);
+   }
+
+   /**
+      Creates a cache with the specified limit
+
+      @param om the object model to encode with
+      @param maxBytes the maximum number of cached bytes
+   */
+   
+   public EncodedMessageCache (ObjectModel om, int maxBytes)
+   {
+      if (maxBytes < 1)
+         throw new IllegalArgumentException ("Limit must be positive");
+      this.om = om;
+      this.maxBytes = maxBytes;
+      this.buf = new ByteBuf ();
+      this.wr = new CompactWriter (om, buf);
+   }
+
+   /**
+      Encodes a message and caches the result. If the message is
+      already cached, it is encoded again.
+
+      @param msg the message to cache
+      @return {@code true} if the message was cached, {@code false}
+      if it is larger than the limit of the cache
+      @throws BlinkException if there is a schema or binding problem
+   */
+
+   public boolean put (Object msg) throws BlinkException
+   {
+      return put (msg, 0, true);
+   }
+
+   /**
+      Caches a message tagged with a version. If the message is
+      already cached with the same version, nothing is done.
+      Otherwise it is encoded again. This makes it cheap to call for
+      every send of an object that is updated in place, as long as
+      the version is bumped on each update.
+
+      @param msg the message to cache
+      @param version the version of the message
+      @return {@code true} if the message is cached, {@code false}
+      if it is larger than the limit of the cache
+      @throws BlinkException if there is a schema or binding problem
+   */
+
+   public boolean put (Object msg, long version) throws BlinkException
+   {
+      return put (msg, version, false);
+   }
+
+   /**
+      Removes a message from the cache
+
+      @param msg the message to remove
+      @return {@code true} if the message was cached
+   */
+   
+   public synchronized boolean invalidate (Object msg)
+   {
+      Entry e = entries.remove (new Key (msg));
+      if (e != null)
+      {
+         bytes -= e.data.length;
+         return true;
+      }
+      else
+         return false;
+   }
+
+   /**
+      Removes all messages from the cache. The statistics are not
+      affected.
+   */
+
+   public synchronized void clear ()
+   {
+      entries.clear ();
+      bytes = 0;
+   }
+
+   /**
+      Returns the encoded form of a message including its size
+      preamble, or {@code null} if the message is not cached. The
+      returned array must not be modified.
+
+      @param msg the message to look up
+      @return the encoded bytes or {@code null}
+   */
+
+   public byte [] get (Object msg)
+   {
+      Entry e = entries.get (new Key (msg));
+      if (e != null)
+      {
+         hits.increment ();
+
+         // Only write the stamp when it changes, so that concurrent
+         // lookups of the same entry mostly just read it
+         
+         long now = clock;
+         if (e.lastUse != now)
+            e.lastUse = now;
+         return e.data;
+      }
+      else
+      {
+         misses.increment ();
+         return null;
+      }
+   }
+
+   // Returns the encoded form of a message without counting the
+   // lookup or marking the entry as used. Used by the writer when
+   // sizing a message that it will look up again when writing it
+
+   byte [] peek (Object msg)
+   {
+      Entry e = entries.get (new Key (msg));
+      return e != null ? e.data : null;
+   }
+   
+   /**
+      Returns the version a message was cached with
+
+      @param msg the message
+      @return the version, or -1 if the message is not cached
+   */
+   
+   public long getVersion (Object msg)
+   {
+      Entry e = entries.get (new Key (msg));
+      return e != null ? e.version : -1;
+   }
+   
+   /**
+      Returns the object model of this cache
+
+      @return the object model
+   */
+
+   public ObjectModel getObjectModel () { return om; }
+
+   /**
+      Returns the number of cached messages
+
+      @return the number of cached messages
+   */
+   
+   public int size () { return entries.size (); }
+
+   /**
+      Returns the total number of cached bytes
+
+      @return the number of cached bytes
+   */
+   
+   public synchronized long getBytes () { return bytes; }
+
+   /**
+      Returns the maximum number of cached bytes
+
+      @return the limit
+   */
+
+   public int getMaxBytes () { return maxBytes; }
+
+   /**
+      Returns the number of lookups that found a cached message
+
+      @return the number of hits
+   */
+   
+   public long getHits () { return hits.sum (); }
+
+   /**
+      Returns the number of lookups that did not find a cached message
+
+      @return the number of misses
+   */
+   
+   public long getMisses () { return misses.sum (); }
+
+   /**
+      Returns the number of entries evicted because of the limit
+
+      @return the number of evictions
+   */
+   
+   public synchronized long getEvictions () { return evictions; }
+
+   @Override
+   public synchronized String toString ()
+   {
+      return String.format ("EncodedMessageCache: size: %d, bytes: %d/%d, " +
+                            "hits: %d, misses: %d, evictions: %d",
+                            entries.size (), bytes, maxBytes, hits.sum (),
+                            misses.sum (), evictions);
+   }
+   
+   private synchronized boolean put (Object msg, long version, boolean force)
+      throws BlinkException
+   {
+      Key key = new Key (msg);
+      Entry e = entries.get (key);
+      if (e != null)
+      {
+         if (! force && e.version == version)
+            return true;
+         invalidate (msg);
+      }
+
+      buf.clear ();
+      wr.writeObject (msg);
+      buf.flip ();
+      int size = buf.size ();
+      if (size > maxBytes)
+         return false;
+
+      byte [] data = new byte [size];
+      buf.read (data);
+
+      if (bytes + size > maxBytes)
+         evict (bytes + size - maxBytes);
+
+      e = new Entry (key, data, version, ++ clock);
+      entries.put (key, e);
+      bytes += size;
+      return true;
+   }
+
+   // Evicts the least recently used entries until at least the
+   // specified number of bytes have been freed
+
+   private void evict (long needed)
+   {
+      ArrayList<Entry> lru = new ArrayList<Entry> (entries.values ());
+      Collections.sort (lru, ByLastUse);
+      for (Entry e : lru)
+      {
+         if (needed <= 0)
+            break;
+         entries.remove (e.key);
+         bytes -= e.data.length;
+         needed -= e.data.length;
+         ++ evictions;
+      }
+   }
+
+   // Messages are cached by identity
+
+   private static final class Key
+   {
+      Key (Object msg)
+      {
+         this.msg = msg;
+         this.hash = System.identityHashCode (msg);
+      }
+
+      @Override
+      public int hashCode ()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals (Object o)
+      {
+         return o instanceof Key && ((Key)o).msg == msg;
+      }
+
+      final Object msg;
+      final int hash;
+   }
+   
+   private static final class Entry
+   {
+      Entry (Key key, byte [] data, long version, long lastUse)
+      {
+         this.key = key;
+         this.data = data;
+         this.version = version;
+         this.lastUse = lastUse;
+      }
+      
+      final Key key;
+      final byte [] data;
+      final long version;
+      volatile long lastUse;
+   }
+
+   private static final Comparator<Entry> ByLastUse = new Comparator<Entry> ()
+      {
+         @Override
+         public int compare (Entry a, Entry b)
+         {
+            return a.lastUse < b.lastUse ? -1 :
+               (a.lastUse > b.lastUse ? 1 : 0);
+         }
+      };
+
+   private final ObjectModel om;
+   private final int maxBytes;
+   private final ByteBuf buf;
+   private final CompactWriter wr;
+   private final ConcurrentHashMap<Key, Entry> entries =
+      new ConcurrentHashMap<Key, Entry> ();
+   private final LongAdder hits = new LongAdder ();
+   private final LongAdder misses = new LongAdder ();
+   private volatile long clock;
+   private long bytes;
+   private long evictions;
+}
@@ -0,0 +1,1338 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+
+/**
+   The {@code JsonReader} implements a decoder for JSON as written by
+   a {@link JsonWriter}. It maps decoded messages to POJOs as defined
+   by an {@code ObjectModel}. The result can either be appended to a
+   {@link Block} or dispatched to an observer as specified by an
+   {@link ObserverRegistry}, or both.
+
+   <p>Each message is expected as a JSON object on a line of its own,
+   where the first member is {@code $type}. Empty lines are ignored,
+   and so is whitespace between tokens. Members that are not part of
+   the schema are skipped, and members with a {@code null} value are
+   treated as absent.</p>
+
+   <p>The decoders are generated per group. Each decoder first tries
+   the member name that follows the previously decoded field, which
+   matches without any lookup when the members appear in schema
+   order, and only falls back to a hash lookup otherwise.</p>
+*/
+
+public final class JsonReader implements Reader
+{
+   /**
+      Creates a reader for JSON. It maps decoded messages to POJOs as
+      defined by the specified object model.
+
+      @param om an object model
+   */
+   
+   public JsonReader (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   /**
+      Creates a reader for JSON. It maps decoded messages to POJOs as
+      defined by the specified object model and dispatches them to
+      any matching observers if available in the specified observer
+      registry.
+
+      @param om an object model
+      @param oreg an observer registry
+    */
+   
+   public JsonReader (ObjectModel om, ObserverRegistry oreg)
+   {
+      this.compiler = new JsonReaderCompiler (om, oreg);
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It dispatches decoded
+      messages to any matching observers if an observer registry has
+      been specified.
+
+      @param data the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+
+   @Override
+   public void read (byte [] data) throws BlinkException
+   {
+      read (data, 0, data.length, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a slice of a byte array. It
+      dispatches decoded messages to any matching observers if an
+      observer registry has been specified.
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len) throws BlinkException
+   {
+      read (data, from, len, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It appends decoded
+      messages to the specified block and also dispatches them to any
+      matching observers if an observer registry has been specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param data the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, Block block) throws BlinkException
+   {
+      read (data, 0, data.length, block);
+   }
+   
+   /**
+      Decodes bytes specified in a slice of a byte array. It appends
+      decoded messages to the specified block and also dispatches them
+      to any matching observers if an observer registry has been
+      specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      <p>This is the most native form of the {@code read} methods.
+      Complete lines are decoded directly from the array, and a
+      trailing incomplete line is kept until more data arrives.</p>
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len, Block block)
+      throws BlinkException
+   {
+      int pos = from;
+      int end = from + len;
+
+      try
+      {
+         while (pos < end)
+         {
+            int eol = indexOf ('\n', data, pos, end);
+            if (eol == -1)
+            {
+               appendPend (data, pos, end);
+               break;
+            }
+
+            if (pendLen > 0)
+            {
+               appendPend (data, pos, eol);
+               int lineLen = pendLen;
+               pendLen = 0;
+               readLine (pend, 0, lineLen, block);
+               if (pend.length > MaxLingeringScratchArea)
+                  pend = new byte [InitialPendCapacity];
+            }
+            else
+               readLine (data, pos, eol, block);
+
+            pos = eol + 1;
+         }
+      }
+      finally
+      {
+         this.data = null;
+      }
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It dispatches
+      decoded messages to any matching observers if an observer
+      registry has been specified.
+
+      @param src the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src) throws BlinkException
+   {
+      read (src, blankBlock);
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It appends
+      decoded messages to the specified block and also dispatches
+      them to any matching observers if an observer registry has been
+      specified. The available bytes are copied to a scratch area of
+      this reader before they are decoded.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param src the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src, Block block) throws BlinkException
+   {
+      int len = src.available ();
+      if (len > 0)
+      {
+         if (scratch == null || scratch.length < len)
+            scratch = new byte [len];
+         src.read (scratch, 0, len);
+         read (scratch, 0, len, block);
+         if (scratch.length > MaxLingeringScratchArea)
+            scratch = null;
+      }
+   }
+
+   /**
+      Returns {@code true} if there is no partial line pending
+
+      @return {@code true} if there is no partial line pending
+   */
+
+   @Override
+   public boolean isComplete ()
+   {
+      return pendLen == 0;
+   }
+
+   /**
+      Closes this reader
+
+      @throws BlinkException.Decode if this reader is incomplete as
+      indicated by {@code isComplete}
+   */
+
+   @Override
+   public void close () throws BlinkException.Decode
+   {
+      if (! isComplete ())
+         throw new BlinkException.Decode (
+            "Incomplete JSON blink message. The reader needs " +
+            "more data to finish an incomplete trailing " +
+            "line");
+   }
+
+   /**
+      Resets this reader to an initial state, discarding any incompletely
+      read messages
+   */
+
+   @Override
+   public void reset ()
+   {
+      pendLen = 0;
+   }
+
+   // Lines and messages
+   //////////////////////////////////////////////////////////////////////
+
+   private void readLine (byte [] d, int from, int to, Block block)
+      throws BlinkException
+   {
+      this.data = d;
+      this.pos = from;
+      this.end = to;
+
+      skipWs ();
+      if (pos == end)
+         return;
+
+      expect ('{');
+      Decoder dec = readType ();
+      Object o = dec.allocate (block);
+      try
+      {
+         readMembers (dec, o, false);
+         skipWs ();
+         if (pos != end)
+            throw error ("Unexpected character '" + (char)data [pos] + "'");
+      }
+      catch (BlinkException e)
+      {
+         block.reclaim (o);
+         throw e;
+      }
+      catch (RuntimeException e)
+      {
+         block.reclaim (o);
+         throw e;
+      }
+      
+      block.append (o);
+      if (dec.obs != null)
+         dec.obs.onObj (o, dec.grp);
+   }
+
+   // Reads the leading type member of a message or dynamic group and
+   // returns the decoder of the type
+
+   private Decoder readType () throws BlinkException
+   {
+      skipWs ();
+      if (! matchKey (TypeKey))
+         throw error ("Expected \"$type\" as the first member");
+      return getDecoder (readString ());
+   }
+
+   // Reads members up to and including the closing brace. Each
+   // member is preceded by a comma, except the first member of a
+   // static group
+
+   private void readMembers (Decoder dec, Object o, boolean first)
+      throws BlinkException
+   {
+      int next = 0;
+      for (;;)
+      {
+         skipWs ();
+         if (peek () == '}')
+         {
+            ++ pos;
+            return;
+         }
+         if (! first)
+         {
+            expect (',');
+            skipWs ();
+         }
+         first = false;
+
+         int idx = readKey (dec, next);
+         if (idx != -1)
+         {
+            dec.decodeField (idx, o, this);
+            next = idx + 1;
+         }
+         else
+            skipValue ();
+      }
+   }
+
+   // Reads a member name and the following colon. Returns the index
+   // of the field or -1 if the name is unknown. The field following
+   // the previous one is tried first
+
+   private int readKey (Decoder dec, int expected)
+      throws BlinkException.Decode
+   {
+      int idx;
+      if (expected < dec.keys.length && matchKey (dec.keys [expected]))
+         idx = expected;
+      else
+      {
+         Integer i = dec.indexByName.get (readString ());
+         skipWs ();
+         expect (':');
+         idx = i != null ? i.intValue () : -1;
+      }
+      return idx;
+   }
+
+   // Consumes a quoted key and the following colon if they match
+   // the specified name exactly
+
+   private boolean matchKey (byte [] name) throws BlinkException.Decode
+   {
+      int len = name.length;
+      if (end - pos < len + 3 || data [pos] != '"' ||
+          data [pos + len + 1] != '"')
+         return false;
+      for (int i = 0; i < len; ++ i)
+         if (data [pos + 1 + i] != name [i])
+            return false;
+      pos += len + 2;
+      skipWs ();
+      expect (':');
+      return true;
+   }
+
+   // Groups
+   //////////////////////////////////////////////////////////////////////
+
+   // Reads a dynamic group, starting with its type member
+
+   public Object readDynGroup () throws BlinkException
+   {
+      skipWs ();
+      expect ('{');
+      Decoder dec = readType ();
+      Object o = dec.newInstance ();
+      readMembers (dec, o, false);
+      return o;
+   }
+
+   // Reads a static group of the type with the specified name
+
+   public Object readStaticGroup (String name) throws BlinkException
+   {
+      skipWs ();
+      expect ('{');
+      Decoder dec = getDecoder (name);
+      Object o = dec.newInstance ();
+      readMembers (dec, o, true);
+      return o;
+   }
+
+   public Object readDynGroupArray (Class<?> type) throws BlinkException
+   {
+      ArrayList<Object> items = new ArrayList<Object> ();
+      if (startArray ())
+      {
+         do
+            items.add (skipNull () ? null : readDynGroup ());
+         while (nextItem ());
+      }
+      return toArray (items, type);
+   }
+
+   public Object readStaticGroupArray (String name, Class<?> type)
+      throws BlinkException
+   {
+      ArrayList<Object> items = new ArrayList<Object> ();
+      if (startArray ())
+      {
+         do
+            items.add (skipNull () ? null : readStaticGroup (name));
+         while (nextItem ());
+      }
+      return toArray (items, type);
+   }
+
+   private static Object toArray (ArrayList<Object> items, Class<?> type)
+   {
+      Object a = Array.newInstance (type, items.size ());
+      for (int i = 0; i < items.size (); ++ i)
+         Array.set (a, i, items.get (i));
+      return a;
+   }
+
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   // Consumes a null literal if one comes next. Generated decoders
+   // leave a field that is null unset
+
+   public boolean skipNull () throws BlinkException.Decode
+   {
+      skipWs ();
+      if (pos < end && data [pos] == 'n')
+      {
+         expectLiteral (NullLit);
+         return true;
+      }
+      else
+         return false;
+   }
+   
+   public byte readU8 () throws BlinkException.Decode
+   {
+      return (byte)readInteger ();
+   }
+
+   public byte readI8 () throws BlinkException.Decode
+   {
+      return (byte)readInteger ();
+   }
+
+   public short readU16 () throws BlinkException.Decode
+   {
+      return (short)readInteger ();
+   }
+
+   public short readI16 () throws BlinkException.Decode
+   {
+      return (short)readInteger ();
+   }
+
+   public int readU32 () throws BlinkException.Decode
+   {
+      return (int)readInteger ();
+   }
+
+   public int readI32 () throws BlinkException.Decode
+   {
+      return (int)readInteger ();
+   }
+
+   public long readU64 () throws BlinkException.Decode
+   {
+      return readInteger ();
+   }
+
+   public long readI64 () throws BlinkException.Decode
+   {
+      return readInteger ();
+   }
+
+   // A null value in a sequence of floats is read as NaN since that
+   // is how the writer represents values that are not finite
+   
+   public double readF64 () throws BlinkException.Decode
+   {
+      if (skipNull ())
+         return Double.NaN;
+      String tok = readNumber ();
+      try
+      {
+         return Double.parseDouble (tok);
+      }
+      catch (NumberFormatException e)
+      {
+         throw error ("Malformed float: '" + tok + "'");
+      }
+   }
+
+   public Decimal readDecimal () throws BlinkException.Decode
+   {
+      String tok = readNumber ();
+      try
+      {
+         return Decimal.valueOf (tok);
+      }
+      catch (RuntimeException e)
+      {
+         throw error ("Malformed decimal: '" + tok + "'");
+      }
+   }
+
+   public long readFixedDec (int scale) throws BlinkException.Decode
+   {
+      String tok = readNumber ();
+      try
+      {
+         return FixedDec.valueOf (tok, scale).getSignificand ();
+      }
+      catch (RuntimeException e)
+      {
+         throw error ("Malformed decimal: '" + tok + "'");
+      }
+   }
+
+   public int readDate () throws BlinkException.Decode
+   {
+      return TagReader.parseDate (readString ());
+   }
+
+   public int readTimeOfDayMilli () throws BlinkException.Decode
+   {
+      return (int)TagReader.parseTimeOfDay (readString (), 3);
+   }
+
+   public long readTimeOfDayNano () throws BlinkException.Decode
+   {
+      return TagReader.parseTimeOfDay (readString (), 9);
+   }
+
+   public long readMillitime () throws BlinkException.Decode
+   {
+      return TagReader.parseTimestamp (readString (), 3);
+   }
+
+   public long readNanotime () throws BlinkException.Decode
+   {
+      return TagReader.parseTimestamp (readString (), 9);
+   }
+
+   public boolean readBool () throws BlinkException.Decode
+   {
+      skipWs ();
+      if (peek () == 't')
+      {
+         expectLiteral (TrueLit);
+         return true;
+      }
+      else
+      {
+         expectLiteral (FalseLit);
+         return false;
+      }
+   }
+
+   public Utf8Slice readUtf8Slice () throws BlinkException.Decode
+   {
+      return new Utf8Slice (readString ());
+   }
+
+   public byte [] readBinary () throws BlinkException.Decode
+   {
+      return readHex (-1);
+   }
+
+   public byte [] readFixed (int size) throws BlinkException.Decode
+   {
+      return readHex (size);
+   }
+
+   // Reads a quoted string, resolving any escape sequences
+
+   public String readString () throws BlinkException.Decode
+   {
+      skipWs ();
+      expect ('"');
+      int start = pos;
+      while (pos < end && data [pos] != '"' && data [pos] != '\\')
+         ++ pos;
+      if (peek () == '"')
+      {
+         ++ pos;
+         return new String (data, start, pos - start - 1, Utf8);
+      }
+
+      int n = 0;
+      pos = start;
+      for (;;)
+      {
+         byte c = peek ();
+         ++ pos;
+         if (c == '"')
+            break;
+         if (n + 4 > strBuf.length)
+            strBuf = Arrays.copyOf (strBuf, 2 * strBuf.length);
+         if (c == '\\')
+         {
+            c = peek ();
+            ++ pos;
+            switch (c)
+            {
+             case 'n': c = '\n'; break;
+             case 'r': c = '\r'; break;
+             case 't': c = '\t'; break;
+             case 'b': c = '\b'; break;
+             case 'f': c = '\f'; break;
+             case 'u':
+                n = appendCodePoint (readCodeUnit (), n);
+                continue;
+             default:
+                break;
+            }
+         }
+         strBuf [n ++] = c;
+      }
+
+      return new String (strBuf, 0, n, Utf8);
+   }
+
+   // Appends the UTF-8 encoding of a \\u escape, combining it with a
+   // following low surrogate escape if it is a high surrogate
+
+   private int appendCodePoint (int cp, int n) throws BlinkException.Decode
+   {
+      if (Character.isHighSurrogate ((char)cp) && end - pos >= 6 &&
+          data [pos] == '\\' && data [pos + 1] == 'u')
+      {
+         int save = pos;
+         pos += 2;
+         int lo = readCodeUnit ();
+         if (Character.isLowSurrogate ((char)lo))
+            cp = Character.toCodePoint ((char)cp, (char)lo);
+         else
+            pos = save;
+      }
+
+      if (cp < 0x80)
+         strBuf [n ++] = (byte)cp;
+      else if (cp < 0x800)
+      {
+         strBuf [n ++] = (byte)(0xc0 | (cp >> 6));
+         strBuf [n ++] = (byte)(0x80 | (cp & 0x3f));
+      }
+      else if (cp < 0x10000)
+      {
+         strBuf [n ++] = (byte)(0xe0 | (cp >> 12));
+         strBuf [n ++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+         strBuf [n ++] = (byte)(0x80 | (cp & 0x3f));
+      }
+      else
+      {
+         strBuf [n ++] = (byte)(0xf0 | (cp >> 18));
+         strBuf [n ++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+         strBuf [n ++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+         strBuf [n ++] = (byte)(0x80 | (cp & 0x3f));
+      }
+      return n;
+   }
+
+   private int readCodeUnit () throws BlinkException.Decode
+   {
+      if (end - pos < 4)
+         throw error ("Truncated escape sequence");
+      int cu = 0;
+      for (int i = 0; i < 4; ++ i)
+      {
+         int d = Character.digit (data [pos ++], 16);
+         if (d == -1)
+            throw error ("Malformed escape sequence");
+         cu = (cu << 4) | d;
+      }
+      return cu;
+   }
+
+   // Reads a string of hex digits. A fixed value is padded with zeros
+   // or truncated to its declared size
+   
+   private byte [] readHex (int fixedSize) throws BlinkException.Decode
+   {
+      skipWs ();
+      expect ('"');
+      int start = pos;
+      while (pos < end && data [pos] != '"')
+         ++ pos;
+      int digits = pos - start;
+      expect ('"');
+      if ((digits & 1) != 0)
+         throw error ("Odd number of hex digits");
+
+      byte [] v = new byte [fixedSize != -1 ? fixedSize : digits / 2];
+      for (int i = 0; i < digits / 2 && i < v.length; ++ i)
+      {
+         int hi = Character.digit (data [start + 2 * i], 16);
+         int lo = Character.digit (data [start + 2 * i + 1], 16);
+         if (hi == -1 || lo == -1)
+            throw error ("Malformed hex value");
+         v [i] = (byte)((hi << 4) | lo);
+      }
+      return v;
+   }
+
+   // Reads an integer. Values that fit in 18 digits are accumulated
+   // directly, longer ones go through Long.parseLong or, for values
+   // above the signed range, Long.parseUnsignedLong
+
+   private long readInteger () throws BlinkException.Decode
+   {
+      skipWs ();
+      int start = pos;
+      boolean neg = pos < end && data [pos] == '-';
+      if (neg)
+         ++ pos;
+
+      long val = 0;
+      int digitStart = pos;
+      while (pos < end)
+      {
+         int d = data [pos] - '0';
+         if (d < 0 || d > 9)
+            break;
+         val = val * 10 + d;
+         ++ pos;
+      }
+
+      int digits = pos - digitStart;
+      if (digits == 0 || (pos < end && isNumberChar (data [pos])))
+      {
+         while (pos < end && isNumberChar (data [pos]))
+            ++ pos;
+         throw error ("Malformed integer: '" +
+                      new String (data, start, pos - start, Utf8) + "'");
+      }
+
+      if (digits > 18)
+      {
+         String tok = new String (data, start, pos - start, Utf8);
+         try
+         {
+            if (neg)
+               return Long.parseLong (tok);
+            else
+               return Long.parseUnsignedLong (tok);
+         }
+         catch (NumberFormatException e)
+         {
+            throw error ("Malformed integer: '" + tok + "'");
+         }
+      }
+
+      return neg ? - val : val;
+   }
+
+   private String readNumber () throws BlinkException.Decode
+   {
+      skipWs ();
+      int start = pos;
+      while (pos < end && isNumberChar (data [pos]))
+         ++ pos;
+      if (pos == start)
+         throw error ("Expected a number");
+      return new String (data, start, pos - start, Utf8);
+   }
+
+   private static boolean isNumberChar (byte c)
+   {
+      return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' ||
+         c == 'e' || c == 'E';
+   }
+
+   // Sequences of primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public byte [] readU8Array () throws BlinkException.Decode
+   {
+      int n = readIntegers ();
+      byte [] a = new byte [n];
+      for (int i = 0; i < n; ++ i)
+         a [i] = (byte)longBuf [i];
+      return a;
+   }
+
+   public byte [] readI8Array () throws BlinkException.Decode
+   {
+      return readU8Array ();
+   }
+
+   public short [] readU16Array () throws BlinkException.Decode
+   {
+      int n = readIntegers ();
+      short [] a = new short [n];
+      for (int i = 0; i < n; ++ i)
+         a [i] = (short)longBuf [i];
+      return a;
+   }
+
+   public short [] readI16Array () throws BlinkException.Decode
+   {
+      return readU16Array ();
+   }
+
+   public int [] readU32Array () throws BlinkException.Decode
+   {
+      int n = readIntegers ();
+      int [] a = new int [n];
+      for (int i = 0; i < n; ++ i)
+         a [i] = (int)longBuf [i];
+      return a;
+   }
+
+   public int [] readI32Array () throws BlinkException.Decode
+   {
+      return readU32Array ();
+   }
+
+   public long [] readU64Array () throws BlinkException.Decode
+   {
+      return Arrays.copyOf (longBuf, readIntegers ());
+   }
+
+   public long [] readI64Array () throws BlinkException.Decode
+   {
+      return readU64Array ();
+   }
+
+   public double [] readF64Array () throws BlinkException.Decode
+   {
+      double [] a = new double [8];
+      int n = 0;
+      if (startArray ())
+      {
+         do
+         {
+            if (n == a.length)
+               a = Arrays.copyOf (a, 2 * n);
+            a [n ++] = readF64 ();
+         }
+         while (nextItem ());
+      }
+      return Arrays.copyOf (a, n);
+   }
+
+   public Decimal [] readDecimalArray () throws BlinkException.Decode
+   {
+      ArrayList<Decimal> items = new ArrayList<Decimal> ();
+      if (startArray ())
+      {
+         do
+            items.add (skipNull () ? null : readDecimal ());
+         while (nextItem ());
+      }
+      return items.toArray (new Decimal [items.size ()]);
+   }
+
+   public long [] readFixedDecArray (int scale) throws BlinkException.Decode
+   {
+      int n = 0;
+      if (startArray ())
+      {
+         do
+         {
+            if (n == longBuf.length)
+               longBuf = Arrays.copyOf (longBuf, 2 * n);
+            longBuf [n ++] = readFixedDec (scale);
+         }
+         while (nextItem ());
+      }
+      return Arrays.copyOf (longBuf, n);
+   }
+
+   // Reads a sequence of fixed decimals into instances of the
+   // specified FixedDec subclass
+
+   public Object readBoxedFixedDecArray (int scale, Class<?> type)
+      throws BlinkException
+   {
+      long [] sigs = readFixedDecArray (scale);
+      Object a = Array.newInstance (type, sigs.length);
+      try
+      {
+         int intScale = getScaleConstant (type);
+         if (intScale != -1)
+         {
+            Method m = type.getMethod ("getInstance", Long.TYPE);
+            for (int i = 0; i < sigs.length; ++ i)
+               Array.set (a, i, m.invoke (
+                             null, FixedDec.rescale (sigs [i], scale,
+                                                     intScale)));
+         }
+         else
+         {
+            Method m = type.getMethod ("getInstance", Long.TYPE, Integer.TYPE);
+            for (int i = 0; i < sigs.length; ++ i)
+               Array.set (a, i, m.invoke (null, sigs [i], scale));
+         }
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      return a;
+   }
+
+   private static int getScaleConstant (Class<?> c)
+   {
+      try
+      {
+         return c.getField ("Scale").getInt (null);
+      }
+      catch (Throwable e)
+      {
+         return -1;
+      }
+   }
+
+   public int [] readDateArray () throws BlinkException.Decode
+   {
+      String [] s = readStringArray ();
+      int [] a = new int [s.length];
+      for (int i = 0; i < s.length; ++ i)
+         a [i] = TagReader.parseDate (s [i]);
+      return a;
+   }
+
+   public int [] readTimeOfDayMilliArray () throws BlinkException.Decode
+   {
+      String [] s = readStringArray ();
+      int [] a = new int [s.length];
+      for (int i = 0; i < s.length; ++ i)
+         a [i] = (int)TagReader.parseTimeOfDay (s [i], 3);
+      return a;
+   }
+
+   public long [] readTimeOfDayNanoArray () throws BlinkException.Decode
+   {
+      String [] s = readStringArray ();
+      long [] a = new long [s.length];
+      for (int i = 0; i < s.length; ++ i)
+         a [i] = TagReader.parseTimeOfDay (s [i], 9);
+      return a;
+   }
+
+   public long [] readMillitimeArray () throws BlinkException.Decode
+   {
+      String [] s = readStringArray ();
+      long [] a = new long [s.length];
+      for (int i = 0; i < s.length; ++ i)
+         a [i] = TagReader.parseTimestamp (s [i], 3);
+      return a;
+   }
+
+   public long [] readNanotimeArray () throws BlinkException.Decode
+   {
+      String [] s = readStringArray ();
+      long [] a = new long [s.length];
+      for (int i = 0; i < s.length; ++ i)
+         a [i] = TagReader.parseTimestamp (s [i], 9);
+      return a;
+   }
+
+   public boolean [] readBoolArray () throws BlinkException.Decode
+   {
+      boolean [] a = new boolean [8];
+      int n = 0;
+      if (startArray ())
+      {
+         do
+         {
+            if (n == a.length)
+               a = Arrays.copyOf (a, 2 * n);
+            a [n ++] = readBool ();
+         }
+         while (nextItem ());
+      }
+      return Arrays.copyOf (a, n);
+   }
+
+   public String [] readStringArray () throws BlinkException.Decode
+   {
+      ArrayList<String> items = new ArrayList<String> ();
+      if (startArray ())
+      {
+         do
+            items.add (skipNull () ? null : readString ());
+         while (nextItem ());
+      }
+      return items.toArray (new String [items.size ()]);
+   }
+
+   // Enum symbols are read as strings and mapped to constants by the
+   // generated enum decoders
+
+   public String readSymbol () throws BlinkException.Decode
+   {
+      return readString ();
+   }
+
+   public String [] readSymbolArray () throws BlinkException.Decode
+   {
+      return readStringArray ();
+   }
+
+   public byte [][] readBinaryArray () throws BlinkException.Decode
+   {
+      return readHexArray (-1);
+   }
+
+   public byte [][] readFixedArray (int size) throws BlinkException.Decode
+   {
+      return readHexArray (size);
+   }
+
+   private byte [][] readHexArray (int fixedSize)
+      throws BlinkException.Decode
+   {
+      ArrayList<byte []> items = new ArrayList<byte []> ();
+      if (startArray ())
+      {
+         do
+            items.add (skipNull () ? null : readHex (fixedSize));
+         while (nextItem ());
+      }
+      return items.toArray (new byte [items.size ()][]);
+   }
+
+   // Reads a sequence of integers into the long scratch buffer and
+   // returns the number of items
+
+   private int readIntegers () throws BlinkException.Decode
+   {
+      int n = 0;
+      if (startArray ())
+      {
+         do
+         {
+            if (n == longBuf.length)
+               longBuf = Arrays.copyOf (longBuf, 2 * n);
+            longBuf [n ++] = readInteger ();
+         }
+         while (nextItem ());
+      }
+      return n;
+   }
+
+   // Consumes the opening bracket of an array. Returns false and
+   // consumes the closing bracket too if the array is empty
+
+   private boolean startArray () throws BlinkException.Decode
+   {
+      skipWs ();
+      expect ('[');
+      skipWs ();
+      if (peek () == ']')
+      {
+         ++ pos;
+         return false;
+      }
+      else
+         return true;
+   }
+
+   // Consumes the comma before the next item and returns true, or
+   // consumes the closing bracket and returns false
+
+   private boolean nextItem () throws BlinkException.Decode
+   {
+      skipWs ();
+      if (peek () == ',')
+      {
+         ++ pos;
+         return true;
+      }
+      expect (']');
+      return false;
+   }
+
+   // Skips the value of an unknown member, including any nested
+   // objects and arrays
+
+   private void skipValue () throws BlinkException.Decode
+   {
+      skipWs ();
+      int depth = 0;
+      for (;;)
+      {
+         byte c = peek ();
+         if (c == '"')
+            skipString ();
+         else if (c == '[' || c == '{')
+         {
+            ++ depth;
+            ++ pos;
+         }
+         else if (c == ']' || c == '}')
+         {
+            if (depth == 0)
+               return;
+            -- depth;
+            ++ pos;
+         }
+         else if (c == ',' && depth == 0)
+            return;
+         else
+            ++ pos;
+      }
+   }
+
+   private void skipString () throws BlinkException.Decode
+   {
+      ++ pos;
+      for (;;)
+      {
+         byte c = peek ();
+         ++ pos;
+         if (c == '"')
+            return;
+         if (c == '\\')
+            ++ pos;
+      }
+   }
+
+   private void skipWs ()
+   {
+      while (pos < end)
+      {
+         byte c = data [pos];
+         if (c != ' ' && c != '\t' && c != '\r')
+            break;
+         ++ pos;
+      }
+   }
+
+   private void expectLiteral (byte [] lit) throws BlinkException.Decode
+   {
+      if (end - pos < lit.length)
+         throw error ("Premature end of message");
+      for (int i = 0; i < lit.length; ++ i)
+         if (data [pos + i] != lit [i])
+            throw error ("Malformed literal");
+      pos += lit.length;
+   }
+
+   private byte peek () throws BlinkException.Decode
+   {
+      if (pos >= end)
+         throw error ("Premature end of message");
+      return data [pos];
+   }
+   
+   private void expect (char c) throws BlinkException.Decode
+   {
+      if (peek () != c)
+         throw error ("Expected '" + c + "' but got '" + (char)data [pos] +
+                      "'");
+      ++ pos;
+   }
+
+   private BlinkException.Decode error (String msg)
+   {
+      return new BlinkException.Decode ("JSON: " + msg);
+   }
+
+   private static int indexOf (int c, byte [] d, int from, int to)
+   {
+      for (int i = from; i < to; ++ i)
+         if (d [i] == c)
+            return i;
+      return -1;
+   }
+
+   private void appendPend (byte [] d, int from, int to)
+   {
+      int len = to - from;
+      if (pendLen + len > pend.length)
+         pend = Arrays.copyOf (
+            pend, Math.max (pendLen + len, 2 * pend.length));
+      System.arraycopy (d, from, pend, pendLen, len);
+      pendLen += len;
+   }
+
+   // Bindings
+   //////////////////////////////////////////////////////////////////////
+
+   // Decoders are looked up by the type name as it appears in the
+   // text, and by the constant names passed from generated decoders
+
+   private Decoder getDecoder (String name) throws BlinkException
+   {
+      Decoder dec = decByName.get (name);
+      if (dec == null)
+      {
+         NsName nm = NsName.parse (name);
+         if (nm == null)
+            throw error ("Malformed type name: '" + name + "'");
+         dec = compiler.getDecoder (nm);
+         decByName.put (name, dec);
+      }
+      return dec;
+   }
+
+   public abstract static class Decoder implements Creator
+   {
+      protected Decoder (Class<?> type, Schema.Group grp, Observer obs,
+                         String [] names)
+      {
+         this.type = type;
+         this.grp = grp;
+         this.obs = obs;
+         this.keys = new byte [names.length][];
+         for (int i = 0; i < names.length; ++ i)
+         {
+            keys [i] = names [i].getBytes (Utf8);
+            indexByName.put (names [i], i);
+         }
+      }
+
+      @Override
+      public Class<?> getType ()
+      {
+         return type;
+      }
+
+      private Object allocate (Block block)
+         throws BlinkException.Binding
+      {
+         if (pool == null || take >= pool.length)
+         {
+            pool = block.refill (this, pool);
+            take = 0;
+         }
+
+         Object fresh = pool [take];
+         pool [take ++] = null;
+         return fresh;
+      }
+
+      // Reads the value of the field with the specified index and
+      // sets it in the target
+
+      protected abstract void decodeField (int idx, Object o, JsonReader rd)
+         throws BlinkException;
+      
+      private final Class<?> type;
+      private final Schema.Group grp;
+      private final Observer obs;
+      private final byte [][] keys;
+      private final HashMap<String, Integer> indexByName =
+         new HashMap<String, Integer> ();
+      private Object [] pool;
+      private int take;
+   }
+
+   private static final int InitialPendCapacity = 256;
+   private static final int MaxLingeringScratchArea = 1000000;
+   private static final Charset Utf8 = Charset.forName ("UTF-8");
+   private static final byte [] TypeKey = "$type".getBytes (Utf8);
+   private static final byte [] NullLit = "null".getBytes (Utf8);
+   private static final byte [] TrueLit = "true".getBytes (Utf8);
+   private static final byte [] FalseLit = "false".getBytes (Utf8);
+
+   private final JsonReaderCompiler compiler;
+   private final HashMap<String, Decoder> decByName =
+      new HashMap<String, Decoder> ();
+   private final BlankBlock blankBlock = new BlankBlock ();
+   private byte [] pend = new byte [InitialPendCapacity];
+   private int pendLen;
+   private byte [] scratch;
+   private byte [] strBuf = new byte [256];
+   private long [] longBuf = new long [64];
+   private byte [] data;
+   private int pos;
+   private int end;
+}
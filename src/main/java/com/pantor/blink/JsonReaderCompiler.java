@@ -0,0 +1,699 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+
+import static com.pantor.blink.DynClass.getDescriptor;
+import static com.pantor.blink.CodegenUtil.mapType;
+import static com.pantor.blink.CodegenUtil.mapArrayType;
+
+public final class JsonReaderCompiler
+{
+   public JsonReaderCompiler (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   public JsonReaderCompiler (ObjectModel om, ObserverRegistry oreg)
+   {
+      this.om = om;
+      this.oreg = oreg;
+      this.cache = CodecCache.getInstance (om);
+   }
+
+   public JsonReader.Decoder getDecoder (NsName name)
+      throws BlinkException
+   {
+      JsonReader.Decoder d = decByName.get (name);
+      if (d != null)
+         return d;
+      else
+         return compile (om.getGroupBinding (name));
+   }
+
+   public void primeEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException
+   {
+      if (! enumDecs.contains (bnd.getEnum ().getName ()))
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   // Generates a decoder for the specified binding. The decoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.json;
+   //
+   //   public final class <Ns>+<Name>_dec extends JsonReader.Decoder
+   //   {
+   //      public <Ns>+<Name>_dec (Class type, Schema.Group grp, Observer obs,
+   //                              String [] names)
+   //      {
+   //         super (type, grp, obs, names);
+   //      }
+   //
+   //      @Override
+   //      public Object newInstance ()
+   //      {
+   //         return new T ();
+   //      }
+   //  
+   //      @Override
+   //      public void decodeField (int idx, Object tgt, JsonReader rd)
+   //      {
+   //         if (rd.skipNull ())
+   //            return;
+   //         switch (idx)
+   //         {
+   //          case 0: ((T)tgt).set<Name> (rd.read<Type> ()); return;
+   //          ...
+   //         }
+   //      }
+   //   }
+
+   // The names passed to the constructor are the names of the fields
+   // that have setters, in schema order, and the index of a name is
+   // the case label of its field. Members with other names are
+   // skipped by the reader. Static subgroups are decoded by the reader
+   // through the decoder registered for the name of the group
+
+   private JsonReader.Decoder compile (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd);
+      }
+   }
+
+   private JsonReader.Decoder compileShared (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      Schema.Group g = bnd.getGroup ();
+      Observer obs = oreg != null ? oreg.findObserver (g) : null;
+
+      ArrayList<ObjectModel.Field> fields = new ArrayList<ObjectModel.Field> ();
+      for (ObjectModel.Field f : bnd)
+         if (f.getSetter () != null)
+            fields.add (f);
+
+      String [] names = new String [fields.size ()];
+      for (int i = 0; i < names.length; ++ i)
+         names [i] = fields.get (i).getField ().getName ();
+
+      // Use a decoder generated by another reader if there is one
+         
+      Class<?> shared = cache.getJsonDecoder (bnd);
+      if (shared != null)
+         return register (g, createInstance (shared, bnd, obs, names));
+         
+      String decoderName = cache.getUniqueClassName (
+         getDecoderClassName (g.getName ()));
+      String decBase = "com/pantor/blink/JsonReader$Decoder";
+      String ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;" +
+         "Lcom/pantor/blink/Observer;[Ljava/lang/String;)V";
+      
+      // Generate decoder class
+      
+      DynClass dc = new DynClass (decoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      dc.setSuper (decBase);
+
+      // Constructor
+
+      dc.startPublicMethod ("<init>", ctorSig)
+         .aload0 ().aload1 ().aload2 ().aload3 ().aload (4)
+         .invokeSpecial (decBase, "<init>", ctorSig)
+         .return_ ().setMaxStack (5).endMethod ();
+
+      // Object newInstance ()
+
+      String tgtName = bnd.getTargetType ().getName ();
+      
+      dc.startPublicMethod ("newInstance", "()Ljava/lang/Object;")
+         .new_ (tgtName)
+         .dup ()
+         .invokeSpecial (tgtName, "<init>", "()V")
+         .areturn ().setMaxStack (2).endMethod ();
+
+      // void decodeField (idx, tgt, rd)
+
+      String decSig = "(ILjava/lang/Object;Lcom/pantor/blink/JsonReader;)V";
+      
+      dc.startPublicMethod ("decodeField", decSig);
+
+      int done = dc.declareLabel ();
+      dc.aload3 (); // rd
+      invokeReader (dc, "skipNull", "", "Z");
+      dc.ifNe (done); // Jump if null
+
+      if (! fields.isEmpty ())
+      {
+         int [] labels = new int [fields.size ()];
+         for (int i = 0; i < labels.length; ++ i)
+            labels [i] = dc.declareLabel ();
+
+         dc.iload1 (); // idx
+         dc.tableswitch (0, labels, done);
+
+         for (int i = 0; i < labels.length; ++ i)
+         {
+            dc.label (labels [i]);
+            ObjectModel.Field f = fields.get (i);
+            dc.aload2 () // tgt
+               .checkCast (tgtName)
+               .aload3 (); // rd
+            compile (f, dc);
+            dc.invoke (f.getSetter ());
+            dc.return_ ();
+         }
+      }
+
+      dc.label (done)
+         .return_ ()
+         .setMaxStack (6)
+         .endMethod ();
+
+      // Create an instance of the generated decoder
+
+      Class<?> decClass = cache.load (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
+      cache.putJsonDecoder (bnd, decClass);
+      return register (g, createInstance (decClass, bnd, obs, names));
+   }
+
+   // Stores a decoder for future lookups
+
+   private JsonReader.Decoder register (Schema.Group g, JsonReader.Decoder d)
+   {
+      decByName.put (g.getName (), d);
+      return d;
+   }
+
+   private static String getClassName (NsName nm)
+   {
+      if (nm.isQualified ())
+         return nm.getNs () + "+" + nm.getName ();
+      else
+         return nm.getName ();
+   }
+   
+   private static String getDecoderClassName (NsName nm)
+   {
+      return "com.pantor.blink.dyn.json." + getClassName (nm) + "_dec";
+   }
+
+   private static String getDecodeEnumSignature (ObjectModel.Binding bnd)
+   {
+      return "(Ljava/lang/String;)L" +
+         DynClass.toInternal (bnd.getTargetType ()) + ";";
+   }
+
+   private static String getDecodeEnumArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([Ljava/lang/String;)[L" +
+         DynClass.toInternal (bnd.getTargetType ()) + ";";
+   }
+
+   private static void invokeReader (DynClass dc, String m, String args,
+                                     String ret)
+   {
+      dc.invokeVirtual ("com/pantor/blink/JsonReader", m,
+                        "(" + args + ")" + ret);
+   }
+
+   // Emits instructions that read the value of a field. The target
+   // and the reader are on the stack, and the value is left on top of
+   // them for the setter
+
+   private void compile (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+
+      if (! t.isSequence ())
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedField (f, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecField (f, dc);
+            else
+               compilePrimitiveField (f, dc);
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireSetterArgType (f, comp.getTargetType ());
+            primeEnum (comp);
+            invokeReader (dc, "readSymbol", "", "Ljava/lang/String;");
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "decode", getDecodeEnumSignature (comp));
+         }
+         else // Object or Group
+            compileGroupField (f, dc);
+      }
+      else
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedArrayField (f, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecArrayField (f, dc);
+            else
+               compilePrimitiveArrayField (f, dc);
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireSetterArgType (
+               f, DynClass.getArrayClass (comp.getTargetType ()));
+            primeEnum (comp);
+            invokeReader (dc, "readSymbolArray", "", "[Ljava/lang/String;");
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "decodeArray", getDecodeEnumArraySignature (comp));
+         }
+         else // Object or Group
+            compileGroupArrayField (f, dc);
+      }
+   }
+
+   private void compilePrimitiveField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode c = f.getFieldType ().getType ().getCode ();
+      if (c == Schema.TypeCode.String && hasSetterArgType (f, Utf8Slice.class))
+      {
+         invokeReader (dc, "readUtf8Slice", "", "Lcom/pantor/blink/Utf8Slice;");
+         return;
+      }
+      Class<?> retType = mapType (c);
+      requireSetterArgType (f, retType);
+      invokeReader (dc, "read" + c.toString (), "", getDescriptor (retType));
+   }
+   
+   private void compilePrimitiveArrayField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode c = f.getFieldType ().getType ().getCode ();
+      Class<?> retType = mapArrayType (c);
+      requireSetterArgType (f, retType);
+      invokeReader (dc, "read" + c.toString () + "Array", "",
+                    getDescriptor (retType));
+   }
+
+   private void compileFixedField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      requireSetterArgType (f, byte [].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      dc.ldc (ft.getSize ());
+      invokeReader (dc, "readFixed", "I", "[B");
+   }
+
+   private void compileFixedArrayField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      requireSetterArgType (f, byte [][].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      dc.ldc (ft.getSize ());
+      invokeReader (dc, "readFixedArray", "I", "[[B");
+   }
+
+   private void compileFixedDecField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      int extScale = ft.getScale ();
+
+      dc.ldc (extScale);
+      invokeReader (dc, "readFixedDec", "I", "J");
+
+      Class<?> argType = getSetterArgType (f);
+      if (argType != null && FixedDec.class.isAssignableFrom (argType))
+      {
+         int intScale = getScaleConstant (argType);
+         if (intScale != -1)
+         {
+            if (intScale != extScale)
+            {
+               dc.ldc (extScale);
+               dc.ldc (intScale);
+               dc.invokeStatic (argType, "rescale", "(JII)J");
+            }
+               
+            dc.invokeStatic (argType, "getInstance",
+                             "(J)" + getDescriptor (argType));
+         }
+         else
+         {
+            dc.ldc (extScale);
+            dc.invokeStatic (argType, "getInstance",
+                             "(JI)" + getDescriptor (argType));
+         }
+      }
+      else
+         requireSetterArgType (f, Long.TYPE);
+   }
+
+   private void compileFixedDecArrayField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      Class<?> argType = getSetterArgType (f);
+      Class<?> compType = argType.getComponentType ();
+      dc.ldc (ft.getScale ());
+      if (compType != null && FixedDec.class.isAssignableFrom (compType))
+      {
+         dc.ldcClass (compType);
+         invokeReader (dc, "readBoxedFixedDecArray", "ILjava/lang/Class;",
+                       "Ljava/lang/Object;");
+         dc.checkCast (argType);
+      }
+      else
+      {
+         requireSetterArgType (f, long [].class);
+         invokeReader (dc, "readFixedDecArray", "I", "[J");
+      }
+   }
+   
+   private void compileGroupField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Class<?> argType = getSetterArgType (f);
+      
+      if (t.isDynamic () || t.isObject ())
+         invokeReader (dc, "readDynGroup", "", "Ljava/lang/Object;");
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         dc.ldc (comp.getGroup ().getName ().toString ());
+         invokeReader (dc, "readStaticGroup", "Ljava/lang/String;",
+                       "Ljava/lang/Object;");
+      }
+
+      if (argType != Object.class)
+         dc.checkCast (argType);
+   }
+
+   private void compileGroupArrayField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Class<?> argType = getSetterArgType (f);
+      Class<?> compType = argType.getComponentType ();
+      if (compType == null)
+         throw typeMismatch (f);
+      
+      if (t.isObject () || t.isDynamic ())
+      {
+         dc.ldcClass (compType);
+         invokeReader (dc, "readDynGroupArray", "Ljava/lang/Class;",
+                       "Ljava/lang/Object;");
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         dc.ldc (comp.getGroup ().getName ().toString ());
+         dc.ldcClass (compType);
+         invokeReader (dc, "readStaticGroupArray",
+                       "Ljava/lang/String;Ljava/lang/Class;",
+                       "Ljava/lang/Object;");
+      }
+
+      dc.checkCast (argType);
+   }
+
+   // Generates an enum decoder for the specified binding. The decoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.json;
+   //
+   //   public final class <Ns>+<Name>_dec
+   //   {
+   //      public static T decode (String sym)
+   //      {
+   //         return sym != null ? (T)map.get (sym) : null;
+   //      }
+   //  
+   //      public static T [] decodeArray (String [] syms)
+   //      {
+   //         T [] tgt = new T [syms.length];
+   //         for (int i = 0; i < tgt.length; ++ i)
+   //           tgt [i] = decode (syms [i]);
+   //         return tgt;
+   //      }
+   //
+   //      private final static java.util.HashMap<String, T> map;
+   //      
+   //      static
+   //      {
+   //         map = new java.util.HashMap<String, T> ();
+   //         map.put ("Red", T.Red);
+   //         map.put ("Green", T.Green);
+   //         map.put ("Blue", T.Blue);
+   //      }
+   //   }
+   
+   private void compileEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException
+   {
+      Schema.Define d = bnd.getEnum ();
+
+      Class<?> shared = cache.getJsonDecoder (bnd);
+      if (shared != null)
+      {
+         classByName.put (d.getName (), shared.getName ());
+         enumDecs.add (d.getName ());
+         return;
+      }
+         
+      String decoderName = cache.getUniqueClassName (
+         getDecoderClassName (d.getName ()));
+
+      // Generate decoder class
+      
+      DynClass dc = new DynClass (decoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      dc.addField ("map", "Ljava/util/HashMap;", DynClass.FieldFlag.Private,
+                   DynClass.FieldFlag.Final, DynClass.FieldFlag.Static);
+
+      Class<?> enumType = bnd.getTargetType ();
+
+      // public static T decode (sym)
+
+      int absent = dc.declareLabel ();
+      
+      dc.startPublicStaticMethod ("decode", getDecodeEnumSignature (bnd))
+         .aload0 () // sym
+         .ifNull (absent)
+         .getStatic (decoderName, "map", "Ljava/util/HashMap;")
+         .aload0 () // sym
+         .invokeVirtual ("java.util.HashMap", "get",
+                         "(Ljava/lang/Object;)Ljava/lang/Object;")
+         .checkCast (enumType)
+         .areturn ()
+         .label (absent)
+         .aconstNull ()
+         .areturn ()
+         .setMaxStack (2)
+         .endMethod ();
+
+      // public static T [] decodeArray (syms)
+
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("decodeArray",
+                                  getDecodeEnumArraySignature (bnd))
+         .aload0 () // syms
+         .arrayLength ()
+         .anewArray (enumType)
+         .astore1 () // tgt
+         .iconst0 ()
+         .istore2 () // i = 0
+         .label (loop)
+         .iload2 () // i
+         .aload1 () // tgt
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= tgt.length
+         .aload1 () // tgt
+         .iload2 () // i
+         .aload0 () // syms
+         .iload2 () // i
+         .aaload () // syms [i]
+         .invokeStatic (decoderName, "decode", getDecodeEnumSignature (bnd))
+         .aastore () // tgt [i] = <returned value>
+         .iinc (2, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd)
+         .aload1 ()
+         .areturn ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // static init
+      
+      dc.startMethod ("<clinit>", "()V", DynClass.MtodFlag.Static);
+
+      dc.new_ ("java.util.HashMap");
+      dc.dup ();
+      dc.invokeSpecial ("java.util.HashMap", "<init>", "()V");
+      dc.dup ();
+      dc.putStatic (decoderName, "map", "Ljava/util/HashMap;");
+      dc.astore0 ();
+
+      for (ObjectModel.Symbol sym : bnd)
+         if (sym.getTargetName () != null)
+         {
+            dc.aload0 ();
+            dc.ldc (sym.getSymbol ().getName ());
+            dc.ldc (sym.getTargetName ());
+            dc.invokeStatic (enumType, "valueOf", "(Ljava/lang/String;)L" +
+                             DynClass.toInternal (enumType) + ";");
+            dc.invokeVirtual ("java.util.HashMap", "put",
+                              "(Ljava/lang/Object;Ljava/lang/Object;" +
+                              ")Ljava/lang/Object;");
+            dc.pop ();
+         }
+
+      dc.return_ ();
+      dc.setMaxStack (3);
+      dc.endMethod ();
+
+      // Load the class
+
+      Class<?> decClass = cache.load (dc.getName (), dc.render (), enumType);
+      cache.putJsonDecoder (bnd, decClass);
+
+      classByName.put (d.getName (), decoderName);
+      enumDecs.add (d.getName ());
+   }
+
+   private JsonReader.Decoder createInstance (
+      Class<?> decClass, ObjectModel.GroupBinding bnd, Observer obs,
+      String [] names)
+      throws BlinkException
+   {
+      try
+      {
+         Constructor<?> ctor = decClass.getConstructor (
+            Class.class, Schema.Group.class, Observer.class, String [].class);
+         return (JsonReader.Decoder)ctor.newInstance (
+            bnd.getTargetType (), bnd.getGroup (), obs, names);
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InstantiationException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+
+   private static BlinkException.Binding typeMismatch (ObjectModel.Field f)
+   {
+      return new BlinkException.Binding (
+         "Cannot use '" + f.getSetter () + "' to set field '" + f +
+         "': type mismatch", f.getLocation ());
+   }
+   
+   private static boolean hasSetterArgType (ObjectModel.Field f, Class<?> t)
+   {
+      return t == getSetterArgType (f);
+   }
+
+   private static void requireSetterArgType (ObjectModel.Field f, Class<?> t)
+      throws BlinkException.Binding
+   {
+      if (! hasSetterArgType (f, t))
+         throw typeMismatch (f);
+   }
+
+   private static Class<?> getSetterArgType (ObjectModel.Field f)
+   {
+      Method setter = f.getSetter ();
+      if (setter != null)
+         return setter.getParameterTypes () [0];
+      else
+         return null;
+   }
+
+   private static int getScaleConstant (Class<?> c)
+   {
+      try
+      {
+         return c.getField ("Scale").getInt (null);
+      }
+      catch (Throwable e)
+      {
+         return -1;
+      }
+   }
+
+   private final HashMap<NsName, JsonReader.Decoder> decByName =
+      new HashMap<NsName, JsonReader.Decoder> ();
+   private final ObserverRegistry oreg;
+   private final ObjectModel om;
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final CodecCache cache;
+   private final HashSet<NsName> enumDecs = new HashSet <NsName> ();
+}
@@ -0,0 +1,899 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+   The {@code JsonWriter} implements an encoder that renders Blink
+   messages as JSON. It encodes POJOs to UTF-8 text that is written
+   to a {@code ByteSink} or an {@code OutputStream}. The mapping from
+   POJOs to the corresponding messages in the Blink schema is handled
+   through an {@code ObjectModel}, and the encoders are generated per
+   group in the same way as for the compact writer.
+
+   <p>Each message is written as a JSON object on a line of its
+   own. The first member, {@code $type}, holds the qualified name of
+   the message type, and it is followed by the fields that are
+   present:</p>
+
+   <pre>
+   {"$type":"Rect","Descr":"Big","Pos":{"X":1,"Y":2},"Width":10}
+   {"$type":"Canvas","Shapes":[{"$type":"Circle","Radius":1}]}
+   </pre>
+
+   <p>Static subgroups are written as nested objects without a type,
+   and dynamic subgroups as nested objects with a type. Sequences are
+   written as arrays. Absent optional fields are left out.</p>
+
+   <p>Integers, decimals and fixed decimals are written as JSON
+   numbers, where unsigned 64-bit values keep their full range and
+   decimals keep their exact digits. Floating point values that are
+   not finite are written as {@code null}. Enum values are written as
+   their symbol names, booleans as {@code true} or {@code false}, and
+   binary and fixed values as strings of hex digits. Dates, times of
+   day and timestamps are written as strings in the same form as in
+   the tag format, see {@link TagWriter}.</p>
+
+   <p>Long sequences are streamed: when the writer was created for an
+   {@code OutputStream}, or more generally when the sink is a {@code
+   ForwardingSink}, the sink is flushed between sequence items
+   whenever enough data has been buffered. The output is parsable by
+   a {@link JsonReader}.</p>
+*/
+
+public final class JsonWriter implements Writer
+{
+   /**
+      Creates a writer for JSON. It writes encoded messages to the
+      specified {@code ByteSink}.
+
+      @param om an object model
+      @param sink a sink that will receive the encoded text
+   */
+   
+   public JsonWriter (ObjectModel om, ByteSink sink)
+   {
+      compiler = new JsonWriterCompiler (om);
+      this.sink = sink;
+   }
+
+   /**
+      Creates a writer for JSON. It writes encoded messages to the
+      specified {@code OutputStream}. This writer handles its own
+      buffering so the specified {@code OutputStream} need not be
+      buffered in itself.
+
+      @param om an object model
+      @param os an output stream that will receive the encoded text
+   */
+   
+   public JsonWriter (ObjectModel om, OutputStream os)
+   {
+      this (om, new OutputStreamSink (os));
+   }
+
+   /**
+      Encodes an object. It flushes the underlying sink if
+      necessary but you should call the {@code flush} method
+      explicitly if you require a flush to the output stream after
+      this write call.
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   @Override
+   public void write (Object o) throws BlinkException, IOException
+   {
+      if (sink.getPos () >= AutoFlushThreshold)
+         flush ();
+      writeObject (o);
+   }
+
+   /**
+      Encodes an array of objects. It flushes the underlying sink if
+      necessary but you should call the {@code flush} method
+      explicitly if you require a flush to the output stream after
+      this write call.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Encodes a slice of an array of objects. It flushes the
+      underlying sink if necessary but you should call the {@code
+      flush} method explicitly if you require a flush to the output
+      stream after this write call.
+
+      @param objs the objects to write
+      @param from the index of the first object to encode
+      @param len the number of objects to encode
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs, int from, int len)
+      throws BlinkException, IOException
+   {
+      for (int i = from; i < from + len; ++ i)
+         write (objs [i]);
+   }
+
+   /**
+      Encodes an iterable collection of objects. It flushes the
+      underlying sink if necessary but you should call the {@code
+      flush} method explicitly if you require a flush to the output
+      stream after this write call.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Iterable<?> objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Flushes any pending encoded messages in the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void flush () throws BlinkException, IOException
+   {
+      sink.flush ();
+   }
+
+   /**
+      Does nothing since this writer keeps no pending messages of
+      its own
+   */
+   
+   @Override
+   public void softFlush () throws BlinkException, IOException
+   {
+   }
+   
+   /**
+      Flushes any pending encoded messages and closes the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void close () throws BlinkException, IOException
+   {
+      sink.close ();
+   }
+
+   /**
+      Compiles encoders for all groups in the schema of the object
+      model that have bindings. Encoders are otherwise compiled when
+      the first object of each type is written.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll ();
+   }
+
+   /**
+      Encodes an object as a JSON object on a line of its own
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+   */
+   
+   public void writeObject (Object o) throws BlinkException
+   {
+      compiler.getEncoder (o.getClass ()).encodeMsg (o, sink, this);
+      writeDelim ('\n', sink);
+   }
+
+   // Dynamic groups
+   //////////////////////////////////////////////////////////////////////
+
+   public void writeDynGroup (Object o, ByteSink sink) throws BlinkException
+   {
+      compiler.getEncoder (o.getClass ()).encodeMsg (o, sink, this);
+   }
+
+   public void writeDynGroupArray (Object [] objs, ByteSink sink)
+      throws BlinkException
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < objs.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (objs [i] != null)
+            compiler.getEncoder (objs [i].getClass ()).encodeMsg (
+               objs [i], sink, this);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   // Structure
+   //////////////////////////////////////////////////////////////////////
+
+   // Writes the quoted name and colon of a member, preceded by a
+   // comma unless it is the first member of a static group
+
+   public static void writeLabel (boolean sep, String label, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.reserve (sink, label.length () + 1);
+      if (sep)
+         sink.write (',');
+      TagWriter.writeAscii (label, sink);
+   }
+
+   public static void writeDelim (int c, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.reserve (sink, 1);
+      sink.write (c);
+   }
+
+   public static void writeNull (ByteSink sink) throws BlinkException.Encode
+   {
+      TagWriter.reserve (sink, 4);
+      sink.write ('n', 'u', 'l', 'l');
+   }
+
+   // Writes an enum symbol name as a string. Values without a symbol
+   // are written as null
+
+   public static void writeSymbol (String sym, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (sym != null)
+      {
+         TagWriter.reserve (sink, sym.length () + 2);
+         sink.write ('"');
+         TagWriter.writeAscii (sym, sink);
+         sink.write ('"');
+      }
+      else
+         writeNull (sink);
+   }
+
+   // Writes a sequence item separator in front of all but the first
+   // item. This is also where long sequences are streamed: a sink
+   // that forwards to an output stream is flushed once enough data
+   // has been buffered. Other sinks, such as a plain ByteBuf, hold
+   // the complete result and are never flushed here
+
+   public static void writeItemSep (int i, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (i > 0)
+      {
+         if (sink.getPos () >= StreamFlushThreshold &&
+             sink instanceof ForwardingSink)
+         {
+            try
+            {
+               sink.flush ();
+            }
+            catch (IOException e)
+            {
+               throw new BlinkException.Encode (e);
+            }
+         }
+         
+         writeDelim (',', sink);
+      }
+   }
+
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public static void writeU8 (byte val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeU8 (val, sink);
+   }
+
+   public static void writeI8 (byte val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeI8 (val, sink);
+   }
+
+   public static void writeU16 (short val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeU16 (val, sink);
+   }
+
+   public static void writeI16 (short val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeI16 (val, sink);
+   }
+
+   public static void writeU32 (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeU32 (val, sink);
+   }
+
+   public static void writeI32 (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeI32 (val, sink);
+   }
+
+   public static void writeU64 (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeU64 (val, sink);
+   }
+
+   public static void writeI64 (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeI64 (val, sink);
+   }
+
+   // JSON has no representation of NaN and the infinities
+   
+   public static void writeF64 (double val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (Double.isNaN (val) || Double.isInfinite (val))
+         writeNull (sink);
+      else
+         TagWriter.writeF64 (val, sink);
+   }
+
+   public static void writeDecimal (Decimal val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeDecimal (val, sink);
+   }
+
+   public static void writeFixedDec (long val, int scale, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeFixedDec (val, scale, sink);
+   }
+
+   public static void writeBoxedFixedDec (FixedDec val, int scale,
+                                          ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.writeBoxedFixedDec (val, scale, sink);
+   }
+
+   public static void writeDate (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('"', sink);
+      TagWriter.writeDate (val, sink);
+      writeDelim ('"', sink);
+   }
+
+   public static void writeTimeOfDayMilli (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('"', sink);
+      TagWriter.writeTimeOfDayMilli (val, sink);
+      writeDelim ('"', sink);
+   }
+
+   public static void writeTimeOfDayNano (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('"', sink);
+      TagWriter.writeTimeOfDayNano (val, sink);
+      writeDelim ('"', sink);
+   }
+
+   public static void writeMillitime (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('"', sink);
+      TagWriter.writeMillitime (val, sink);
+      writeDelim ('"', sink);
+   }
+
+   public static void writeNanotime (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('"', sink);
+      TagWriter.writeNanotime (val, sink);
+      writeDelim ('"', sink);
+   }
+
+   public static void writeBool (boolean val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.reserve (sink, 5);
+      if (val)
+         sink.write ('t', 'r', 'u', 'e');
+      else
+         sink.write ('f', 'a', 'l', 's', 'e');
+   }
+
+   public static void writeString (String val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      int len = val.length ();
+
+      // Reserve room for the worst case: an escaped control character
+      // is six bytes, and a char is at most three bytes in UTF-8
+      
+      TagWriter.reserve (sink, 6 * len + 2);
+      sink.write ('"');
+      for (int i = 0; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c < 0x80)
+            writeEscaped (c, sink);
+         else if (c < 0x800)
+         {
+            sink.write (0xc0 | (c >> 6), 0x80 | (c & 0x3f));
+         }
+         else if (Character.isHighSurrogate (c) && i + 1 < len &&
+                  Character.isLowSurrogate (val.charAt (i + 1)))
+         {
+            int cp = Character.toCodePoint (c, val.charAt (++ i));
+            sink.write (0xf0 | (cp >> 18), 0x80 | ((cp >> 12) & 0x3f),
+                        0x80 | ((cp >> 6) & 0x3f), 0x80 | (cp & 0x3f));
+         }
+         else
+            sink.write (0xe0 | (c >> 12), 0x80 | ((c >> 6) & 0x3f),
+                        0x80 | (c & 0x3f));
+      }
+      sink.write ('"');
+   }
+
+   public static void writeUtf8Slice (Utf8Slice val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      int size = val.size ();
+      TagWriter.reserve (sink, 6 * size + 2);
+      sink.write ('"');
+      for (int i = 0; i < size; ++ i)
+      {
+         int b = val.byteAt (i) & 0xff;
+         if (b < 0x80)
+            writeEscaped (b, sink);
+         else
+            sink.write (b);
+      }
+      sink.write ('"');
+   }
+
+   public static void writeBinary (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeHex (val, val.length, sink);
+   }
+
+   public static void writeFixed (byte [] val, int fixedSize, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeHex (val, fixedSize, sink);
+   }
+
+   // Writes size bytes as a string of hex digits, padding with zeros
+   // if the value is shorter
+
+   private static void writeHex (byte [] val, int size, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      TagWriter.reserve (sink, 2 * size + 2);
+      sink.write ('"');
+      for (int i = 0; i < size; ++ i)
+      {
+         int b = i < val.length ? val [i] & 0xff : 0;
+         sink.write (TagWriter.HexDigits [b >> 4],
+                     TagWriter.HexDigits [b & 0xf]);
+      }
+      sink.write ('"');
+   }
+
+   // Sequences of primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public static void writeU8Array (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeU8 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI8Array (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeI8 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU16Array (short [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeU16 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI16Array (short [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeI16 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU32Array (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeU32 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI32Array (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeI32 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU64Array (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeU64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI64Array (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeI64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeF64Array (double [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeF64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeDecimalArray (Decimal [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (val [i] != null)
+            writeDecimal (val [i], sink);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeFixedDecArray (long [] val, int scale,
+                                          ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeFixedDec (val [i], scale, sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBoxedFixedDecArray (FixedDec [] val, int scale,
+                                               ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (val [i] != null)
+            writeBoxedFixedDec (val [i], scale, sink);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeDateArray (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeDate (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeTimeOfDayMilliArray (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeTimeOfDayMilli (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeTimeOfDayNanoArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeTimeOfDayNano (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeNanotimeArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeNanotime (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeMillitimeArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeMillitime (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBoolArray (boolean [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         writeBool (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeStringArray (String [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (val [i] != null)
+            writeString (val [i], sink);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBinaryArray (byte [][] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (val [i] != null)
+            writeBinary (val [i], sink);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeFixedArray (byte [][] val, int fixedSize,
+                                       ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeItemSep (i, sink);
+         if (val [i] != null)
+            writeFixed (val [i], fixedSize, sink);
+         else
+            writeNull (sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public abstract static class Encoder
+   {
+      protected Encoder (String type, Class<?> cl, Schema.Group grp)
+      {
+         this.typeMember = "{\"$type\":\"" + type + "\"";
+         this.type = cl;
+         this.grp = grp;
+      }
+
+      // Writes an object with the type member followed by all fields
+
+      final void encodeMsg (Object o, ByteSink sink, JsonWriter wr)
+         throws BlinkException
+      {
+         TagWriter.reserve (sink, typeMember.length ());
+         TagWriter.writeAscii (typeMember, sink);
+         encode (o, sink, wr);
+         writeDelim ('}', sink);
+      }
+
+      protected abstract void encode (Object o, ByteSink sink, JsonWriter wr)
+         throws BlinkException;
+      
+      public Class<?> getType () { return type; }
+      public Schema.Group getGroup () { return grp; }
+      
+      private final String typeMember;
+      private final Class<?> type;
+      private final Schema.Group grp;
+   }
+
+   // Writes an ASCII character, escaping it if it is a quote, a
+   // backslash or a control character. The caller must reserve six
+   // bytes
+   
+   private static void writeEscaped (int c, ByteSink sink)
+   {
+      switch (c)
+      {
+       case '"': case '\\':
+         sink.write ('\\', c);
+         break;
+       case '\n':
+         sink.write ('\\', 'n');
+         break;
+       case '\r':
+         sink.write ('\\', 'r');
+         break;
+       case '\t':
+         sink.write ('\\', 't');
+         break;
+       case '\b':
+         sink.write ('\\', 'b');
+         break;
+       case '\f':
+         sink.write ('\\', 'f');
+         break;
+       default:
+         if (c < 0x20)
+            sink.write ('\\', 'u', '0', '0', TagWriter.HexDigits [c >> 4],
+                        TagWriter.HexDigits [c & 0xf]);
+         else
+            sink.write (c);
+         break;
+      }
+   }
+
+   private static final int AutoFlushThreshold = 4096 - 256;
+   private static final int StreamFlushThreshold = 65536;
+
+   private final JsonWriterCompiler compiler;
+   private final ByteSink sink;
+}
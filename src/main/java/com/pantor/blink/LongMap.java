@@ -0,0 +1,220 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.Arrays;
+
+/**
+   The {@code LongMap} class is a hash map with primitive {@code long}
+   keys.
+
+   <p>It uses open addressing with linear probing and is intended for
+   lookups on the hot path, such as mapping type identifiers to
+   decoders and bindings, where boxing the key into a {@code Long} on
+   every message would be wasteful. Null values are not supported.</p>
+
+   <p>The map is not thread safe. A map that is no longer modified
+   may however be read by any number of threads once it has been
+   safely published, for example through a volatile field.</p>
+ */
+
+public final class LongMap<V>
+{
+   public LongMap ()
+   {
+      this (16);
+   }
+
+   public LongMap (LongMap<? extends V> other)
+   {
+      keys = other.keys.clone ();
+      vals = other.vals.clone ();
+      size = other.size;
+      threshold = other.threshold;
+   }
+
+   public LongMap (int initialCapacity)
+   {
+      int cap = 4;
+      while (cap < initialCapacity * 2)
+         cap <<= 1;
+      alloc (cap);
+   }
+
+   public V get (long key)
+   {
+      int mask = keys.length - 1;
+      for (int i = slot (key, mask); ; i = (i + 1) & mask)
+      {
+         Object v = vals [i];
+         if (v == null)
+            return null;
+         if (keys [i] == key)
+         {
+            @SuppressWarnings ("unchecked")
+            V result = (V)v;
+            return result;
+         }
+      }
+   }
+
+   public boolean containsKey (long key)
+   {
+      return get (key) != null;
+   }
+
+   public V put (long key, V val)
+   {
+      if (val == null)
+         throw new NullPointerException ("LongMap does not allow null values");
+
+      int mask = keys.length - 1;
+      int i = slot (key, mask);
+      for (; vals [i] != null; i = (i + 1) & mask)
+      {
+         if (keys [i] == key)
+         {
+            @SuppressWarnings ("unchecked")
+            V prev = (V)vals [i];
+            vals [i] = val;
+            return prev;
+         }
+      }
+
+      keys [i] = key;
+      vals [i] = val;
+      if (++ size > threshold)
+         rehash (keys.length << 1);
+      return null;
+   }
+
+   public V remove (long key)
+   {
+      int mask = keys.length - 1;
+      int i = slot (key, mask);
+      for (; vals [i] != null; i = (i + 1) & mask)
+      {
+         if (keys [i] == key)
+         {
+            @SuppressWarnings ("unchecked")
+            V prev = (V)vals [i];
+            closeGap (i, mask);
+            -- size;
+            return prev;
+         }
+      }
+
+      return null;
+   }
+
+   public void clear ()
+   {
+      if (size > 0)
+      {
+         Arrays.fill (vals, null);
+         size = 0;
+      }
+   }
+
+   public int size ()
+   {
+      return size;
+   }
+
+   public boolean isEmpty ()
+   {
+      return size == 0;
+   }
+
+   // Shifts entries following a removed slot backwards so that no
+   // probe sequence is broken by the hole
+
+   private void closeGap (int gap, int mask)
+   {
+      for (int i = (gap + 1) & mask; vals [i] != null; i = (i + 1) & mask)
+      {
+         int home = slot (keys [i], mask);
+         if (((i - home) & mask) >= ((i - gap) & mask))
+         {
+            keys [gap] = keys [i];
+            vals [gap] = vals [i];
+            gap = i;
+         }
+      }
+
+      vals [gap] = null;
+   }
+
+   private void rehash (int cap)
+   {
+      long [] oldKeys = keys;
+      Object [] oldVals = vals;
+      alloc (cap);
+      int mask = cap - 1;
+      for (int j = 0; j < oldVals.length; ++ j)
+      {
+         if (oldVals [j] != null)
+         {
+            int i = slot (oldKeys [j], mask);
+            while (vals [i] != null)
+               i = (i + 1) & mask;
+            keys [i] = oldKeys [j];
+            vals [i] = oldVals [j];
+         }
+      }
+   }
+
+   private void alloc (int cap)
+   {
+      keys = new long [cap];
+      vals = new Object [cap];
+      threshold = cap >> 1;
+   }
+
+   private static int slot (long key, int mask)
+   {
+      // Type ids are often hashes already but may also be small
+      // sequential numbers, so mix the bits before masking
+      
+      long h = key * 0x9e3779b97f4a7c15L;
+      return (int)(h ^ (h >>> 32)) & mask;
+   }
+
+   private long [] keys;
+   private Object [] vals;
+   private int size;
+   private int threshold;
+}
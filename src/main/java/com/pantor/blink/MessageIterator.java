@@ -0,0 +1,255 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+   The {@code MessageIterator} class provides pull style decoding of
+   data in the Blink compact binary format. Each call to {@code next}
+   decodes exactly one message, so arbitrarily large inputs can be
+   processed without buffering all decoded messages.
+
+   <p>The iterator decodes through a {@link CompactReader}. Messages
+   are still dispatched to any observers of the reader before they
+   are returned.</p>
+
+   <p>Since the {@code Iterator} interface does not allow checked
+   exceptions, any {@code BlinkException} or {@code IOException} is
+   thrown from {@code hasNext} and {@code next} wrapped in a {@code
+   RuntimeException}.</p>
+
+   <p>For splittable, and thereby parallel, streams over data that
+   is available in memory, see {@link MessageSpliterator}.</p>
+ */
+
+public final class MessageIterator implements Iterator<Object>
+{
+   /**
+      The default size of the read buffer used for input streams
+   */
+   
+   public static final int DefaultBufferSize = 65536;
+
+   /**
+      Creates an iterator over messages in a byte source. The source
+      must hold whole messages only.
+
+      @param rd the reader to decode with
+      @param src the data to decode
+   */
+
+   public MessageIterator (CompactReader rd, ByteSource src)
+   {
+      this.rd = rd;
+      this.src = src;
+      this.is = null;
+   }
+
+   /**
+      Creates an iterator over messages read from an input stream.
+      Data is read from the stream as needed.
+
+      @param rd the reader to decode with
+      @param is the stream to read from
+   */
+
+   public MessageIterator (CompactReader rd, InputStream is)
+   {
+      this.rd = rd;
+      this.is = is;
+      this.window = new byte [DefaultBufferSize];
+      this.src = new ByteBuf (window, 0, 0);
+   }
+
+   /**
+      Creates a sequential stream over messages read from an input
+      stream
+
+      @param rd the reader to decode with
+      @param is the stream to read from
+      @return a stream of decoded messages
+   */
+
+   public static Stream<Object> stream (CompactReader rd, InputStream is)
+   {
+      return StreamSupport.stream (
+         Spliterators.spliteratorUnknownSize (
+            new MessageIterator (rd, is),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+   }
+
+   /**
+      Creates a sequential stream over messages in a byte source
+
+      @param rd the reader to decode with
+      @param src the data to decode
+      @return a stream of decoded messages
+   */
+
+   public static Stream<Object> stream (CompactReader rd, ByteSource src)
+   {
+      return StreamSupport.stream (
+         Spliterators.spliteratorUnknownSize (
+            new MessageIterator (rd, src),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+   }
+
+   @Override
+   public boolean hasNext ()
+   {
+      if (next == null)
+         next = advance ();
+      return next != null;
+   }
+
+   @Override
+   public Object next ()
+   {
+      if (! hasNext ())
+         throw new NoSuchElementException ();
+      Object o = next;
+      next = null;
+      return o;
+   }
+
+   @Override
+   public void remove ()
+   {
+      throw new UnsupportedOperationException ();
+   }
+
+   private Object advance ()
+   {
+      try
+      {
+         for (;;)
+         {
+            int msgSize = CompactReader.frame (src, 0, Integer.MAX_VALUE);
+            if (msgSize > 0)
+            {
+               // Decode exactly one message by limiting the source to
+               // its end
+               
+               int saveSize = src.size ();
+               src.setSize (src.getPos () + msgSize);
+               try
+               {
+                  rd.read (src, block);
+               }
+               finally
+               {
+                  src.setSize (saveSize);
+               }
+
+               if (! block.empty ())
+               {
+                  Object o = block.getObjects ().get (0);
+                  block.clear ();
+                  return o;
+               }
+
+               // A schema exchange message, look for another one
+            }
+            else if (! fill (-msgSize))
+               return null;
+         }
+      }
+      catch (BlinkException e)
+      {
+         throw new RuntimeException (e);
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException (e);
+      }
+   }
+
+   // Makes at least the specified number of bytes available,
+   // reading from the input stream if there is one. Returns false at
+   // the end of the input
+
+   private boolean fill (int needed) throws IOException, BlinkException
+   {
+      int avail = src.available ();
+      if (is == null)
+      {
+         if (avail > 0)
+            throw new BlinkException.Decode (
+               "Incomplete trailing message in compact blink data");
+         return false;
+      }
+
+      int needCap = Math.max (needed, DefaultBufferSize);
+      byte [] dst = window.length >= needCap ? window : new byte [needCap];
+      System.arraycopy (window, src.getPos (), dst, 0, avail);
+      window = dst;
+
+      int end = avail;
+      while (end < needed || end == 0)
+      {
+         int n = is.read (window, end, window.length - end);
+         if (n < 0)
+            break;
+         end += n;
+      }
+
+      src = new ByteBuf (window, 0, end);
+      if (end == avail)
+      {
+         if (avail > 0)
+            throw new BlinkException.Decode (
+               "Incomplete trailing message in compact blink data");
+         return false;
+      }
+      else
+         return true;
+   }
+
+   private final CompactReader rd;
+   private final InputStream is;
+   private final DefaultBlock block = new DefaultBlock ();
+   private ByteSource src;
+   private byte [] window;
+   private Object next;
+}
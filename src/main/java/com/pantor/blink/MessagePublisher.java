@@ -0,0 +1,307 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   The {@code MessagePublisher} class provides a {@link Flow.Publisher}
+   of messages decoded from an input stream in the Blink compact
+   binary format.
+
+   <p>Data is only read from the stream while the subscriber has
+   outstanding demand. When the demand is exhausted, reading pauses,
+   and if the stream is connected to a TCP socket, the receive buffer
+   fills up and the peer is throttled by the TCP window rather than
+   by an unbounded queue.</p>
+
+   <p>Messages are decoded and delivered on threads taken from the
+   executor. Each task delivers at most {@code batchSize} messages
+   before it yields the thread by rescheduling itself, so a subscriber
+   with unbounded demand does not monopolize a shared pool. Reading
+   blocks the executing thread while waiting for data.</p>
+
+   <p>A publisher only accepts one subscriber since the messages are
+   consumed from the stream. The stream is closed when the
+   subscription completes, fails or is cancelled.</p>
+ */
+
+public final class MessagePublisher implements Flow.Publisher<Object>
+{
+   /**
+      The default maximum number of messages delivered per task
+   */
+   
+   public static final int DefaultBatchSize = 256;
+
+   /**
+      Creates a publisher of messages read from an input stream
+
+      @param rd the reader to decode with
+      @param is the stream to read from
+      @param exec the executor to decode and deliver messages on
+   */
+
+   public MessagePublisher (CompactReader rd, InputStream is, Executor exec)
+   {
+      this (rd, is, exec, DefaultBatchSize);
+   }
+
+   /**
+      Creates a publisher of messages read from an input stream
+
+      @param rd the reader to decode with
+      @param is the stream to read from
+      @param exec the executor to decode and deliver messages on
+      @param batchSize the maximum number of messages delivered per task
+   */
+
+   public MessagePublisher (CompactReader rd, InputStream is, Executor exec,
+                            int batchSize)
+   {
+      if (batchSize <= 0)
+         throw new IllegalArgumentException ("Batch size must be positive");
+      this.rd = rd;
+      this.is = is;
+      this.exec = exec;
+      this.batchSize = batchSize;
+   }
+
+   @Override
+   public void subscribe (Flow.Subscriber<? super Object> sub)
+   {
+      if (sub == null)
+         throw new NullPointerException ();
+      if (subscribed.compareAndSet (false, true))
+         new SubscriptionImpl (sub).start ();
+      else
+      {
+         sub.onSubscribe (new Flow.Subscription () {
+               @Override public void request (long n) { }
+               @Override public void cancel () { }
+            });
+         sub.onError (new IllegalStateException (
+                         "A message publisher only supports one subscriber"));
+      }
+   }
+
+   private final class SubscriptionImpl implements Flow.Subscription, Runnable
+   {
+      SubscriptionImpl (Flow.Subscriber<? super Object> sub)
+      {
+         this.sub = sub;
+      }
+
+      void start ()
+      {
+         sub.onSubscribe (this);
+      }
+      
+      @Override
+      public void request (long n)
+      {
+         if (n <= 0)
+         {
+            // Signalled from the delivery loop so that onError is
+            // never called concurrently with onNext
+
+            if (pendingError == null)
+               pendingError = new IllegalArgumentException (
+                  "Requested number of messages must be positive: " + n);
+            schedule ();
+            return;
+         }
+
+         for (;;)
+         {
+            long cur = demand.get ();
+            long next = cur + n;
+            if (next < 0)
+               next = Long.MAX_VALUE;
+            if (demand.compareAndSet (cur, next))
+               break;
+         }
+
+         schedule ();
+      }
+
+      @Override
+      public void cancel ()
+      {
+         if (! done)
+         {
+            done = true;
+            closeStream ();
+         }
+      }
+
+      @Override
+      public void run ()
+      {
+         int missed = 1;
+         int delivered = 0;
+         for (;;)
+         {
+            Throwable err = pendingError;
+            if (err != null)
+               fail (err);
+
+            while (! done && demand.get () > 0)
+            {
+               if (delivered == batchSize)
+               {
+                  // Yield and let the rest of the demand be served by
+                  // a new task. If the executor rejects it, fail and
+                  // finish the loop here instead
+
+                  try
+                  {
+                     exec.execute (this);
+                     return;
+                  }
+                  catch (RuntimeException e)
+                  {
+                     fail (e);
+                     break;
+                  }
+               }
+
+               Object msg;
+               try
+               {
+                  if (! it.hasNext ())
+                  {
+                     complete ();
+                     break;
+                  }
+                  msg = it.next ();
+               }
+               catch (RuntimeException e)
+               {
+                  if (! done)
+                     fail (e.getCause () != null ? e.getCause () : e);
+                  break;
+               }
+
+               demand.decrementAndGet ();
+               ++ delivered;
+               try
+               {
+                  sub.onNext (msg);
+               }
+               catch (RuntimeException e)
+               {
+                  // The subscriber broke the contract by throwing,
+                  // so consider the subscription cancelled
+
+                  cancel ();
+                  break;
+               }
+            }
+
+            missed = wip.addAndGet (- missed);
+            if (missed == 0)
+               break;
+         }
+      }
+
+      private void schedule ()
+      {
+         if (wip.getAndIncrement () == 0)
+         {
+            try
+            {
+               exec.execute (this);
+            }
+            catch (RuntimeException e)
+            {
+               fail (e);
+            }
+         }
+      }
+
+      private void complete ()
+      {
+         if (! done)
+         {
+            done = true;
+            closeStream ();
+            sub.onComplete ();
+         }
+      }
+
+      private void fail (Throwable e)
+      {
+         if (! done)
+         {
+            done = true;
+            closeStream ();
+            sub.onError (e);
+         }
+      }
+
+      private final Flow.Subscriber<? super Object> sub;
+      private final MessageIterator it = new MessageIterator (rd, is);
+      private final AtomicLong demand = new AtomicLong ();
+      private final AtomicInteger wip = new AtomicInteger ();
+      private volatile boolean done;
+      private volatile Throwable pendingError;
+   }
+
+   private void closeStream ()
+   {
+      try
+      {
+         is.close ();
+      }
+      catch (IOException e)
+      {
+         // Ignore, the subscription is already terminated
+      }
+   }
+
+   private final CompactReader rd;
+   private final InputStream is;
+   private final Executor exec;
+   private final int batchSize;
+   private final AtomicBoolean subscribed = new AtomicBoolean ();
+}
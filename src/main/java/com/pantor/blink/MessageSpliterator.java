@@ -0,0 +1,222 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+   The {@code MessageSpliterator} class decodes messages in the Blink
+   compact binary format from a byte array, such as a capture read
+   or mapped into memory, and supports splitting for parallel
+   streams.
+
+   <p>When created, the data is framed into message aligned chunks by
+   reading only the length preambles, the same way as in {@link
+   ParallelReader}. Splitting divides the remaining chunks in two,
+   and each part decodes lazily, one message at a time, with a
+   {@link CompactReader} of its own.</p>
+
+   <pre>
+   long count = MessageSpliterator.stream (om, data, 0, data.length, true)
+      .filter (...)
+      .count ();
+   </pre>
+
+   <p>Since the {@code Spliterator} interface does not allow checked
+   exceptions, any {@code BlinkException} is thrown wrapped in a
+   {@code RuntimeException}. Schema exchange is not supported.</p>
+ */
+
+public final class MessageSpliterator implements Spliterator<Object>
+{
+   /**
+      The default chunk size used when framing the data
+   */
+   
+   public static final int DefaultChunkSize = 1 << 20;
+
+   /**
+      Creates a spliterator over messages in a slice of a byte array
+
+      @param om the object model to decode with
+      @param oreg an observer registry, or {@code null}
+      @param data the data to decode
+      @param from the index of the first byte
+      @param len the number of bytes
+      @throws BlinkException if the data is not properly framed
+   */
+
+   public MessageSpliterator (ObjectModel om, ObserverRegistry oreg,
+                              byte [] data, int from, int len)
+      throws BlinkException
+   {
+      this (om, oreg, data, from, len, DefaultChunkSize);
+   }
+
+   /**
+      Creates a spliterator over messages in a slice of a byte array
+      using the specified chunk size. The chunk size is the smallest
+      unit of splitting
+
+      @param om the object model to decode with
+      @param oreg an observer registry, or {@code null}
+      @param data the data to decode
+      @param from the index of the first byte
+      @param len the number of bytes
+      @param chunkSize the approximate chunk size in bytes
+      @throws BlinkException if the data is not properly framed
+   */
+
+   public MessageSpliterator (ObjectModel om, ObserverRegistry oreg,
+                              byte [] data, int from, int len, int chunkSize)
+      throws BlinkException
+   {
+      this (om, oreg, data, ParallelReader.frame (
+               data, from, len, chunkSize,
+               CompactReader.DefaultMaxMsgSize), 0, -1);
+      if (bounds [bounds.length - 1] != from + len)
+         throw new BlinkException.Decode (
+            "Incomplete trailing message in compact blink data");
+   }
+
+   private MessageSpliterator (ObjectModel om, ObserverRegistry oreg,
+                               byte [] data, int [] bounds, int lo, int hi)
+   {
+      this.om = om;
+      this.oreg = oreg;
+      this.data = data;
+      this.bounds = bounds;
+      this.lo = lo;
+      this.hi = hi < 0 ? bounds.length - 1 : hi;
+   }
+
+   /**
+      Creates a stream over messages in a slice of a byte array
+
+      @param om the object model to decode with
+      @param data the data to decode
+      @param from the index of the first byte
+      @param len the number of bytes
+      @param parallel {@code true} for a parallel stream
+      @return a stream of decoded messages
+      @throws BlinkException if the data is not properly framed
+   */
+
+   public static Stream<Object> stream (ObjectModel om, byte [] data,
+                                        int from, int len, boolean parallel)
+      throws BlinkException
+   {
+      return StreamSupport.stream (
+         new MessageSpliterator (om, null, data, from, len), parallel);
+   }
+
+   @Override
+   public boolean tryAdvance (Consumer<? super Object> action)
+   {
+      for (;;)
+      {
+         if (it == null)
+         {
+            if (lo >= hi)
+               return false;
+            int from = bounds [lo];
+            int len = bounds [lo + 1] - from;
+            ++ lo;
+            it = new MessageIterator (getReader (),
+                                      new ByteBuf (data, from, len));
+         }
+
+         if (it.hasNext ())
+         {
+            action.accept (it.next ());
+            return true;
+         }
+         else
+            it = null;
+      }
+   }
+
+   @Override
+   public Spliterator<Object> trySplit ()
+   {
+      // A partly consumed chunk must stay first in this
+      // spliterator, so splitting stops once traversal has started
+      
+      int chunks = hi - lo;
+      if (chunks < 2 || it != null)
+         return null;
+
+      int mid = lo + chunks / 2;
+      MessageSpliterator prefix =
+         new MessageSpliterator (om, oreg, data, bounds, lo, mid);
+      lo = mid;
+      return prefix;
+   }
+
+   @Override
+   public long estimateSize ()
+   {
+      // Unknown without decoding, use the byte count as an upper
+      // bound
+      
+      return lo < hi ? bounds [hi] - bounds [lo] : 0;
+   }
+
+   @Override
+   public int characteristics ()
+   {
+      return ORDERED | NONNULL | IMMUTABLE;
+   }
+
+   private CompactReader getReader ()
+   {
+      if (rd == null)
+         rd = new CompactReader (om, oreg);
+      return rd;
+   }
+   
+   private final ObjectModel om;
+   private final ObserverRegistry oreg;
+   private final byte [] data;
+   private final int [] bounds;
+   private int lo;
+   private final int hi;
+   private CompactReader rd;
+   private MessageIterator it;
+}
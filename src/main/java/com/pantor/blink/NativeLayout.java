@@ -0,0 +1,149 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+// Computes the layout of groups in the native binary format. Every
+// field occupies a slot of fixed width in the fixed area of its
+// group, so the position of a field is known when the codecs are
+// generated. The slots of inherited fields come first, in the same
+// order as the fields of a group binding.
+//
+// Values of variable size, that is strings, binaries, sequences and
+// dynamic groups, are stored in the data area and referenced from
+// the slot by a four byte offset. Optional values that are stored
+// inline are preceded by a presence byte. Optional references use a
+// zero offset to mark an absent value.
+
+final class NativeLayout
+{
+   private NativeLayout ()
+   {
+   }
+
+   // Size of the message preamble: size, type identifier and
+   // extension offset
+   
+   static final int HeaderSize = 16;
+
+   // Size of an offset to a value in the data area
+   
+   static final int RefSize = 4;
+
+   static int getFixedSize (Schema s, Schema.Group g)
+      throws BlinkException
+   {
+      int size = 0;
+      if (g.getSuperGroup () != null)
+         size = getFixedSize (s, g.getSuperGroup ());
+      for (Schema.Field f : g)
+         size += getSlotSize (s, f);
+      return size;
+   }
+
+   static int getSlotSize (Schema s, Schema.Field f)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = s.resolve (f.getType ());
+      int size = getValueSize (s, t);
+      if (f.isOptional () && ! isReference (t))
+         ++ size; // Presence byte
+      return size;
+   }
+
+   // Returns the size of a single element of the specified type. For
+   // sequences this is the size of each item
+
+   static int getElementSize (Schema s, Schema.TypeInfo t)
+      throws BlinkException
+   {
+      if (t.isEnum ())
+         return 4;
+      else if (t.isDynamic ())
+         return RefSize;
+      else if (t.isGroup ())
+         return getFixedSize (s, t.getGroup ());
+      else
+         return getPrimitiveSize (t.getType ());
+   }
+
+   static boolean isReference (Schema.TypeInfo t)
+   {
+      if (t.isSequence () || t.isDynamic ())
+         return true;
+      else if (t.isEnum () || t.isGroup ())
+         return false;
+      else
+      {
+         Schema.TypeCode c = t.getType ().getCode ();
+         return c == Schema.TypeCode.String || c == Schema.TypeCode.Binary;
+      }
+   }
+
+   private static int getValueSize (Schema s, Schema.TypeInfo t)
+      throws BlinkException
+   {
+      if (t.isSequence ())
+         return RefSize;
+      else
+         return getElementSize (s, t);
+   }
+
+   private static int getPrimitiveSize (Schema.Type t)
+   {
+      switch (t.getCode ())
+      {
+       case I8:              return 1;
+       case U8:              return 1;
+       case Bool:            return 1;
+       case I16:             return 2;
+       case U16:             return 2;
+       case I32:             return 4;
+       case U32:             return 4;
+       case Date:            return 4;
+       case TimeOfDayMilli:  return 4;
+       case I64:             return 8;
+       case U64:             return 8;
+       case F64:             return 8;
+       case FixedDec:        return 8;
+       case TimeOfDayNano:   return 8;
+       case Nanotime:        return 8;
+       case Millitime:       return 8;
+       case Decimal:         return 9;
+       case Fixed:           return ((Schema.FixedType)t).getSize ();
+       default:              return RefSize;
+      }
+   }
+}
@@ -0,0 +1,862 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+   The {@code NativeReader} implements a decoder for the Blink
+   native binary format, as described in {@link NativeWriter}. It
+   reads bytes and turns them into POJOs as defined by an {@code
+   ObjectModel}. The result can either be appended to a {@link Block}
+   or dispatched to an observer as specified by an {@link
+   ObserverRegistry}, or both.
+
+   <p>Since every field has a fixed position, the generated decoders
+   read each field directly from its slot, and fields without a
+   setter are never touched. Messages in a byte array are decoded in
+   place. The reader supports incremental decoding in the same way as
+   the {@link CompactReader}: a partial message at the end of the
+   input is kept until the rest of it is supplied in subsequent
+   calls.</p>
+ */
+
+public final class NativeReader implements Reader
+{
+   /**
+      Creates a reader for the native binary format. It maps decoded
+      messages to POJOs as defined by the specified object model.
+
+      @param om an object model
+   */
+   
+   public NativeReader (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   /**
+      Creates a reader for the native binary format. It maps decoded
+      messages to POJOs as defined by the specified object model and
+      dispatches them to any matching observers if available in the
+      specified observer registry.
+
+      @param om an object model
+      @param oreg an observer registry
+    */
+   
+   public NativeReader (ObjectModel om, ObserverRegistry oreg)
+   {
+      compiler = new NativeReaderCompiler (om, oreg);
+      maxMsgSize = CompactReader.DefaultMaxMsgSize;
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It dispatches decoded
+      messages to any matching observers if an observer registry has
+      been specified.
+
+      @param data the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+
+   @Override
+   public void read (byte [] data) throws BlinkException
+   {
+      read (data, 0, data.length, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a slice of a byte array. It
+      dispatches decoded messages to any matching observers if an
+      observer registry has been specified.
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len) throws BlinkException
+   {
+      read (data, from, len, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It appends decoded
+      messages to the specified block and also dispatches them to any
+      matching observers if an observer registry has been specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param data the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, Block block) throws BlinkException
+   {
+      read (data, 0, data.length, block);
+   }
+   
+   /**
+      Decodes bytes specified in a slice of a byte array. It appends
+      decoded messages to the specified block and also dispatches them
+      to any matching observers if an observer registry has been
+      specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      <p>This is the most native form of the {@code read} methods.
+      Complete messages are decoded directly from the array.</p>
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len, Block block)
+      throws BlinkException
+   {
+      curBlock = block;
+      int pos = from;
+      int end = from + len;
+
+      try
+      {
+         if (pendLen > 0)
+         {
+            pos = fillPend (data, pos, end);
+            if (! isPendComplete ())
+               return;
+            readMsg (pend, 0, pendLen);
+            pendLen = 0;
+            if (pend.length > MaxLingeringScratchArea)
+               pend = new byte [PrefixSize];
+         }
+
+         while (end - pos >= PrefixSize)
+         {
+            long msgSize = getMsgSize (data, pos);
+            if (end - pos - PrefixSize < msgSize)
+               break;
+            readMsg (data, pos, PrefixSize + (int)msgSize);
+            pos += PrefixSize + (int)msgSize;
+         }
+
+         if (pos < end)
+            fillPend (data, pos, end);
+      }
+      finally
+      {
+         this.data = null;
+      }
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It dispatches
+      decoded messages to any matching observers if an observer
+      registry has been specified.
+
+      @param src the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src) throws BlinkException
+   {
+      read (src, blankBlock);
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It appends
+      decoded messages to the specified block and also dispatches
+      them to any matching observers if an observer registry has been
+      specified. The available bytes are copied to a scratch area of
+      this reader before they are decoded.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param src the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src, Block block) throws BlinkException
+   {
+      int len = src.available ();
+      if (len > 0)
+      {
+         if (scratch == null || scratch.length < len)
+            scratch = new byte [len];
+         src.read (scratch, 0, len);
+         read (scratch, 0, len, block);
+         if (scratch.length > MaxLingeringScratchArea)
+            scratch = null;
+      }
+   }
+
+   /**
+      Sets the maximum message size. This reader will throw an
+      exception if the maxium message size is exceeded.
+
+      @param maxMsgSize maximum msg size in bytes
+   */
+
+   public void setMaxMessageSize (long maxMsgSize)
+   {
+      this.maxMsgSize = maxMsgSize;
+   }
+
+   /**
+      Compiles decoders for all groups in the schema of the object
+      model that have bindings. Decoders are otherwise compiled when
+      the first message of each type is read.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll ();
+   }
+   
+   /**
+      Returns {@code true} if there is no partial message pending
+
+      @return {@code true} if there is no partial message pending
+   */
+
+   @Override
+   public boolean isComplete ()
+   {
+      return pendLen == 0;
+   }
+
+   /**
+      Closes this reader
+
+      @throws BlinkException.Decode if this reader is incomplete as
+      indicated by {@code isComplete}
+   */
+
+   @Override
+   public void close () throws BlinkException.Decode
+   {
+      if (! isComplete ())
+         throw new BlinkException.Decode (
+            "Incomplete native blink message. The reader needs " +
+            "more data to finish an incomplete trailing " +
+            "message");
+   }
+
+   /**
+      Resets this reader to an initial state, discarding any incompletely
+      read messages
+   */
+
+   @Override
+   public void reset ()
+   {
+      pendLen = 0;
+   }
+
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public boolean isPresent (int pos)
+   {
+      return data [pos] != 0;
+   }
+
+   public boolean hasRef (int pos)
+   {
+      return getU32 (pos) != 0;
+   }
+   
+   public byte getU8 (int pos)
+   {
+      return data [pos];
+   }
+
+   public byte getI8 (int pos)
+   {
+      return data [pos];
+   }
+
+   public short getU16 (int pos)
+   {
+      byte [] d = data;
+      return (short)((d [pos] & 0xff) | (d [pos + 1] << 8));
+   }
+
+   public short getI16 (int pos)
+   {
+      return getU16 (pos);
+   }
+
+   public int getU32 (int pos)
+   {
+      return getU32 (data, pos);
+   }
+
+   public int getI32 (int pos)
+   {
+      return getU32 (data, pos);
+   }
+
+   public long getU64 (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public long getI64 (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public double getF64 (int pos)
+   {
+      return Double.longBitsToDouble (getU64 (data, pos));
+   }
+
+   public Decimal getDecimal (int pos)
+   {
+      return Decimal.valueOf (getU64 (data, pos + 1), data [pos]);
+   }
+
+   public long getFixedDec (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public int getDate (int pos)
+   {
+      return getU32 (data, pos);
+   }
+
+   public int getTimeOfDayMilli (int pos)
+   {
+      return getU32 (data, pos);
+   }
+
+   public long getTimeOfDayNano (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public long getNanotime (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public long getMillitime (int pos)
+   {
+      return getU64 (data, pos);
+   }
+
+   public boolean getBool (int pos)
+   {
+      return data [pos] != 0;
+   }
+
+   public byte [] getFixed (int pos, int size)
+   {
+      return Arrays.copyOfRange (data, pos, pos + size);
+   }
+
+   // Values in the data area. A zero offset decodes as null
+
+   public String getString (int pos) throws BlinkException.Decode
+   {
+      int p = deref (pos);
+      if (p != -1)
+         return new String (data, p + 4, getDataSize (p, 1), Utf8);
+      else
+         return null;
+   }
+
+   public Utf8Slice getUtf8Slice (int pos, Utf8Slice dst)
+      throws BlinkException.Decode
+   {
+      if (dst == null)
+         dst = new Utf8Slice ();
+      int p = deref (pos);
+      if (p != -1)
+         dst.set (data, p + 4, getDataSize (p, 1));
+      else
+         dst.clear ();
+      return dst;
+   }
+
+   public byte [] getBinary (int pos) throws BlinkException.Decode
+   {
+      int p = deref (pos);
+      if (p != -1)
+         return Arrays.copyOfRange (data, p + 4, p + 4 + getDataSize (p, 1));
+      else
+         return null;
+   }
+
+   public Object getObject (int pos) throws BlinkException
+   {
+      int p = deref (pos);
+      if (p != -1)
+         return readObject (p);
+      else
+         return null;
+   }
+
+   // Sequences
+   //////////////////////////////////////////////////////////////////////
+
+   // Returns the position of the first item of the sequence
+   // referenced from the slot at pos, or -1 if the offset is zero
+
+   public int getSeq (int pos, int itemSize) throws BlinkException.Decode
+   {
+      int p = deref (pos);
+      if (p != -1)
+      {
+         getDataSize (p, itemSize);
+         return p + 4;
+      }
+      else
+         return -1;
+   }
+
+   public int getSeqCount (int first)
+   {
+      return getU32 (data, first - 4);
+   }
+   
+   public byte [] getU8Array (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 1);
+      if (p != -1)
+         return Arrays.copyOfRange (data, p, p + getSeqCount (p));
+      else
+         return null;
+   }
+
+   public byte [] getI8Array (int pos) throws BlinkException.Decode
+   {
+      return getU8Array (pos);
+   }
+
+   public short [] getU16Array (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 2);
+      if (p == -1)
+         return null;
+      short [] v = new short [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 2)
+         v [i] = getU16 (p);
+      return v;
+   }
+
+   public short [] getI16Array (int pos) throws BlinkException.Decode
+   {
+      return getU16Array (pos);
+   }
+
+   public int [] getU32Array (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 4);
+      if (p == -1)
+         return null;
+      int [] v = new int [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 4)
+         v [i] = getU32 (data, p);
+      return v;
+   }
+
+   public int [] getI32Array (int pos) throws BlinkException.Decode
+   {
+      return getU32Array (pos);
+   }
+
+   public long [] getU64Array (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 8);
+      if (p == -1)
+         return null;
+      long [] v = new long [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 8)
+         v [i] = getU64 (data, p);
+      return v;
+   }
+
+   public long [] getI64Array (int pos) throws BlinkException.Decode
+   {
+      return getU64Array (pos);
+   }
+
+   public double [] getF64Array (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 8);
+      if (p == -1)
+         return null;
+      double [] v = new double [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 8)
+         v [i] = getF64 (p);
+      return v;
+   }
+
+   public Decimal [] getDecimalArray (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 9);
+      if (p == -1)
+         return null;
+      Decimal [] v = new Decimal [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 9)
+         v [i] = getDecimal (p);
+      return v;
+   }
+
+   public long [] getFixedDecArray (int pos) throws BlinkException.Decode
+   {
+      return getU64Array (pos);
+   }
+
+   public int [] getDateArray (int pos) throws BlinkException.Decode
+   {
+      return getU32Array (pos);
+   }
+
+   public int [] getTimeOfDayMilliArray (int pos) throws BlinkException.Decode
+   {
+      return getU32Array (pos);
+   }
+
+   public long [] getTimeOfDayNanoArray (int pos) throws BlinkException.Decode
+   {
+      return getU64Array (pos);
+   }
+
+   public long [] getNanotimeArray (int pos) throws BlinkException.Decode
+   {
+      return getU64Array (pos);
+   }
+
+   public long [] getMillitimeArray (int pos) throws BlinkException.Decode
+   {
+      return getU64Array (pos);
+   }
+
+   public boolean [] getBoolArray (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 1);
+      if (p == -1)
+         return null;
+      boolean [] v = new boolean [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i)
+         v [i] = data [p + i] != 0;
+      return v;
+   }
+
+   public String [] getStringArray (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 4);
+      if (p == -1)
+         return null;
+      String [] v = new String [getSeqCount (p)];
+      for (int i = 0; i < v.length; ++ i, p += 4)
+         v [i] = getString (p);
+      return v;
+   }
+
+   public byte [][] getBinaryArray (int pos) throws BlinkException.Decode
+   {
+      int p = getSeq (pos, 4);
+      if (p == -1)
+         return null;
+      byte [][] v = new byte [getSeqCount (p)][];
+      for (int i = 0; i < v.length; ++ i, p += 4)
+         v [i] = getBinary (p);
+      return v;
+   }
+
+   public byte [][] getFixedArray (int pos, int size)
+      throws BlinkException.Decode
+   {
+      int p = getSeq (pos, size);
+      if (p == -1)
+         return null;
+      byte [][] v = new byte [getSeqCount (p)][];
+      for (int i = 0; i < v.length; ++ i, p += size)
+         v [i] = getFixed (p, size);
+      return v;
+   }
+
+   public Object [] getObjectArray (int pos) throws BlinkException
+   {
+      return getObjectArray (pos, Object.class);
+   }
+
+   public Object [] getObjectArray (int pos, Class<?> type)
+      throws BlinkException
+   {
+      int p = getSeq (pos, 4);
+      if (p == -1)
+         return null;
+      Object [] v = (Object [])java.lang.reflect.Array.newInstance (
+         type, getSeqCount (p));
+      for (int i = 0; i < v.length; ++ i, p += 4)
+         v [i] = getObject (p);
+      return v;
+   }
+
+   //////////////////////////////////////////////////////////////////////
+
+   public abstract static class Decoder implements Creator
+   {
+      protected Decoder (Class<?> type, Schema.Group grp, Observer obs,
+                         int fixedSize)
+      {
+         this.type = type;
+         this.grp = grp;
+         this.obs = obs;
+         this.fixedSize = fixedSize;
+      }
+
+      final void decodeMsg (NativeReader rd, int pos, Block block)
+         throws BlinkException
+      {
+         Object o = decodeGrp (rd, pos, block);
+         block.append (o);
+         if (obs != null)
+            obs.onObj (o, grp);
+      }
+
+      final Object decodeGrp (NativeReader rd, int pos, Block block)
+         throws BlinkException
+      {
+         if (pos + fixedSize > rd.limit)
+            throw new BlinkException.Decode (
+               "Native message too short for " + grp.getName ());
+         
+         Object o = allocate (block);
+         try
+         {
+            decode (rd, pos, o);
+            return o;
+         }
+         catch (BlinkException.Decode e)
+         {
+            block.reclaim (o);
+            throw e;
+         }
+         catch (RuntimeException e)
+         {
+            block.reclaim (o);
+            throw e;
+         }
+      }
+
+      @Override
+      public Class<?> getType ()
+      {
+         return type;
+      }
+
+      private Object allocate (Block block)
+         throws BlinkException.Binding
+      {
+         if (pool == null || take >= pool.length)
+         {
+            pool = block.refill (this, pool);
+            take = 0;
+         }
+
+         Object fresh = pool [take];
+         pool [take ++] = null;
+         return fresh;
+      }
+
+      protected abstract void decode (NativeReader rd, int pos, Object o)
+         throws BlinkException;
+      
+      private final Class<?> type;
+      private final Schema.Group grp;
+      private final Observer obs;
+      private final int fixedSize;
+      private Object [] pool;
+      private int take;
+   }
+
+   private static final int PrefixSize = 4;
+   private static final int MaxLingeringScratchArea = 1000000;
+   private static final Charset Utf8 = Charset.forName ("UTF-8");
+
+   private static int getU32 (byte [] d, int pos)
+   {
+      return
+         (d [pos] & 0xff) |
+         ((d [pos + 1] & 0xff) << 8) |
+         ((d [pos + 2] & 0xff) << 16) |
+         (d [pos + 3] << 24);
+   }
+
+   private static long getU64 (byte [] d, int pos)
+   {
+      return
+         ((long)getU32 (d, pos) & 0xffffffffL) |
+         ((long)getU32 (d, pos + 4) << 32);
+   }
+
+   private long getMsgSize (byte [] d, int pos) throws BlinkException.Decode
+   {
+      long size = Util.u32ToLong (getU32 (d, pos));
+      if (size > maxMsgSize)
+         throw new BlinkException.Decode (
+            String.format ("Max blink message size exceeded: %d > %d",
+                           size, maxMsgSize));
+      if (size < NativeLayout.HeaderSize - PrefixSize)
+         throw new BlinkException.Decode (
+            "Native blink message too short: " + size + " bytes");
+      return size;
+   }
+
+   // Moves bytes of a partial message to the pending area. Returns the
+   // position of the first byte not moved
+   
+   private int fillPend (byte [] d, int pos, int end)
+      throws BlinkException.Decode
+   {
+      if (pendLen < PrefixSize)
+      {
+         int toMove = Math.min (PrefixSize - pendLen, end - pos);
+         System.arraycopy (d, pos, pend, pendLen, toMove);
+         pendLen += toMove;
+         pos += toMove;
+         if (pendLen < PrefixSize)
+            return pos;
+      }
+
+      int total = PrefixSize + (int)getMsgSize (pend, 0);
+      if (pend.length < total)
+         pend = Arrays.copyOf (pend, total);
+      int toMove = Math.min (total - pendLen, end - pos);
+      System.arraycopy (d, pos, pend, pendLen, toMove);
+      pendLen += toMove;
+      return pos + toMove;
+   }
+
+   private boolean isPendComplete ()
+   {
+      return pendLen >= PrefixSize &&
+         pendLen == PrefixSize + (int)Util.u32ToLong (getU32 (pend, 0));
+   }
+   
+   private void readMsg (byte [] d, int start, int size) throws BlinkException
+   {
+      data = d;
+      limit = start + size;
+
+      try
+      {
+         long tid = getU64 (d, start + PrefixSize);
+         compiler.getDecoder (tid).decodeMsg (
+            this, start + NativeLayout.HeaderSize, curBlock);
+      }
+      catch (ArrayIndexOutOfBoundsException e)
+      {
+         throw prematureEndOfMsg ();
+      }
+   }
+
+   private Object readObject (int start) throws BlinkException
+   {
+      long size = Util.u32ToLong (getU32 (data, start));
+      if (size < NativeLayout.HeaderSize - PrefixSize ||
+          size > limit - start - PrefixSize)
+         throw new BlinkException.Decode ("Bad native subgroup size: " + size);
+      long tid = getU64 (data, start + PrefixSize);
+      return compiler.getDecoder (tid).decodeGrp (
+         this, start + NativeLayout.HeaderSize, curBlock);
+   }
+
+   // Resolves the offset in the slot at pos. Returns -1 if the offset
+   // is zero
+
+   private int deref (int pos) throws BlinkException.Decode
+   {
+      int off = getU32 (data, pos);
+      if (off == 0)
+         return -1;
+      if (off < 0 || off > limit - pos - 4)
+         throw new BlinkException.Decode ("Bad native data offset: " + off);
+      return pos + off;
+   }
+
+   // Returns the size or count prefix at p after checking that the
+   // data fits in the message
+
+   private int getDataSize (int p, int itemSize) throws BlinkException.Decode
+   {
+      int n = getU32 (data, p);
+      if (n < 0 || (long)n * itemSize > limit - p - 4)
+         throw prematureEndOfMsg ();
+      return n;
+   }
+
+   private BlinkException.Decode prematureEndOfMsg ()
+   {
+      return new BlinkException.Decode ("Premature end of message");
+   }
+
+   private final NativeReaderCompiler compiler;
+   private final BlankBlock blankBlock = new BlankBlock ();
+   private Block curBlock;
+   private long maxMsgSize;
+   private byte [] data;
+   private int limit;
+   private byte [] pend = new byte [PrefixSize];
+   private int pendLen;
+   private byte [] scratch;
+}
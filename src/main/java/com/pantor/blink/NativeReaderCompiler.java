@@ -0,0 +1,1027 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+
+import static com.pantor.blink.DynClass.getDescriptor;
+import static com.pantor.blink.CodegenUtil.mapType;
+import static com.pantor.blink.CodegenUtil.mapArrayType;
+
+public final class NativeReaderCompiler
+{
+   public NativeReaderCompiler (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   public NativeReaderCompiler (ObjectModel om, ObserverRegistry oreg)
+   {
+      this.om = om;
+      this.oreg = oreg;
+      this.cache = CodecCache.getInstance (om);
+   }
+
+   public NativeReader.Decoder getDecoder (long tid)
+      throws BlinkException
+   {
+      NativeReader.Decoder d = decByTid.get (tid);
+      if (d != null)
+         return d;
+      else
+         return compile (tid);
+   }
+
+   public NativeReader.Decoder getDecoder (NsName name)
+      throws BlinkException
+   {
+      NativeReader.Decoder d = decByName.get (name);
+      if (d != null)
+         return d;
+      else
+         return compile (om.getGroupBinding (name));
+   }
+
+   public void prime (NsName name)
+      throws BlinkException
+   {
+      getDecoder (name);
+   }
+
+   // Compiles decoders for all groups in the schema that have a
+   // binding in the object model. Groups with type identifiers are
+   // also registered for lookup by identifier. Returns the number of
+   // primed groups
+
+   public int primeAll ()
+      throws BlinkException
+   {
+      int count = 0;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         prime (g.getName ());
+         if (g.hasId ())
+            getDecoder (bnd.getCompactTypeId ());
+         ++ count;
+      }
+
+      return count;
+   }
+
+   public void primeEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException
+   {
+      if (! enumDecs.contains (bnd.getEnum ().getName ()))
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   private NativeReader.Decoder compile (long tid)
+      throws BlinkException
+   {
+      ObjectModel.GroupBinding bnd = om.getGroupBinding (tid);
+      NativeReader.Decoder d = getDecoder (bnd.getGroup ().getName ());
+      decByTid.put (tid, d);
+      return d;
+   }
+
+   // Generates a decoder for the specified binding. The decoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.nat;
+   //
+   //   public final class <Ns>+<Name>_dec extends NativeReader.Decoder
+   //   {
+   //      public <Ns>+<Name>_dec (Class type, Schema.Group grp, Observer obs,
+   //                              int fixedSize)
+   //      {
+   //         super (type, grp, obs, fixedSize);
+   //      }
+   //
+   //      @Override
+   //      public void decode (NativeReader rd, int pos, Object tgt)
+   //      {
+   //         innerDecode ((T)tgt, rd, pos);
+   //      }
+   //  
+   //      @Override
+   //      public Object newInstance ()
+   //      {
+   //         return new T ();
+   //      }
+   //  
+   //      public static T read (NativeReader rd, int pos)
+   //      {
+   //         T tgt = new T ();
+   //         innerDecode (tgt, rd, pos);
+   //         return tgt;
+   //      }
+   //  
+   //      public static T [] readArray (NativeReader rd, int pos)
+   //      {
+   //         int p = rd.getSeq (pos, <fixed size>);
+   //         if (p == -1)
+   //            return null;
+   //         T [] tgt = new T [rd.getSeqCount (p)];
+   //         for (int i = 0; i < tgt.length; ++ i, p += <fixed size>)
+   //           tgt [i] = read (rd, p);
+   //         return tgt;
+   //      }
+   //  
+   //      public static void innerDecode (T tgt, NativeReader rd, int pos)
+   //      {
+   //         ... read each field from its slot relative to pos ...
+   //      }
+   //   }
+
+   // The generated class does not depend on the observer, which is
+   // passed to the constructor, so the class is shared through the
+   // codec cache by all native readers using the same object model
+   
+   private NativeReader.Decoder compile (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd);
+      }
+   }
+
+   private NativeReader.Decoder compileShared (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      Schema.Group g = bnd.getGroup ();
+      Schema s = om.getSchema ();
+      Observer obs = oreg != null ? oreg.findObserver (g) : null;
+      int fixedSize = NativeLayout.getFixedSize (s, g);
+
+      // Use a decoder generated by another reader if there is one
+         
+      Class<?> shared = cache.getNativeDecoder (bnd);
+      if (shared != null)
+         return register (g, shared, createInstance (shared, bnd, obs,
+                                                     fixedSize));
+         
+      String decoderName = cache.getUniqueClassName (
+         getDecoderClassName (g.getName ()));
+      String decBase = "com/pantor/blink/NativeReader$Decoder";
+      String ctorSig = "(Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;" +
+         "Lcom/pantor/blink/Observer;I)V";
+      
+      // Generate decoder class
+      
+      DynClass dc = new DynClass (decoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      dc.setSuper (decBase);
+
+      // Constructor
+
+      dc.startPublicMethod ("<init>", ctorSig)
+         .aload0 ().aload1 ().aload2 ().aload3 ().iload (4)
+         .invokeSpecial (decBase, "<init>", ctorSig)
+         .return_ ().setMaxStack (5).endMethod ();
+
+      // void decode (rd, pos, tgt)
+
+      String decSig = "(Lcom/pantor/blink/NativeReader;ILjava/lang/Object;)V";
+      String tgtName = bnd.getTargetType ().getName ();
+      String innerSig = getInnerDecodeSignature (bnd);
+      
+      dc.startPublicMethod ("decode", decSig)
+         .aload3 ().checkCast (tgtName).aload1 ().iload2 ()
+         .invokeStatic (decoderName, "innerDecode", innerSig)
+         .return_ ().setMaxStack (3).endMethod ();
+
+      // Object newInstance ()
+
+      dc.startPublicMethod ("newInstance", "()Ljava/lang/Object;")
+         .new_ (tgtName)
+         .dup ()
+         .invokeSpecial (tgtName, "<init>", "()V")
+         .areturn ().setMaxStack (2).endMethod ();
+      
+      // static T read (rd, pos)
+
+      dc.startPublicStaticMethod ("read", getReadSignature (bnd))
+         .new_ (tgtName)
+         .dup ()
+         .invokeSpecial (tgtName, "<init>", "()V")
+         .astore2 ()
+         .aload2 () // Target
+         .aload0 () // Reader
+         .iload1 () // pos
+         .invokeStatic (decoderName, "innerDecode", innerSig)
+         .aload2 () // Target
+         .areturn ().setMaxStack (3).endMethod ();
+
+      // public static T [] readArray (rd, pos)
+
+      int absent = dc.declareLabel ();
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("readArray", getReadArraySignature (bnd));
+
+      dc.aload0 () // rd
+         .iload1 () // pos
+         .ldc (fixedSize);
+      invokeReader (dc, "getSeq", "II", "I");
+      dc.dup ()
+         .istore2 () // p
+         .ifLt (absent) // jump if p == -1
+         .aload0 () // rd
+         .iload2 (); // p
+      invokeReader (dc, "getSeqCount", "I", "I");
+      dc.anewArray (tgtName)
+         .astore3 () // tgt
+         .iconst0 ()
+         .istore (4) // i = 0
+         .label (loop)
+         .iload (4) // i
+         .aload3 () // tgt
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= tgt.length
+         .aload3 () // tgt
+         .iload (4) // i
+         .aload0 () // rd
+         .iload2 () // p
+         .invokeStatic (decoderName, "read", getReadSignature (bnd))
+         .aastore () // tgt [i] = <returned value>
+         .iload2 ()
+         .ldc (fixedSize)
+         .iadd ()
+         .istore2 () // p += fixedSize
+         .iinc (4, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd)
+         .aload3 ()
+         .areturn ()
+         .label (absent)
+         .aconstNull ()
+         .areturn ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // static void innerDecode (tgt, rd, pos)
+      
+      dc.startPublicStaticMethod ("innerDecode", innerSig);
+
+      // Emit decoding instructions for each field
+      
+      int off = 0;
+      for (ObjectModel.Field f : bnd)
+      {
+         compile (f, off, dc);
+         off += NativeLayout.getSlotSize (s, f.getField ());
+      }
+
+      dc.return_ ();
+      dc.setMaxStack (6);
+      dc.endMethod ();
+
+      // Create an instance of the generated decoder
+
+      Class<?> decClass = cache.load (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
+      cache.putNativeDecoder (bnd, decClass);
+      return register (g, decClass, createInstance (decClass, bnd, obs,
+                                                    fixedSize));
+   }
+
+   // Stores a decoder and the name of its class for future lookups
+
+   private NativeReader.Decoder register (Schema.Group g, Class<?> decClass,
+                                          NativeReader.Decoder d)
+   {
+      decByName.put (g.getName (), d);
+      classByName.put (g.getName (), decClass.getName ());
+      return d;
+   }
+
+   private static String getClassName (NsName nm)
+   {
+      if (nm.isQualified ())
+         return nm.getNs () + "+" + nm.getName ();
+      else
+         return nm.getName ();
+   }
+   
+   private static String getDecoderClassName (NsName nm)
+   {
+      return "com.pantor.blink.dyn.nat." + getClassName (nm) + "_dec";
+   }
+
+   private static String getInnerDecodeSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/NativeReader;I)V";
+   }
+
+   private static String getReadSignature (ObjectModel.Binding bnd)
+   {
+      return "(Lcom/pantor/blink/NativeReader;I)L" +
+         DynClass.toInternal (bnd.getTargetType ()) + ";";
+   }
+
+   private static String getReadArraySignature (ObjectModel.Binding bnd)
+   {
+      return "(Lcom/pantor/blink/NativeReader;I)[L" +
+         DynClass.toInternal (bnd.getTargetType ()) + ";";
+   }
+
+   private static String getDecodeEnumSignature (ObjectModel.Binding bnd)
+   {
+      return "(I)L" + DynClass.toInternal (bnd.getTargetType ()) + ";";
+   }
+
+   private static void invokeReader (DynClass dc, String m, String args,
+                                     String ret)
+   {
+      dc.invokeVirtual ("com/pantor/blink/NativeReader", m,
+                        "(" + args + ")" + ret);
+   }
+
+   // Pushes the reader and the position of a slot. Expects the reader
+   // in local #1 and the position of the group in local #2
+
+   private static void pushSlot (DynClass dc, int off)
+   {
+      dc.aload1 (); // rd
+      dc.iload2 (); // pos
+      if (off != 0)
+      {
+         dc.ldc (off);
+         dc.iadd ();
+      }
+   }
+
+   // Emits instructions that read a field from its slot at offset off
+   // relative to the position of the group. Locals: #0 tgt, #1 rd and
+   // #2 pos. Fields without a setter are skipped altogether, except
+   // for strings that are read into the slice returned by the getter
+   
+   private void compile (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Schema.Field sf = f.getField ();
+      Method setter = f.getSetter ();
+
+      boolean isSlice = t.isPrimitive () && ! t.isSequence () &&
+         t.getType ().getCode () == Schema.TypeCode.String &&
+         isUtf8SliceField (f);
+      
+      if (setter == null && ! isSlice)
+         return;
+      
+      int end = dc.declareLabel ();
+      if (sf.isOptional ())
+      {
+         pushSlot (dc, off);
+         if (NativeLayout.isReference (t))
+            invokeReader (dc, "hasRef", "I", "Z");
+         else
+         {
+            invokeReader (dc, "isPresent", "I", "Z");
+            ++ off;
+         }
+         dc.ifEq (end); // Jump if absent
+      }
+
+      dc.aload0 (); // target
+
+      if (! t.isSequence ())
+      {
+         if (isSlice)
+            compileUtf8SliceField (f, off, dc);
+         else if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedField (f, off, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecField (f, off, dc);
+            else
+               compilePrimitiveField (f, off, dc);
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireSetterArgType (f, comp.getTargetType ());
+            primeEnum (comp);
+            pushSlot (dc, off);
+            invokeReader (dc, "getI32", "I", "I");
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "decode", getDecodeEnumSignature (comp));
+         }
+         else // Object or Group
+            compileGroupField (f, off, dc);
+      }
+      else
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedArrayField (f, off, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecArrayField (f, off, dc);
+            else
+               compilePrimitiveArrayField (f, off, dc);
+         }
+         else if (t.isEnum ())
+         {
+            ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+            requireSetterArgType (
+               f, DynClass.getArrayClass (comp.getTargetType ()));
+            primeEnum (comp);
+            pushSlot (dc, off);
+            dc.invokeStatic (classByName.get (t.getEnum ().getName ()),
+                             "readArray", getReadArraySignature (comp));
+         }
+         else // Object or Group
+            compileGroupArrayField (f, off, dc);
+      }
+
+      if (setter != null)
+         dc.invoke (setter);
+      else
+         dc.pop2 (); // The slice and the target
+      dc.label (end);
+   }
+
+   private void compilePrimitiveField (ObjectModel.Field f, int off,
+                                       DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode c = f.getFieldType ().getType ().getCode ();
+      Class<?> retType = mapType (c);
+      requireSetterArgType (f, retType);
+      pushSlot (dc, off);
+      invokeReader (dc, "get" + c.toString (), "I", getDescriptor (retType));
+   }
+   
+   private void compilePrimitiveArrayField (ObjectModel.Field f, int off,
+                                            DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode c = f.getFieldType ().getType ().getCode ();
+      Class<?> retType = mapArrayType (c);
+      requireSetterArgType (f, retType);
+      pushSlot (dc, off);
+      invokeReader (dc, "get" + c.toString () + "Array", "I",
+                    getDescriptor (retType));
+   }
+
+   // A string field is bound to a Utf8Slice if the setter takes a
+   // slice, or if there is no setter and the getter returns one. The
+   // bytes are copied into the slice returned by the getter, if any
+
+   private static boolean isUtf8SliceField (ObjectModel.Field f)
+   {
+      Method setter = f.getSetter ();
+      if (setter != null)
+         return hasSetterArgType (f, Utf8Slice.class);
+      else
+         return getGetterRetType (f) == Utf8Slice.class;
+   }
+
+   private static Class<?> getGetterRetType (ObjectModel.Field f)
+   {
+      Method getter = f.getGetter ();
+      if (getter != null)
+         return getter.getReturnType ();
+      else
+         return null;
+   }
+   
+   private void compileUtf8SliceField (ObjectModel.Field f, int off,
+                                      DynClass dc)
+      throws BlinkException
+   {
+      pushSlot (dc, off);
+      if (getGetterRetType (f) == Utf8Slice.class)
+      {
+         dc.aload0 (); // target
+         dc.invoke (f.getGetter ());
+      }
+      else
+         dc.aconstNull ();
+      invokeReader (dc, "getUtf8Slice", "ILcom/pantor/blink/Utf8Slice;",
+                    "Lcom/pantor/blink/Utf8Slice;");
+   }
+
+   private void compileFixedField (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      requireSetterArgType (f, byte [].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushSlot (dc, off);
+      dc.ldc (ft.getSize ());
+      invokeReader (dc, "getFixed", "II", "[B");
+   }
+
+   private void compileFixedArrayField (ObjectModel.Field f, int off,
+                                        DynClass dc)
+      throws BlinkException
+   {
+      requireSetterArgType (f, byte [][].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushSlot (dc, off);
+      dc.ldc (ft.getSize ());
+      invokeReader (dc, "getFixedArray", "II", "[[B");
+   }
+
+   private static BlinkException.Binding typeMismatch (ObjectModel.Field f)
+   {
+      return new BlinkException.Binding (
+         "Cannot use '" + f.getSetter () + "' to set field '" + f +
+         "': type mismatch", f.getLocation ());
+   }
+   
+   private static boolean hasSetterArgType (ObjectModel.Field f, Class<?> t)
+   {
+      return t == getSetterArgType (f);
+   }
+
+   private static void requireSetterArgType (ObjectModel.Field f, Class<?> t)
+      throws BlinkException.Binding
+   {
+      if (! hasSetterArgType (f, t))
+         throw typeMismatch (f);
+   }
+
+   private static Class<?> getSetterArgType (ObjectModel.Field f)
+   {
+      Method setter = f.getSetter ();
+      if (setter != null)
+         return setter.getParameterTypes () [0];
+      else
+         return null;
+   }
+
+   private static int getScaleConstant (Class<?> c)
+   {
+      try
+      {
+         return c.getField ("Scale").getInt (null);
+      }
+      catch (Throwable e)
+      {
+         return -1;
+      }
+   }
+   
+   private void compileFixedDecField (ObjectModel.Field f, int off,
+                                      DynClass dc)
+      throws BlinkException
+   {
+      pushSlot (dc, off);
+      invokeReader (dc, "getFixedDec", "I", "J");
+
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      int extScale = ft.getScale ();
+
+      Class<?> argType = getSetterArgType (f);
+      if (argType != null && FixedDec.class.isAssignableFrom (argType))
+      {
+         int intScale = getScaleConstant (argType);
+         if (intScale != -1)
+         {
+            if (intScale != extScale)
+            {
+               dc.ldc (extScale);
+               dc.ldc (intScale);
+               dc.invokeStatic (argType, "rescale", "(JII)J");
+            }
+               
+            dc.invokeStatic (argType, "getInstance",
+                             "(J)" + getDescriptor (argType));
+         }
+         else
+         {
+            dc.ldc (extScale);
+            dc.invokeStatic (argType, "getInstance",
+                             "(JI)" + getDescriptor (argType));
+         }
+      }
+      else
+         requireSetterArgType (f, Long.TYPE);
+   }
+
+   private void compileFixedDecArrayField (ObjectModel.Field f, int off,
+                                           DynClass dc)
+      throws BlinkException
+   {
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      int extScale = ft.getScale ();
+
+      Class<?> argType = getSetterArgType (f);
+      Class<?> compType = argType != null ? argType.getComponentType () : null;
+      if (compType != null && FixedDec.class.isAssignableFrom (compType))
+      {
+         int intScale = getScaleConstant (compType);
+
+         // Generate this (not including # lines):
+         //
+         //    T [] a = null;
+         //    int p = rd.getSeq (pos + off, 8);
+         //    if (p != -1)
+         //    {
+         //       a = new T [rd.getSeqCount (p)];
+         //       for (int i = 0; i < a.length; ++ i, p += 8)
+         //       {
+         //          long sig = rd.getFixedDec (p);
+         //    #    if (intScale == -1)
+         //          a [i] = T.getInstance (sig, extScale);
+         //    #    else if (intScale != extScale)
+         //          a [i] = T.getInstance (
+         //             FixedDec.rescale (sig, extScale, intScale));
+         //    #    else
+         //          a [i] = T.getInstance (sig);
+         //       }
+         //    }
+
+         int loop = dc.declareLabel ();
+         int done = dc.declareLabel ();
+
+         dc.aconstNull ()
+            .astore (4); // a = null
+         pushSlot (dc, off);
+         dc.ldc (8);
+         invokeReader (dc, "getSeq", "II", "I");
+         dc.dup ()
+            .istore3 () // p
+            .ifLt (done) // jump if p == -1
+            .aload1 () // rd
+            .iload3 (); // p
+         invokeReader (dc, "getSeqCount", "I", "I");
+         dc.anewArray (compType)
+            .astore (4) // a
+            .iconst0 ()
+            .istore (5) // i = 0
+            .label (loop)
+            .iload (5) // i
+            .aload (4) // a
+            .arrayLength ()
+            .ifIcmpGe (done) // jump if i >= a.length
+            .aload (4) // a
+            .iload (5) // i
+            .aload1 () // rd
+            .iload3 (); // p
+         invokeReader (dc, "getFixedDec", "I", "J"); // sig
+
+         if (intScale != -1)
+         {
+            if (intScale != extScale)
+            {
+               dc.ldc (extScale);
+               dc.ldc (intScale);
+               dc.invokeStatic (compType, "rescale", "(JII)J");
+            }
+
+            dc.invokeStatic (compType, "getInstance",
+                             "(J)" + getDescriptor (compType));
+         }
+         else
+         {
+            dc.ldc (extScale);
+            dc.invokeStatic (compType, "getInstance",
+                             "(JI)" + getDescriptor (compType));
+         }
+
+         dc.aastore () // a [i] = <instance of T>
+            .iinc (3, 8) // p += 8
+            .iinc (5, 1) // ++ i
+            .goto_ (loop)
+            .label (done)
+            .aload (4); // a, leave the result on the stack
+      }
+      else
+         compilePrimitiveArrayField (f, off, dc);
+   }
+   
+   private void compileGroupField (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Class<?> argType = getSetterArgType (f);
+      
+      if (t.isDynamic () || t.isObject ())
+      {
+         pushSlot (dc, off);
+         invokeReader (dc, "getObject", "I", "Ljava/lang/Object;");
+         if (argType != Object.class)
+            dc.checkCast (argType);
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         NsName compName = comp.getGroup ().getName ();
+         prime (compName);
+         pushSlot (dc, off);
+         dc.invokeStatic (classByName.get (compName), "read",
+                          getReadSignature (comp));
+      }
+   }
+
+   private void compileGroupArrayField (ObjectModel.Field f, int off,
+                                        DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Class<?> argType = getSetterArgType (f);
+      
+      if (t.isObject ())
+      {
+         pushSlot (dc, off);
+         invokeReader (dc, "getObjectArray", "I", "[Ljava/lang/Object;");
+         if (argType != Object [].class)
+            dc.checkCast (argType);
+      }
+      else if (t.isDynamic ())
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         pushSlot (dc, off);
+         dc.ldcClass (comp.getTargetType ());
+         invokeReader (dc, "getObjectArray", "ILjava/lang/Class;",
+                       "[Ljava/lang/Object;");
+         if (argType != Object [].class)
+            dc.checkCast (argType);
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         NsName compName = comp.getGroup ().getName ();
+         prime (compName);
+         pushSlot (dc, off);
+         dc.invokeStatic (classByName.get (compName), "readArray",
+                          getReadArraySignature (comp));
+      }
+   }
+
+   // Generates an enum decoder for the specified binding. The decoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.nat;
+   //
+   //   public final class <Ns>+<Name>_dec
+   //   {
+   //      public static T decode (int val)
+   //      {
+   //         switch (val)
+   //         {
+   //          case 0: return T.Red;
+   //          case 1: return T.Green;
+   //          case 2: return T.Blue;
+   //          default: return null;
+   //         }
+   //      }
+   //  
+   //      public static T [] readArray (NativeReader rd, int pos)
+   //      {
+   //         int p = rd.getSeq (pos, 4);
+   //         if (p == -1)
+   //            return null;
+   //         T [] tgt = new T [rd.getSeqCount (p)];
+   //         for (int i = 0; i < tgt.length; ++ i, p += 4)
+   //           tgt [i] = decode (rd.getI32 (p));
+   //         return tgt;
+   //      }
+   //   }
+   //
+   // The switch is emitted the same way as in the compact decoders
+   
+   private void compileEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException
+   {
+      Schema.Define d = bnd.getEnum ();
+
+      Class<?> shared = cache.getNativeDecoder (bnd);
+      if (shared != null)
+      {
+         classByName.put (d.getName (), shared.getName ());
+         enumDecs.add (d.getName ());
+         return;
+      }
+         
+      String decoderName = cache.getUniqueClassName (
+         getDecoderClassName (d.getName ()));
+
+      // Generate decoder class
+      
+      DynClass dc = new DynClass (decoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      Class<?> enumType = bnd.getTargetType ();
+      String enumDesc = "L" + DynClass.toInternal (enumType) + ";";
+
+      TreeMap<Integer, String> constByVal = new TreeMap<Integer, String> ();
+      for (ObjectModel.Symbol sym : bnd)
+      {
+         if (sym.getTargetName () != null)
+            constByVal.put (sym.getSymbol ().getValue (),
+                            sym.getTargetName ());
+         else
+            constByVal.remove (sym.getSymbol ().getValue ());
+      }
+      
+      // static T decode (val)
+
+      dc.startPublicStaticMethod ("decode", getDecodeEnumSignature (bnd));
+      dc.iload0 (); // val
+
+      int unknown = dc.declareLabel ();
+      int count = constByVal.size ();
+      int [] vals = new int [count];
+      int [] labels = new int [count];
+      int pos = 0;
+      for (Integer v : constByVal.keySet ())
+      {
+         vals [pos] = v;
+         labels [pos] = dc.declareLabel ();
+         ++ pos;
+      }
+
+      if (count > 0 && isDense (vals))
+      {
+         int low = vals [0];
+         int [] table = new int [vals [count - 1] - low + 1];
+         Arrays.fill (table, unknown);
+         for (int i = 0; i < count; ++ i)
+            table [vals [i] - low] = labels [i];
+         dc.tableswitch (low, table, unknown);
+      }
+      else
+         dc.lookupswitch (vals, labels, unknown);
+
+      pos = 0;
+      for (String constName : constByVal.values ())
+      {
+         dc.label (labels [pos ++])
+            .getStatic (enumType, constName, enumDesc)
+            .areturn ();
+      }
+
+      dc.label (unknown)
+         .aconstNull ()
+         .areturn ()
+         .setMaxStack (1)
+         .endMethod ();
+
+      // public static T [] readArray (rd, pos)
+
+      int absent = dc.declareLabel ();
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("readArray", getReadArraySignature (bnd));
+      dc.aload0 () // rd
+         .iload1 () // pos
+         .iconst4 ();
+      invokeReader (dc, "getSeq", "II", "I");
+      dc.dup ()
+         .istore2 () // p
+         .ifLt (absent) // jump if p == -1
+         .aload0 () // rd
+         .iload2 (); // p
+      invokeReader (dc, "getSeqCount", "I", "I");
+      dc.anewArray (enumType)
+         .astore3 () // tgt
+         .iconst0 ()
+         .istore (4) // i = 0
+         .label (loop)
+         .iload (4) // i
+         .aload3 () // tgt
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= tgt.length
+         .aload3 () // tgt
+         .iload (4) // i
+         .aload0 () // rd
+         .iload2 (); // p
+      invokeReader (dc, "getI32", "I", "I");
+      dc.invokeStatic (decoderName, "decode", getDecodeEnumSignature (bnd))
+         .aastore () // tgt [i] = <returned value>
+         .iinc (2, 4) // p += 4
+         .iinc (4, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd)
+         .aload3 ()
+         .areturn ()
+         .label (absent)
+         .aconstNull ()
+         .areturn ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // Load the class
+
+      Class<?> decClass = cache.load (dc.getName (), dc.render (), enumType);
+      cache.putNativeDecoder (bnd, decClass);
+
+      classByName.put (d.getName (), decoderName);
+      enumDecs.add (d.getName ());
+   }
+
+   // A table switch is used when at least a third of the slots in
+   // the value range are populated
+
+   private static boolean isDense (int [] sortedVals)
+   {
+      long range = (long)sortedVals [sortedVals.length - 1] - sortedVals [0] + 1;
+      return range <= 3L * sortedVals.length + 4;
+   }
+   
+   private NativeReader.Decoder createInstance (
+      Class<?> decClass, ObjectModel.GroupBinding bnd, Observer obs,
+      int fixedSize)
+      throws BlinkException
+   {
+      try
+      {
+         Constructor<?> ctor = decClass.getConstructor (
+            Class.class, Schema.Group.class, Observer.class, Integer.TYPE);
+         return (NativeReader.Decoder)ctor.newInstance (
+            bnd.getTargetType (), bnd.getGroup (), obs, fixedSize);
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InstantiationException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+
+   private final LongMap<NativeReader.Decoder> decByTid =
+      new LongMap<NativeReader.Decoder> ();
+   private final HashMap<NsName, NativeReader.Decoder> decByName =
+      new HashMap<NsName, NativeReader.Decoder> ();
+   private final ObserverRegistry oreg;
+   private final ObjectModel om;
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final CodecCache cache;
+   private final HashSet<NsName> enumDecs = new HashSet <NsName> ();
+}
@@ -0,0 +1,754 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+   The {@code NativeWriter} implements an encoder for the Blink
+   native binary format. It encodes POJOs to bytes that are written
+   to a {@code ByteSink} or an {@code OutputStream}. The mapping from
+   POJOs to the corresponding messages in the Blink schema is handled
+   through an {@code ObjectModel}.
+
+   <p>In the native format each field has a slot of fixed width at a
+   fixed position, which lets a reader access fields without decoding
+   the fields in front of them. All integers are little-endian. A
+   message is laid out as follows:</p>
+
+   <ul>
+   <li>the size of the message in bytes, not counting the size
+   itself, as a {@code u32}</li>
+   <li>the type identifier as a {@code u64}</li>
+   <li>the offset of any extension, always zero, as a {@code u32}</li>
+   <li>the fixed area holding the slots of the fields</li>
+   <li>the data area holding values of variable size</li>
+   </ul>
+
+   <p>Integers, times, dates and enum values are stored in slots of
+   their natural width. Booleans occupy one byte, decimals nine bytes
+   (exponent and significand) and {@code fixed} values their declared
+   size. Static subgroups are stored inline.</p>
+
+   <p>Strings, binaries, sequences and dynamic subgroups are stored
+   in the data area and referenced by a {@code u32} offset relative
+   to the position of the slot itself. Strings and binaries are
+   prefixed by their size and sequences by their item count. A
+   dynamic subgroup is stored as a nested message.</p>
+
+   <p>An optional value stored inline is preceded by a presence byte
+   which is one if the value is present. An absent optional value
+   stored in the data area is represented by a zero offset.</p>
+*/
+
+public final class NativeWriter implements Writer
+{
+   /**
+      Creates a writer for the native binary format. It writes
+      encoded messages to the specified {@code ByteSink}.
+
+      @param om an object model
+      @param sink a sink that will receive the encoded bytes
+   */
+   
+   public NativeWriter (ObjectModel om, ByteSink sink)
+   {
+      compiler = new NativeWriterCompiler (om);
+      this.sink = sink;
+      this.buf = new byte [InitialCapacity];
+   }
+
+   /**
+      Creates a writer for the native binary format. It writes
+      encoded messages to the specified {@code OutputStream}. This
+      writer handles its own buffering so the specified {@code
+      OutputStream} need not be buffered in itself.
+
+      @param om an object model
+      @param os an output stream that will receive the encoded bytes
+   */
+   
+   public NativeWriter (ObjectModel om, OutputStream os)
+   {
+      this (om, new OutputStreamSink (os));
+   }
+
+   /**
+      Encodes an object. Encoded messages are collected in a buffer
+      that is passed on to the sink when it fills up, or when this
+      writer is flushed.
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   @Override
+   public void write (Object o) throws BlinkException, IOException
+   {
+      if (end >= AutoFlushThreshold)
+         softFlush ();
+      writeObject (o);
+   }
+
+   /**
+      Encodes an array of objects.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Encodes a slice of an array of objects.
+
+      @param objs the objects to write
+      @param from the index of the first object to encode
+      @param len the number of objects to encode
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs, int from, int len)
+      throws BlinkException, IOException
+   {
+      for (int i = from; i < from + len; ++ i)
+         write (objs [i]);
+   }
+
+   /**
+      Encodes an iterable collection of objects.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Iterable<?> objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Flushes any pending encoded messages and the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void flush () throws BlinkException, IOException
+   {
+      softFlush ();
+      sink.flush ();
+   }
+
+   /**
+      Moves any pending encoded messages to the sink, but does not
+      flush the sink itself
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void softFlush () throws BlinkException, IOException
+   {
+      if (end > 0)
+      {
+         sink.reserve (end);
+         sink.write (buf, 0, end);
+         end = 0;
+         if (buf.length > MaxLingeringCapacity)
+            buf = new byte [InitialCapacity];
+      }
+   }
+   
+   /**
+      Flushes any pending encoded messages and closes the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void close () throws BlinkException, IOException
+   {
+      softFlush ();
+      sink.close ();
+   }
+
+   /**
+      Compiles encoders for all groups in the schema of the object
+      model that have bindings. Encoders are otherwise compiled when
+      the first object of each type is written.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll ();
+   }
+
+   /**
+      Encodes an object and appends the message to the pending
+      messages of this writer
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+   */
+   
+   public void writeObject (Object o) throws BlinkException
+   {
+      compiler.getEncoder (o.getClass ()).encodeMsg (o, this);
+   }
+
+   // Allocation
+   //////////////////////////////////////////////////////////////////////
+
+   // Appends a zero filled area of the specified size and returns
+   // its position
+
+   int alloc (int size)
+   {
+      int pos = end;
+      ensureCapacity (size);
+      Arrays.fill (buf, pos, pos + size, (byte)0);
+      end = pos + size;
+      return pos;
+   }
+
+   // Allocates a sequence of the specified number of items in the
+   // data area and stores the offset to it in the slot at pos. Returns
+   // the position of the first item
+
+   public int allocSeq (int pos, int count, int itemSize)
+   {
+      int data = alloc (4 + count * itemSize);
+      putU32 (data, count);
+      putRef (pos, data);
+      return data + 4;
+   }
+
+   private void ensureCapacity (int size)
+   {
+      int capacity = end + size;
+      if (capacity > buf.length)
+         buf = Arrays.copyOf (buf, Math.max (capacity, buf.length * 2));
+   }
+
+   private void putRef (int pos, int data)
+   {
+      putU32 (pos, data - pos);
+   }
+   
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public void putPresent (int pos)
+   {
+      buf [pos] = 1;
+   }
+   
+   public void putU8 (int pos, byte val)
+   {
+      buf [pos] = val;
+   }
+
+   public void putI8 (int pos, byte val)
+   {
+      buf [pos] = val;
+   }
+
+   public void putU16 (int pos, short val)
+   {
+      byte [] b = buf;
+      b [pos] = (byte)val;
+      b [pos + 1] = (byte)(val >>> 8);
+   }
+
+   public void putI16 (int pos, short val)
+   {
+      putU16 (pos, val);
+   }
+
+   public void putU32 (int pos, int val)
+   {
+      byte [] b = buf;
+      b [pos] = (byte)val;
+      b [pos + 1] = (byte)(val >>> 8);
+      b [pos + 2] = (byte)(val >>> 16);
+      b [pos + 3] = (byte)(val >>> 24);
+   }
+
+   public void putI32 (int pos, int val)
+   {
+      putU32 (pos, val);
+   }
+
+   public void putU64 (int pos, long val)
+   {
+      byte [] b = buf;
+      b [pos] = (byte)val;
+      b [pos + 1] = (byte)(val >>> 8);
+      b [pos + 2] = (byte)(val >>> 16);
+      b [pos + 3] = (byte)(val >>> 24);
+      b [pos + 4] = (byte)(val >>> 32);
+      b [pos + 5] = (byte)(val >>> 40);
+      b [pos + 6] = (byte)(val >>> 48);
+      b [pos + 7] = (byte)(val >>> 56);
+   }
+
+   public void putI64 (int pos, long val)
+   {
+      putU64 (pos, val);
+   }
+
+   public void putF64 (int pos, double val)
+   {
+      putU64 (pos, Double.doubleToLongBits (val));
+   }
+
+   public void putDecimal (int pos, Decimal val)
+   {
+      buf [pos] = (byte)val.getExponent ();
+      putU64 (pos + 1, val.getSignificand ());
+   }
+
+   public void putFixedDec (int pos, long val)
+   {
+      putU64 (pos, val);
+   }
+
+   public void putBoxedFixedDec (int pos, FixedDec val, int scale)
+   {
+      putU64 (pos, FixedDec.rescale (val.getSignificand (), val.getScale (),
+                                     scale));
+   }
+
+   public void putDate (int pos, int val)
+   {
+      putU32 (pos, val);
+   }
+
+   public void putTimeOfDayMilli (int pos, int val)
+   {
+      putU32 (pos, val);
+   }
+
+   public void putTimeOfDayNano (int pos, long val)
+   {
+      putU64 (pos, val);
+   }
+
+   public void putNanotime (int pos, long val)
+   {
+      putU64 (pos, val);
+   }
+
+   public void putMillitime (int pos, long val)
+   {
+      putU64 (pos, val);
+   }
+
+   public void putBool (int pos, boolean val)
+   {
+      buf [pos] = val ? (byte)1 : (byte)0;
+   }
+
+   public void putFixed (int pos, byte [] val, int size)
+      throws BlinkException.Encode
+   {
+      if (val.length != size)
+         throw new BlinkException.Encode (
+            "Fixed size mismatch, expected " + size + " bytes but got " +
+            val.length);
+      System.arraycopy (val, 0, buf, pos, size);
+   }
+
+   // Values in the data area. A null value leaves the offset at zero
+
+   public void putString (int pos, String val)
+      throws BlinkException.Encode
+   {
+      if (val == null)
+         return;
+      
+      int len = val.length ();
+      ensureCapacity (4 + len);
+      int data = end;
+      byte [] b = buf;
+      int p = data + 4;
+      int i = 0;
+      for (; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c < 0x0080)
+            b [p + i] = (byte)c;
+         else
+            break;
+      }
+
+      if (i < len)
+      {
+         int size = Utf8Util.getSize (val);
+         ensureCapacity (4 + size);
+         p = writeUtf8 (val, i, buf, p + i);
+      }
+      else
+         p += len;
+      
+      end = p;
+      putU32 (data, p - data - 4);
+      putRef (pos, data);
+   }
+
+   public void putUtf8Slice (int pos, Utf8Slice val)
+   {
+      if (val != null)
+         putBytes (pos, val.array (), val.size ());
+   }
+
+   public void putBinary (int pos, byte [] val)
+   {
+      if (val != null)
+         putBytes (pos, val, val.length);
+   }
+
+   private void putBytes (int pos, byte [] val, int len)
+   {
+      int data = alloc (4 + len);
+      putU32 (data, len);
+      System.arraycopy (val, 0, buf, data + 4, len);
+      putRef (pos, data);
+   }
+
+   // Writes the characters of a string starting at the specified
+   // index as UTF-8. The buffer must have room for the result
+
+   private static int writeUtf8 (String val, int from, byte [] b, int p)
+      throws BlinkException.Encode
+   {
+      int len = val.length ();
+      for (int i = from; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c < 0x0080)
+            b [p ++] = (byte)c;
+         else if (c < 0x0800)
+         {
+            b [p ++] = (byte)(0xc0 | ((c >> 6) & 0x1f));
+            b [p ++] = (byte)(0x80 |   c       & 0x3f);
+         }
+         else if (c < 0xd800 || c > 0xdfff)
+         {
+            b [p ++] = (byte)(0xe0 | ((c >> 12) & 0x0f));
+            b [p ++] = (byte)(0x80 | ((c >> 6)  & 0x3f));
+            b [p ++] = (byte)(0x80 |   c        & 0x3f);
+         }
+         else
+         {
+            ++ i;
+            if (i < len)
+            {
+               char c2 = val.charAt (i);
+               int u = ((int)c << 10) + (int)c2 + SurrogateOffset;
+               b [p ++] = (byte)(0xf0 | ((u >> 18) & 0x07));
+               b [p ++] = (byte)(0x80 | ((u >> 12) & 0x3f));
+               b [p ++] = (byte)(0x80 | ((u >> 6)  & 0x3f));
+               b [p ++] = (byte)(0x80 |   u        & 0x3f);
+            }
+            else
+               throw new BlinkException.Encode (
+                  "Incomplete UTF-16 surrogate pair");
+         }
+      }
+
+      return p;
+   }
+
+   public void putObject (int pos, Object val) throws BlinkException
+   {
+      if (val != null)
+      {
+         int data = end;
+         compiler.getEncoder (val.getClass ()).encodeMsg (val, this);
+         putRef (pos, data);
+      }
+   }
+
+   // Sequences
+   //////////////////////////////////////////////////////////////////////
+
+   public void putU8Array (int pos, byte [] val)
+   {
+      if (val != null)
+         System.arraycopy (val, 0, buf, allocSeq (pos, val.length, 1),
+                           val.length);
+   }
+
+   public void putI8Array (int pos, byte [] val)
+   {
+      putU8Array (pos, val);
+   }
+
+   public void putU16Array (int pos, short [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 2);
+         for (int i = 0; i < val.length; ++ i, p += 2)
+            putU16 (p, val [i]);
+      }
+   }
+
+   public void putI16Array (int pos, short [] val)
+   {
+      putU16Array (pos, val);
+   }
+
+   public void putU32Array (int pos, int [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 4);
+         for (int i = 0; i < val.length; ++ i, p += 4)
+            putU32 (p, val [i]);
+      }
+   }
+
+   public void putI32Array (int pos, int [] val)
+   {
+      putU32Array (pos, val);
+   }
+
+   public void putU64Array (int pos, long [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 8);
+         for (int i = 0; i < val.length; ++ i, p += 8)
+            putU64 (p, val [i]);
+      }
+   }
+
+   public void putI64Array (int pos, long [] val)
+   {
+      putU64Array (pos, val);
+   }
+
+   public void putF64Array (int pos, double [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 8);
+         for (int i = 0; i < val.length; ++ i, p += 8)
+            putF64 (p, val [i]);
+      }
+   }
+
+   public void putDecimalArray (int pos, Decimal [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 9);
+         for (int i = 0; i < val.length; ++ i, p += 9)
+            putDecimal (p, val [i]);
+      }
+   }
+
+   public void putFixedDecArray (int pos, long [] val)
+   {
+      putU64Array (pos, val);
+   }
+
+   public void putBoxedFixedDecArray (int pos, FixedDec [] val, int scale)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 8);
+         for (int i = 0; i < val.length; ++ i, p += 8)
+            putBoxedFixedDec (p, val [i], scale);
+      }
+   }
+
+   public void putDateArray (int pos, int [] val)
+   {
+      putU32Array (pos, val);
+   }
+
+   public void putTimeOfDayMilliArray (int pos, int [] val)
+   {
+      putU32Array (pos, val);
+   }
+
+   public void putTimeOfDayNanoArray (int pos, long [] val)
+   {
+      putU64Array (pos, val);
+   }
+
+   public void putNanotimeArray (int pos, long [] val)
+   {
+      putU64Array (pos, val);
+   }
+
+   public void putMillitimeArray (int pos, long [] val)
+   {
+      putU64Array (pos, val);
+   }
+
+   public void putBoolArray (int pos, boolean [] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 1);
+         for (int i = 0; i < val.length; ++ i)
+            putBool (p + i, val [i]);
+      }
+   }
+
+   public void putStringArray (int pos, String [] val)
+      throws BlinkException.Encode
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 4);
+         for (int i = 0; i < val.length; ++ i, p += 4)
+            putString (p, val [i]);
+      }
+   }
+
+   public void putBinaryArray (int pos, byte [][] val)
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 4);
+         for (int i = 0; i < val.length; ++ i, p += 4)
+            putBinary (p, val [i]);
+      }
+   }
+
+   public void putFixedArray (int pos, byte [][] val, int size)
+      throws BlinkException.Encode
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, size);
+         for (int i = 0; i < val.length; ++ i, p += size)
+            putFixed (p, val [i], size);
+      }
+   }
+
+   public void putObjectArray (int pos, Object [] val) throws BlinkException
+   {
+      if (val != null)
+      {
+         int p = allocSeq (pos, val.length, 4);
+         for (int i = 0; i < val.length; ++ i, p += 4)
+            putObject (p, val [i]);
+      }
+   }
+
+   // Maps an enum value looked up by a generated encoder. Unmapped
+   // symbols are written as zero
+
+   public static int toEnumVal (Object val)
+   {
+      return val != null ? ((Integer)val).intValue () : 0;
+   }
+   
+   //////////////////////////////////////////////////////////////////////
+
+   public abstract static class Encoder
+   {
+      protected Encoder (long tid, Class<?> type, Schema.Group grp,
+                         int fixedSize)
+      {
+         this.tid = tid;
+         this.type = type;
+         this.grp = grp;
+         this.fixedSize = fixedSize;
+      }
+
+      // Appends a complete message, including the preamble, to the
+      // pending messages of the writer
+
+      final void encodeMsg (Object o, NativeWriter wr) throws BlinkException
+      {
+         if (! grp.hasId ())
+            throw new BlinkException ("No type identifier specified for " +
+                                      grp.getName () +
+                                      " when encoding into native binary");
+         
+         int start = wr.alloc (NativeLayout.HeaderSize + fixedSize);
+         wr.putU64 (start + 4, tid);
+         encode (o, wr, start + NativeLayout.HeaderSize);
+         wr.putU32 (start, wr.end - start - 4);
+      }
+
+      protected abstract void encode (Object o, NativeWriter wr, int pos)
+         throws BlinkException;
+
+      public Class<?> getType () { return type; }
+      
+      private final long tid;
+      private final Class<?> type;
+      private final Schema.Group grp;
+      private final int fixedSize;
+   }
+
+   private static final int InitialCapacity = 4096;
+   private static final int AutoFlushThreshold = InitialCapacity - 256;
+   private static final int MaxLingeringCapacity = 1000000;
+   private final static int SurrogateOffset =
+      0x10000 - (0xD800 << 10) - 0xDC00;
+   
+   private final NativeWriterCompiler compiler;
+   private final ByteSink sink;
+   private byte [] buf;
+   private int end;
+}
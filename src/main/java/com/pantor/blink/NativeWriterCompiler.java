@@ -0,0 +1,822 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+
+import static com.pantor.blink.DynClass.getDescriptor;
+import static com.pantor.blink.CodegenUtil.mapType;
+import static com.pantor.blink.CodegenUtil.mapArrayType;
+
+public final class NativeWriterCompiler
+{
+   public NativeWriterCompiler (ObjectModel om)
+   {
+      this.om = om;
+      this.cache = CodecCache.getInstance (om);
+   }
+
+   public NativeWriter.Encoder getEncoder (Class<?> cl) throws BlinkException
+   {
+      NativeWriter.Encoder e = encByClass.get (cl);
+      if (e != null)
+         return e;
+      else
+         return compile (cl);
+   }
+
+   public NativeWriter.Encoder getEncoder (NsName name) throws BlinkException
+   {
+      NativeWriter.Encoder e = encByName.get (name);
+      if (e != null)
+         return e;
+      else
+         return compile (om.getGroupBinding (name));
+   }
+
+   public void primeGroup (NsName name) throws BlinkException
+   {
+      getEncoder (name);
+   }
+
+   // Compiles encoders for all groups in the schema that have a
+   // binding in the object model, and registers them for lookup by
+   // class. Returns the number of primed groups
+
+   public int primeAll () throws BlinkException
+   {
+      int count = 0;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         getEncoder (bnd.getTargetType ());
+         ++ count;
+      }
+
+      return count;
+   }
+
+   public void primeEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException.Binding
+   {
+      if (! enumEncs.contains (bnd.getEnum ().getName ()))
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   private NativeWriter.Encoder compile (Class<?> cl) throws BlinkException
+   {
+      ObjectModel.GroupBinding bnd = om.getGroupBinding (cl);
+      NativeWriter.Encoder e = getEncoder (bnd.getGroup ().getName ());
+      encByClass.put (cl, e);
+      return e;
+   }
+
+   // Generates an encoder for the specified binding. The encoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.nat;
+   //
+   //   public final class <Ns>+<Name>_enc extends NativeWriter.Encoder
+   //   {
+   //      public <Ns>+<Name>_enc (long tid, Class type, Schema.Group grp,
+   //                              int fixedSize)
+   //      {
+   //         super (tid, type, grp, fixedSize);
+   //      }
+   //
+   //      @Override
+   //      public void encode (Object src, NativeWriter wr, int pos)
+   //      {
+   //         innerEncode ((T)src, wr, pos);
+   //      }
+   //  
+   //      public static void encodeArray (T [] objs, NativeWriter wr,
+   //                                      int pos)
+   //      {
+   //         if (objs != null)
+   //         {
+   //            int p = wr.allocSeq (pos, objs.length, <fixed size>);
+   //            for (int i = 0; i < objs.length; ++ i, p += <fixed size>)
+   //               innerEncode (objs [i], wr, p);
+   //         }
+   //      }
+   //  
+   //      public static void innerEncode (T src, NativeWriter wr, int pos)
+   //      {
+   //         ... store each field of src in its slot relative to pos ...
+   //      }
+   //   }
+
+   // The slots are zero filled when allocated, so fields without a
+   // getter are left as is. This makes optional fields absent, and
+   // other fields zero or empty.
+   
+   private NativeWriter.Encoder compile (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd);
+      }
+   }
+
+   private NativeWriter.Encoder compileShared (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      Schema.Group g = bnd.getGroup ();
+      Schema s = om.getSchema ();
+      int fixedSize = NativeLayout.getFixedSize (s, g);
+
+      // Use an encoder generated by another writer if there is one
+
+      Class<?> shared = cache.getNativeEncoder (bnd);
+      if (shared != null)
+         return register (g, shared, createInstance (shared, bnd, fixedSize));
+
+      String encoderName = cache.getUniqueClassName (
+         getEncoderClassName (g.getName ()));
+
+      // Generate encoder class
+      
+      DynClass dc = new DynClass (encoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      String encBase = "com/pantor/blink/NativeWriter$Encoder";
+      String ctorSig =
+         "(JLjava/lang/Class;Lcom/pantor/blink/Schema$Group;I)V";
+      
+      dc.setSuper (encBase);
+
+      // Constructor
+      
+      dc.startPublicMethod ("<init>", ctorSig)
+         .aload0 ().lload1 ().aload3 ().aload (4).iload (5)
+         .invokeSpecial (encBase, "<init>", ctorSig)
+         .return_ ().setMaxStack (6).endMethod ();
+
+      // void encode (src, wr, pos)
+
+      String encSig =
+         "(Ljava/lang/Object;Lcom/pantor/blink/NativeWriter;I)V";
+
+      String srcName = bnd.getTargetType ().getName ();
+
+      String innerSig = getInnerEncodeSignature (bnd);
+      
+      dc.startPublicMethod ("encode", encSig)
+         .aload1 ().checkCast (srcName).aload2 ().iload3 ()
+         .invokeStatic (encoderName, "innerEncode", innerSig)
+         .return_ ().setMaxStack (3).endMethod ();
+
+      // public static void encodeArray (T [] objs, wr, pos)
+
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("encodeArray", getEncodeArraySignature (bnd));
+
+      dc.aload0 () // objs
+         .ifNull (loopEnd)
+         .aload1 () // wr
+         .iload2 () // pos
+         .aload0 () // objs
+         .arrayLength ()
+         .ldc (fixedSize);
+      invokeWriter (dc, "allocSeq", "III", "I");
+      dc.istore3 () // p
+         .iconst0 ()
+         .istore (4) // i = 0
+         .label (loop)
+         .iload (4) // i
+         .aload0 () // objs
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= objs.length
+         .aload0 () // objs
+         .iload (4) // i
+         .aaload () // objs [i]
+         .aload1 () // wr
+         .iload3 () // p
+         .invokeStatic (encoderName, "innerEncode", innerSig)
+         .iload3 ()
+         .ldc (fixedSize)
+         .iadd ()
+         .istore3 () // p += fixedSize
+         .iinc (4, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd)
+         .return_ ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // static void innerEncode (src, wr, pos)
+      
+      dc.startPublicStaticMethod ("innerEncode", innerSig);
+
+      // Emit encoding instructions for each field
+      
+      int off = 0;
+      for (ObjectModel.Field f : bnd)
+      {
+         compile (f, off, dc);
+         off += NativeLayout.getSlotSize (s, f.getField ());
+      }
+
+      dc.return_ ().setMaxStack (6).endMethod ();
+
+      // Create an instance of the generated encoder
+      
+      Class<?> encClass = cache.load (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
+      cache.putNativeEncoder (bnd, encClass);
+      return register (g, encClass, createInstance (encClass, bnd,
+                                                    fixedSize));
+   }
+
+   // Stores an encoder and the name of its class for future lookups
+
+   private NativeWriter.Encoder register (Schema.Group g, Class<?> encClass,
+                                          NativeWriter.Encoder enc)
+   {
+      encByName.put (g.getName (), enc);
+      classByName.put (g.getName (), encClass.getName ());
+      return enc;
+   }
+
+   private static String getClassName (NsName nm)
+   {
+      if (nm.isQualified ())
+         return nm.getNs () + "+" + nm.getName ();
+      else
+         return nm.getName ();
+   }
+   
+   private static String getEncoderClassName (NsName nm)
+   {
+      return "com.pantor.blink.dyn.nat." + getClassName (nm) + "_enc";
+   }
+
+   private static String getEncodeArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/NativeWriter;I)V";
+   }
+
+   private static String getInnerEncodeSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/NativeWriter;I)V";
+   }
+
+   private static String getEncodeEnumSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) + ";)I";
+   }
+
+   private static String getEncodeEnumArraySignature (ObjectModel.Binding bnd)
+   {
+      return getEncodeArraySignature (bnd);
+   }
+
+   private static void invokeWriter (DynClass dc, String m, String args,
+                                     String ret)
+   {
+      dc.invokeVirtual ("com/pantor/blink/NativeWriter", m,
+                        "(" + args + ")" + ret);
+   }
+
+   // Pushes the writer and the position of a slot. Expects the writer
+   // in local #1 and the position of the group in local #2
+
+   private static void pushSlot (DynClass dc, int off)
+   {
+      dc.aload1 (); // wr
+      dc.iload2 (); // pos
+      if (off != 0)
+      {
+         dc.ldc (off);
+         dc.iadd ();
+      }
+   }
+
+   // Emits instructions that store a field in its slot at offset off
+   // relative to the position of the group. Locals: #0 src, #1 wr
+   // and #2 pos
+   
+   private void compile (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Schema.Field sf = f.getField ();
+      Method getter = f.getGetter ();
+
+      if (getter == null)
+         return;
+
+      int end = dc.declareLabel ();
+      boolean isRef = NativeLayout.isReference (t);
+      
+      if (sf.isOptional ())
+      {
+         Method pred = f.getPredicate ();
+         if (pred != null)
+         {
+            dc.aload0 (); // src
+            dc.invoke (pred);
+            dc.ifEq (end); // Jump if not present
+         }
+         else if (! isRef)
+            throw new BlinkException.Binding (
+               "Missing presence predicate for optional field '" + f + "'",
+               f.getLocation ());
+
+         if (! isRef)
+         {
+            pushSlot (dc, off);
+            invokeWriter (dc, "putPresent", "I", "V");
+            ++ off;
+         }
+      }
+
+      if (! t.isSequence ())
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixed (f, off, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDec (f, off, dc);
+            else
+               compilePrim (f, off, dc);
+         }
+         else if (t.isEnum ())
+            compileEnum (f, off, dc);
+         else // Object or Group
+            compileGroupField (f, off, dc);
+      }
+      else
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedSeq (f, off, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecSeq (f, off, dc);
+            else
+               compilePrimSeq (f, off, dc);
+         }
+         else if (t.isEnum ())
+            compileEnumSeq (f, off, dc);
+         else // Object or Group
+            compileGroupSeqField (f, off, dc);
+      }
+
+      dc.label (end);
+   }
+
+   private static void compilePrim (ObjectModel.Field f, int off,
+                                    DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode code = f.getFieldType ().getType ().getCode ();
+      pushSlot (dc, off);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      if (code == Schema.TypeCode.String &&
+          hasGetterRetType (f, Utf8Slice.class))
+      {
+         invokeWriter (dc, "putUtf8Slice", "ILcom/pantor/blink/Utf8Slice;",
+                       "V");
+         return;
+      }
+      Class<?> argType = mapType (code);
+      requireGetterRetType (f, argType);
+      invokeWriter (dc, "put" + code.toString (), "I" + getDescriptor (argType),
+                    "V");
+   }
+
+   private static void compileFixedDec (ObjectModel.Field f, int off,
+                                        DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      if (FixedDec.class.isAssignableFrom (getGetterRetType (f)))
+      {
+         Schema.FixedDecType ft = (Schema.FixedDecType)t.getType ();
+         pushSlot (dc, off);
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         dc.ldc (ft.getScale ());
+         invokeWriter (dc, "putBoxedFixedDec",
+                       "ILcom/pantor/blink/FixedDec;I", "V");
+      }
+      else
+         compilePrim (f, off, dc);
+   }
+   
+   private static void compileFixed (ObjectModel.Field f, int off,
+                                     DynClass dc)
+      throws BlinkException
+   {
+      requireGetterRetType (f, byte [].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushSlot (dc, off);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      dc.ldc (ft.getSize ());
+      invokeWriter (dc, "putFixed", "I[BI", "V");
+   }
+
+   private static void compileFixedSeq (ObjectModel.Field f, int off,
+                                        DynClass dc)
+      throws BlinkException
+   {
+      requireGetterRetType (f, byte [][].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushSlot (dc, off);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      dc.ldc (ft.getSize ());
+      invokeWriter (dc, "putFixedArray", "I[[BI", "V");
+   }
+
+   private static void compileFixedDecSeq (ObjectModel.Field f, int off,
+                                           DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      Class<?> compType = getGetterRetType (f).getComponentType ();
+      if (compType != null && FixedDec.class.isAssignableFrom (compType))
+      {
+         Schema.FixedDecType ft = (Schema.FixedDecType)t.getType ();
+         pushSlot (dc, off);
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         dc.ldc (ft.getScale ());
+         invokeWriter (dc, "putBoxedFixedDecArray",
+                       "I[Lcom/pantor/blink/FixedDec;I", "V");
+      }
+      else
+         compilePrimSeq (f, off, dc);
+   }
+   
+   private static void compilePrimSeq (ObjectModel.Field f, int off,
+                                       DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode code = f.getFieldType ().getType ().getCode ();
+      Class<?> argType = mapArrayType (code);
+      requireGetterRetType (f, argType);
+      pushSlot (dc, off);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      invokeWriter (dc, "put" + code.toString () + "Array",
+                    "I" + getDescriptor (argType), "V");
+   }
+
+   private void compileEnum (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+      requireGetterRetType (f, comp.getTargetType ());
+      primeEnum (comp);
+      pushSlot (dc, off);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      dc.invokeStatic (classByName.get (comp.getEnum ().getName ()),
+                       "encode", getEncodeEnumSignature (comp));
+      invokeWriter (dc, "putI32", "II", "V");
+   }
+
+   private void compileEnumSeq (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+      requireGetterRetType (f, DynClass.getArrayClass (comp.getTargetType ()));
+      primeEnum (comp);
+      dc.aload0 (); // src
+      dc.invoke (f.getGetter ());
+      pushSlot (dc, off);
+      dc.invokeStatic (classByName.get (comp.getEnum ().getName ()),
+                       "encodeArray", getEncodeEnumArraySignature (comp));
+   }
+   
+   private void compileGroupField (ObjectModel.Field f, int off, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      
+      if (t.isDynamic () || t.isObject ())
+      {
+         pushSlot (dc, off);
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         invokeWriter (dc, "putObject", "ILjava/lang/Object;", "V");
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         primeGroup (comp.getGroup ().getName ());
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         pushSlot (dc, off);
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                          "innerEncode", getInnerEncodeSignature (comp));
+      }
+   }
+
+   private void compileGroupSeqField (ObjectModel.Field f, int off,
+                                      DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      
+      if (t.isObject () || t.isDynamic ())
+      {
+         pushSlot (dc, off);
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         invokeWriter (dc, "putObjectArray", "I[Ljava/lang/Object;", "V");
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         primeGroup (comp.getGroup ().getName ());
+         dc.aload0 (); // src
+         dc.invoke (f.getGetter ());
+         pushSlot (dc, off);
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                          "encodeArray", getEncodeArraySignature (comp));
+      }
+   }
+
+   // Generates an enum encoder for the specified binding. The encoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.nat;
+   //
+   //   public final class <Ns>+<Name>_enc
+   //   {
+   //      public static int encode (T sym)
+   //      {
+   //         return NativeWriter.toEnumVal (map.get (sym));
+   //      }
+   //  
+   //      public static void encodeArray (T [] syms, NativeWriter wr,
+   //                                      int pos)
+   //      {
+   //         if (syms != null)
+   //         {
+   //            int p = wr.allocSeq (pos, syms.length, 4);
+   //            for (int i = 0; i < syms.length; ++ i, p += 4)
+   //              wr.putI32 (p, encode (syms [i]));
+   //         }
+   //      }
+   //
+   //      private final static java.util.EnumMap<T, Integer> map;
+   //      
+   //      static
+   //      {
+   //         map = new java.util.EnumMap<T, Integer> (T.class);
+   //         map.put (T.Red, 0);
+   //         map.put (T.Green, 1);
+   //         map.put (T.Blue, 2);
+   //      }
+   //   }
+   
+   private void compileEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException.Binding
+   {
+      Schema.Define d = bnd.getEnum ();
+
+      Class<?> shared = cache.getNativeEncoder (bnd);
+      if (shared != null)
+      {
+         classByName.put (d.getName (), shared.getName ());
+         enumEncs.add (d.getName ());
+         return;
+      }
+         
+      String encoderName = cache.getUniqueClassName (
+         getEncoderClassName (d.getName ()));
+
+      // Generate encoder class
+      
+      DynClass dc = new DynClass (encoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      dc.addField ("map", "Ljava/util/EnumMap;", DynClass.FieldFlag.Private,
+                   DynClass.FieldFlag.Final, DynClass.FieldFlag.Static);
+
+      Class<?> enumType = bnd.getTargetType ();
+
+      // public static int encode (sym)
+
+      dc.startPublicStaticMethod ("encode", getEncodeEnumSignature (bnd))
+         .getStatic (encoderName, "map", "Ljava/util/EnumMap;")
+         .aload0 () // sym
+         .invokeVirtual ("java.util.EnumMap", "get",
+                         "(Ljava/lang/Object;)Ljava/lang/Object;")
+         .invokeStatic ("com/pantor/blink/NativeWriter", "toEnumVal",
+                        "(Ljava/lang/Object;)I")
+         .ireturn ().setMaxStack (2).endMethod ();
+      
+      // public static void encodeArray (syms, wr, pos)
+
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("encodeArray",
+                                  getEncodeEnumArraySignature (bnd));
+      dc.aload0 () // syms
+         .ifNull (loopEnd)
+         .aload1 () // wr
+         .iload2 () // pos
+         .aload0 () // syms
+         .arrayLength ()
+         .iconst4 ();
+      invokeWriter (dc, "allocSeq", "III", "I");
+      dc.istore3 () // p
+         .iconst0 ()
+         .istore (4) // i = 0
+         .label (loop)
+         .iload (4) // i
+         .aload0 () // syms
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= syms.length
+         .aload1 () // wr
+         .iload3 () // p
+         .aload0 () // syms
+         .iload (4) // i
+         .aaload () // syms [i]
+         .invokeStatic (encoderName, "encode", getEncodeEnumSignature (bnd));
+      invokeWriter (dc, "putI32", "II", "V");
+      dc.iinc (3, 4) // p += 4
+         .iinc (4, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd)
+         .return_ ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // static init
+      
+      dc.startMethod ("<clinit>", "()V", DynClass.MtodFlag.Static);
+
+      dc.new_ ("java.util.EnumMap");
+      dc.dup ();
+      dc.ldcClass (enumType);
+      dc.invokeSpecial ("java.util.EnumMap", "<init>", "(Ljava/lang/Class;)V");
+      dc.dup ();
+      dc.putStatic (encoderName, "map", "Ljava/util/EnumMap;");
+      dc.astore0 ();
+
+      for (ObjectModel.Symbol sym : bnd)
+         if (sym.getTargetName () != null)
+         {
+            dc.aload0 ();
+            dc.ldc (sym.getTargetName ());
+            dc.invokeStatic (enumType, "valueOf", "(Ljava/lang/String;)L" +
+                             DynClass.toInternal (enumType) + ";");
+            dc.ldc (sym.getSymbol ().getValue ());
+            dc.invokeStatic ("java.lang.Integer", "valueOf",
+                             "(I)Ljava/lang/Integer;");
+            dc.invokeVirtual ("java.util.EnumMap", "put",
+                              "(Ljava/lang/Object;Ljava/lang/Object;" +
+                              ")Ljava/lang/Object;");
+            dc.pop ();
+         }
+
+      dc.return_ ();
+      dc.setMaxStack (3);
+      dc.endMethod ();
+
+      // Load the class
+
+      Class<?> encClass = cache.load (dc.getName (), dc.render (), enumType);
+      cache.putNativeEncoder (bnd, encClass);
+
+      classByName.put (d.getName (), encoderName);
+      enumEncs.add (d.getName ());
+   }
+
+   private NativeWriter.Encoder createInstance (Class<?> encClass,
+                                                ObjectModel.GroupBinding bnd,
+                                                int fixedSize)
+      throws BlinkException.Binding
+   {
+      try
+      {
+         Class<?> tgtType = bnd.getTargetType ();
+         Constructor<?> ctor = encClass.getConstructor (
+            Long.TYPE, Class.class, Schema.Group.class, Integer.TYPE);
+         
+         return (NativeWriter.Encoder)ctor.newInstance (
+            bnd.getCompactTypeId (), tgtType, bnd.getGroup (), fixedSize);
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InstantiationException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+
+   private static BlinkException.Binding typeMismatch (ObjectModel.Field f)
+   {
+      return new BlinkException.Binding (
+         "Cannot use '" + f.getGetter () + "' to get field '" + f +
+         "': type mismatch", f.getLocation ());
+   }
+   
+   private static boolean hasGetterRetType (ObjectModel.Field f, Class<?> t)
+   {
+      return t == getGetterRetType (f);
+   }
+
+   private static void requireGetterRetType (ObjectModel.Field f, Class<?> t)
+      throws BlinkException.Binding
+   {
+      if (! hasGetterRetType (f, t))
+         throw typeMismatch (f);
+   }
+
+   private static Class<?> getGetterRetType (ObjectModel.Field f)
+   {
+      Method getter = f.getGetter ();
+      if (getter != null)
+         return getter.getReturnType ();
+      else
+         return null;
+   }
+   
+   private final HashMap<Class<?>, NativeWriter.Encoder> encByClass =
+      new HashMap<Class<?>, NativeWriter.Encoder> ();
+   private final HashMap<NsName, NativeWriter.Encoder> encByName =
+      new HashMap<NsName, NativeWriter.Encoder> ();
+   private final ObjectModel om;
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final CodecCache cache;
+   private final HashSet<NsName> enumEncs = new HashSet <NsName> ();
+}
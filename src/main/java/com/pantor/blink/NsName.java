@@ -35,7 +35,7 @@
 
 package com.pantor.blink;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class NsName implements Comparable<NsName>
 {
@@ -66,13 +66,12 @@ public final class NsName implements Comparable<NsName>
 
    public static NsName get (String ns, String name)
    {
-      Pool local_ = local.get ();
-      NsName nm = local_.get (ns, name);
+      Ns nsMap = namespaces.get (ns);
+      if (nsMap == null)
+         nsMap = intern (namespaces, ns, new Ns ());
+      NsName nm = nsMap.get (name);
       if (nm == null)
-      {
-         nm = global.put (ns, name);
-         local_.cache (nm);
-      }
+         nm = intern (nsMap, name, new NsName (ns, name));
       return nm;
    }
    
@@ -109,48 +108,24 @@ public final class NsName implements Comparable<NsName>
       this.name = name;
    }
    
-   private static class Ns extends HashMap <String, NsName> { }
-   
-   private static class Pool
-   {
-      synchronized NsName put (String ns, String name)
-      {
-         Ns nsMap = namespaces.get (ns);
-         if (nsMap == null)
-            namespaces.put (ns, nsMap = new Ns ());
-         NsName nm = nsMap.get (name);
-         if (nm == null)
-            nsMap.put (name, nm = new NsName (ns, name));
-         return nm;
-      }
+   // Names are interned in a two level concurrent map, first on
+   // namespace and then on name. Lookups of existing names take no
+   // locks. When two threads race to create the same name, the one
+   // that loses the race discards its instance and uses the winning
+   // one
 
-      NsName get (String ns, String name)
-      {
-         Ns nsMap = namespaces.get (ns);
-         if (nsMap != null)
-            return nsMap.get (name);
-         else
-            return null;
-      }
+   private static class Ns extends ConcurrentHashMap <String, NsName> { }
 
-      void cache (NsName name)
-      {
-         Ns nsMap = namespaces.get (name.getNs ());
-         if (nsMap == null)
-            namespaces.put (name.getNs (), nsMap = new Ns ());
-         nsMap.put (name.getName (), name);
-      }
-      
-      private final HashMap <String, Ns> namespaces =
-         new HashMap <String, Ns> ();
+   private static <V> V intern (ConcurrentHashMap<String, V> m, String key,
+                                V fresh)
+   {
+      V prev = m.putIfAbsent (key, fresh);
+      return prev != null ? prev : fresh;
    }
    
    private final String ns;
    private final String name;
 
-   private static Pool global = new Pool ();
-   
-   private final static ThreadLocal<Pool> local = new ThreadLocal<Pool> () {
-      @Override protected Pool initialValue () { return new Pool (); }
-   };
+   private final static ConcurrentHashMap<String, Ns> namespaces =
+      new ConcurrentHashMap<String, Ns> ();
 }
@@ -0,0 +1,528 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+   The {@code ParallelReader} decodes large amounts of data in the
+   Blink compact binary format, such as captures, on several threads.
+
+   <p>Decoding is done in two passes. A fast framing pass only reads
+   the length preambles of the messages and splits the data into
+   chunks that each hold a whole number of messages. The chunks are
+   then decoded concurrently on a {@code ForkJoinPool}, using one
+   {@link CompactReader} per worker.</p>
+
+   <p>The decoded messages are either merged into a {@link Block} in
+   the order they appear in the data, or dispatched to the observers
+   of an {@link ObserverRegistry}, or both. Observers are called
+   concurrently from the worker threads and must be thread safe. The
+   messages of a single chunk are dispatched in order, but there is
+   no ordering between chunks.</p>
+
+   <p>In-band schema exchange is not supported since a schema
+   message affects how the messages that follow it are decoded.</p>
+ */
+
+public final class ParallelReader
+{
+   /**
+      The default target chunk size is 1M
+   */
+   
+   public static final int DefaultChunkSize = 1 << 20;
+
+   /**
+      The default size of the window used when reading from a stream
+      is 64M
+   */
+   
+   public static final int DefaultWindowSize = 64 << 20;
+
+   /**
+      Creates a parallel reader that decodes messages as defined by
+      the specified object model. It uses a private pool with one
+      worker per available processor.
+
+      @param om an object model
+   */
+
+   public ParallelReader (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   /**
+      Creates a parallel reader that decodes messages as defined by
+      the specified object model and dispatches them to any matching
+      observers in the specified registry. It uses a private pool with
+      one worker per available processor.
+
+      @param om an object model
+      @param oreg an observer registry, or {@code null}
+   */
+
+   public ParallelReader (ObjectModel om, ObserverRegistry oreg)
+   {
+      this (om, oreg, new ForkJoinPool (), true);
+   }
+
+   /**
+      Creates a parallel reader that decodes messages as defined by
+      the specified object model and dispatches them to any matching
+      observers in the specified registry. The decoding is done on
+      the specified pool, which is not shut down by {@code close}.
+
+      @param om an object model
+      @param oreg an observer registry, or {@code null}
+      @param pool the pool to decode on
+   */
+
+   public ParallelReader (ObjectModel om, ObserverRegistry oreg,
+                          ForkJoinPool pool)
+   {
+      this (om, oreg, pool, false);
+   }
+
+   private ParallelReader (ObjectModel om, ObserverRegistry oreg,
+                           ForkJoinPool pool, boolean ownsPool)
+   {
+      this.om = om;
+      this.oreg = oreg;
+      this.pool = pool;
+      this.ownsPool = ownsPool;
+   }
+
+   /**
+      Sets the target chunk size. The framing pass cuts a chunk at the
+      first message boundary at or after this many bytes.
+
+      @param chunkSize the target chunk size in bytes
+   */
+
+   public void setChunkSize (int chunkSize)
+   {
+      this.chunkSize = chunkSize;
+   }
+
+   /**
+      Sets the initial window size used when reading from a stream. The
+      window grows if a single message does not fit.
+
+      @param windowSize the window size in bytes
+   */
+
+   public void setWindowSize (int windowSize)
+   {
+      this.windowSize = windowSize;
+   }
+
+   /**
+      Sets the maximum message size. This reader will throw an
+      exception if the maxium message size is exceeded.
+
+      @param maxMsgSize maximum msg size in bytes
+   */
+
+   public void setMaxMessageSize (long maxMsgSize)
+   {
+      this.maxMsgSize = maxMsgSize;
+   }
+
+   /**
+      Decodes the messages in the specified slice of a byte array
+      and returns one block of decoded messages per chunk. The blocks
+      are returned in the order of the chunks.
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @return a list of blocks in data order
+      @throws BlinkException if a decoding, schema or binding problem
+      occurs, or if the data ends in a partial message
+   */
+   
+   public List<DefaultBlock> read (byte [] data, int from, int len)
+      throws BlinkException
+   {
+      int [] bounds = frame (data, from, len, chunkSize, maxMsgSize);
+      if (bounds [bounds.length - 1] != from + len)
+         throw partialMsgError ();
+      return join (submit (data, bounds, true));
+   }
+
+   /**
+      Decodes the messages in the specified slice of a byte array
+      and appends them to the specified block in data order.
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @param block the block that collects the decoded messages
+      @throws BlinkException if a decoding, schema or binding problem
+      occurs, or if the data ends in a partial message
+   */
+   
+   public void read (byte [] data, int from, int len, Block block)
+      throws BlinkException
+   {
+      merge (read (data, from, len), block);
+   }
+
+   /**
+      Decodes all messages read from the specified stream and
+      dispatches them to any matching observers. The stream is read in
+      windows of {@code DefaultWindowSize} bytes. The next window is
+      read while the previous one is being decoded.
+
+      @param is the stream to read from
+      @throws BlinkException if a decoding, schema or binding problem
+      occurs, or if the stream ends in a partial message
+      @throws IOException if there was an input error
+   */
+
+   public void read (InputStream is) throws BlinkException, IOException
+   {
+      read (is, null);
+   }
+
+   /**
+      Decodes all messages read from the specified stream and appends
+      them to the specified block in stream order. The messages are
+      also dispatched to any matching observers. The stream is read
+      in windows of {@code DefaultWindowSize} bytes. The next window
+      is read while the previous one is being decoded.
+
+      @param is the stream to read from
+      @param block the block that collects the decoded messages, or
+      {@code null}
+      @throws BlinkException if a decoding, schema or binding problem
+      occurs, or if the stream ends in a partial message
+      @throws IOException if there was an input error
+   */
+
+   public void read (InputStream is, Block block)
+      throws BlinkException, IOException
+   {
+      byte [] cur = new byte [windowSize];
+      byte [] next = new byte [windowSize];
+      int n = fillFrom (is, cur, 0);
+      int fill = n;
+      
+      for (;;)
+      {
+         int [] bounds = frame (cur, 0, fill, chunkSize, maxMsgSize);
+         int done = bounds [bounds.length - 1];
+
+         if (done == 0)
+         {
+            if (n == 0 && fill == 0)
+               return;
+            else if (n == 0)
+               throw partialMsgError ();
+            else if (fill == cur.length)
+            {
+               // A single message does not fit in the window
+
+               cur = Arrays.copyOf (cur, grow (cur.length));
+               next = new byte [cur.length];
+            }
+
+            n = fillFrom (is, cur, fill);
+            fill += n;
+            continue;
+         }
+
+         List<Future<DefaultBlock>> pending =
+            submit (cur, bounds, block != null);
+
+         // Carry over any trailing partial message and read the next
+         // window while the current one is being decoded
+         
+         int rest = fill - done;
+         if (next.length < cur.length)
+            next = new byte [cur.length];
+         System.arraycopy (cur, done, next, 0, rest);
+         n = fillFrom (is, next, rest);
+         fill = rest + n;
+
+         List<DefaultBlock> result = join (pending);
+         if (block != null)
+            merge (result, block);
+
+         byte [] tmp = cur;
+         cur = next;
+         next = tmp;
+      }
+   }
+
+   /**
+      Shuts down the pool if it was created by this reader
+   */
+   
+   public void close ()
+   {
+      if (ownsPool)
+         pool.shutdown ();
+   }
+
+   /**
+      Splits the specified slice of a byte array into chunks of whole
+      messages. Only the length preambles of the messages are
+      inspected. The returned array holds the start of the first
+      chunk followed by the end of each chunk. If the data ends in a
+      partial message, the last element is the start of that message.
+
+      @param data the bytes to split
+      @param from the index of the first byte
+      @param len the number of bytes
+      @param chunkSize the target chunk size in bytes
+      @param maxMsgSize the maximum allowed message size
+      @return the chunk boundaries
+      @throws BlinkException.Decode if a message is too large or has
+      an invalid length preamble
+   */
+
+   public static int [] frame (byte [] data, int from, int len,
+                               int chunkSize, long maxMsgSize)
+      throws BlinkException.Decode
+   {
+      int end = from + len;
+      int [] bounds = new int [16];
+      int n = 0;
+      bounds [n ++] = from;
+      
+      ByteBuf src = new ByteBuf (data, from, len);
+      int p = from;
+      int chunkStart = from;
+      while (p < end)
+      {
+         int size = CompactReader.frame (src, p - from, maxMsgSize);
+         if (size < 0)
+            break;
+
+         p += size;
+         if (p - chunkStart >= chunkSize)
+         {
+            if (n == bounds.length)
+               bounds = Arrays.copyOf (bounds, n * 2);
+            bounds [n ++] = p;
+            chunkStart = p;
+         }
+      }
+
+      if (p > chunkStart || n == 1)
+      {
+         if (n == bounds.length)
+            bounds = Arrays.copyOf (bounds, n + 1);
+         bounds [n ++] = p;
+      }
+      
+      return Arrays.copyOf (bounds, n);
+   }
+
+   private List<Future<DefaultBlock>> submit (byte [] data, int [] bounds,
+                                              boolean collect)
+   {
+      List<Future<DefaultBlock>> pending =
+         new ArrayList<Future<DefaultBlock>> (bounds.length - 1);
+      for (int i = 1; i < bounds.length; ++ i)
+         if (bounds [i] > bounds [i - 1])
+            pending.add (pool.submit (
+                            new Chunk (data, bounds [i - 1], bounds [i],
+                                       collect)));
+      return pending;
+   }
+
+   private List<DefaultBlock> join (List<Future<DefaultBlock>> pending)
+      throws BlinkException
+   {
+      List<DefaultBlock> result =
+         new ArrayList<DefaultBlock> (pending.size ());
+      BlinkException err = null;
+      for (Future<DefaultBlock> f : pending)
+      {
+         try
+         {
+            result.add (f.get ());
+         }
+         catch (ExecutionException e)
+         {
+            if (err == null)
+               err = toBlinkException (e.getCause ());
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread ().interrupt ();
+            if (err == null)
+               err = new BlinkException (e);
+         }
+      }
+
+      if (err != null)
+         throw err;
+      
+      return result;
+   }
+
+   private static BlinkException toBlinkException (Throwable t)
+   {
+      if (t instanceof BlinkException)
+         return (BlinkException)t;
+      else if (t instanceof RuntimeException)
+         throw (RuntimeException)t;
+      else if (t instanceof Error)
+         throw (Error)t;
+      else
+         return new BlinkException (t);
+   }
+
+   private static void merge (List<DefaultBlock> blocks, Block block)
+   {
+      for (DefaultBlock b : blocks)
+         for (Object o : b)
+            block.append (o);
+   }
+
+   private int grow (int size) throws BlinkException.Decode
+   {
+      long newSize = (long)size * 2;
+      if (size >= maxMsgSize + Vlc.Int32MaxSize || newSize > Integer.MAX_VALUE)
+         throw new BlinkException.Decode (
+            "Message does not fit in a window of " + size + " bytes");
+      return (int)newSize;
+   }
+   
+   private static int fillFrom (InputStream is, byte [] buf, int from)
+      throws IOException
+   {
+      int pos = from;
+      while (pos < buf.length)
+      {
+         int n = is.read (buf, pos, buf.length - pos);
+         if (n < 0)
+            break;
+         pos += n;
+      }
+      return pos - from;
+   }
+
+   private static BlinkException.Decode partialMsgError ()
+   {
+      return new BlinkException.Decode (
+         "Incomplete compact blink message. The data ends in a partial " +
+         "message");
+   }
+
+   private CompactReader getReader ()
+   {
+      CompactReader rd = idleReaders.poll ();
+      if (rd != null)
+         return rd;
+      else
+      {
+         CompactReader newRd;
+         if (oreg != null)
+            newRd = new CompactReader (om, oreg);
+         else
+            newRd = new CompactReader (om);
+         newRd.setMaxMessageSize (maxMsgSize);
+         return newRd;
+      }
+   }
+   
+   private final class Chunk implements Callable<DefaultBlock>
+   {
+      Chunk (byte [] data, int from, int to, boolean collect)
+      {
+         this.data = data;
+         this.from = from;
+         this.to = to;
+         this.collect = collect;
+      }
+
+      @Override
+      public DefaultBlock call () throws BlinkException
+      {
+         CompactReader rd = getReader ();
+         try
+         {
+            DefaultBlock block = null;
+            if (collect)
+            {
+               block = new DefaultBlock ();
+               rd.read (data, from, to - from, block);
+            }
+            else
+               rd.read (data, from, to - from);
+            rd.close ();
+            idleReaders.add (rd);
+            return block;
+         }
+         catch (BlinkException e)
+         {
+            rd.reset ();
+            idleReaders.add (rd);
+            throw e;
+         }
+      }
+      
+      private final byte [] data;
+      private final int from;
+      private final int to;
+      private final boolean collect;
+   }
+   
+   private final ObjectModel om;
+   private final ObserverRegistry oreg;
+   private final ForkJoinPool pool;
+   private final boolean ownsPool;
+   private final ConcurrentLinkedQueue<CompactReader> idleReaders =
+      new ConcurrentLinkedQueue<CompactReader> ();
+   private int chunkSize = DefaultChunkSize;
+   private int windowSize = DefaultWindowSize;
+   private long maxMsgSize = CompactReader.DefaultMaxMsgSize;
+}
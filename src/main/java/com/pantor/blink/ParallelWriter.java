@@ -0,0 +1,381 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+   The {@code ParallelWriter} encodes large batches of objects in the
+   Blink compact binary format on several threads.
+
+   <p>The batch is split into slices of consecutive objects. Each
+   slice is encoded on a {@code ForkJoinPool} worker into a buffer of
+   its own, using one {@link CompactWriter} per buffer. All writers
+   share the compiled encoders of the object model. The buffers are
+   then gathered in batch order into the destination, which can be a
+   {@link ByteSink}, an output stream or a channel. The result is
+   identical to writing the batch sequentially through a single
+   {@code CompactWriter}.</p>
+
+   <p>Only a bounded number of slices are in flight at any time, so
+   arbitrarily large batches can be written without buffering the
+   complete output. The objects must not be modified while they are
+   being written.</p>
+
+   <p>Schema exchange is not supported since the schema definitions
+   must precede the first message that refers to them.</p>
+ */
+
+public final class ParallelWriter
+{
+   /**
+      The default number of objects per slice
+   */
+   
+   public static final int DefaultSliceSize = 8192;
+
+   /**
+      Creates a parallel writer that encodes messages as defined by
+      the specified object model. It uses a private pool with one
+      worker per available processor.
+
+      @param om an object model
+   */
+
+   public ParallelWriter (ObjectModel om)
+   {
+      this (om, new ForkJoinPool (), true);
+   }
+
+   /**
+      Creates a parallel writer that encodes messages as defined by
+      the specified object model. The encoding is done on the
+      specified pool, which is not shut down by {@code close}.
+
+      @param om an object model
+      @param pool the pool to encode on
+   */
+
+   public ParallelWriter (ObjectModel om, ForkJoinPool pool)
+   {
+      this (om, pool, false);
+   }
+
+   private ParallelWriter (ObjectModel om, ForkJoinPool pool,
+                           boolean ownsPool)
+   {
+      this.om = om;
+      this.pool = pool;
+      this.ownsPool = ownsPool;
+      this.maxPending = 2 * pool.getParallelism ();
+   }
+
+   /**
+      Sets the number of objects encoded per slice
+
+      @param sliceSize the number of objects per slice
+   */
+
+   public void setSliceSize (int sliceSize)
+   {
+      if (sliceSize < 1)
+         throw new IllegalArgumentException ("Slice size must be positive");
+      this.sliceSize = sliceSize;
+   }
+
+   /**
+      Sets the maximum number of slices that are encoded or waiting to
+      be gathered at the same time. The default is twice the
+      parallelism of the pool.
+
+      @param maxPending the maximum number of pending slices
+   */
+
+   public void setMaxPendingSlices (int maxPending)
+   {
+      if (maxPending < 1)
+         throw new IllegalArgumentException (
+            "Number of pending slices must be positive");
+      this.maxPending = maxPending;
+   }
+
+   /**
+      Encodes a slice of an array of objects into a sink
+
+      @param objs the objects to write
+      @param from the index of the first object to write
+      @param len the number of objects to write
+      @param sink the sink to write to
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   public void write (Object [] objs, int from, int len, ByteSink sink)
+      throws BlinkException, IOException
+   {
+      write (Arrays.asList (objs).subList (from, from + len), (Object)sink);
+   }
+
+   /**
+      Encodes a collection of objects into a sink
+
+      @param objs the objects to write
+      @param sink the sink to write to
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   public void write (Iterable<?> objs, ByteSink sink)
+      throws BlinkException, IOException
+   {
+      write (objs, (Object)sink);
+   }
+
+   /**
+      Encodes a collection of objects into an output stream. The
+      stream is not flushed or closed.
+
+      @param objs the objects to write
+      @param os the stream to write to
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   public void write (Iterable<?> objs, OutputStream os)
+      throws BlinkException, IOException
+   {
+      write (objs, (Object)os);
+   }
+
+   /**
+      Encodes a collection of objects into a channel, such as a file
+      channel
+
+      @param objs the objects to write
+      @param ch the channel to write to
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   public void write (Iterable<?> objs, WritableByteChannel ch)
+      throws BlinkException, IOException
+   {
+      write (objs, (Object)ch);
+   }
+
+   /**
+      Shuts down the pool if it was created by this writer
+   */
+   
+   public void close ()
+   {
+      if (ownsPool)
+         pool.shutdown ();
+   }
+
+   private void write (Iterable<?> objs, Object dst)
+      throws BlinkException, IOException
+   {
+      ArrayDeque<Future<Slot>> pending = new ArrayDeque<Future<Slot>> ();
+      try
+      {
+         Object [] slice = new Object [sliceSize];
+         int n = 0;
+         for (Object o : objs)
+         {
+            slice [n ++] = o;
+            if (n == sliceSize)
+            {
+               if (pending.size () >= maxPending)
+                  gather (pending.poll (), dst);
+               pending.add (pool.submit (new Slice (slice, n)));
+               slice = new Object [sliceSize];
+               n = 0;
+            }
+         }
+
+         if (n > 0)
+            pending.add (pool.submit (new Slice (slice, n)));
+
+         while (! pending.isEmpty ())
+            gather (pending.poll (), dst);
+      }
+      finally
+      {
+         // Let any slices still in flight finish, after an error
+
+         while (! pending.isEmpty ())
+         {
+            try
+            {
+               recycle (pending.poll ().get ());
+            }
+            catch (Exception e)
+            {
+               // Ignore, the first error is already propagating
+            }
+         }
+      }
+   }
+
+   private void gather (Future<Slot> f, Object dst)
+      throws BlinkException, IOException
+   {
+      Slot s = join (f);
+      try
+      {
+         if (dst instanceof ByteSink)
+         {
+            ByteSink sink = (ByteSink)dst;
+            s.buf.flip ();
+            int size = s.buf.size ();
+            sink.reserve (size);
+            s.buf.moveTo (sink, size);
+         }
+         else
+            s.buf.flushTo (dst);
+      }
+      finally
+      {
+         recycle (s);
+      }
+   }
+
+   private static Slot join (Future<Slot> f) throws BlinkException
+   {
+      try
+      {
+         return f.get ();
+      }
+      catch (ExecutionException e)
+      {
+         Throwable t = e.getCause ();
+         if (t instanceof BlinkException)
+            throw (BlinkException)t;
+         else if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+         else if (t instanceof Error)
+            throw (Error)t;
+         else
+            throw new BlinkException (t);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread ().interrupt ();
+         throw new BlinkException (e);
+      }
+   }
+
+   private void recycle (Slot s)
+   {
+      s.buf.clear ();
+      idleSlots.add (s);
+   }
+
+   private Slot getSlot ()
+   {
+      Slot s = idleSlots.poll ();
+      if (s != null)
+         return s;
+      else
+         return new Slot (om);
+   }
+
+   // A buffer together with a writer that encodes into it
+   
+   private static final class Slot
+   {
+      Slot (ObjectModel om)
+      {
+         this.buf = DirectBuf.newInstance ();
+         this.wr = new CompactWriter (om, buf);
+      }
+      
+      final Buf buf;
+      final CompactWriter wr;
+   }
+   
+   private final class Slice implements Callable<Slot>
+   {
+      Slice (Object [] objs, int len)
+      {
+         this.objs = objs;
+         this.len = len;
+      }
+
+      @Override
+      public Slot call () throws BlinkException
+      {
+         Slot s = getSlot ();
+         try
+         {
+            for (int i = 0; i < len; ++ i)
+               s.wr.writeObject (objs [i]);
+            return s;
+         }
+         catch (BlinkException e)
+         {
+            recycle (s);
+            throw e;
+         }
+         catch (RuntimeException e)
+         {
+            recycle (s);
+            throw e;
+         }
+      }
+      
+      private final Object [] objs;
+      private final int len;
+   }
+   
+   private final ObjectModel om;
+   private final ForkJoinPool pool;
+   private final boolean ownsPool;
+   private final ConcurrentLinkedQueue<Slot> idleSlots =
+      new ConcurrentLinkedQueue<Slot> ();
+   private int sliceSize = DefaultSliceSize;
+   private int maxPending;
+}
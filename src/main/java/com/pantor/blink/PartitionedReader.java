@@ -0,0 +1,488 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+   The {@code PartitionedReader} spreads the decoding of a single
+   stream of messages in the Blink compact binary format over a fixed
+   number of decoder threads.
+
+   <p>The thread calling the {@code read} methods only frames the
+   messages. For each message it reads the type identifier and
+   extracts a key from the raw bytes through a {@link KeyExtractor}.
+   The message is then handed to the decoder thread that owns the
+   partition of the key. Each decoder thread has its own {@link
+   CompactReader} and dispatches to the observers of a shared {@link
+   ObserverRegistry}. Messages with the same key are decoded and
+   dispatched in the order they were read, but there is no ordering
+   between different partitions. Observers are called concurrently
+   from the decoder threads and must be thread safe.</p>
+
+   <p>Like {@code CompactReader}, the reader supports incremental
+   decoding. A partial message at the end of a byte source is kept
+   until the rest of it is supplied in subsequent calls.</p>
+
+   <p>In-band schema exchange is not supported since a schema
+   message affects how the messages that follow it are decoded. A
+   schema exchange message in the stream is rejected as a decoding
+   error.</p>
+ */
+
+public final class PartitionedReader
+{
+   /**
+      The {@code KeyExtractor} interface is used for extracting the
+      partitioning key from an undecoded message
+   */
+   
+   public static interface KeyExtractor
+   {
+      /**
+         Returns the partitioning key of a message
+
+         @param tid the type identifier of the message
+         @param data the underlying bytes
+         @param from the index of the first byte after the type identifier
+         @param to the index directly after the last byte of the message
+         @return the key
+         @throws BlinkException.Decode if the key cannot be extracted
+      */
+      
+      long getKey (long tid, byte [] data, int from, int to)
+         throws BlinkException.Decode;
+   }
+
+   /**
+      Uses the type identifier as key. All messages of the same type
+      are decoded in order by the same thread.
+   */
+   
+   public static final KeyExtractor TypeIdKey = new KeyExtractor ()
+      {
+         @Override
+         public long getKey (long tid, byte [] data, int from, int to)
+         {
+            return tid;
+         }
+      };
+
+   /**
+      Uses the first field of each message as key, which must be an
+      integer field. This is useful when all messages start with an
+      identifier such as an instrument id. Messages that have no
+      fields or where the first field is null get key zero.
+   */
+   
+   public static final KeyExtractor FirstFieldKey = new KeyExtractor ()
+      {
+         @Override
+         public long getKey (long tid, byte [] data, int from, int to)
+            throws BlinkException.Decode
+         {
+            if (from < to && (data [from] & 0xff) != Vlc.Null)
+               return readU64 (data, from, to);
+            else
+               return 0;
+         }
+      };
+
+   /**
+      The default number of message batches that can be queued for a
+      single decoder thread before the reading thread blocks
+   */
+   
+   public static final int DefaultQueueCapacity = 64;
+   
+   /**
+      Creates a reader with the specified number of decoder threads.
+      Messages are partitioned by type identifier.
+
+      @param om an object model
+      @param oreg an observer registry
+      @param partitions the number of decoder threads
+   */
+
+   public PartitionedReader (ObjectModel om, ObserverRegistry oreg,
+                             int partitions)
+   {
+      this (om, oreg, partitions, TypeIdKey);
+   }
+   
+   /**
+      Creates a reader with the specified number of decoder threads.
+      Messages are partitioned by the key returned by the specified
+      key extractor.
+
+      @param om an object model
+      @param oreg an observer registry
+      @param partitions the number of decoder threads
+      @param keyExtractor the key extractor
+   */
+   
+   public PartitionedReader (ObjectModel om, ObserverRegistry oreg,
+                             int partitions, KeyExtractor keyExtractor)
+   {
+      if (partitions < 1)
+         throw new IllegalArgumentException (
+            "The number of partitions must be at least one");
+      
+      this.keyExtractor = keyExtractor;
+      this.workers = new Worker [partitions];
+      for (int i = 0; i < partitions; ++ i)
+      {
+         workers [i] = new Worker (new CompactReader (om, oreg), i);
+         workers [i].start ();
+      }
+   }
+
+   /**
+      Frames and dispatches the messages in the specified slice of a
+      byte array to the decoder threads.
+
+      @param data the bytes to read
+      @param from the index of the first byte to read
+      @param len the number of bytes to read
+      @throws BlinkException if a decoder thread has failed or if
+      a message cannot be framed
+   */
+   
+   public void read (byte [] data, int from, int len) throws BlinkException
+   {
+      read (new ByteBuf (data, from, len));
+   }
+
+   /**
+      Frames and dispatches the messages read from the specified
+      byte source to the decoder threads. All available bytes are
+      consumed.
+
+      @param src the bytes to read
+      @throws BlinkException if a decoder thread has failed or if
+      a message cannot be framed
+   */
+   
+   public void read (ByteSource src) throws BlinkException
+   {
+      checkFailure ();
+
+      // The bytes are copied once into a fresh array that is shared
+      // by the batches of all partitions, each batch only recording
+      // the slices of its messages. Any trailing partial message is
+      // carried over to the next call
+
+      int n = src.available ();
+      int len = fill + n;
+      byte [] data = new byte [len];
+      System.arraycopy (tail, 0, data, 0, fill);
+      src.read (data, fill, n);
+
+      ByteBuf buf = new ByteBuf (data);
+      int p = 0;
+      while (p < len)
+      {
+         int size = CompactReader.frame (buf, p,
+                                         CompactReader.DefaultMaxMsgSize);
+         if (size < 0)
+            break;
+         int end = p + size;
+         workers [partition (data, p, end)].add (p, end);
+         p = end;
+      }
+
+      fill = len - p;
+      if (fill > tail.length)
+         tail = new byte [Math.max (tail.length * 2, fill)];
+      System.arraycopy (data, p, tail, 0, fill);
+
+      for (Worker w : workers)
+         if (w.rangeCount > 0)
+            w.dispatch (data);
+   }
+
+   /**
+      Returns {@code true} if there is no partial message pending
+
+      @return {@code true} if there is no partial message pending
+   */
+
+   public boolean isComplete ()
+   {
+      return fill == 0;
+   }
+
+   /**
+      Stops the decoder threads after they have decoded all messages
+      handed to them so far, and waits for them to finish.
+
+      @throws BlinkException if a decoder thread has failed or if
+      there is a trailing partial message
+   */
+   
+   public void close () throws BlinkException
+   {
+      for (Worker w : workers)
+         w.stopWhenDone ();
+
+      for (Worker w : workers)
+      {
+         try
+         {
+            w.join ();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread ().interrupt ();
+            throw new BlinkException (e);
+         }
+      }
+
+      checkFailure ();
+
+      if (! isComplete ())
+         throw new BlinkException.Decode (
+            "Incomplete compact blink message. The reader needs " +
+            "more data to finish an incomplete trailing message");
+   }
+
+   private void checkFailure () throws BlinkException
+   {
+      BlinkException e = failure;
+      if (e != null)
+         throw e;
+   }
+
+   private int partition (byte [] data, int p, int end)
+      throws BlinkException.Decode
+   {
+      // The size preamble is complete, but the type identifier must
+      // be checked against the end of the frame
+
+      p += vlcSize (data [p]);
+      long tid = readU64 (data, p, end);
+      if (SchemaExchangeDecoder.isSchemaExchangeTypeId (tid))
+         throw new BlinkException.Decode (
+            "In-band schema exchange is not supported by the " +
+            "partitioned reader");
+      p += vlcSize (data [p]);
+      long key = keyExtractor.getKey (tid, data, p, end);
+      int h = (int)(key ^ (key >>> 32)) * 0x9e3779b9;
+      return (h >>> 1) % workers.length;
+   }
+
+   private static int vlcSize (byte b)
+   {
+      if ((b & 0x80) == 0)
+         return 1;
+      else if ((b & 0x40) == 0)
+         return 2;
+      else
+         return 1 + (b & 0x3f);
+   }
+   
+   private static long readU64 (byte [] data, int p, int end)
+      throws BlinkException.Decode
+   {
+      if (p >= end)
+         throw prematureEnd ();
+      int b = data [p] & 0xff;
+      if ((b & 0x80) == 0)
+         return b;
+      else if ((b & 0x40) == 0)
+      {
+         if (p + 2 > end)
+            throw prematureEnd ();
+         return ((data [p + 1] & 0xff) << 6) | (b & 0x3f);
+      }
+      else
+      {
+         int w = b & 0x3f;
+         if (w > 8)
+            throw new BlinkException.Decode ("VLC entity overflow (u64)");
+         if (p + 1 + w > end)
+            throw prematureEnd ();
+         long val = 0;
+         for (int i = 0; i < w; ++ i)
+            val |= (long)(data [p + 1 + i] & 0xff) << (i << 3);
+         return val;
+      }
+   }
+
+   private static BlinkException.Decode prematureEnd ()
+   {
+      return new BlinkException.Decode ("Premature end of message");
+   }
+
+   private void fail (BlinkException e)
+   {
+      synchronized (this)
+      {
+         if (failure == null)
+            failure = e;
+      }
+   }
+   
+   private final class Worker extends Thread
+   {
+      Worker (CompactReader rd, int partition)
+      {
+         super ("blink-decoder-" + partition);
+         setDaemon (true);
+         this.rd = rd;
+      }
+
+      // Adds the message in the specified slice to the pending
+      // batch, extending the last slice if the message directly
+      // follows it
+
+      void add (int from, int end)
+      {
+         if (rangeCount > 0 && ranges [rangeCount - 1] == from)
+            ranges [rangeCount - 1] = end;
+         else
+         {
+            if (rangeCount + 2 > ranges.length)
+               ranges = Arrays.copyOf (ranges, ranges.length * 2);
+            ranges [rangeCount ++] = from;
+            ranges [rangeCount ++] = end;
+         }
+      }
+
+      void dispatch (byte [] data) throws BlinkException
+      {
+         put (new Batch (data, Arrays.copyOf (ranges, rangeCount)));
+         rangeCount = 0;
+      }
+
+      void stopWhenDone () throws BlinkException
+      {
+         put (EndOfInput);
+      }
+
+      private void put (Batch b) throws BlinkException
+      {
+         try
+         {
+            queue.put (b);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread ().interrupt ();
+            throw new BlinkException (e);
+         }
+      }
+      
+      @Override
+      public void run ()
+      {
+         try
+         {
+            for (;;)
+            {
+               Batch b = queue.take ();
+               if (b == EndOfInput)
+                  break;
+               if (failure == null)
+                  for (int i = 0; i < b.ranges.length; i += 2)
+                     rd.read (b.data, b.ranges [i],
+                              b.ranges [i + 1] - b.ranges [i]);
+            }
+         }
+         catch (BlinkException e)
+         {
+            fail (e);
+            drain ();
+         }
+         catch (RuntimeException e)
+         {
+            fail (new BlinkException (e));
+            drain ();
+         }
+         catch (InterruptedException e)
+         {
+            fail (new BlinkException (e));
+         }
+      }
+
+      // Keeps consuming batches after a failure so that the reading
+      // thread never blocks on a full queue
+
+      private void drain ()
+      {
+         try
+         {
+            while (queue.take () != EndOfInput)
+               ;
+         }
+         catch (InterruptedException e)
+         {
+         }
+      }
+      
+      private final CompactReader rd;
+      private final BlockingQueue<Batch> queue =
+         new ArrayBlockingQueue<Batch> (DefaultQueueCapacity);
+      private int [] ranges = new int [64];
+      private int rangeCount;
+   }
+
+   // A batch of messages for a single decoder thread. The ranges hold
+   // pairs of start and end indices of the message slices in data
+
+   private static final class Batch
+   {
+      Batch (byte [] data, int [] ranges)
+      {
+         this.data = data;
+         this.ranges = ranges;
+      }
+
+      final byte [] data;
+      final int [] ranges;
+   }
+
+   private static final Batch EndOfInput =
+      new Batch (new byte [0], new int [0]);
+   
+   private final KeyExtractor keyExtractor;
+   private final Worker [] workers;
+   private byte [] tail = new byte [4096];
+   private int fill;
+   private volatile BlinkException failure;
+}
@@ -37,68 +37,776 @@ package com.pantor.blink;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class PerfTest
 {
    // com.pantor.blink.PerfTest roundtrip <schema> <wrapper> <input>
+   // com.pantor.blink.PerfTest enum [<count>]
+   // com.pantor.blink.PerfTest vlc [<count>]
+   // com.pantor.blink.PerfTest parallel <schema> <wrapper> <input> [<threads>]
+   // com.pantor.blink.PerfTest hidden <schema> <wrapper> <input>
+   // com.pantor.blink.PerfTest nsname [<threads>] [<count>]
+   // com.pantor.blink.PerfTest pencode <schema> <wrapper> <input> [<threads>]
+   // com.pantor.blink.PerfTest strings [<count>]
+   // com.pantor.blink.PerfTest native <schema> <wrapper> <input>
+   // com.pantor.blink.PerfTest tag <schema> <wrapper> <input>
+   // com.pantor.blink.PerfTest json <schema> <wrapper> <input>
+   // com.pantor.blink.PerfTest columnar <schema> <wrapper> <input>
    
    public static void main (String... args) throws Exception
+   {
+      String task = args [0];
+
+      if (task.equals ("roundtrip"))
+         roundtrip (args);
+      else if (task.equals ("enum"))
+         enumDecode (args);
+      else if (task.equals ("vlc"))
+         vlcDecode (args);
+      else if (task.equals ("parallel"))
+         parallelDecode (args);
+      else if (task.equals ("hidden"))
+         hiddenDecode (args);
+      else if (task.equals ("nsname"))
+         nsNameIntern (args);
+      else if (task.equals ("pencode"))
+         parallelEncode (args);
+      else if (task.equals ("strings"))
+         stringEncode (args);
+      else if (task.equals ("native"))
+         nativeRoundtrip (args);
+      else if (task.equals ("tag"))
+         tagRoundtrip (args);
+      else if (task.equals ("json"))
+         jsonRoundtrip (args);
+      else if (task.equals ("columnar"))
+         columnarConvert (args);
+      else
+         throw new RuntimeException ("Unknown PerfTest task: " + task);
+   }
+
+   private static void roundtrip (String... args) throws Exception
    {
       DefaultObjectModel om = new DefaultObjectModel (args [1]);
       om.setWrapper (Class.forName (args [2]));
       
       CompactReader rd = new CompactReader (om);
-      String task = args [0];
 
-      if (task.equals ("roundtrip"))
+      DefaultBlock result = new DefaultBlock ();
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      int count = 0;
+      long decTime = 0;
+      long encTime = 0;
+
+      FileInputStream is = new FileInputStream (args [3]);
+
+      Buf buf = DirectBuf.newInstance ();
+
+      try
+      {
+         for (;;)
+         {
+            if (! buf.fillFrom (is))
+               break;
+
+            buf.flip ();
+            result.clear ();
+            os.reset ();
+
+            long t1 = System.currentTimeMillis ();
+            rd.read (buf, result);
+            long t2 = System.currentTimeMillis ();
+            for (Object o : result)
+               wr.write (o);
+            wr.flush ();
+            long t3 = System.currentTimeMillis ();
+            decTime += t2 - t1;
+            encTime += t3 - t2;
+            count += result.size ();
+         }
+      }
+      finally
+      {
+         is.close ();
+      }
+
+      System.out.printf ("Decoded %d msgs in %d ms (%.2f msgs/s)%n",
+                         count, decTime,
+                         1000 * (double)count/(double)decTime);
+      System.out.printf ("Encoded %d msgs in %d ms (%.2f msgs/s)%n",
+                         count, encTime,
+                         1000 * (double)count/(double)encTime);
+   }
+
+   // Compares decoding a whole capture on a single CompactReader with
+   // decoding it through a ParallelReader using 1, 2, 4 ... up to
+   // the specified number of threads
+
+   private static void parallelDecode (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+      int maxThreads = args.length > 4 ? Integer.parseInt (args [4]) :
+         Runtime.getRuntime ().availableProcessors ();
+
+      byte [] data = readAll (new File (args [3]));
+
+      for (int round = 0; round < 3; ++ round)
       {
          DefaultBlock result = new DefaultBlock ();
-         ByteArrayOutputStream os = new ByteArrayOutputStream ();
-         CompactWriter wr = new CompactWriter (om, os);
-         int count = 0;
-         long decTime = 0;
-         long encTime = 0;
- 
-         FileInputStream is = new FileInputStream (args [3]);
- 
-         Buf buf = DirectBuf.newInstance ();
-
-         try
+         CompactReader rd = new CompactReader (om);
+         long t1 = System.currentTimeMillis ();
+         rd.read (data, result);
+         long t2 = System.currentTimeMillis ();
+         report ("Single reader", result.size (), t2 - t1);
+
+         for (int threads = 1; threads <= maxThreads; threads *= 2)
          {
-            for (;;)
-            {
-               if (! buf.fillFrom (is))
-                  break;
+            ForkJoinPool pool = new ForkJoinPool (threads);
+            ParallelReader prd = new ParallelReader (om, null, pool);
+            result = new DefaultBlock ();
+            t1 = System.currentTimeMillis ();
+            prd.read (data, 0, data.length, result);
+            t2 = System.currentTimeMillis ();
+            pool.shutdown ();
+            report (String.format ("Parallel, %d threads", threads),
+                    result.size (), t2 - t1);
+         }
+      }
+   }
+
+   // Decodes a capture and compares encoding all its messages on a
+   // single CompactWriter with encoding them through a ParallelWriter
+   // using 1, 2, 4 ... up to the specified number of threads
+
+   private static void parallelEncode (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+      int maxThreads = args.length > 4 ? Integer.parseInt (args [4]) :
+         Runtime.getRuntime ().availableProcessors ();
+
+      DefaultBlock msgs = new DefaultBlock ();
+      new CompactReader (om).read (readAll (new File (args [3])), msgs);
+      List<Object> objs = msgs.getObjects ();
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         ByteBuf out = new ByteBuf (16 << 20);
+         CompactWriter wr = new CompactWriter (om, out);
+         wr.setUseAutoFlush (false);
+         long t1 = System.currentTimeMillis ();
+         for (Object o : objs)
+            wr.write (o);
+         long t2 = System.currentTimeMillis ();
+         report ("Single writer", "encoded", objs.size (), t2 - t1);
+
+         for (int threads = 1; threads <= maxThreads; threads *= 2)
+         {
+            ForkJoinPool pool = new ForkJoinPool (threads);
+            ParallelWriter pwr = new ParallelWriter (om, pool);
+            out = new ByteBuf (16 << 20);
+            t1 = System.currentTimeMillis ();
+            pwr.write (objs, out);
+            t2 = System.currentTimeMillis ();
+            pool.shutdown ();
+            report (String.format ("Parallel, %d threads", threads),
+                    "encoded", objs.size (), t2 - t1);
+         }
+      }
+   }
+
+   // Compares codec generation time and decoding throughput with
+   // decoders loaded as regular classes and as hidden classes. Each
+   // variant uses a fresh object model so that no generated classes
+   // are shared between them
+
+   private static void hiddenDecode (String... args) throws Exception
+   {
+      byte [] data = readAll (new File (args [3]));
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         for (int hidden = 0; hidden < 2; ++ hidden)
+         {
+            DefaultObjectModel om = new DefaultObjectModel (args [1]);
+            om.setWrapper (Class.forName (args [2]));
+            CompactReader rd = new CompactReader (om);
+            rd.setUseHiddenClasses (hidden == 1);
+            String what = hidden == 1 ? "Hidden" : "Regular";
+            
+            long t1 = System.nanoTime ();
+            int groups = rd.primeAll ();
+            long t2 = System.nanoTime ();
+            System.out.printf ("%s: primed %d groups in %.2f ms%n", what,
+                               groups, (t2 - t1) / 1e6);
 
-               buf.flip ();
+            DefaultBlock result = new DefaultBlock ();
+            for (int i = 0; i < 5; ++ i)
+            {
                result.clear ();
-               os.reset ();
-
-               long t1 = System.currentTimeMillis ();
-               rd.read (buf, result);
-               long t2 = System.currentTimeMillis ();
-               for (Object o : result)
-                  wr.write (o);
-               wr.flush ();
-               long t3 = System.currentTimeMillis ();
-               decTime += t2 - t1;
-               encTime += t3 - t2;
-               count += result.size ();
+               rd.read (data, result);
+            }
+
+            result.clear ();
+            t1 = System.currentTimeMillis ();
+            rd.read (data, result);
+            t2 = System.currentTimeMillis ();
+            report (what, result.size (), t2 - t1);
+         }
+      }
+   }
+
+   // Measures NsName interning on 1, 2, 4 ... up to the specified
+   // number of threads. Each thread first looks up a fixed set of
+   // names that mostly exist already, as when decoding schema
+   // exchange messages, and then parses a schema, which interns all
+   // group, field and type names. With contention free interning the
+   // total rate should grow with the number of threads
+
+   private static void nsNameIntern (String... args) throws Exception
+   {
+      int maxThreads = args.length > 1 ? Integer.parseInt (args [1]) :
+         Runtime.getRuntime ().availableProcessors ();
+      final int count = args.length > 2 ? Integer.parseInt (args [2]) :
+         1000000;
+
+      final String [] names = new String [1000];
+      for (int i = 0; i < names.length; ++ i)
+         names [i] = "Name" + i;
+
+      StringBuilder sb = new StringBuilder ("namespace PerfNs\n");
+      for (int i = 0; i < 200; ++ i)
+         sb.append (String.format ("Msg%d/%d -> u32 Field%d, string Sym, " +
+                                   "Ref%d Ref%n" +
+                                   "Ref%d -> i64 Value%n", i, i, i, i, i));
+      final String schema = sb.toString ();
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         for (int threads = 1; threads <= maxThreads; threads *= 2)
+         {
+            Thread [] workers = new Thread [threads];
+            for (int i = 0; i < threads; ++ i)
+            {
+               final int seed = i;
+               workers [i] = new Thread () {
+                     @Override public void run ()
+                     {
+                        for (int n = 0; n < count; ++ n)
+                           NsName.get ("PerfNs", names [(n + seed) % 1000]);
+                     }
+                  };
+            }
+
+            long t1 = System.nanoTime ();
+            for (Thread t : workers)
+               t.start ();
+            for (Thread t : workers)
+               t.join ();
+            long t2 = System.nanoTime ();
+            System.out.printf ("Interning, %d threads: %.2f M names/s%n",
+                               threads, 1e3 * threads * count / (t2 - t1));
+
+            final int schemas = 20;
+            for (int i = 0; i < threads; ++ i)
+            {
+               workers [i] = new Thread () {
+                     @Override public void run ()
+                     {
+                        try
+                        {
+                           for (int n = 0; n < schemas; ++ n)
+                           {
+                              Schema s = new Schema ();
+                              SchemaReader.readFromString (schema, s);
+                              s.finalizeSchema ();
+                           }
+                        }
+                        catch (Exception e)
+                        {
+                           throw new RuntimeException (e);
+                        }
+                     }
+                  };
+            }
+
+            t1 = System.nanoTime ();
+            for (Thread t : workers)
+               t.start ();
+            for (Thread t : workers)
+               t.join ();
+            t2 = System.nanoTime ();
+            System.out.printf ("Schema loading, %d threads: %.2f schemas/s%n",
+                               threads, 1e9 * threads * schemas / (t2 - t1));
+         }
+      }
+   }
+
+   // Decodes a compact capture and compares encoding and decoding
+   // all its messages in the compact format with doing the same in
+   // the native format. The encoded sizes are reported too
+
+   private static void nativeRoundtrip (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+
+      DefaultBlock msgs = new DefaultBlock ();
+      new CompactReader (om).read (readAll (new File (args [3])), msgs);
+      int count = msgs.size ();
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         ByteArrayOutputStream os = new ByteArrayOutputStream ();
+         CompactWriter cwr = new CompactWriter (om, os);
+         long t1 = System.currentTimeMillis ();
+         for (Object o : msgs)
+            cwr.write (o);
+         cwr.flush ();
+         long t2 = System.currentTimeMillis ();
+         report ("Compact", "encoded", count, t2 - t1);
+
+         byte [] compact = os.toByteArray ();
+         DefaultBlock result = new DefaultBlock ();
+         CompactReader crd = new CompactReader (om);
+         t1 = System.currentTimeMillis ();
+         crd.read (compact, result);
+         t2 = System.currentTimeMillis ();
+         report ("Compact", result.size (), t2 - t1);
+
+         os = new ByteArrayOutputStream ();
+         NativeWriter nwr = new NativeWriter (om, os);
+         t1 = System.currentTimeMillis ();
+         for (Object o : msgs)
+            nwr.write (o);
+         nwr.flush ();
+         t2 = System.currentTimeMillis ();
+         report ("Native", "encoded", count, t2 - t1);
+
+         byte [] nat = os.toByteArray ();
+         result = new DefaultBlock ();
+         NativeReader nrd = new NativeReader (om);
+         t1 = System.currentTimeMillis ();
+         nrd.read (nat, result);
+         t2 = System.currentTimeMillis ();
+         report ("Native", result.size (), t2 - t1);
+
+         System.out.printf ("Size: compact %d bytes, native %d bytes%n",
+                            compact.length, nat.length);
+      }
+   }
+
+   // Decodes a compact capture and measures writing all its messages
+   // in the tag format, as when logging them, and reading them back
+
+   private static void tagRoundtrip (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+
+      DefaultBlock msgs = new DefaultBlock ();
+      new CompactReader (om).read (readAll (new File (args [3])), msgs);
+      int count = msgs.size ();
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         ByteArrayOutputStream os = new ByteArrayOutputStream ();
+         TagWriter wr = new TagWriter (om, os);
+         long t1 = System.currentTimeMillis ();
+         for (Object o : msgs)
+            wr.write (o);
+         wr.flush ();
+         long t2 = System.currentTimeMillis ();
+         report ("Tag", "encoded", count, t2 - t1);
+
+         byte [] text = os.toByteArray ();
+         DefaultBlock result = new DefaultBlock ();
+         TagReader rd = new TagReader (om);
+         t1 = System.currentTimeMillis ();
+         rd.read (text, result);
+         t2 = System.currentTimeMillis ();
+         report ("Tag", result.size (), t2 - t1);
+      }
+   }
+
+   // Decodes a compact capture and measures writing all its messages
+   // as JSON and reading them back
+
+   private static void jsonRoundtrip (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+
+      DefaultBlock msgs = new DefaultBlock ();
+      new CompactReader (om).read (readAll (new File (args [3])), msgs);
+      int count = msgs.size ();
+
+      for (int round = 0; round < 3; ++ round)
+      {
+         ByteArrayOutputStream os = new ByteArrayOutputStream ();
+         JsonWriter wr = new JsonWriter (om, os);
+         long t1 = System.currentTimeMillis ();
+         for (Object o : msgs)
+            wr.write (o);
+         wr.flush ();
+         long t2 = System.currentTimeMillis ();
+         report ("JSON", "encoded", count, t2 - t1);
+
+         byte [] text = os.toByteArray ();
+         DefaultBlock result = new DefaultBlock ();
+         JsonReader rd = new JsonReader (om);
+         t1 = System.currentTimeMillis ();
+         rd.read (text, result);
+         t2 = System.currentTimeMillis ();
+         report ("JSON", result.size (), t2 - t1);
+      }
+   }
+
+   // Measures converting a compact capture into columns and writing
+   // them to a columnar file
+
+   private static void columnarConvert (String... args) throws Exception
+   {
+      DefaultObjectModel om = new DefaultObjectModel (args [1]);
+      om.setWrapper (Class.forName (args [2]));
+      byte [] data = readAll (new File (args [3]));
+      File out = File.createTempFile ("perftest", ".col");
+
+      try
+      {
+         for (int round = 0; round < 3; ++ round)
+         {
+            ColumnarConverter conv = new ColumnarConverter (om);
+            long t1 = System.currentTimeMillis ();
+            conv.read (data);
+            long t2 = System.currentTimeMillis ();
+            int count = (int)conv.getMessageCount ();
+            report ("Columnar", "converted", count, t2 - t1);
+
+            t1 = System.currentTimeMillis ();
+            conv.write (out);
+            t2 = System.currentTimeMillis ();
+            report ("Columnar", "written", count, t2 - t1);
+         }
+      }
+      finally
+      {
+         out.delete ();
+      }
+   }
+
+   private static byte [] readAll (File f) throws IOException
+   {
+      byte [] data = new byte [(int)f.length ()];
+      DataInputStream is = new DataInputStream (new FileInputStream (f));
+      try
+      {
+         is.readFully (data);
+      }
+      finally
+      {
+         is.close ();
+      }
+      return data;
+   }
+
+   private static void report (String what, int count, long ms)
+   {
+      report (what, "decoded", count, ms);
+   }
+
+   private static void report (String what, String verb, int count, long ms)
+   {
+      System.out.printf ("%s: %s %d msgs in %d ms (%.2f msgs/s)%n",
+                         what, verb, count, ms,
+                         1000 * (double)count/(double)ms);
+   }
+
+   // Compares decoding of enum heavy messages with decoding of the
+   // same messages where the enum fields are plain i32 values. The
+   // difference is the cost of mapping values to Java enum
+   // constants. As a reference, the cost of the boxed map lookup that
+   // generated enum decoders used previously is measured over the
+   // same values.
+
+   private static final String EnumSchema =
+      "Order/1 -> Side Side, OrdType OrdType, Tif Tif, Venue Venue\n" +
+      "RawOrder/2 -> i32 Side, i32 OrdType, i32 Tif, i32 Venue\n" +
+      "Side = Buy/1 | Sell/2\n" +
+      "OrdType = Market/1 | Limit/2 | Stop/3\n" +
+      "Tif = Day/0 | Gtc/1 | Ioc/3 | Fok/4 | Gtd/6\n" +
+      "Venue = Xsto/100 | Xhel/2000 | Xcse/30000\n";
+
+   public static enum Side { Buy, Sell }
+   public static enum OrdType { Market, Limit, Stop }
+   public static enum Tif { Day, Gtc, Ioc, Fok, Gtd }
+   public static enum Venue { Xsto, Xhel, Xcse }
+
+   public static class Order
+   {
+      public Side getSide () { return side; }
+      public void setSide (Side v) { side = v; }
+      public OrdType getOrdType () { return ordType; }
+      public void setOrdType (OrdType v) { ordType = v; }
+      public Tif getTif () { return tif; }
+      public void setTif (Tif v) { tif = v; }
+      public Venue getVenue () { return venue; }
+      public void setVenue (Venue v) { venue = v; }
+
+      private Side side;
+      private OrdType ordType;
+      private Tif tif;
+      private Venue venue;
+   }
+
+   public static class RawOrder
+   {
+      public int getSide () { return side; }
+      public void setSide (int v) { side = v; }
+      public int getOrdType () { return ordType; }
+      public void setOrdType (int v) { ordType = v; }
+      public int getTif () { return tif; }
+      public void setTif (int v) { tif = v; }
+      public int getVenue () { return venue; }
+      public void setVenue (int v) { venue = v; }
+
+      private int side;
+      private int ordType;
+      private int tif;
+      private int venue;
+   }
+
+   private static void enumDecode (String... args) throws Exception
+   {
+      int count = args.length > 1 ? Integer.parseInt (args [1]) : 1000000;
+
+      DefaultObjectModel om = new DefaultObjectModel ();
+      om.loadSchemaFromString (EnumSchema);
+      om.setWrapper (PerfTest.class);
+
+      int [] venues = { 100, 2000, 30000 };
+      int [] tifs = { 0, 1, 3, 4, 6 };
+      Random rnd = new Random (4711);
+      Order [] orders = new Order [count];
+      RawOrder [] raw = new RawOrder [count];
+      int [] vals = new int [count * 4];
+      for (int i = 0; i < count; ++ i)
+      {
+         Order o = new Order ();
+         o.setSide (Side.values () [rnd.nextInt (2)]);
+         o.setOrdType (OrdType.values () [rnd.nextInt (3)]);
+         o.setTif (Tif.values () [rnd.nextInt (5)]);
+         o.setVenue (Venue.values () [rnd.nextInt (3)]);
+         orders [i] = o;
+
+         RawOrder r = new RawOrder ();
+         r.setSide (o.getSide ().ordinal () + 1);
+         r.setOrdType (o.getOrdType ().ordinal () + 1);
+         r.setTif (tifs [o.getTif ().ordinal ()]);
+         r.setVenue (venues [o.getVenue ().ordinal ()]);
+         raw [i] = r;
+
+         vals [i * 4] = r.getSide ();
+         vals [i * 4 + 1] = r.getOrdType ();
+         vals [i * 4 + 2] = r.getTif ();
+         vals [i * 4 + 3] = r.getVenue ();
+      }
+
+      byte [] enumData = encode (om, orders);
+      byte [] rawData = encode (om, raw);
+
+      ArrayList<HashMap<Integer, Object>> maps =
+         new ArrayList<HashMap<Integer, Object>> ();
+      for (int i = 0; i < 4; ++ i)
+         maps.add (new HashMap<Integer, Object> ());
+      for (Side v : Side.values ())
+         maps.get (0).put (v.ordinal () + 1, v);
+      for (OrdType v : OrdType.values ())
+         maps.get (1).put (v.ordinal () + 1, v);
+      for (Tif v : Tif.values ())
+         maps.get (2).put (tifs [v.ordinal ()], v);
+      for (Venue v : Venue.values ())
+         maps.get (3).put (venues [v.ordinal ()], v);
+
+      CompactReader rd = new CompactReader (om);
+      DefaultBlock result = new DefaultBlock ();
+
+      for (int round = 0; round < 5; ++ round)
+      {
+         long t1 = System.nanoTime ();
+         rd.read (enumData, result);
+         long t2 = System.nanoTime ();
+         result.clear ();
+         rd.read (rawData, result);
+         long t3 = System.nanoTime ();
+         result.clear ();
+
+         int hits = 0;
+         for (int i = 0; i < vals.length; ++ i)
+            if (maps.get (i & 3).get (Integer.valueOf (vals [i])) != null)
+               ++ hits;
+         long t4 = System.nanoTime ();
+
+         System.out.printf (
+            "Round %d: enum %.1f ns/msg, i32 %.1f ns/msg, " +
+            "boxed map lookup %.1f ns/value (%d hits)%n", round,
+            (double)(t2 - t1) / count, (double)(t3 - t2) / count,
+            (double)(t4 - t3) / vals.length, hits);
+      }
+   }
+
+   // Compares the bulk ASCII path of CompactWriter.writeString with
+   // writing one character at a time through the sink interface, for
+   // identifiers of typical lengths
+
+   private static void stringEncode (String... args) throws Exception
+   {
+      int count = args.length > 1 ? Integer.parseInt (args [1]) : 1000000;
+
+      int [] lengths = { 4, 8, 16, 32 };
+
+      for (int round = 0; round < 5; ++ round)
+      {
+         System.out.printf ("Round %d:%n", round);
+         for (int len : lengths)
+         {
+            String [] strs = new String [64];
+            for (int i = 0; i < strs.length; ++ i)
+            {
+               StringBuilder sb = new StringBuilder ();
+               for (int j = 0; j < len; ++ j)
+                  sb.append ((char)('A' + (i + j) % 26));
+               strs [i] = sb.toString ();
             }
+            
+            Buf heap = new ByteBuf (count * (len + 1) + 16);
+            Buf direct = DirectBuf.newInstance (count * (len + 1) + 16);
+
+            System.out.printf (
+               "  %2d chars: ByteBuf %.2f ns (charwise %.2f ns)", len,
+               timeStrings (heap, strs, count, false),
+               timeStrings (heap, strs, count, true));
+            if (direct instanceof DirectBuf)
+               System.out.printf (", DirectBuf %.2f ns (charwise %.2f ns)%n",
+                                  timeStrings (direct, strs, count, false),
+                                  timeStrings (direct, strs, count, true));
+            else
+               System.out.printf (", DirectBuf not available%n");
          }
-         finally
+      }
+   }
+
+   private static double timeStrings (Buf buf, String [] strs, int count,
+                                      boolean charwise)
+      throws Exception
+   {
+      buf.clear ();
+      long t1 = System.nanoTime ();
+      if (charwise)
+         for (int i = 0; i < count; ++ i)
+            CompactWriter.writeStringCharwise (strs [i & 63], buf);
+      else
+         for (int i = 0; i < count; ++ i)
+            CompactWriter.writeString (strs [i & 63], buf);
+      long t2 = System.nanoTime ();
+      return (double)(t2 - t1) / count;
+   }
+
+   // Measures VLC decoding per width class and buffer type. The word
+   // at a time decoding in Vlc is compared with the previous byte by
+   // byte decoding through the ByteSource interface
+
+   private static void vlcDecode (String... args) throws Exception
+   {
+      int count = args.length > 1 ? Integer.parseInt (args [1]) : 1000000;
+
+      long [] samples = { 100, 10000, 1L << 20, 1L << 28, 1L << 60 };
+
+      for (int round = 0; round < 5; ++ round)
+      {
+         System.out.printf ("Round %d:%n", round);
+         for (long sample : samples)
          {
-            is.close ();
+            int size = Vlc.getUintSize ((int)Math.min (sample, 1L << 31));
+            Buf heap = new ByteBuf (count * 9 + 16);
+            Buf direct = DirectBuf.newInstance (count * 9 + 16);
+            fillVlc (heap, sample, count);
+            fillVlc (direct, sample, count);
+
+            System.out.printf (
+               "  %d byte VLC: ByteBuf %.2f ns (bytewise %.2f ns)",
+               sample > Integer.MAX_VALUE ? 9 : size,
+               timeVlc (heap, count, false), timeVlc (heap, count, true));
+            if (direct instanceof DirectBuf)
+               System.out.printf (", DirectBuf %.2f ns (bytewise %.2f ns)%n",
+                                  timeVlc (direct, count, false),
+                                  timeVlc (direct, count, true));
+            else
+               System.out.printf (", DirectBuf not available%n");
          }
+      }
+   }
 
-         System.out.printf ("Decoded %d msgs in %d ms (%.2f msgs/s)%n",
-                            count, decTime,
-                            1000 * (double)count/(double)decTime);
-         System.out.printf ("Encoded %d msgs in %d ms (%.2f msgs/s)%n",
-                            count, encTime,
-                            1000 * (double)count/(double)encTime);
+   private static void fillVlc (Buf buf, long val, int count)
+   {
+      for (int i = 0; i < count; ++ i)
+         Vlc.writeU64 (val, buf);
+      buf.flip ();
+   }
+
+   private static double timeVlc (Buf buf, int count, boolean bytewise)
+      throws BlinkException.Decode
+   {
+      buf.setPos (0);
+      long sum = 0;
+      long t1 = System.nanoTime ();
+      if (bytewise)
+         for (int i = 0; i < count; ++ i)
+            sum += readU64Bytewise (buf);
+      else
+         for (int i = 0; i < count; ++ i)
+            sum += Vlc.readU64 (buf);
+      long t2 = System.nanoTime ();
+      if (sum == 4711)
+         System.out.print ("");
+      return (double)(t2 - t1) / count;
+   }
+
+   private static long readU64Bytewise (ByteSource src)
+   {
+      int b = src.get ();
+      if ((b & 0x80) == 0)
+      {
+         src.step ();
+         return b;
+      }
+      else if ((b & 0x40) == 0)
+      {
+         long val = (src.get (1) << 6) | (b & 0x3f);
+         src.step (2);
+         return val;
       }
       else
-         throw new RuntimeException ("Unknown PerfTest task: " + task);
+      {
+         int w = b & 0x3f;
+         long val = 0;
+         for (int i = 0; i < w; ++ i)
+            val |= (long)src.get (i + 1) << (i << 3);
+         src.step (w + 1);
+         return val;
+      }
+   }
+   
+   private static byte [] encode (ObjectModel om, Object [] objs)
+      throws Exception
+   {
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      wr.write (objs);
+      wr.close ();
+      return os.toByteArray ();
    }
 }
@@ -0,0 +1,291 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+   The {@code PrecompiledCodecs} class supports generating compact
+   decoders and encoders ahead of time, typically as a build step.
+
+   <p>Generated codec classes are named after the group or enum they
+   handle and a fingerprint of the binding, for example {@code
+   com.pantor.blink.aot.compact.Order_5f3a0c21d3e4b7a9_dec}. The
+   fingerprint covers the schema definition, the bound classes and
+   methods, the fingerprints of any statically referenced groups and
+   enums, and the version of the code generator.</p>
+
+   <p>At runtime, {@link CompactReaderCompiler} and {@link
+   CompactWriterCompiler} compute the fingerprint of a binding before
+   generating a codec and look for a precompiled class with the
+   corresponding name using the class loader of the bound class. If
+   there is one, it is used as is. Otherwise, for example when the
+   schema or the classes have changed since the codecs were
+   generated, the codec is generated dynamically as usual.</p>
+
+   <p>The {@code main} method generates class files for all bound
+   groups in one or more schemas:</p>
+
+   <pre>java com.pantor.blink.PrecompiledCodecs &lt;outdir&gt; &lt;wrapper or package&gt; &lt;schema&gt;...</pre>
+
+   <p>The second argument is either the name of a wrapper class
+   whose nested classes are bound to the schema, or a package
+   name.</p>
+ */
+
+public final class PrecompiledCodecs
+{
+   /**
+      The package of precompiled codec classes
+   */
+   
+   public static final String Package = "com.pantor.blink.aot.compact";
+
+   /**
+      The version of the code generator. It is part of the
+      fingerprint and must be changed whenever the generated code
+      changes in an incompatible way.
+   */
+   
+   public static final int CodegenVersion = 1;
+
+   /**
+      Generates class files for decoders and encoders of all groups
+      in the specified schemas that have bindings in the object model.
+
+      @param args output directory, wrapper class or package name,
+      schema files
+      @throws Exception if the generation fails
+   */
+   
+   public static void main (String... args) throws Exception
+   {
+      if (args.length < 3)
+      {
+         System.err.println (
+            "Usage: PrecompiledCodecs <outdir> <wrapper or package> " +
+            "<schema>...");
+         System.exit (1);
+      }
+
+      String [] schemas = new String [args.length - 2];
+      System.arraycopy (args, 2, schemas, 0, schemas.length);
+      DefaultObjectModel om = new DefaultObjectModel (schemas);
+
+      try
+      {
+         om.setWrapper (Class.forName (args [1]));
+      }
+      catch (ClassNotFoundException e)
+      {
+         om.setPackage (args [1]);
+      }
+
+      Map<String, byte []> classes = generate (om);
+      File outDir = new File (args [0]);
+      for (Map.Entry<String, byte []> e : classes.entrySet ())
+         write (outDir, e.getKey (), e.getValue ());
+
+      System.out.printf ("Generated %d codec classes in %s%n",
+                         classes.size (), outDir);
+   }
+
+   /**
+      Generates decoders and encoders for all groups in the schema of
+      the specified object model that have a binding. Groups without
+      a binding are ignored.
+
+      @param om an object model
+      @return a map from class names to class file contents
+      @throws BlinkException if there is a schema or binding problem
+   */
+   
+   public static Map<String, byte []> generate (ObjectModel om)
+      throws BlinkException
+   {
+      TreeMap<String, byte []> classes = new TreeMap<String, byte []> ();
+      CompactReaderCompiler rdc = new CompactReaderCompiler (om);
+      CompactWriterCompiler wrc = new CompactWriterCompiler (om);
+      rdc.setPrecompiledClassSink (classes);
+      wrc.setPrecompiledClassSink (classes);
+
+      rdc.primeAll ();
+      wrc.primeAll (null);
+
+      return classes;
+   }
+
+   static String getDecoderClassName (ObjectModel.Binding bnd)
+   {
+      return getClassName (bnd) + "_dec";
+   }
+
+   static String getEncoderClassName (ObjectModel.Binding bnd)
+   {
+      return getClassName (bnd) + "_enc";
+   }
+
+   // Returns the precompiled class with the specified name if
+   // available through the class loader of the specified scope
+
+   static Class<?> find (String name, Class<?> scope)
+   {
+      try
+      {
+         ClassLoader cl = scope.getClassLoader ();
+         if (cl != null)
+            return Class.forName (name, true, cl);
+         else
+            return null;
+      }
+      catch (ClassNotFoundException e)
+      {
+         return null;
+      }
+      catch (LinkageError e)
+      {
+         return null;
+      }
+   }
+
+   /**
+      Returns a fingerprint of the specified binding
+
+      @param bnd a group or enum binding
+      @return the fingerprint as a hexadecimal string
+   */
+   
+   public static String getFingerprint (ObjectModel.Binding bnd)
+   {
+      StringBuilder sb = new StringBuilder ();
+      sb.append ("v").append (CodegenVersion).append ('\n');
+      describe (bnd, sb, new HashSet<ObjectModel.Binding> ());
+
+      // 64-bit FNV-1a
+      
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0, len = sb.length (); i < len; ++ i)
+      {
+         h ^= sb.charAt (i);
+         h *= 0x100000001b3L;
+      }
+
+      String hex = Long.toHexString (h);
+      return "0000000000000000".substring (hex.length ()) + hex;
+   }
+
+   private static String getClassName (ObjectModel.Binding bnd)
+   {
+      NsName nm;
+      if (bnd.toGroup () != null)
+         nm = bnd.toGroup ().getGroup ().getName ();
+      else
+         nm = bnd.toEnum ().getEnum ().getName ();
+      
+      String base;
+      if (nm.isQualified ())
+         base = nm.getNs () + "+" + nm.getName ();
+      else
+         base = nm.getName ();
+      return Package + "." + base + "_" + getFingerprint (bnd);
+   }
+
+   private static void describe (ObjectModel.Binding bnd, StringBuilder sb,
+                                 HashSet<ObjectModel.Binding> visited)
+   {
+      ObjectModel.GroupBinding gb = bnd.toGroup ();
+      ObjectModel.EnumBinding eb = bnd.toEnum ();
+
+      if (! visited.add (bnd))
+      {
+         sb.append ("^ ").append (gb != null ? gb.getGroup ().getName () :
+                                  eb.getEnum ().getName ()).append ('\n');
+         return;
+      }
+      
+      sb.append (bnd.getTargetType ().getName ()).append ('\n');
+      
+      if (gb != null)
+      {
+         sb.append (gb.getGroup ()).append ('\n');
+         for (ObjectModel.Field f : gb)
+         {
+            Schema.TypeInfo t = f.getFieldType ();
+            sb.append (f.getField ()).append (" : ").append (t.getType ())
+               .append (t.isSequence () ? " []" : "")
+               .append (t.isDynamic () ? " *" : "").append ('\n');
+            sb.append (f.getGetter ()).append ('\n');
+            sb.append (f.getSetter ()).append ('\n');
+            sb.append (f.getPredicate ()).append ('\n');
+            if (f.getComponent () != null && ! t.isDynamic ())
+               describe (f.getComponent (), sb, visited);
+         }
+      }
+      else
+      {
+         sb.append (eb.getEnum ()).append ('\n');
+         for (ObjectModel.Symbol s : eb)
+            sb.append (s.getSymbol ()).append (" = ")
+               .append (s.getTargetName ()).append ('\n');
+      }
+   }
+
+   private static void write (File outDir, String name, byte [] b)
+      throws IOException
+   {
+      File f = new File (outDir, name.replace ('.', File.separatorChar) +
+                         ".class");
+      File dir = f.getParentFile ();
+      if (! dir.isDirectory () && ! dir.mkdirs ())
+         throw new IOException ("Cannot create directory: " + dir);
+      FileOutputStream os = new FileOutputStream (f);
+      try
+      {
+         os.write (b);
+      }
+      finally
+      {
+         os.close ();
+      }
+   }
+
+   private PrecompiledCodecs () { }
+}
@@ -71,6 +71,19 @@ public final class Server
       this.port = port;
    }
 
+   /**
+      Attaches a cache of pre-encoded messages to the writers of all
+      sessions created after this call. See {@link
+      CompactWriter#setEncodedMessageCache} for details.
+
+      @param cache the cache, or {@code null}
+   */
+   
+   public void setEncodedMessageCache (EncodedMessageCache cache)
+   {
+      this.encodedCache = cache;
+   }
+   
    public void run () throws IOException
    {
       ServerSocket ss = new ServerSocket (port);
@@ -78,19 +91,21 @@ public final class Server
       {
          Socket sock = ss.accept ();
          log.info ("Accepted connection from " + sock);
-         SessionImpl sn = new SessionImpl (sock, om);
+         SessionImpl sn = new SessionImpl (sock, om, encodedCache);
          cobs.onConnect (sn);
       }
    }
 
    private static class SessionImpl implements Session
    {
-      SessionImpl (Socket sock, ObjectModel om) throws IOException
+      SessionImpl (Socket sock, ObjectModel om, EncodedMessageCache cache)
+         throws IOException
       {
          this.sock = sock;
          this.om = om;
          this.os = sock.getOutputStream ();
          this.wr = new CompactWriter (om, os);
+         wr.setEncodedMessageCache (cache);
          this.oreg = new DefaultObsRegistry (om);
       }
 
@@ -201,5 +216,6 @@ public final class Server
    private final ObjectModel om;
    private final ConnectionObserver cobs;
    private final int port;
+   private volatile EncodedMessageCache encodedCache;
    private final Logger log = Logger.Manager.getLogger (Server.class);
 }
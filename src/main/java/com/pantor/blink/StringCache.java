@@ -0,0 +1,346 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+   The {@code StringCache} class maps the raw UTF-8 bytes of decoded
+   string values to previously created {@code String} instances.
+
+   <p>Repeated values such as symbols, account identifiers and venue
+   codes will result in the same {@code String} instance being
+   returned instead of a new string being created for each decoded
+   field. The cache is bounded and uses the clock algorithm, an
+   approximation of LRU, to evict entries when it is full. Values
+   longer than the maximum cached length are decoded directly without
+   touching the cache.</p>
+
+   <p>A cache is typically attached to a reader through {@link
+   CompactReader#setStringCache}. It is not thread safe and should
+   not be shared between readers that run in different threads.</p>
+ */
+
+public final class StringCache
+{
+   /**
+      The default maximum number of cached strings
+    */
+   
+   public static final int DefaultCapacity = 4096;
+
+   /**
+      The default maximum length in bytes of a cached string
+    */
+
+   public static final int DefaultMaxLength = 64;
+
+   /**
+      Creates a cache with the {@code DefaultCapacity} and {@code
+      DefaultMaxLength}
+    */
+   
+   public StringCache ()
+   {
+      this (DefaultCapacity, DefaultMaxLength);
+   }
+
+   /**
+      Creates a cache with the specified capacity and the {@code
+      DefaultMaxLength}
+
+      @param capacity the maximum number of cached strings
+    */
+   
+   public StringCache (int capacity)
+   {
+      this (capacity, DefaultMaxLength);
+   }
+
+   /**
+      Creates a cache with the specified capacity and maximum string
+      length
+
+      @param capacity the maximum number of cached strings
+      @param maxLength the maximum length in bytes of a cached string
+    */
+   
+   public StringCache (int capacity, int maxLength)
+   {
+      if (capacity < 1)
+         throw new IllegalArgumentException ("Capacity must be positive");
+      
+      this.capacity = capacity;
+      this.maxLength = maxLength;
+
+      int buckets = 1;
+      while (buckets < capacity)
+         buckets <<= 1;
+      
+      head = new int [buckets];
+      Arrays.fill (head, -1);
+      bucketMask = buckets - 1;
+      next = new int [capacity];
+      hashes = new int [capacity];
+      keys = new byte [capacity][];
+      vals = new String [capacity];
+      referenced = new boolean [capacity];
+      scratch = new byte [maxLength];
+   }
+
+   /**
+      Reads a UTF-8 encoded string of the specified size from a byte
+      source. If the same bytes have been seen before and are still
+      cached, the previously created string is returned.
+
+      @param src the byte source to read from
+      @param size the number of bytes to read
+      @return the string
+    */
+   
+   public String read (ByteSource src, int size)
+   {
+      if (size > maxLength)
+      {
+         ++ bypassed;
+         return src.readUtf8String (size);
+      }
+      
+      byte [] data = scratch;
+      src.read (data, 0, size);
+
+      int h = hash (data, size);
+      for (int e = head [h & bucketMask]; e != -1; e = next [e])
+      {
+         if (hashes [e] == h && isEqual (keys [e], data, size))
+         {
+            referenced [e] = true;
+            ++ hits;
+            return vals [e];
+         }
+      }
+
+      ++ misses;
+      String s = toString (data, size);
+      insert (h, Arrays.copyOf (data, size), s);
+      return s;
+   }
+
+   /**
+      Removes all cached strings. The statistics are not affected.
+    */
+   
+   public void clear ()
+   {
+      Arrays.fill (head, -1);
+      Arrays.fill (keys, null);
+      Arrays.fill (vals, null);
+      Arrays.fill (referenced, false);
+      size = 0;
+      hand = 0;
+   }
+
+   /**
+      Resets the hit, miss and bypass counters
+    */
+   
+   public void resetStats ()
+   {
+      hits = 0;
+      misses = 0;
+      bypassed = 0;
+   }
+
+   /**
+      Returns the number of lookups that found a cached string
+
+      @return the number of hits
+    */
+   
+   public long getHits () { return hits; }
+
+   /**
+      Returns the number of lookups that did not find a cached string
+
+      @return the number of misses
+    */
+   
+   public long getMisses () { return misses; }
+
+   /**
+      Returns the number of strings that were too long to be cached
+
+      @return the number of bypassed strings
+    */
+   
+   public long getBypassed () { return bypassed; }
+
+   /**
+      Returns the ratio of hits to the total number of lookups, or
+      zero if there have been no lookups
+
+      @return the hit rate
+    */
+   
+   public double getHitRate ()
+   {
+      long total = hits + misses + bypassed;
+      return total > 0 ? (double)hits / (double)total : 0.0;
+   }
+
+   /**
+      Returns the number of cached strings
+
+      @return the number of cached strings
+    */
+   
+   public int size () { return size; }
+
+   /**
+      Returns the maximum number of cached strings
+
+      @return the capacity
+    */
+   
+   public int getCapacity () { return capacity; }
+
+   /**
+      Returns the maximum length in bytes of a cached string
+
+      @return the maximum length
+    */
+   
+   public int getMaxLength () { return maxLength; }
+
+   @Override
+   public String toString ()
+   {
+      return String.format ("StringCache: size: %d/%d, hits: %d, " +
+                            "misses: %d, bypassed: %d, hit rate: %.3f",
+                            size, capacity, hits, misses, bypassed,
+                            getHitRate ());
+   }
+   
+   private void insert (int h, byte [] key, String val)
+   {
+      int e;
+      if (size < capacity)
+         e = size ++;
+      else
+      {
+         // Clock eviction: give referenced entries a second chance
+         
+         while (referenced [hand])
+         {
+            referenced [hand] = false;
+            hand = (hand + 1) % capacity;
+         }
+
+         e = hand;
+         hand = (hand + 1) % capacity;
+         unlink (e);
+      }
+
+      int b = h & bucketMask;
+      hashes [e] = h;
+      keys [e] = key;
+      vals [e] = val;
+      referenced [e] = false;
+      next [e] = head [b];
+      head [b] = e;
+   }
+
+   private void unlink (int e)
+   {
+      int b = hashes [e] & bucketMask;
+      if (head [b] == e)
+         head [b] = next [e];
+      else
+      {
+         int prev = head [b];
+         while (next [prev] != e)
+            prev = next [prev];
+         next [prev] = next [e];
+      }
+   }
+
+   private static int hash (byte [] data, int size)
+   {
+      int h = size;
+      for (int i = 0; i < size; ++ i)
+         h = 31 * h + data [i];
+      return h ^ (h >>> 16);
+   }
+
+   private static boolean isEqual (byte [] key, byte [] data, int size)
+   {
+      if (key.length != size)
+         return false;
+      for (int i = 0; i < size; ++ i)
+         if (key [i] != data [i])
+            return false;
+      return true;
+   }
+
+   private static String toString (byte [] data, int size)
+   {
+      try
+      {
+         return new String (data, 0, size, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new RuntimeException (e);
+      }
+   }
+
+   private final int capacity;
+   private final int maxLength;
+   private final int bucketMask;
+   private final int [] head;
+   private final int [] next;
+   private final int [] hashes;
+   private final byte [][] keys;
+   private final String [] vals;
+   private final boolean [] referenced;
+   private final byte [] scratch;
+   private int size;
+   private int hand;
+   private long hits;
+   private long misses;
+   private long bypassed;
+}
@@ -0,0 +1,992 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+
+/**
+   The {@code TagReader} implements a decoder for the Blink tag
+   format as written by a {@link TagWriter}. It maps decoded messages
+   to POJOs as defined by an {@code ObjectModel}.
+
+   <p>Each message is expected on a line of its own. Empty lines and
+   lines starting with {@code #} are ignored. Fields that are not
+   part of the schema are skipped, which lets logs written with an
+   older schema be replayed with a newer one.</p>
+
+   <p>The tag format is meant for logging and diagnostics, so unlike
+   the compact and native readers, this reader populates objects
+   through the reflected setters of the bindings rather than through
+   generated decoders.</p>
+*/
+
+public final class TagReader implements Reader
+{
+   /**
+      Creates a reader for the tag format. It maps decoded messages
+      to POJOs as defined by the specified object model.
+
+      @param om an object model
+   */
+   
+   public TagReader (ObjectModel om)
+   {
+      this (om, null);
+   }
+
+   /**
+      Creates a reader for the tag format. It maps decoded messages
+      to POJOs as defined by the specified object model and
+      dispatches them to any matching observers if available in the
+      specified observer registry.
+
+      @param om an object model
+      @param oreg an observer registry
+    */
+   
+   public TagReader (ObjectModel om, ObserverRegistry oreg)
+   {
+      this.om = om;
+      this.oreg = oreg;
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It dispatches decoded
+      messages to any matching observers if an observer registry has
+      been specified.
+
+      @param data the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+
+   @Override
+   public void read (byte [] data) throws BlinkException
+   {
+      read (data, 0, data.length, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a slice of a byte array. It
+      dispatches decoded messages to any matching observers if an
+      observer registry has been specified.
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len) throws BlinkException
+   {
+      read (data, from, len, blankBlock);
+   }
+
+   /**
+      Decodes bytes specified in a byte array. It appends decoded
+      messages to the specified block and also dispatches them to any
+      matching observers if an observer registry has been specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param data the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, Block block) throws BlinkException
+   {
+      read (data, 0, data.length, block);
+   }
+   
+   /**
+      Decodes bytes specified in a slice of a byte array. It appends
+      decoded messages to the specified block and also dispatches them
+      to any matching observers if an observer registry has been
+      specified.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      <p>This is the most native form of the {@code read} methods.
+      Complete lines are decoded directly from the array, and a
+      trailing incomplete line is kept until more data arrives.</p>
+
+      @param data the bytes to decode
+      @param from the index of the first byte to decode
+      @param len the number of bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (byte [] data, int from, int len, Block block)
+      throws BlinkException
+   {
+      int pos = from;
+      int end = from + len;
+
+      try
+      {
+         while (pos < end)
+         {
+            int eol = indexOf ('\n', data, pos, end);
+            if (eol == -1)
+            {
+               appendPend (data, pos, end);
+               break;
+            }
+
+            if (pendLen > 0)
+            {
+               appendPend (data, pos, eol);
+               int lineLen = pendLen;
+               pendLen = 0;
+               readLine (pend, 0, lineLen, block);
+               if (pend.length > MaxLingeringScratchArea)
+                  pend = new byte [InitialPendCapacity];
+            }
+            else
+               readLine (data, pos, eol, block);
+
+            pos = eol + 1;
+         }
+      }
+      finally
+      {
+         this.data = null;
+      }
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It dispatches
+      decoded messages to any matching observers if an observer
+      registry has been specified.
+
+      @param src the bytes to decode
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src) throws BlinkException
+   {
+      read (src, blankBlock);
+   }
+
+   /**
+      Decodes bytes read from the specified byte source. It appends
+      decoded messages to the specified block and also dispatches
+      them to any matching observers if an observer registry has been
+      specified. The available bytes are copied to a scratch area of
+      this reader before they are decoded.
+
+      <p>It also allocates objects as needed from the specified block.</p>
+
+      @param src the bytes to decode
+      @param block the block that collects the decoded messages and is
+      responsible for allocating new objects
+      @throws BlinkException if a decoding, schema or binding problem occurs
+   */
+   
+   @Override
+   public void read (ByteSource src, Block block) throws BlinkException
+   {
+      int len = src.available ();
+      if (len > 0)
+      {
+         if (scratch == null || scratch.length < len)
+            scratch = new byte [len];
+         src.read (scratch, 0, len);
+         read (scratch, 0, len, block);
+         if (scratch.length > MaxLingeringScratchArea)
+            scratch = null;
+      }
+   }
+
+   /**
+      Returns {@code true} if there is no partial line pending
+
+      @return {@code true} if there is no partial line pending
+   */
+
+   @Override
+   public boolean isComplete ()
+   {
+      return pendLen == 0;
+   }
+
+   /**
+      Closes this reader
+
+      @throws BlinkException.Decode if this reader is incomplete as
+      indicated by {@code isComplete}
+   */
+
+   @Override
+   public void close () throws BlinkException.Decode
+   {
+      if (! isComplete ())
+         throw new BlinkException.Decode (
+            "Incomplete tag blink message. The reader needs " +
+            "more data to finish an incomplete trailing " +
+            "line");
+   }
+
+   /**
+      Resets this reader to an initial state, discarding any incompletely
+      read messages
+   */
+
+   @Override
+   public void reset ()
+   {
+      pendLen = 0;
+   }
+
+   // Lines and messages
+   //////////////////////////////////////////////////////////////////////
+
+   private void readLine (byte [] d, int from, int to, Block block)
+      throws BlinkException
+   {
+      if (to > from && d [to - 1] == '\r')
+         -- to;
+      
+      while (from < to && d [from] == ' ')
+         ++ from;
+
+      if (from == to || d [from] == '#')
+         return;
+
+      this.data = d;
+      this.pos = from;
+      this.end = to;
+
+      expect ('@');
+      GroupDecoder dec = getDecoder (readName ());
+      Object o = dec.allocate (block);
+      try
+      {
+         readFields (dec, o, false);
+         if (pos != end)
+            throw error ("Unexpected character '" + (char)data [pos] + "'");
+      }
+      catch (BlinkException e)
+      {
+         block.reclaim (o);
+         throw e;
+      }
+      catch (RuntimeException e)
+      {
+         block.reclaim (o);
+         throw e;
+      }
+      
+      block.append (o);
+      if (dec.obs != null)
+         dec.obs.onObj (o, dec.grp);
+   }
+
+   // Reads fields up to the end of the line or a closing
+   // delimiter. Each field is preceded by a separator, except the
+   // first field of a static group
+   
+   private void readFields (GroupDecoder dec, Object o, boolean first)
+      throws BlinkException
+   {
+      for (;;)
+      {
+         if (pos == end)
+            return;
+         byte c = data [pos];
+         if (c == ';' || c == ']' || c == '}')
+            return;
+         if (! first)
+            expect ('|');
+         first = false;
+
+         int nameStart = pos;
+         while (pos < end && data [pos] != '=')
+            ++ pos;
+         String name = new String (data, nameStart, pos - nameStart, Ascii);
+         expect ('=');
+
+         ObjectModel.Field f = dec.fields.get (name);
+         if (f != null && f.getSetter () != null)
+         {
+            Method setter = f.getSetter ();
+            Object val = readValue (f.getFieldType (), f.getComponent (),
+                                    setter.getParameterTypes () [0]);
+            invoke (setter, o, val);
+         }
+         else
+            skipValue ();
+      }
+   }
+
+   private Object readValue (Schema.TypeInfo t, ObjectModel.Binding comp,
+                             Class<?> type)
+      throws BlinkException
+   {
+      if (t.isSequence ())
+         return readSequence (t, comp, type);
+      else if (t.isPrimitive ())
+         return readPrimitive (t.getType (), type);
+      else if (t.isEnum ())
+         return getSymbols (comp.toEnum ()).get (readToken ());
+      else if (t.isDynamic () || t.isObject ())
+      {
+         expect ('{');
+         Object o = readDynGroup ();
+         expect ('}');
+         return o;
+      }
+      else
+      {
+         expect ('{');
+         Object o = readStaticGroup (comp.toGroup ());
+         expect ('}');
+         return o;
+      }
+   }
+
+   private Object readDynGroup () throws BlinkException
+   {
+      expect ('@');
+      GroupDecoder dec = getDecoder (readName ());
+      Object o = dec.newInstance ();
+      readFields (dec, o, false);
+      return o;
+   }
+
+   private Object readStaticGroup (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      GroupDecoder dec = getDecoder (bnd.getGroup ().getName ());
+      Object o = dec.newInstance ();
+      readFields (dec, o, true);
+      return o;
+   }
+
+   private Object readSequence (Schema.TypeInfo t, ObjectModel.Binding comp,
+                                Class<?> type)
+      throws BlinkException
+   {
+      Class<?> itemType = type.getComponentType ();
+      if (itemType == null)
+         throw error ("Cannot decode a sequence into " + type);
+
+      expect ('[');
+      ArrayList<Object> items = new ArrayList<Object> ();
+      if (peek () != ']')
+      {
+         for (;;)
+         {
+            if (t.isPrimitive ())
+               items.add (readPrimitive (t.getType (), itemType));
+            else if (t.isEnum ())
+               items.add (getSymbols (comp.toEnum ()).get (readToken ()));
+            else if (t.isDynamic () || t.isObject ())
+               items.add (readDynGroup ());
+            else
+               items.add (readStaticGroup (comp.toGroup ()));
+
+            if (peek () != ';')
+               break;
+            ++ pos;
+         }
+      }
+      expect (']');
+
+      Object a = Array.newInstance (itemType, items.size ());
+      for (int i = 0; i < items.size (); ++ i)
+         Array.set (a, i, items.get (i));
+      return a;
+   }
+
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   private Object readPrimitive (Schema.Type t, Class<?> type)
+      throws BlinkException
+   {
+      switch (t.getCode ())
+      {
+       case U8: case I8:
+         return Byte.valueOf ((byte)parseLong (readToken ()));
+       case U16: case I16:
+         return Short.valueOf ((short)parseLong (readToken ()));
+       case U32: case I32:
+         return Integer.valueOf ((int)parseLong (readToken ()));
+       case U64:
+         return Long.valueOf (parseUnsignedLong (readToken ()));
+       case I64:
+         return Long.valueOf (parseLong (readToken ()));
+       case F64:
+         return Double.valueOf (parseDouble (readToken ()));
+       case Decimal:
+         return Decimal.valueOf (readToken ());
+       case FixedDec:
+         return readFixedDec (((Schema.FixedDecType)t).getScale (), type);
+       case Date:
+         return Integer.valueOf (parseDate (readToken ()));
+       case TimeOfDayMilli:
+         return Integer.valueOf ((int)parseTimeOfDay (readToken (), 3));
+       case TimeOfDayNano:
+         return Long.valueOf (parseTimeOfDay (readToken (), 9));
+       case Millitime:
+         return Long.valueOf (parseTimestamp (readToken (), 3));
+       case Nanotime:
+         return Long.valueOf (parseTimestamp (readToken (), 9));
+       case Bool:
+         return Boolean.valueOf (parseBool (readToken ()));
+       case String:
+         if (type == Utf8Slice.class)
+            return new Utf8Slice (readString ());
+         else
+            return readString ();
+       case Binary:
+         return readHex (-1);
+       case Fixed:
+         return readHex (((Schema.FixedType)t).getSize ());
+       default:
+         throw error ("Unsupported type: " + t.getCode ());
+      }
+   }
+
+   // Reads a fixed decimal into a long significand or into a boxed
+   // fixed decimal of the type taken by the setter
+
+   private Object readFixedDec (int scale, Class<?> type)
+      throws BlinkException
+   {
+      String tok = readToken ();
+      long sig;
+      try
+      {
+         sig = FixedDec.valueOf (tok, scale).getSignificand ();
+      }
+      catch (RuntimeException e)
+      {
+         throw error ("Malformed decimal: '" + tok + "'");
+      }
+
+      if (type == Long.TYPE || type == Long.class)
+         return Long.valueOf (sig);
+
+      try
+      {
+         int intScale = getScaleConstant (type);
+         if (intScale != -1)
+            return type.getMethod ("getInstance", Long.TYPE).invoke (
+               null, FixedDec.rescale (sig, scale, intScale));
+         else
+            return type.getMethod ("getInstance", Long.TYPE, Integer.TYPE)
+               .invoke (null, sig, scale);
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+
+   private static int getScaleConstant (Class<?> c)
+   {
+      try
+      {
+         return c.getField ("Scale").getInt (null);
+      }
+      catch (Throwable e)
+      {
+         return -1;
+      }
+   }
+
+   private long parseLong (String tok) throws BlinkException.Decode
+   {
+      try
+      {
+         return Long.parseLong (tok);
+      }
+      catch (NumberFormatException e)
+      {
+         throw error ("Malformed integer: '" + tok + "'");
+      }
+   }
+
+   private long parseUnsignedLong (String tok) throws BlinkException.Decode
+   {
+      try
+      {
+         return Long.parseUnsignedLong (tok);
+      }
+      catch (NumberFormatException e)
+      {
+         throw error ("Malformed integer: '" + tok + "'");
+      }
+   }
+
+   private double parseDouble (String tok) throws BlinkException.Decode
+   {
+      try
+      {
+         return Double.parseDouble (tok);
+      }
+      catch (NumberFormatException e)
+      {
+         throw error ("Malformed float: '" + tok + "'");
+      }
+   }
+
+   private boolean parseBool (String tok) throws BlinkException.Decode
+   {
+      if (tok.equals ("Y"))
+         return true;
+      else if (tok.equals ("N"))
+         return false;
+      else
+         throw error ("Malformed boolean: '" + tok + "'");
+   }
+
+   // The date and time parsers are shared with the JsonReader, which
+   // uses the same textual forms. They report malformed values
+   // without the tag format prefix
+   
+   // Parses a date on the form YYYY-MM-DD
+   
+   static int parseDate (String tok) throws BlinkException.Decode
+   {
+      int d2 = tok.lastIndexOf ('-');
+      int d1 = d2 > 0 ? tok.lastIndexOf ('-', d2 - 1) : -1;
+      if (d1 <= 0)
+         throw malformed ("date", tok);
+      int y = (int)parseDateTimePart (tok.substring (0, d1), tok);
+      int mm = (int)parseDateTimePart (tok.substring (d1 + 1, d2), tok);
+      int dd = (int)parseDateTimePart (tok.substring (d2 + 1), tok);
+      return Time.toDaysSinceEpoch (y, mm, dd);
+   }
+
+   // Parses a time of day on the form HH:MM:SS.fff into units of
+   // 10^-digits seconds since midnight
+   
+   static long parseTimeOfDay (String tok, int digits)
+      throws BlinkException.Decode
+   {
+      if (tok.length () < 8 || tok.charAt (2) != ':' || tok.charAt (5) != ':')
+         throw malformed ("time of day", tok);
+      long secs = parseDateTimePart (tok.substring (0, 2), tok) * 3600 +
+         parseDateTimePart (tok.substring (3, 5), tok) * 60 +
+         parseDateTimePart (tok.substring (6, 8), tok);
+      long frac = 0;
+      if (tok.length () > 9 && tok.charAt (8) == '.')
+      {
+         String f = tok.substring (9);
+         if (f.length () > digits)
+            f = f.substring (0, digits);
+         frac = parseDateTimePart (f, tok) *
+            TagWriter.Pow10 [digits - f.length ()];
+      }
+      return secs * TagWriter.Pow10 [digits] + frac;
+   }
+
+   // Parses a UTC timestamp on the form YYYY-MM-DDTHH:MM:SS.fffZ
+   // into units of 10^-digits seconds since the UNIX epoch
+
+   static long parseTimestamp (String tok, int digits)
+      throws BlinkException.Decode
+   {
+      int t = tok.indexOf ('T');
+      if (t == -1)
+         throw malformed ("timestamp", tok);
+      String time = tok.endsWith ("Z") ?
+         tok.substring (t + 1, tok.length () - 1) : tok.substring (t + 1);
+      long days = (long)parseDate (tok.substring (0, t)) -
+         TagWriter.UnixEpochDate;
+      return days * TagWriter.SecsPerDay * TagWriter.Pow10 [digits] +
+         parseTimeOfDay (time, digits);
+   }
+
+   private static long parseDateTimePart (String part, String tok)
+      throws BlinkException.Decode
+   {
+      try
+      {
+         return Long.parseLong (part);
+      }
+      catch (NumberFormatException e)
+      {
+         throw malformed ("date or time", tok);
+      }
+   }
+
+   private static BlinkException.Decode malformed (String what, String tok)
+   {
+      return new BlinkException.Decode ("Malformed " + what + ": '" + tok +
+                                        "'");
+   }
+
+   // Reads hex digits enclosed in brackets. A fixed value is padded
+   // with zeros or truncated to its declared size
+   
+   private byte [] readHex (int fixedSize) throws BlinkException.Decode
+   {
+      expect ('[');
+      int n = 0;
+      byte [] v = new byte [16];
+      for (;;)
+      {
+         byte c = peek ();
+         if (c == ']')
+            break;
+         else if (c == ' ')
+            ++ pos;
+         else
+         {
+            if (end - pos < 2)
+               throw error ("Truncated hex value");
+            int hi = Character.digit (data [pos], 16);
+            int lo = Character.digit (data [pos + 1], 16);
+            if (hi == -1 || lo == -1)
+               throw error ("Malformed hex value");
+            if (n == v.length)
+               v = Arrays.copyOf (v, 2 * n);
+            v [n ++] = (byte)((hi << 4) | lo);
+            pos += 2;
+         }
+      }
+      expect (']');
+      return Arrays.copyOf (v, fixedSize != -1 ? fixedSize : n);
+   }
+
+   // Reads an escaped UTF-8 string up to the next unescaped delimiter
+
+   private String readString () throws BlinkException.Decode
+   {
+      int n = 0;
+      for (; pos < end; ++ pos)
+      {
+         byte c = data [pos];
+         if (c == '|' || c == ';' || c == ']' || c == '}')
+            break;
+         if (n + 1 > strBuf.length)
+            strBuf = Arrays.copyOf (strBuf, 2 * strBuf.length);
+         if (c == '\\')
+         {
+            if (++ pos == end)
+               throw error ("Truncated escape sequence");
+            c = data [pos];
+            switch (c)
+            {
+             case 'n': c = '\n'; break;
+             case 'r': c = '\r'; break;
+             case 't': c = '\t'; break;
+             case 'x':
+                {
+                   if (end - pos < 3)
+                      throw error ("Truncated escape sequence");
+                   int hi = Character.digit (data [pos + 1], 16);
+                   int lo = Character.digit (data [pos + 2], 16);
+                   if (hi == -1 || lo == -1)
+                      throw error ("Malformed escape sequence");
+                   c = (byte)((hi << 4) | lo);
+                   pos += 2;
+                }
+                break;
+             default:
+                break;
+            }
+         }
+         strBuf [n ++] = c;
+      }
+
+      return new String (strBuf, 0, n, Utf8);
+   }
+
+   // Reads an unescaped value up to the next delimiter
+   
+   private String readToken ()
+   {
+      int start = pos;
+      while (pos < end)
+      {
+         byte c = data [pos];
+         if (c == '|' || c == ';' || c == ']' || c == '}')
+            break;
+         ++ pos;
+      }
+      return new String (data, start, pos - start, Ascii);
+   }
+
+   // Reads a type name up to the first field or the end of the group
+   
+   private NsName readName ()
+   {
+      return NsName.parse (readToken ());
+   }
+
+   // Skips the value of an unknown field, including any nested
+   // groups and sequences
+   
+   private void skipValue () throws BlinkException.Decode
+   {
+      int depth = 0;
+      for (; pos < end; ++ pos)
+      {
+         byte c = data [pos];
+         if (c == '\\')
+            ++ pos;
+         else if (c == '[' || c == '{')
+            ++ depth;
+         else if (c == ']' || c == '}')
+         {
+            if (depth == 0)
+               return;
+            -- depth;
+         }
+         else if ((c == '|' || c == ';') && depth == 0)
+            return;
+      }
+      
+      if (depth != 0)
+         throw error ("Unbalanced brackets in value");
+   }
+
+   private byte peek () throws BlinkException.Decode
+   {
+      if (pos == end)
+         throw error ("Premature end of message");
+      return data [pos];
+   }
+   
+   private void expect (char c) throws BlinkException.Decode
+   {
+      if (peek () != c)
+         throw error ("Expected '" + c + "' but got '" + (char)data [pos] +
+                      "'");
+      ++ pos;
+   }
+
+   private BlinkException.Decode error (String msg)
+   {
+      return new BlinkException.Decode ("Tag format: " + msg);
+   }
+
+   private static int indexOf (int c, byte [] d, int from, int to)
+   {
+      for (int i = from; i < to; ++ i)
+         if (d [i] == c)
+            return i;
+      return -1;
+   }
+
+   private void appendPend (byte [] d, int from, int to)
+   {
+      int len = to - from;
+      if (pendLen + len > pend.length)
+         pend = Arrays.copyOf (
+            pend, Math.max (pendLen + len, 2 * pend.length));
+      System.arraycopy (d, from, pend, pendLen, len);
+      pendLen += len;
+   }
+
+   private static void invoke (Method setter, Object o, Object val)
+      throws BlinkException.Binding
+   {
+      try
+      {
+         setter.invoke (o, val);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+   
+   // Bindings
+   //////////////////////////////////////////////////////////////////////
+
+   private GroupDecoder getDecoder (NsName name) throws BlinkException
+   {
+      GroupDecoder dec = decByName.get (name);
+      if (dec == null)
+      {
+         ObjectModel.GroupBinding bnd = om.getGroupBinding (name);
+         Observer obs = oreg != null ? oreg.findObserver (bnd.getGroup ()) :
+            null;
+         dec = new GroupDecoder (bnd, obs);
+         decByName.put (name, dec);
+      }
+      return dec;
+   }
+
+   // Maps the symbol names of an enum to the constants of its
+   // target type
+   
+   private HashMap<String, Object> getSymbols (ObjectModel.EnumBinding bnd)
+   {
+      NsName name = bnd.getEnum ().getName ();
+      HashMap<String, Object> syms = symsByName.get (name);
+      if (syms == null)
+      {
+         syms = new HashMap<String, Object> ();
+         for (ObjectModel.Symbol sym : bnd)
+            if (sym.getTargetName () != null)
+               syms.put (sym.getSymbol ().getName (),
+                         toConstant (bnd.getTargetType (),
+                                     sym.getTargetName ()));
+         symsByName.put (name, syms);
+      }
+      return syms;
+   }
+
+   @SuppressWarnings ({ "unchecked", "rawtypes" })
+   private static Object toConstant (Class<?> enumType, String name)
+   {
+      return Enum.valueOf ((Class<? extends Enum>)enumType, name);
+   }
+
+   private static final class GroupDecoder implements Creator
+   {
+      GroupDecoder (ObjectModel.GroupBinding bnd, Observer obs)
+         throws BlinkException.Binding
+      {
+         this.grp = bnd.getGroup ();
+         this.obs = obs;
+         this.type = bnd.getTargetType ();
+         for (ObjectModel.Field f : bnd)
+            fields.put (f.getField ().getName (), f);
+         try
+         {
+            this.ctor = type.getConstructor ();
+         }
+         catch (NoSuchMethodException e)
+         {
+            throw new BlinkException.Binding (e);
+         }
+      }
+
+      @Override
+      public Object newInstance () throws BlinkException.Binding
+      {
+         try
+         {
+            return ctor.newInstance ();
+         }
+         catch (InstantiationException e)
+         {
+            throw new BlinkException.Binding (e);
+         }
+         catch (IllegalAccessException e)
+         {
+            throw new BlinkException.Binding (e);
+         }
+         catch (InvocationTargetException e)
+         {
+            throw new BlinkException.Binding (e);
+         }
+      }
+
+      @Override
+      public Class<?> getType ()
+      {
+         return type;
+      }
+
+      Object allocate (Block block)
+         throws BlinkException.Binding
+      {
+         if (pool == null || take >= pool.length)
+         {
+            pool = block.refill (this, pool);
+            take = 0;
+         }
+
+         Object fresh = pool [take];
+         pool [take ++] = null;
+         return fresh;
+      }
+
+      final Schema.Group grp;
+      final Observer obs;
+      final HashMap<String, ObjectModel.Field> fields =
+         new HashMap<String, ObjectModel.Field> ();
+      private final Class<?> type;
+      private final Constructor<?> ctor;
+      private Object [] pool;
+      private int take;
+   }
+
+   private static final int InitialPendCapacity = 256;
+   private static final int MaxLingeringScratchArea = 1000000;
+   private static final Charset Utf8 = Charset.forName ("UTF-8");
+   private static final Charset Ascii = Charset.forName ("US-ASCII");
+
+   private final ObjectModel om;
+   private final ObserverRegistry oreg;
+   private final HashMap<NsName, GroupDecoder> decByName =
+      new HashMap<NsName, GroupDecoder> ();
+   private final HashMap<NsName, HashMap<String, Object>> symsByName =
+      new HashMap<NsName, HashMap<String, Object>> ();
+   private final BlankBlock blankBlock = new BlankBlock ();
+   private byte [] pend = new byte [InitialPendCapacity];
+   private int pendLen;
+   private byte [] scratch;
+   private byte [] strBuf = new byte [256];
+   private byte [] data;
+   private int pos;
+   private int end;
+}
@@ -0,0 +1,1004 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+   The {@code TagWriter} implements an encoder for the Blink tag
+   format. It encodes POJOs to text that is written to a {@code
+   ByteSink} or an {@code OutputStream}. The mapping from POJOs to the
+   corresponding messages in the Blink schema is handled through an
+   {@code ObjectModel}.
+
+   <p>Each message is written on a line of its own. A message starts
+   with {@code @} and the name of its type, followed by the fields
+   that are present as {@code |Name=Value}:</p>
+
+   <pre>
+   &#64;Rect|Descr=Big|Pos={X=1|Y=2}|Width=10|Height=20
+   &#64;Canvas|Shapes=[&#64;Circle|Radius=1;&#64;Rect|Width=1|Height=2]
+   </pre>
+
+   <p>Static subgroups are enclosed in braces, and dynamic subgroups
+   in braces with a leading type name. Sequence items are separated
+   by semicolons and enclosed in brackets. Absent optional fields are
+   left out.</p>
+
+   <p>Integers and decimals are written in decimal notation, booleans
+   as {@code Y} or {@code N}, and enum values as their symbol
+   names. Dates are written as {@code 2013-12-31}, times of day as
+   {@code 23:59:59.999} and timestamps in UTC as {@code
+   2013-12-31T23:59:59.999Z}, where the time of day and timestamp
+   values with nanosecond resolution have nine fraction digits.</p>
+
+   <p>Strings are written as UTF-8, where the characters {@code \ |
+   ; [ ] { }} are escaped by a backslash, line breaks and tabs are
+   written as {@code \n}, {@code \r} and {@code \t}, and other control
+   characters as {@code \x} followed by two hex digits. Binary and
+   fixed values are written as hex digits enclosed in brackets.</p>
+
+   <p>The output is parsable by a {@link TagReader}.</p>
+*/
+
+public final class TagWriter implements Writer
+{
+   /**
+      Creates a writer for the tag format. It writes encoded messages
+      to the specified {@code ByteSink}.
+
+      @param om an object model
+      @param sink a sink that will receive the encoded text
+   */
+   
+   public TagWriter (ObjectModel om, ByteSink sink)
+   {
+      compiler = new TagWriterCompiler (om);
+      this.sink = sink;
+   }
+
+   /**
+      Creates a writer for the tag format. It writes encoded messages
+      to the specified {@code OutputStream}. This writer handles its
+      own buffering so the specified {@code OutputStream} need not be
+      buffered in itself.
+
+      @param om an object model
+      @param os an output stream that will receive the encoded text
+   */
+   
+   public TagWriter (ObjectModel om, OutputStream os)
+   {
+      this (om, new OutputStreamSink (os));
+   }
+
+   /**
+      Encodes an object. It flushes the underlying sink if
+      necessary but you should call the {@code flush} method
+      explicitly if you require a flush to the output stream after
+      this write call.
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+
+   @Override
+   public void write (Object o) throws BlinkException, IOException
+   {
+      if (sink.getPos () >= AutoFlushThreshold)
+         flush ();
+      writeObject (o);
+   }
+
+   /**
+      Encodes an array of objects. It flushes the underlying sink if
+      necessary but you should call the {@code flush} method
+      explicitly if you require a flush to the output stream after
+      this write call.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Encodes a slice of an array of objects. It flushes the
+      underlying sink if necessary but you should call the {@code
+      flush} method explicitly if you require a flush to the output
+      stream after this write call.
+
+      @param objs the objects to write
+      @param from the index of the first object to encode
+      @param len the number of objects to encode
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Object [] objs, int from, int len)
+      throws BlinkException, IOException
+   {
+      for (int i = from; i < from + len; ++ i)
+         write (objs [i]);
+   }
+
+   /**
+      Encodes an iterable collection of objects. It flushes the
+      underlying sink if necessary but you should call the {@code
+      flush} method explicitly if you require a flush to the output
+      stream after this write call.
+
+      @param objs the objects to write
+      @throws BlinkException if there is a schema or binding problem
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void write (Iterable<?> objs) throws BlinkException, IOException
+   {
+      for (Object o : objs)
+         write (o);
+   }
+
+   /**
+      Flushes any pending encoded messages in the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void flush () throws BlinkException, IOException
+   {
+      sink.flush ();
+   }
+
+   /**
+      Does nothing since this writer keeps no pending messages of
+      its own
+   */
+   
+   @Override
+   public void softFlush () throws BlinkException, IOException
+   {
+   }
+   
+   /**
+      Flushes any pending encoded messages and closes the underlying sink
+
+      @throws IOException if there was an output error
+   */
+   
+   @Override
+   public void close () throws BlinkException, IOException
+   {
+      sink.close ();
+   }
+
+   /**
+      Compiles encoders for all groups in the schema of the object
+      model that have bindings. Encoders are otherwise compiled when
+      the first object of each type is written.
+
+      @return the number of primed groups
+      @throws BlinkException if there was a schema or binding problem
+   */
+
+   public int primeAll () throws BlinkException
+   {
+      return compiler.primeAll ();
+   }
+
+   /**
+      Encodes an object as a message on a line of its own
+
+      @param o the object to write
+      @throws BlinkException if there is a schema or binding problem
+   */
+   
+   public void writeObject (Object o) throws BlinkException
+   {
+      compiler.getEncoder (o.getClass ()).encodeMsg (o, sink, this);
+      writeDelim ('\n', sink);
+   }
+
+   // Dynamic groups
+   //////////////////////////////////////////////////////////////////////
+
+   public void writeDynGroup (Object o, ByteSink sink) throws BlinkException
+   {
+      writeDelim ('{', sink);
+      compiler.getEncoder (o.getClass ()).encodeMsg (o, sink, this);
+      writeDelim ('}', sink);
+   }
+
+   public void writeDynGroupArray (Object [] objs, ByteSink sink)
+      throws BlinkException
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < objs.length; ++ i)
+      {
+         if (i > 0)
+            writeDelim (';', sink);
+         compiler.getEncoder (objs [i].getClass ()).encodeMsg (
+            objs [i], sink, this);
+      }
+      writeDelim (']', sink);
+   }
+
+   // Structure
+   //////////////////////////////////////////////////////////////////////
+
+   // Writes the label of a field, preceded by a field separator
+   // unless it is the first field of a static group
+
+   public static void writeLabel (boolean sep, String label, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, label.length () + 1);
+      if (sep)
+         sink.write ('|');
+      writeAscii (label, sink);
+   }
+
+   public static void writeDelim (int c, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, 1);
+      sink.write (c);
+   }
+
+   // Writes an enum symbol name. Values without a symbol are left
+   // empty
+
+   public static void writeSymbol (String sym, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (sym != null)
+      {
+         reserve (sink, sym.length ());
+         writeAscii (sym, sink);
+      }
+   }
+   
+   // Primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public static void writeU8 (byte val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val & 0xff, sink);
+   }
+
+   public static void writeI8 (byte val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val, sink);
+   }
+
+   public static void writeU16 (short val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val & 0xffff, sink);
+   }
+
+   public static void writeI16 (short val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val, sink);
+   }
+
+   public static void writeU32 (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val & 0xffffffffL, sink);
+   }
+
+   public static void writeI32 (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeI64 (val, sink);
+   }
+
+   public static void writeU64 (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, MaxDigits);
+      writeUnsignedDigits (val, sink);
+   }
+
+   public static void writeI64 (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, MaxDigits + 1);
+      if (val < 0)
+      {
+         sink.write ('-');
+         val = - val; // Long.MIN_VALUE stays negative, written as unsigned
+      }
+      writeUnsignedDigits (val, sink);
+   }
+
+   // Doubles are rendered through Double.toString, the only value
+   // type that goes through an intermediate string
+   
+   public static void writeF64 (double val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      String s = Double.toString (val);
+      reserve (sink, s.length ());
+      writeAscii (s, sink);
+   }
+
+   public static void writeDecimal (Decimal val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDecimal (val.getSignificand (), val.getExponent (), sink);
+   }
+
+   public static void writeFixedDec (long val, int scale, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDecimal (val, - scale, sink);
+   }
+
+   public static void writeBoxedFixedDec (FixedDec val, int scale,
+                                          ByteSink sink)
+      throws BlinkException.Encode
+   {
+      long sig = FixedDec.rescale (val.getSignificand (), val.getScale (),
+                                   scale);
+      writeDecimal (sig, - scale, sink);
+   }
+
+   // Writes a decimal with a point when the exponent is in the
+   // range of the scales of fixed decimals, and in exponent
+   // notation otherwise
+
+   private static void writeDecimal (long sig, int exp, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (exp < 0 && exp >= - MaxScale)
+      {
+         reserve (sink, MaxDigits + MaxScale + 3);
+         if (sig < 0)
+         {
+            sink.write ('-');
+            sig = - sig;
+         }
+
+         long unit = Pow10 [- exp];
+         writeUnsignedDigits (Long.divideUnsigned (sig, unit), sink);
+         sink.write ('.');
+         writePadded (Long.remainderUnsigned (sig, unit), - exp, sink);
+      }
+      else
+      {
+         writeI64 (sig, sink);
+         if (exp != 0)
+         {
+            writeDelim ('E', sink);
+            writeI64 (exp, sink);
+         }
+      }
+   }
+
+   public static void writeDate (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, MaxDigits + 6);
+
+      // Same conversion as in Time.setDate
+      
+      long days = (long)val + Time.EPOCH_OFFSET;
+      long y = (10000*days + 14780) / 3652425;
+      long ddd = days - (365*y + y/4 - y/100 + y/400);
+      if (ddd < 0)
+      {
+         -- y;
+         ddd = days - (365*y + y/4 - y/100 + y/400);
+      }
+      long mi = (100*ddd + 52) / 3060;
+      long mm = (mi + 2) % 12 + 1;
+      y = y + (mi + 2) / 12;
+      long dd = ddd - (mi*306 + 5) / 10 + 1;
+
+      if (y < 0)
+         writeI64 (y, sink);
+      else
+         writePadded (y, 4, sink);
+      sink.write ('-');
+      writePadded (mm, 2, sink);
+      sink.write ('-');
+      writePadded (dd, 2, sink);
+   }
+
+   public static void writeTimeOfDayMilli (int val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeTimeOfDay (val & 0xffffffffL, 3, sink);
+   }
+
+   public static void writeTimeOfDayNano (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeTimeOfDay (val, 9, sink);
+   }
+
+   public static void writeMillitime (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeTimestamp (val, 3, sink);
+   }
+
+   public static void writeNanotime (long val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeTimestamp (val, 9, sink);
+   }
+
+   // Writes a time of day, where val is in units of 10^-digits
+   // seconds since midnight
+   
+   private static void writeTimeOfDay (long val, int digits, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, MaxDigits + 4);
+      long unit = Pow10 [digits];
+      long secs = val / unit;
+      writePadded (secs / 3600, 2, sink);
+      sink.write (':');
+      writePadded ((secs / 60) % 60, 2, sink);
+      sink.write (':');
+      writePadded (secs % 60, 2, sink);
+      sink.write ('.');
+      writePadded (val % unit, digits, sink);
+   }
+
+   // Writes a UTC timestamp, where val is in units of 10^-digits
+   // seconds since the UNIX epoch
+   
+   private static void writeTimestamp (long val, int digits, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      long unitsPerDay = Pow10 [digits] * SecsPerDay;
+      long days = Math.floorDiv (val, unitsPerDay);
+      writeDate ((int)(days + UnixEpochDate), sink);
+      writeDelim ('T', sink);
+      writeTimeOfDay (Math.floorMod (val, unitsPerDay), digits, sink);
+      writeDelim ('Z', sink);
+   }
+
+   public static void writeBool (boolean val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, 1);
+      sink.write (val ? 'Y' : 'N');
+   }
+
+   public static void writeString (String val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      int len = val.length ();
+
+      // Reserve room for the worst case: an escaped control character
+      // is four bytes, and a char is at most three bytes in UTF-8
+      
+      reserve (sink, 4 * len);
+      for (int i = 0; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c < 0x80)
+            writeEscaped (c, sink);
+         else if (c < 0x800)
+         {
+            sink.write (0xc0 | (c >> 6), 0x80 | (c & 0x3f));
+         }
+         else if (Character.isHighSurrogate (c) && i + 1 < len &&
+                  Character.isLowSurrogate (val.charAt (i + 1)))
+         {
+            int cp = Character.toCodePoint (c, val.charAt (++ i));
+            sink.write (0xf0 | (cp >> 18), 0x80 | ((cp >> 12) & 0x3f),
+                        0x80 | ((cp >> 6) & 0x3f), 0x80 | (cp & 0x3f));
+         }
+         else
+            sink.write (0xe0 | (c >> 12), 0x80 | ((c >> 6) & 0x3f),
+                        0x80 | (c & 0x3f));
+      }
+   }
+
+   public static void writeUtf8Slice (Utf8Slice val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      int size = val.size ();
+      reserve (sink, 4 * size);
+      for (int i = 0; i < size; ++ i)
+      {
+         int b = val.byteAt (i) & 0xff;
+         if (b < 0x80)
+            writeEscaped (b, sink);
+         else
+            sink.write (b);
+      }
+   }
+
+   public static void writeBinary (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeHex (val, val.length, sink);
+   }
+
+   public static void writeFixed (byte [] val, int fixedSize, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeHex (val, fixedSize, sink);
+   }
+
+   // Writes size bytes as hex digits, padding with zeros if the
+   // value is shorter
+
+   private static void writeHex (byte [] val, int size, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      reserve (sink, 3 * size + 2);
+      sink.write ('[');
+      for (int i = 0; i < size; ++ i)
+      {
+         int b = i < val.length ? val [i] & 0xff : 0;
+         if (i > 0)
+            sink.write (' ');
+         sink.write (HexDigits [b >> 4], HexDigits [b & 0xf]);
+      }
+      sink.write (']');
+   }
+
+   // Sequences of primitive values
+   //////////////////////////////////////////////////////////////////////
+
+   public static void writeU8Array (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeU8 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI8Array (byte [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeI8 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU16Array (short [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeU16 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI16Array (short [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeI16 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU32Array (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeU32 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI32Array (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeI32 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeU64Array (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeU64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeI64Array (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeI64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeF64Array (double [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeF64 (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeDecimalArray (Decimal [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeDecimal (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeFixedDecArray (long [] val, int scale,
+                                          ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeFixedDec (val [i], scale, sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBoxedFixedDecArray (FixedDec [] val, int scale,
+                                               ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeBoxedFixedDec (val [i], scale, sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeDateArray (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeDate (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeTimeOfDayMilliArray (int [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeTimeOfDayMilli (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeTimeOfDayNanoArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeTimeOfDayNano (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeNanotimeArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeNanotime (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeMillitimeArray (long [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeMillitime (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBoolArray (boolean [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeBool (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeStringArray (String [] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         if (val [i] != null)
+            writeString (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeBinaryArray (byte [][] val, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeBinary (val [i], sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   public static void writeFixedArray (byte [][] val, int fixedSize,
+                                       ByteSink sink)
+      throws BlinkException.Encode
+   {
+      writeDelim ('[', sink);
+      for (int i = 0; i < val.length; ++ i)
+      {
+         writeSep (i, sink);
+         writeFixed (val [i], fixedSize, sink);
+      }
+      writeDelim (']', sink);
+   }
+
+   // Writes a sequence item separator in front of all but the first
+   // item
+
+   public static void writeSep (int i, ByteSink sink)
+      throws BlinkException.Encode
+   {
+      if (i > 0)
+         writeDelim (';', sink);
+   }
+
+   public abstract static class Encoder
+   {
+      protected Encoder (String tag, Class<?> type, Schema.Group grp)
+      {
+         this.tag = tag;
+         this.type = type;
+         this.grp = grp;
+      }
+
+      // Writes the type name followed by all fields
+
+      final void encodeMsg (Object o, ByteSink sink, TagWriter wr)
+         throws BlinkException
+      {
+         reserve (sink, tag.length ());
+         writeAscii (tag, sink);
+         encode (o, sink, wr);
+      }
+
+      protected abstract void encode (Object o, ByteSink sink, TagWriter wr)
+         throws BlinkException;
+      
+      public Class<?> getType () { return type; }
+      public Schema.Group getGroup () { return grp; }
+      
+      private final String tag;
+      private final Class<?> type;
+      private final Schema.Group grp;
+   }
+
+   // Writes ASCII characters that need no escaping. The caller must
+   // reserve room for them
+
+   static void writeAscii (String s, ByteSink sink)
+   {
+      for (int i = 0, len = s.length (); i < len; ++ i)
+         sink.write (s.charAt (i));
+   }
+
+   // Writes an ASCII character, escaping it if it is special or a
+   // control character. The caller must reserve four bytes
+   
+   private static void writeEscaped (int c, ByteSink sink)
+   {
+      switch (c)
+      {
+       case '\\': case '|': case ';': case '[': case ']': case '{': case '}':
+         sink.write ('\\', c);
+         break;
+       case '\n':
+         sink.write ('\\', 'n');
+         break;
+       case '\r':
+         sink.write ('\\', 'r');
+         break;
+       case '\t':
+         sink.write ('\\', 't');
+         break;
+       default:
+         if (c < 0x20 || c == 0x7f)
+            sink.write ('\\', 'x', HexDigits [c >> 4], HexDigits [c & 0xf]);
+         else
+            sink.write (c);
+         break;
+      }
+   }
+
+   // Writes the decimal digits of val, treating it as unsigned. The
+   // caller must reserve room for them
+   
+   private static void writeUnsignedDigits (long val, ByteSink sink)
+   {
+      if (val < 0)
+      {
+         long q = (val >>> 1) / 5;
+         writeUnsignedDigits (q, sink);
+         sink.write ((int)('0' + (val - q * 10)));
+      }
+      else
+         writePadded (val, 1, sink);
+   }
+
+   // Writes the decimal digits of a non-negative value, padded with
+   // leading zeros to at least the specified width. The caller must
+   // reserve room for them
+   
+   private static void writePadded (long val, int width, ByteSink sink)
+   {
+      int digits = 1;
+      while (digits < MaxScale + 1 && val >= Pow10 [digits])
+         ++ digits;
+
+      for (int i = width; i > digits; -- i)
+         sink.write ('0');
+
+      for (int i = digits - 1; i >= 0; -- i)
+      {
+         long unit = Pow10 [i];
+         long d = val / unit;
+         sink.write ((int)('0' + d));
+         val -= d * unit;
+      }
+   }
+
+   static void reserve (ByteSink sink, int size)
+      throws BlinkException.Encode
+   {
+      try
+      {
+         sink.reserve (size);
+      }
+      catch (IOException e)
+      {
+         throw new BlinkException.Encode (e);
+      }
+   }
+
+   static final long [] Pow10 = {
+      1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+      100000000L, 1000000000L, 10000000000L, 100000000000L,
+      1000000000000L, 10000000000000L, 100000000000000L,
+      1000000000000000L, 10000000000000000L, 100000000000000000L,
+      1000000000000000000L
+   };
+
+   static final long SecsPerDay = 86400;
+   
+   // The blink date of 1970-01-01, in days since 2000-01-01
+   
+   static final int UnixEpochDate = -10957;
+
+   static final char [] HexDigits = "0123456789abcdef".toCharArray ();
+   
+   private static final int MaxScale = 18;
+   private static final int MaxDigits = 20;
+   private static final int AutoFlushThreshold = 4096 - 256;
+
+   private final TagWriterCompiler compiler;
+   private final ByteSink sink;
+}
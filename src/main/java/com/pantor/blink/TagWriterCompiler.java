@@ -0,0 +1,70 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+public final class TagWriterCompiler
+   extends TextWriterCompiler<TagWriter.Encoder>
+{
+   public TagWriterCompiler (ObjectModel om)
+   {
+      super (om, TagWriter.class, "com.pantor.blink.dyn.tag.", "writeSep",
+             TagWriter.Encoder.class);
+   }
+
+   @Override
+   String getLabel (String field)
+   {
+      return field + "=";
+   }
+
+   @Override
+   String getTypeText (ObjectModel.GroupBinding bnd)
+   {
+      return "@" + bnd.getGroup ().getName ();
+   }
+
+   @Override
+   Class<?> getSharedEncoder (ObjectModel.Binding bnd)
+   {
+      return cache.getTagEncoder (bnd);
+   }
+
+   @Override
+   void putSharedEncoder (ObjectModel.Binding bnd, Class<?> encClass)
+   {
+      cache.putTagEncoder (bnd, encClass);
+   }
+}
@@ -0,0 +1,875 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+
+import static com.pantor.blink.DynClass.getDescriptor;
+import static com.pantor.blink.CodegenUtil.mapType;
+import static com.pantor.blink.CodegenUtil.mapArrayType;
+
+/**
+   The {@code TextWriterCompiler} is the common base of the compilers
+   that generate encoders for the text formats, the tag format and
+   JSON. The formats share the structure of the generated code and
+   differ only in the writer class whose static methods encode the
+   values, and in how labels, sequence items and the message type are
+   written. The encoder of a format is of type {@code E}.
+ */
+
+abstract class TextWriterCompiler<E>
+{
+   TextWriterCompiler (ObjectModel om, Class<?> writerType,
+                       String dynPackage, String itemSepMethod,
+                       Class<E> encType)
+   {
+      this.om = om;
+      this.cache = CodecCache.getInstance (om);
+      this.writer = DynClass.toInternal (writerType);
+      this.dynPackage = dynPackage;
+      this.itemSepMethod = itemSepMethod;
+      this.encType = encType;
+   }
+
+   // Returns the label written in front of the value of a field
+
+   abstract String getLabel (String field);
+
+   // Returns the text that identifies the type of a message, passed
+   // to the constructor of its encoder
+
+   abstract String getTypeText (ObjectModel.GroupBinding bnd);
+
+   // Looks up and stores classes generated by compilers of the same
+   // format for other writers
+
+   abstract Class<?> getSharedEncoder (ObjectModel.Binding bnd);
+   abstract void putSharedEncoder (ObjectModel.Binding bnd,
+                                   Class<?> encClass);
+
+   // Emits instructions written before and after each item of a
+   // sequence of static groups. Expects the sink in local #1
+
+   void beginItem (DynClass dc)
+   {
+   }
+
+   void endItem (DynClass dc)
+   {
+   }
+
+   public E getEncoder (Class<?> cl) throws BlinkException
+   {
+      E e = encByClass.get (cl);
+      if (e != null)
+         return e;
+      else
+         return compile (cl);
+   }
+
+   public E getEncoder (NsName name) throws BlinkException
+   {
+      E e = encByName.get (name);
+      if (e != null)
+         return e;
+      else
+         return compile (om.getGroupBinding (name));
+   }
+
+   public void primeGroup (NsName name) throws BlinkException
+   {
+      getEncoder (name);
+   }
+
+   // Compiles encoders for all groups in the schema that have a
+   // binding in the object model, and registers them for lookup by
+   // class. Returns the number of primed groups
+
+   public int primeAll () throws BlinkException
+   {
+      int count = 0;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         getEncoder (bnd.getTargetType ());
+         ++ count;
+      }
+
+      return count;
+   }
+
+   public void primeEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException.Binding
+   {
+      if (! enumEncs.contains (bnd.getEnum ().getName ()))
+      {
+         synchronized (cache)
+         {
+            compileEnum (bnd);
+         }
+      }
+   }
+
+   private E compile (Class<?> cl) throws BlinkException
+   {
+      ObjectModel.GroupBinding bnd = om.getGroupBinding (cl);
+      E e = getEncoder (bnd.getGroup ().getName ());
+      encByClass.put (cl, e);
+      return e;
+   }
+
+   // Generates an encoder for the specified binding. The encoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.<format>;
+   //
+   //   public final class <Ns>+<Name>_enc extends <Writer>.Encoder
+   //   {
+   //      public <Ns>+<Name>_enc (String type, Class cl, Schema.Group grp)
+   //      {
+   //         super (type, cl, grp);
+   //      }
+   //
+   //      @Override
+   //      public void encode (Object src, ByteSink sink, <Writer> wr)
+   //      {
+   //         innerEncode ((T)src, sink, wr, true);
+   //      }
+   //  
+   //      public static void encodeArray (T [] objs, ByteSink sink,
+   //                                      <Writer> wr)
+   //      {
+   //         <Writer>.writeDelim ('[', sink);
+   //         for (int i = 0; i < objs.length; ++ i)
+   //         {
+   //            <Writer>.<itemSep> (i, sink);
+   //            <beginItem>
+   //            innerEncode (objs [i], sink, wr, false);
+   //            <endItem>
+   //         }
+   //         <Writer>.writeDelim (']', sink);
+   //      }
+   //  
+   //      public static void innerEncode (T src, ByteSink sink,
+   //                                      <Writer> wr, boolean sep)
+   //      {
+   //         if (<present>)
+   //         {
+   //            <Writer>.writeLabel (sep, <label>, sink);
+   //            sep = true;
+   //            <Writer>.write<Type> (src.get<Name> (), sink);
+   //         }
+   //         ...
+   //      }
+   //   }
+
+   // A field is present if its predicate, if any, returns true and
+   // the getter does not return null. The sep flag is false for the
+   // first field of a static subgroup, which has no leading field
+   // separator.
+   
+   private E compile (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      synchronized (cache)
+      {
+         return compileShared (bnd);
+      }
+   }
+
+   private E compileShared (ObjectModel.GroupBinding bnd)
+      throws BlinkException
+   {
+      Schema.Group g = bnd.getGroup ();
+
+      // Use an encoder generated by another writer if there is one
+
+      Class<?> shared = getSharedEncoder (bnd);
+      if (shared != null)
+         return register (g, shared, createInstance (shared, bnd));
+
+      String encoderName = cache.getUniqueClassName (
+         getEncoderClassName (g.getName ()));
+
+      // Generate encoder class
+      
+      DynClass dc = new DynClass (encoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      String encBase = writer + "$Encoder";
+      String ctorSig =
+         "(Ljava/lang/String;Ljava/lang/Class;Lcom/pantor/blink/Schema$Group;)V";
+      
+      dc.setSuper (encBase);
+
+      // Constructor
+      
+      dc.startPublicMethod ("<init>", ctorSig)
+         .aload0 ().aload1 ().aload2 ().aload3 ()
+         .invokeSpecial (encBase, "<init>", ctorSig)
+         .return_ ().setMaxStack (4).endMethod ();
+
+      // void encode (src, sink, wr)
+
+      String encSig = "(Ljava/lang/Object;Lcom/pantor/blink/ByteSink;L" +
+         writer + ";)V";
+
+      String srcName = bnd.getTargetType ().getName ();
+
+      String innerSig = getInnerEncodeSignature (bnd);
+      
+      dc.startPublicMethod ("encode", encSig)
+         .aload1 ().checkCast (srcName).aload2 ().aload3 ().iconst1 ()
+         .invokeStatic (encoderName, "innerEncode", innerSig)
+         .return_ ().setMaxStack (4).endMethod ();
+
+      // public static void encodeArray (T [] objs, sink, wr)
+
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("encodeArray", getEncodeArraySignature (bnd));
+      writeDelim (dc, '[');
+      dc.iconst0 ()
+         .istore3 () // i = 0
+         .label (loop)
+         .iload3 () // i
+         .aload0 () // objs
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= objs.length
+         .iload3 () // i
+         .aload1 (); // sink
+      invokeWriter (dc, itemSepMethod, "I");
+      beginItem (dc);
+      dc.aload0 () // objs
+         .iload3 () // i
+         .aaload () // objs [i]
+         .aload1 () // sink
+         .aload2 () // wr
+         .iconst0 () // no leading separator
+         .invokeStatic (encoderName, "innerEncode", innerSig);
+      endItem (dc);
+      dc.iinc (3, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd);
+      writeDelim (dc, ']');
+      dc.return_ ()
+         .setMaxStack (4)
+         .endMethod ();
+      
+      // static void innerEncode (src, sink, wr, sep)
+      
+      dc.startPublicStaticMethod ("innerEncode", innerSig);
+
+      // Emit encoding instructions for each field
+      
+      for (ObjectModel.Field f : bnd)
+         compile (f, dc);
+
+      dc.return_ ().setMaxStack (5).endMethod ();
+
+      // Create an instance of the generated encoder
+      
+      Class<?> encClass = cache.load (dc.getName (), dc.render (),
+                                      bnd.getTargetType ());
+      putSharedEncoder (bnd, encClass);
+      return register (g, encClass, createInstance (encClass, bnd));
+   }
+
+   // Stores an encoder and the name of its class for future lookups
+
+   private E register (Schema.Group g, Class<?> encClass,
+                                       E enc)
+   {
+      encByName.put (g.getName (), enc);
+      classByName.put (g.getName (), encClass.getName ());
+      return enc;
+   }
+
+   private static String getClassName (NsName nm)
+   {
+      if (nm.isQualified ())
+         return nm.getNs () + "+" + nm.getName ();
+      else
+         return nm.getName ();
+   }
+   
+   private String getEncoderClassName (NsName nm)
+   {
+      return dynPackage + getClassName (nm) + "_enc";
+   }
+
+   private String getEncodeArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/ByteSink;L" + writer + ";)V";
+   }
+
+   private String getInnerEncodeSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/ByteSink;L" + writer + ";Z)V";
+   }
+
+   private static String getEncodeEnumSignature (ObjectModel.Binding bnd)
+   {
+      return "(L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/ByteSink;)V";
+   }
+
+   private static String getEncodeEnumArraySignature (ObjectModel.Binding bnd)
+   {
+      return "([L" + DynClass.toInternal (bnd.getTargetType ()) +
+         ";Lcom/pantor/blink/ByteSink;)V";
+   }
+
+   // Invokes a static method of the writer taking the specified
+   // arguments followed by the sink
+
+   void invokeWriter (DynClass dc, String m, String args)
+   {
+      dc.invokeStatic (writer, m,
+                       "(" + args + "Lcom/pantor/blink/ByteSink;)V");
+   }
+
+   // Writes a delimiter. Expects the sink in local #1
+   
+   void writeDelim (DynClass dc, char c)
+   {
+      dc.bipush ((byte)c);
+      dc.aload1 (); // sink
+      invokeWriter (dc, "writeDelim", "I");
+   }
+
+   // Emits instructions that write a field if it is present. Locals:
+   // #0 src, #1 sink, #2 wr, #3 sep and #4 the value of a field of
+   // reference type
+   
+   private void compile (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.Field sf = f.getField ();
+      Method getter = f.getGetter ();
+
+      if (getter == null)
+         return;
+
+      int end = dc.declareLabel ();
+      
+      if (sf.isOptional ())
+      {
+         Method pred = f.getPredicate ();
+         if (pred != null)
+         {
+            dc.aload0 (); // src
+            dc.invoke (pred);
+            dc.ifEq (end); // Jump if not present
+         }
+      }
+
+      boolean isRef = ! getter.getReturnType ().isPrimitive ();
+      if (isRef)
+      {
+         dc.aload0 () // src
+            .invoke (getter);
+         dc.astore (4) // val
+            .aload (4)
+            .ifNull (end); // Jump if null
+      }
+
+      dc.iload3 () // sep
+         .ldc (getLabel (sf.getName ()))
+         .aload1 (); // sink
+      dc.invokeStatic (writer, "writeLabel",
+                       "(ZLjava/lang/String;Lcom/pantor/blink/ByteSink;)V");
+      dc.iconst1 ()
+         .istore3 (); // sep = true
+
+      Schema.TypeInfo t = f.getFieldType ();
+      if (! t.isSequence ())
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixed (f, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDec (f, dc);
+            else
+               compilePrim (f, dc);
+         }
+         else if (t.isEnum ())
+            compileEnum (f, dc);
+         else // Object or Group
+            compileGroupField (f, dc);
+      }
+      else
+      {
+         if (t.isPrimitive ())
+         {
+            if (t.getType ().getCode () == Schema.TypeCode.Fixed)
+               compileFixedSeq (f, dc);
+            else if (t.getType ().getCode () == Schema.TypeCode.FixedDec)
+               compileFixedDecSeq (f, dc);
+            else
+               compilePrimSeq (f, dc);
+         }
+         else if (t.isEnum ())
+            compileEnumSeq (f, dc);
+         else // Object or Group
+            compileGroupSeqField (f, dc);
+      }
+
+      dc.label (end);
+   }
+
+   // Pushes the value of a field. Values of reference type have
+   // already been stored in local #4
+   
+   private static void pushValue (ObjectModel.Field f, DynClass dc)
+   {
+      Method getter = f.getGetter ();
+      if (getter.getReturnType ().isPrimitive ())
+      {
+         dc.aload0 (); // src
+         dc.invoke (getter);
+      }
+      else
+         dc.aload (4); // val
+   }
+   
+   private void compilePrim (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode code = f.getFieldType ().getType ().getCode ();
+      if (code == Schema.TypeCode.String &&
+          hasGetterRetType (f, Utf8Slice.class))
+      {
+         pushValue (f, dc);
+         dc.aload1 (); // sink
+         invokeWriter (dc, "writeUtf8Slice", "Lcom/pantor/blink/Utf8Slice;");
+         return;
+      }
+      Class<?> argType = mapType (code);
+      requireGetterRetType (f, argType);
+      pushValue (f, dc);
+      dc.aload1 (); // sink
+      invokeWriter (dc, "write" + code.toString (), getDescriptor (argType));
+   }
+
+   private void compileFixedDec (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      Class<?> retType = getGetterRetType (f);
+      if (FixedDec.class.isAssignableFrom (retType))
+      {
+         pushValue (f, dc);
+         dc.ldc (ft.getScale ());
+         dc.aload1 (); // sink
+         invokeWriter (dc, "writeBoxedFixedDec", "Lcom/pantor/blink/FixedDec;I");
+      }
+      else
+      {
+         requireGetterRetType (f, Long.TYPE);
+         pushValue (f, dc);
+         dc.ldc (ft.getScale ());
+         dc.aload1 (); // sink
+         invokeWriter (dc, "writeFixedDec", "JI");
+      }
+   }
+   
+   private void compileFixed (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      requireGetterRetType (f, byte [].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushValue (f, dc);
+      dc.ldc (ft.getSize ());
+      dc.aload1 (); // sink
+      invokeWriter (dc, "writeFixed", "[BI");
+   }
+
+   private void compileFixedSeq (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      requireGetterRetType (f, byte [][].class);
+      Schema.FixedType ft = (Schema.FixedType)f.getFieldType ().getType ();
+      pushValue (f, dc);
+      dc.ldc (ft.getSize ());
+      dc.aload1 (); // sink
+      invokeWriter (dc, "writeFixedArray", "[[BI");
+   }
+
+   private void compileFixedDecSeq (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.FixedDecType ft = (Schema.FixedDecType)f.getFieldType ().getType ();
+      Class<?> compType = getGetterRetType (f).getComponentType ();
+      if (compType != null && FixedDec.class.isAssignableFrom (compType))
+      {
+         pushValue (f, dc);
+         dc.ldc (ft.getScale ());
+         dc.aload1 (); // sink
+         invokeWriter (dc, "writeBoxedFixedDecArray",
+                       "[Lcom/pantor/blink/FixedDec;I");
+      }
+      else
+      {
+         requireGetterRetType (f, long [].class);
+         pushValue (f, dc);
+         dc.ldc (ft.getScale ());
+         dc.aload1 (); // sink
+         invokeWriter (dc, "writeFixedDecArray", "[JI");
+      }
+   }
+   
+   private void compilePrimSeq (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeCode code = f.getFieldType ().getType ().getCode ();
+      Class<?> argType = mapArrayType (code);
+      requireGetterRetType (f, argType);
+      pushValue (f, dc);
+      dc.aload1 (); // sink
+      invokeWriter (dc, "write" + code.toString () + "Array",
+                    getDescriptor (argType));
+   }
+
+   private void compileEnum (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+      requireGetterRetType (f, comp.getTargetType ());
+      primeEnum (comp);
+      pushValue (f, dc);
+      dc.aload1 (); // sink
+      dc.invokeStatic (classByName.get (comp.getEnum ().getName ()),
+                       "encode", getEncodeEnumSignature (comp));
+   }
+
+   private void compileEnumSeq (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      ObjectModel.EnumBinding comp = f.getComponent ().toEnum ();
+      requireGetterRetType (f, DynClass.getArrayClass (comp.getTargetType ()));
+      primeEnum (comp);
+      pushValue (f, dc);
+      dc.aload1 (); // sink
+      dc.invokeStatic (classByName.get (comp.getEnum ().getName ()),
+                       "encodeArray", getEncodeEnumArraySignature (comp));
+   }
+   
+   private void compileGroupField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      
+      if (t.isDynamic () || t.isObject ())
+      {
+         dc.aload2 (); // wr
+         pushValue (f, dc);
+         dc.aload1 (); // sink
+         dc.invokeVirtual (writer, "writeDynGroup",
+                           "(Ljava/lang/Object;Lcom/pantor/blink/ByteSink;)V");
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         primeGroup (comp.getGroup ().getName ());
+         writeDelim (dc, '{');
+         pushValue (f, dc);
+         dc.aload1 () // sink
+            .aload2 () // wr
+            .iconst0 (); // no leading separator
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                          "innerEncode", getInnerEncodeSignature (comp));
+         writeDelim (dc, '}');
+      }
+   }
+
+   private void compileGroupSeqField (ObjectModel.Field f, DynClass dc)
+      throws BlinkException
+   {
+      Schema.TypeInfo t = f.getFieldType ();
+      
+      if (t.isObject () || t.isDynamic ())
+      {
+         dc.aload2 (); // wr
+         pushValue (f, dc);
+         dc.aload1 (); // sink
+         dc.invokeVirtual (writer, "writeDynGroupArray",
+                           "([Ljava/lang/Object;Lcom/pantor/blink/ByteSink;)V");
+      }
+      else
+      {
+         ObjectModel.GroupBinding comp = f.getComponent ().toGroup ();
+         primeGroup (comp.getGroup ().getName ());
+         pushValue (f, dc);
+         dc.aload1 () // sink
+            .aload2 (); // wr
+         dc.invokeStatic (classByName.get (comp.getGroup ().getName ()),
+                          "encodeArray", getEncodeArraySignature (comp));
+      }
+   }
+
+   // Generates an enum encoder for the specified binding. The encoder has
+   // the following general layout
+
+   //   package com.pantor.blink.dyn.<format>;
+   //
+   //   public final class <Ns>+<Name>_enc
+   //   {
+   //      public static void encode (T sym, ByteSink sink)
+   //      {
+   //         <Writer>.writeSymbol ((String)map.get (sym), sink);
+   //      }
+   //  
+   //      public static void encodeArray (T [] syms, ByteSink sink)
+   //      {
+   //         <Writer>.writeDelim ('[', sink);
+   //         for (int i = 0; i < syms.length; ++ i)
+   //         {
+   //            <Writer>.<itemSep> (i, sink);
+   //            encode (syms [i], sink);
+   //         }
+   //         <Writer>.writeDelim (']', sink);
+   //      }
+   //
+   //      private final static java.util.EnumMap<T, String> map;
+   //      
+   //      static
+   //      {
+   //         map = new java.util.EnumMap<T, String> (T.class);
+   //         map.put (T.Red, "Red");
+   //         map.put (T.Green, "Green");
+   //         map.put (T.Blue, "Blue");
+   //      }
+   //   }
+   
+   private void compileEnum (ObjectModel.EnumBinding bnd)
+      throws BlinkException.Binding
+   {
+      Schema.Define d = bnd.getEnum ();
+
+      Class<?> shared = getSharedEncoder (bnd);
+      if (shared != null)
+      {
+         classByName.put (d.getName (), shared.getName ());
+         enumEncs.add (d.getName ());
+         return;
+      }
+         
+      String encoderName = cache.getUniqueClassName (
+         getEncoderClassName (d.getName ()));
+
+      // Generate encoder class
+      
+      DynClass dc = new DynClass (encoderName);
+      dc.setFlags (DynClass.ClassFlag.Final);
+
+      dc.addField ("map", "Ljava/util/EnumMap;", DynClass.FieldFlag.Private,
+                   DynClass.FieldFlag.Final, DynClass.FieldFlag.Static);
+
+      Class<?> enumType = bnd.getTargetType ();
+
+      // public static void encode (sym, sink)
+
+      dc.startPublicStaticMethod ("encode", getEncodeEnumSignature (bnd))
+         .getStatic (encoderName, "map", "Ljava/util/EnumMap;")
+         .aload0 () // sym
+         .invokeVirtual ("java.util.EnumMap", "get",
+                         "(Ljava/lang/Object;)Ljava/lang/Object;")
+         .checkCast ("java.lang.String")
+         .aload1 (); // sink
+      invokeWriter (dc, "writeSymbol", "Ljava/lang/String;");
+      dc.return_ ().setMaxStack (2).endMethod ();
+      
+      // public static void encodeArray (syms, sink)
+
+      int loop = dc.declareLabel ();
+      int loopEnd = dc.declareLabel ();
+
+      dc.startPublicStaticMethod ("encodeArray",
+                                  getEncodeEnumArraySignature (bnd));
+      writeDelim (dc, '[');
+      dc.iconst0 ()
+         .istore2 () // i = 0
+         .label (loop)
+         .iload2 () // i
+         .aload0 () // syms
+         .arrayLength ()
+         .ifIcmpGe (loopEnd) // jump if i >= syms.length
+         .iload2 () // i
+         .aload1 (); // sink
+      invokeWriter (dc, itemSepMethod, "I");
+      dc.aload0 () // syms
+         .iload2 () // i
+         .aaload () // syms [i]
+         .aload1 () // sink
+         .invokeStatic (encoderName, "encode", getEncodeEnumSignature (bnd))
+         .iinc (2, 1) // ++ i
+         .goto_ (loop)
+         .label (loopEnd);
+      writeDelim (dc, ']');
+      dc.return_ ()
+         .setMaxStack (3)
+         .endMethod ();
+      
+      // static init
+      
+      dc.startMethod ("<clinit>", "()V", DynClass.MtodFlag.Static);
+
+      dc.new_ ("java.util.EnumMap");
+      dc.dup ();
+      dc.ldcClass (enumType);
+      dc.invokeSpecial ("java.util.EnumMap", "<init>", "(Ljava/lang/Class;)V");
+      dc.dup ();
+      dc.putStatic (encoderName, "map", "Ljava/util/EnumMap;");
+      dc.astore0 ();
+
+      for (ObjectModel.Symbol sym : bnd)
+         if (sym.getTargetName () != null)
+         {
+            dc.aload0 ();
+            dc.ldc (sym.getTargetName ());
+            dc.invokeStatic (enumType, "valueOf", "(Ljava/lang/String;)L" +
+                             DynClass.toInternal (enumType) + ";");
+            dc.ldc (sym.getSymbol ().getName ());
+            dc.invokeVirtual ("java.util.EnumMap", "put",
+                              "(Ljava/lang/Object;Ljava/lang/Object;" +
+                              ")Ljava/lang/Object;");
+            dc.pop ();
+         }
+
+      dc.return_ ();
+      dc.setMaxStack (3);
+      dc.endMethod ();
+
+      // Load the class
+
+      Class<?> encClass = cache.load (dc.getName (), dc.render (), enumType);
+      putSharedEncoder (bnd, encClass);
+
+      classByName.put (d.getName (), encoderName);
+      enumEncs.add (d.getName ());
+   }
+
+   private E createInstance (Class<?> encClass,
+                                             ObjectModel.GroupBinding bnd)
+      throws BlinkException.Binding
+   {
+      try
+      {
+         Class<?> tgtType = bnd.getTargetType ();
+         Constructor<?> ctor = encClass.getConstructor (
+            String.class, Class.class, Schema.Group.class);
+         
+         return encType.cast (ctor.newInstance (
+            getTypeText (bnd), tgtType, bnd.getGroup ()));
+      }
+      catch (NoSuchMethodException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InstantiationException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new BlinkException.Binding (e);
+      }
+   }
+
+   private static BlinkException.Binding typeMismatch (ObjectModel.Field f)
+   {
+      return new BlinkException.Binding (
+         "Cannot use '" + f.getGetter () + "' to get field '" + f +
+         "': type mismatch", f.getLocation ());
+   }
+   
+   private static boolean hasGetterRetType (ObjectModel.Field f, Class<?> t)
+   {
+      return t == getGetterRetType (f);
+   }
+
+   private static void requireGetterRetType (ObjectModel.Field f, Class<?> t)
+      throws BlinkException.Binding
+   {
+      if (! hasGetterRetType (f, t))
+         throw typeMismatch (f);
+   }
+
+   private static Class<?> getGetterRetType (ObjectModel.Field f)
+   {
+      Method getter = f.getGetter ();
+      if (getter != null)
+         return getter.getReturnType ();
+      else
+         return null;
+   }
+   
+   private final HashMap<Class<?>, E> encByClass =
+      new HashMap<Class<?>, E> ();
+   private final HashMap<NsName, E> encByName =
+      new HashMap<NsName, E> ();
+   private final ObjectModel om;
+   private final HashMap<NsName, String> classByName =
+      new HashMap<NsName, String> ();
+   private final HashSet<NsName> enumEncs = new HashSet <NsName> ();
+   private final String writer;
+   private final String dynPackage;
+   private final String itemSepMethod;
+   private final Class<E> encType;
+   final CodecCache cache;
+}
@@ -0,0 +1,399 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+   The {@code Utf8Slice} class is a mutable and reusable holder of a
+   UTF-8 encoded string value.
+
+   <p>A Blink {@code string} field can be bound to a {@code Utf8Slice}
+   instead of a {@code String} by declaring the getter and setter of
+   the field with this type. The decoder copies the encoded bytes into
+   the slice returned by the getter, if any, and passes it to the
+   setter. A new slice is only allocated when the getter returns
+   {@code null} or is missing. The encoder writes the bytes of the
+   slice directly to the sink. This allows string bearing messages to
+   be processed without allocating a {@code String} per field.</p>
+
+   <p>The slice implements {@code CharSequence}. If the value is pure
+   ASCII, characters are read directly from the underlying bytes.
+   Otherwise the value is decoded into a character buffer on first
+   access.</p>
+
+   <p>Note that the content of a slice is overwritten each time the
+   object it belongs to is decoded into, so a slice must be copied, for
+   example through {@code toString}, if the value is to be retained.</p>
+ */
+
+public final class Utf8Slice implements CharSequence, Comparable<Utf8Slice>
+{
+   /**
+      Creates an empty slice
+    */
+
+   public Utf8Slice ()
+   {
+      this (16);
+   }
+
+   /**
+      Creates an empty slice with the specified initial capacity in
+      bytes
+
+      @param capacity the initial capacity
+    */
+   
+   public Utf8Slice (int capacity)
+   {
+      data = new byte [Math.max (capacity, 1)];
+   }
+
+   /**
+      Creates a slice holding the UTF-8 encoding of the specified
+      characters
+
+      @param s the initial value
+    */
+
+   public Utf8Slice (CharSequence s)
+   {
+      this (s.length ());
+      set (s);
+   }
+
+   /**
+      Reads the specified number of bytes from a byte source into this
+      slice, replacing its current content
+
+      @param src the source to read from
+      @param size the number of bytes to read
+    */
+   
+   public void read (ByteSource src, int size)
+   {
+      ensureCapacity (size);
+      src.read (data, 0, size);
+      this.size = size;
+      invalidate ();
+   }
+
+   /**
+      Sets the content of this slice to a copy of the specified bytes,
+      which must be UTF-8 encoded
+
+      @param a the bytes
+      @param from the index of the first byte to copy
+      @param len the number of bytes to copy
+      @return this slice
+    */
+   
+   public Utf8Slice set (byte [] a, int from, int len)
+   {
+      ensureCapacity (len);
+      System.arraycopy (a, from, data, 0, len);
+      size = len;
+      invalidate ();
+      return this;
+   }
+
+   /**
+      Sets the content of this slice to the UTF-8 encoding of the
+      specified characters
+
+      @param s the new value
+      @return this slice
+    */
+   
+   public Utf8Slice set (CharSequence s)
+   {
+      int len = s.length ();
+      ensureCapacity (len);
+      int i = 0;
+      for (; i < len; ++ i)
+      {
+         char c = s.charAt (i);
+         if (c < 0x0080)
+            data [i] = (byte)c;
+         else
+            break;
+      }
+
+      if (i == len)
+      {
+         size = len;
+         invalidate ();
+         ascii = Yes;
+      }
+      else
+      {
+         byte [] enc = getUtf8Bytes (s.toString ());
+         set (enc, 0, enc.length);
+      }
+      
+      return this;
+   }
+
+   /**
+      Empties this slice
+    */
+   
+   public void clear ()
+   {
+      size = 0;
+      invalidate ();
+   }
+
+   /**
+      Returns the number of UTF-8 encoded bytes in this slice
+
+      @return the size in bytes
+    */
+   
+   public int size () { return size; }
+
+   /**
+      Returns the byte at the specified index
+
+      @param i the index
+      @return the byte at the index
+    */
+
+   public byte byteAt (int i)
+   {
+      if (i >= size)
+         throw new IndexOutOfBoundsException ("Index: " + i + ", size: " +
+                                              size);
+      return data [i];
+   }
+
+   /**
+      Returns the underlying byte array. Only the first {@code size ()}
+      bytes are valid. The array may be replaced when this slice grows.
+
+      @return the underlying byte array
+    */
+   
+   public byte [] array () { return data; }
+
+   /**
+      Writes the UTF-8 encoded bytes of this slice to a sink. The
+      caller is responsible for making sure that the sink has room for
+      {@code size ()} bytes.
+
+      @param sink the sink to write to
+    */
+
+   public void writeTo (ByteSink sink)
+   {
+      sink.write (data, 0, size);
+   }
+
+   /**
+      Returns {@code true} if all characters in this slice are ASCII
+
+      @return {@code true} if this slice is pure ASCII
+    */
+   
+   public boolean isAscii ()
+   {
+      if (ascii == Unknown)
+      {
+         ascii = Yes;
+         for (int i = 0; i < size; ++ i)
+            if (data [i] < 0)
+            {
+               ascii = No;
+               break;
+            }
+      }
+      
+      return ascii == Yes;
+   }
+   
+   @Override
+   public int length ()
+   {
+      if (isAscii ())
+         return size;
+      else
+         return decode ().length;
+   }
+
+   @Override
+   public char charAt (int index)
+   {
+      if (isAscii ())
+      {
+         if (index >= size)
+            throw new IndexOutOfBoundsException ("Index: " + index +
+                                                 ", length: " + size);
+         return (char)data [index];
+      }
+      else
+         return decode () [index];
+   }
+
+   @Override
+   public CharSequence subSequence (int start, int end)
+   {
+      if (isAscii ())
+      {
+         if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException (
+               "Start: " + start + ", end: " + end + ", length: " + size);
+         return new Utf8Slice (end - start).set (data, start, end - start);
+      }
+      else
+         return toString ().subSequence (start, end);
+   }
+
+   @Override
+   public String toString ()
+   {
+      try
+      {
+         return new String (data, 0, size, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new RuntimeException (e);
+      }
+   }
+
+   /**
+      Returns {@code true} if this slice holds the same characters as
+      the specified character sequence
+
+      @param s the characters to compare with
+      @return {@code true} if the characters are equal
+    */
+   
+   public boolean contentEquals (CharSequence s)
+   {
+      int len = length ();
+      if (len != s.length ())
+         return false;
+      for (int i = 0; i < len; ++ i)
+         if (charAt (i) != s.charAt (i))
+            return false;
+      return true;
+   }
+
+   @Override
+   public boolean equals (Object o)
+   {
+      if (this == o)
+         return true;
+      if (! (o instanceof Utf8Slice))
+         return false;
+      Utf8Slice other = (Utf8Slice)o;
+      if (size != other.size)
+         return false;
+      for (int i = 0; i < size; ++ i)
+         if (data [i] != other.data [i])
+            return false;
+      return true;
+   }
+
+   @Override
+   public int hashCode ()
+   {
+      int h = 1;
+      for (int i = 0; i < size; ++ i)
+         h = 31 * h + data [i];
+      return h;
+   }
+
+   // Compares the UTF-8 encoded bytes as unsigned values, which
+   // corresponds to code point order
+
+   @Override
+   public int compareTo (Utf8Slice o)
+   {
+      int n = Math.min (size, o.size);
+      for (int i = 0; i < n; ++ i)
+      {
+         int a = data [i] & 0xff;
+         int b = o.data [i] & 0xff;
+         if (a != b)
+            return a - b;
+      }
+      return size - o.size;
+   }
+   
+   private void ensureCapacity (int capacity)
+   {
+      if (capacity > data.length)
+         data = new byte [Math.max (capacity, data.length * 2)];
+   }
+
+   private void invalidate ()
+   {
+      ascii = Unknown;
+      chars = null;
+   }
+
+   private char [] decode ()
+   {
+      if (chars == null)
+         chars = toString ().toCharArray ();
+      return chars;
+   }
+
+   private static byte [] getUtf8Bytes (String s)
+   {
+      try
+      {
+         return s.getBytes ("UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new RuntimeException (e);
+      }
+   }
+
+   private static final byte Unknown = 0;
+   private static final byte Yes = 1;
+   private static final byte No = 2;
+
+   private byte [] data;
+   private int size;
+   private byte ascii = Yes;
+   private char [] chars;
+}
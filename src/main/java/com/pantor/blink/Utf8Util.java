@@ -66,7 +66,7 @@ public final class Utf8Util
             if (i < len)
             {
                char c2 = val.charAt (i);
-               int u = (int)c << 10 + (int)c2 + SurrogateOffset;
+               int u = ((int)c << 10) + (int)c2 + SurrogateOffset;
 
                sink.write (0xf0 | ((u >> 18) & 0x07),
                            0x80 | ((u >> 12) & 0x3f),
@@ -82,6 +82,37 @@ public final class Utf8Util
       return sink.getPos () - start;
    }
 
+   // Returns the exact number of bytes that write will produce for
+   // the specified string
+
+   public static int getSize (String val)
+      throws BlinkException.Encode
+   {
+      int len = val.length ();
+      int size = len;
+      for (int i = 0; i < len; ++ i)
+      {
+         char c = val.charAt (i);
+         if (c < 0x0080)
+            continue;
+         else if (c < 0x0800)
+            size += 1;
+         else if (c < 0xd800 || c > 0xdfff)
+            size += 2;
+         else
+         {
+            ++ i;
+            if (i < len)
+               size += 2; // Four bytes for two chars
+            else
+               throw new BlinkException.Encode (
+                  "Incomplete UTF-16 surrogate pair");
+         }
+      }
+
+      return size;
+   }
+
    public static int getConservativeSize (int size)
    {
       return size * 4;
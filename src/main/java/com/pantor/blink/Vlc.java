@@ -62,6 +62,85 @@ public final class Vlc
          return 5;
    }
    
+   // The following size functions return the number of bytes the
+   // corresponding write function will produce for a value
+
+   public static int getU32Size (int val)
+   {
+      if (val < 0)
+         return 5;
+      else if (val < 0x00000080)
+         return 1;
+      else if (val < 0x00004000)
+         return 2;
+      else if (val < 0x00010000)
+         return 3;
+      else if (val < 0x01000000)
+         return 4;
+      else
+         return 5;
+   }
+
+   public static int getI32Size (int val)
+   {
+      if (val >= 0)
+      {
+         if (val < 0x00000040)
+            return 1;
+         else if (val < 0x00002000)
+            return 2;
+         else if (val < 0x00008000)
+            return 3;
+         else if (val < 0x00800000)
+            return 4;
+         else
+            return 5;
+      }
+      else
+      {
+         if (val >= -64)
+            return 1;
+         else if (val >= -8192)
+            return 2;
+         else if (val >= -32768)
+            return 3;
+         else if (val >= -8388608)
+            return 4;
+         else
+            return 5;
+      }
+   }
+
+   public static int getU64Size (long val)
+   {
+      if (val < 0)
+         return 9;
+      else if (val < 0x0000000100000000L)
+         return getU32Size ((int)val); // Negative int means five bytes
+      else if (val < 0x0000010000000000L)
+         return 6;
+      else if (val < 0x0001000000000000L)
+         return 7;
+      else if (val < 0x0100000000000000L)
+         return 8;
+      else
+         return 9;
+   }
+
+   public static int getI64Size (long val)
+   {
+      if (val >= -2147483648L && val < 0x0000000080000000L)
+         return getI32Size ((int)val);
+      else if (val >= -549755813888L && val < 0x0000008000000000L)
+         return 6;
+      else if (val >= -140737488355328L && val < 0x0000800000000000L)
+         return 7;
+      else if (val >= -36028797018963968L && val < 0x0080000000000000L)
+         return 8;
+      else
+         return 9;
+   }
+   
    public static void write7 (int val, ByteSink sink)
    {
       sink.write (val & 0x7f);
@@ -440,9 +519,7 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 2)
             throw overflowError ("u16", src);
-         int val = 0;
-         for (int i = 0; i < w; ++ i)
-            val |= src.get (i + 1) << (i << 3);
+         int val = (int)getLittleEndian (src, w);
          src.step (w + 1);
          return (short)val;
       }
@@ -467,9 +544,7 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 4)
             throw overflowError ("u32", src);
-         int val = 0;
-         for (int i = 0; i < w; ++ i)
-            val |= src.get (i + 1) << (i << 3);
+         int val = (int)getLittleEndian (src, w);
          src.step (w + 1);
          return val;
       }
@@ -494,9 +569,7 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 8)
             throw overflowError ("u64", src);
-         long val = 0;
-         for (int i = 0; i < w; ++ i)
-            val |= (long)src.get (i + 1) << (i << 3);
+         long val = getLittleEndian (src, w);
          src.step (w + 1);
          return val;
       }
@@ -546,9 +619,7 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 2)
             throw overflowError ("i16", src);
-         int val = 0;
-         for (int i = 0; i < w; ++ i)
-            val |= src.get (i + 1) << (i << 3);
+         int val = (int)getLittleEndian (src, w);
          src.step (w + 1);
          int bits = (4 - w) << 3;
          return (short)((val << bits) >> bits);
@@ -574,9 +645,7 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 4)
             throw overflowError ("i32", src);
-         int val = 0;
-         for (int i = 0; i < w; ++ i)
-            val |= src.get (i + 1) << (i << 3);
+         int val = (int)getLittleEndian (src, w);
          src.step (w + 1);
          int bits = (4 - w) << 3;
          return (val << bits) >> bits;
@@ -603,17 +672,151 @@ public final class Vlc
          int w = b & 0x3f;
          if (w > 8)
             throw overflowError ("i64", src);
-         long val = 0;
-
-         for (int i = 0; i < w; ++ i)
-            val |= (long)src.get (i + 1) << (i << 3);
- 
+         long val = getLittleEndian (src, w);
          src.step (w + 1);
          int bits = (8 - w) << 3;
          return (val << bits) >> bits;
       }
    }
    
+   // Bulk coding of the elements of primitive sequences. The length
+   // preamble is not included. The caller must make sure that the
+   // sink has room for the encoded elements
+
+   public static void readU32Array (ByteSource src, int [] dst)
+      throws BlinkException.Decode
+   {
+      if (src instanceof ByteBuf)
+         ((ByteBuf)src).readU32Array (dst);
+      else if (src instanceof DirectBuf)
+         ((DirectBuf)src).readU32Array (dst);
+      else
+         for (int i = 0; i < dst.length; ++ i)
+            dst [i] = readU32 (src);
+   }
+
+   public static void readI32Array (ByteSource src, int [] dst)
+      throws BlinkException.Decode
+   {
+      if (src instanceof ByteBuf)
+         ((ByteBuf)src).readI32Array (dst);
+      else if (src instanceof DirectBuf)
+         ((DirectBuf)src).readI32Array (dst);
+      else
+         for (int i = 0; i < dst.length; ++ i)
+            dst [i] = readI32 (src);
+   }
+
+   public static void readU64Array (ByteSource src, long [] dst)
+      throws BlinkException.Decode
+   {
+      if (src instanceof ByteBuf)
+         ((ByteBuf)src).readU64Array (dst);
+      else if (src instanceof DirectBuf)
+         ((DirectBuf)src).readU64Array (dst);
+      else
+         for (int i = 0; i < dst.length; ++ i)
+            dst [i] = readU64 (src);
+   }
+
+   public static void readI64Array (ByteSource src, long [] dst)
+      throws BlinkException.Decode
+   {
+      if (src instanceof ByteBuf)
+         ((ByteBuf)src).readI64Array (dst);
+      else if (src instanceof DirectBuf)
+         ((DirectBuf)src).readI64Array (dst);
+      else
+         for (int i = 0; i < dst.length; ++ i)
+            dst [i] = readI64 (src);
+   }
+
+   public static void readF64Array (ByteSource src, double [] dst)
+      throws BlinkException.Decode
+   {
+      if (src instanceof ByteBuf)
+         ((ByteBuf)src).readF64Array (dst);
+      else if (src instanceof DirectBuf)
+         ((DirectBuf)src).readF64Array (dst);
+      else
+         for (int i = 0; i < dst.length; ++ i)
+            dst [i] = Double.longBitsToDouble (readU64 (src));
+   }
+
+   public static void writeU32Array (int [] val, ByteSink sink)
+   {
+      if (sink instanceof ByteBuf)
+         ((ByteBuf)sink).writeU32Array (val);
+      else if (sink instanceof DirectBuf)
+         ((DirectBuf)sink).writeU32Array (val);
+      else
+         for (int i = 0; i < val.length; ++ i)
+            writeU32 (val [i], sink);
+   }
+
+   public static void writeI32Array (int [] val, ByteSink sink)
+   {
+      if (sink instanceof ByteBuf)
+         ((ByteBuf)sink).writeI32Array (val);
+      else if (sink instanceof DirectBuf)
+         ((DirectBuf)sink).writeI32Array (val);
+      else
+         for (int i = 0; i < val.length; ++ i)
+            writeI32 (val [i], sink);
+   }
+
+   public static void writeU64Array (long [] val, ByteSink sink)
+   {
+      if (sink instanceof ByteBuf)
+         ((ByteBuf)sink).writeU64Array (val);
+      else if (sink instanceof DirectBuf)
+         ((DirectBuf)sink).writeU64Array (val);
+      else
+         for (int i = 0; i < val.length; ++ i)
+            writeU64 (val [i], sink);
+   }
+
+   public static void writeI64Array (long [] val, ByteSink sink)
+   {
+      if (sink instanceof ByteBuf)
+         ((ByteBuf)sink).writeI64Array (val);
+      else if (sink instanceof DirectBuf)
+         ((DirectBuf)sink).writeI64Array (val);
+      else
+         for (int i = 0; i < val.length; ++ i)
+            writeI64 (val [i], sink);
+   }
+
+   public static void writeF64Array (double [] val, ByteSink sink)
+   {
+      if (sink instanceof ByteBuf)
+         ((ByteBuf)sink).writeF64Array (val);
+      else if (sink instanceof DirectBuf)
+         ((DirectBuf)sink).writeF64Array (val);
+      else
+         for (int i = 0; i < val.length; ++ i)
+            writeI64 (Double.doubleToLongBits (val [i]), sink);
+   }
+
+   // Returns the w bytes following the VLC header byte at the current
+   // position as an unsigned little endian value. Buffers with direct
+   // access to their storage fetch all bytes in a single word load
+
+   private static long getLittleEndian (ByteSource src, int w)
+   {
+      if (src instanceof ByteBuf)
+         return ((ByteBuf)src).getLittleEndian (w);
+      else if (src instanceof DirectBuf)
+         return ((DirectBuf)src).getLittleEndian (w);
+      else
+      {
+         long val = 0;
+         for (int i = 0; i < w; ++ i)
+            val |= (long)src.get (i + 1) << (i << 3);
+         return val;
+      }
+   }
+   
    public static BlinkException.Decode overflowError (
       String type, ByteSource src)
    {
@@ -0,0 +1,343 @@
+// Copyright (c) 2013, Pantor Engineering AB
+//
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+//  * Redistributions of source code must retain the above copyright
+//    notice, this list of conditions and the following disclaimer.
+//
+//  * Redistributions in binary form must reproduce the above
+//    copyright notice, this list of conditions and the following
+//    disclaimer in the documentation and/or other materials provided
+//    with the distribution.
+//
+//  * Neither the name of Pantor Engineering AB nor the names of its
+//    contributors may be used to endorse or promote products derived
+//    from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+//
+// IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE
+// FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT
+// OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+// BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+// LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+// USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH
+// DAMAGE.
+
+package com.pantor.blink;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+   The {@code Warmup} class pushes synthetic messages through the
+   generated encoders and decoders of a {@link CompactWriter} and a
+   {@link CompactReader}, so that the generated code has been
+   compiled by the JIT before the first real message arrives.
+
+   <p>A synthetic message is created for every group in the schema
+   that has a type identifier and a binding to a class that can be
+   instantiated. All fields are populated with small placeholder
+   values. Sequences get two elements, and static and dynamic
+   subgroups are populated recursively. Groups where no valid message
+   can be synthesized, for example because of a required field of
+   type {@code object}, are silently left out.</p>
+
+   <p>The messages are encoded into a private buffer and decoded
+   without being dispatched to any observers, and the string cache
+   of the reader is left untouched, so a warmup can be run on the
+   same reader and writer that are later used for real traffic:</p>
+
+   <pre>
+   rd.primeAll ();
+   wr.primeAll ();
+   new Warmup (om).run (wr, rd, 10000);
+   </pre>
+ */
+
+public final class Warmup
+{
+   /**
+      The default number of iterations. It is large enough for the
+      generated methods to pass the compile thresholds of HotSpot
+   */
+   
+   public static final int DefaultIterations = 20000;
+
+   /**
+      Creates a warmup harness with synthetic messages for all
+      groups in the schema of the specified object model
+
+      @param om an object model
+      @throws BlinkException if there was a schema or binding problem
+   */
+   
+   public Warmup (ObjectModel om) throws BlinkException
+   {
+      this.om = om;
+      for (Schema.Group g : om.getSchema ().getGroups ())
+      {
+         if (! g.hasId ())
+            continue;
+         
+         ObjectModel.GroupBinding bnd;
+         try
+         {
+            bnd = om.getGroupBinding (g.getName ());
+         }
+         catch (BlinkException.NoBinding e)
+         {
+            continue;
+         }
+
+         Object o = createGroup (bnd, 0);
+         if (o != null)
+            msgs.add (o);
+      }
+   }
+
+   /**
+      Returns the synthetic messages of this harness
+
+      @return a list of synthetic messages
+    */
+   
+   public List<Object> getMessages ()
+   {
+      return Collections.unmodifiableList (msgs);
+   }
+
+   /**
+      Encodes and decodes all synthetic messages {@link
+      #DefaultIterations} times
+
+      @param wr the writer to warm up
+      @param rd the reader to warm up
+      @throws BlinkException if there was a decoding or encoding problem
+   */
+   
+   public void run (CompactWriter wr, CompactReader rd) throws BlinkException
+   {
+      run (wr, rd, DefaultIterations);
+   }
+
+   /**
+      Encodes and decodes all synthetic messages the specified
+      number of times. Nothing is written to the sink of the writer
+      and no decoded messages are dispatched to observers of the
+      reader. Strings are decoded through a temporary string cache,
+      so the contents and statistics of the {@link StringCache} of
+      the reader are left untouched.
+
+      @param wr the writer to warm up
+      @param rd the reader to warm up
+      @param iterations the number of times to process the messages
+      @throws BlinkException if there was a decoding or encoding problem
+   */
+   
+   public void run (CompactWriter wr, CompactReader rd, int iterations)
+      throws BlinkException
+   {
+      ByteBuf buf = new ByteBuf ();
+      DefaultBlock block = new DefaultBlock ();
+      StringCache cache = new StringCache ();
+
+      prune (wr, buf);
+      
+      for (int i = 0; i < iterations; ++ i)
+      {
+         buf.clear ();
+         for (Object o : msgs)
+            wr.writeDetached (o, buf);
+         buf.flip ();
+         rd.readDetached (buf, block, cache);
+         block.clear ();
+      }
+   }
+
+   // Drops any message that the writer fails to encode. The object
+   // model decides what is a valid message, and it is easier to let
+   // the encoder judge than to mirror every rule here
+
+   private void prune (CompactWriter wr, ByteBuf buf)
+   {
+      if (pruned)
+         return;
+
+      ArrayList<Object> valid = new ArrayList<Object> ();
+      for (Object o : msgs)
+      {
+         buf.clear ();
+         try
+         {
+            wr.writeDetached (o, buf);
+            valid.add (o);
+         }
+         catch (BlinkException e)
+         {
+            // Not a valid message, leave it out
+         }
+         catch (RuntimeException e)
+         {
+            // Not a valid message, leave it out
+         }
+      }
+
+      msgs.clear ();
+      msgs.addAll (valid);
+      pruned = true;
+   }
+
+   private Object createGroup (ObjectModel.GroupBinding bnd, int depth)
+      throws BlinkException
+   {
+      if (depth > MaxDepth)
+         return null;
+
+      try
+      {
+         Object o = bnd.getTargetType ().getDeclaredConstructor ()
+            .newInstance ();
+         for (ObjectModel.Field f : bnd)
+         {
+            // Fields without a setter are left unset
+            
+            Method setter = f.getSetter ();
+            if (setter == null)
+               continue;
+            Class<?> type = setter.getParameterTypes () [0];
+            Object val = createValue (type, f, depth);
+            if (val != null)
+               setter.invoke (o, val);
+         }
+
+         return o;
+      }
+      catch (NoSuchMethodException e)
+      {
+         // No default constructor
+         return null;
+      }
+      catch (InstantiationException e)
+      {
+         // Abstract
+         return null;
+      }
+      catch (IllegalAccessException e)
+      {
+         // Not public
+         return null;
+      }
+      catch (InvocationTargetException e)
+      {
+         // The constructor or a setter rejected the value
+         return null;
+      }
+   }
+
+   private Object createValue (Class<?> type, ObjectModel.Field f, int depth)
+      throws BlinkException
+   {
+      Schema.Type t = f.getFieldType ().getType ();
+      
+      // A byte array is either a sequence of u8 or i8, or a single
+      // binary or fixed value
+      
+      if (type.isArray () &&
+          (type != byte [].class || t != null && t.isSequence ()))
+         return createSequence (type.getComponentType (), f, depth);
+      else
+         return createElement (type, f, depth);
+   }
+
+   private Object createSequence (Class<?> type, ObjectModel.Field f,
+                                  int depth)
+      throws BlinkException
+   {
+      Object a = Array.newInstance (type, 2);
+      for (int i = 0; i < 2; ++ i)
+      {
+         Object val = createElement (type, f, depth);
+         if (val == null)
+            return null;
+         Array.set (a, i, val);
+      }
+      return a;
+   }
+
+   private Object createElement (Class<?> type, ObjectModel.Field f,
+                                 int depth)
+      throws BlinkException
+   {
+      Schema.Type t = f.getFieldType ().getType ();
+      
+      if (type == byte.class || type == Byte.class)
+         return Byte.valueOf ((byte)1);
+      else if (type == short.class || type == Short.class)
+         return Short.valueOf ((short)1);
+      else if (type == int.class || type == Integer.class)
+         return Integer.valueOf (1);
+      else if (type == long.class || type == Long.class)
+         return Long.valueOf (1);
+      else if (type == double.class || type == Double.class)
+         return Double.valueOf (1.5);
+      else if (type == boolean.class || type == Boolean.class)
+         return Boolean.TRUE;
+      else if (type == String.class)
+         return "warmup";
+      else if (type == Utf8Slice.class)
+         return new Utf8Slice ("warmup");
+      else if (type == Decimal.class)
+         return Decimal.valueOf (12345, -2);
+      else if (FixedDec.class.isAssignableFrom (type))
+      {
+         int scale = t instanceof Schema.FixedDecType ?
+            ((Schema.FixedDecType)t).getScale () : 0;
+         return FixedDec.getInstance (12345, scale);
+      }
+      else if (type == byte [].class)
+      {
+         if (t instanceof Schema.FixedType)
+            return new byte [((Schema.FixedType)t).getSize ()];
+         else
+            return new byte [] { 1, 2, 3 };
+      }
+      else if (type.isEnum ())
+      {
+         Object [] syms = type.getEnumConstants ();
+         return syms.length > 0 ? syms [0] : null;
+      }
+      else if (type == Object.class)
+         return null;
+      else
+      {
+         ObjectModel.Binding comp = f.getComponent ();
+         ObjectModel.GroupBinding bnd;
+         if (comp != null && comp.toGroup () != null &&
+             type.isAssignableFrom (comp.getTargetType ()))
+            bnd = comp.toGroup ();
+         else
+            bnd = om.getGroupBinding (type);
+         return createGroup (bnd, depth + 1);
+      }
+   }
+
+   private static final int MaxDepth = 4;
+   
+   private final ObjectModel om;
+   private final ArrayList<Object> msgs = new ArrayList<Object> ();
+   private boolean pruned;
+}
@@ -40,8 +40,10 @@ import static org.hamcrest.CoreMatchers.*;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.List;
+import java.util.Map;
 
 public class TestCases
 {
@@ -124,6 +126,70 @@ public class TestCases
       roundtrip ((long)-9223372036854775808L);
    }
 
+   @Test public void bulkVlcArrays () throws BlinkException
+   {
+      long [] longs = { 0, 1, -1, 63, -64, 64, 127, 128, -8192, 100000,
+                        -2147483648L, 9223372036854775807L, 17, -5 };
+      double [] doubles = { 0.0, -0.0, 1.5, -1e300, 12.25, 0.0 };
+
+      Buf ref = new ByteBuf ();
+      for (long v : longs)
+         Vlc.writeI64 (v, ref);
+      for (double v : doubles)
+         Vlc.writeI64 (Double.doubleToLongBits (v), ref);
+      ref.flip ();
+
+      // The buffer is sized exactly so that the last elements take the
+      // paths used near the end of the underlying memory
+      
+      Buf b = new ByteBuf (ref.size (), ByteBuf.ResizeMode.Fixed);
+      Vlc.writeI64Array (longs, b);
+      Vlc.writeF64Array (doubles, b);
+      b.flip ();
+      assertEquals (ref.toHexString (), b.toHexString ());
+
+      long [] longsOut = new long [longs.length];
+      double [] doublesOut = new double [doubles.length];
+      Vlc.readI64Array (b, longsOut);
+      Vlc.readF64Array (b, doublesOut);
+      assertEquals (0, b.available ());
+      assertArrayEquals (longs, longsOut);
+      for (int i = 0; i < doubles.length; ++ i)
+         assertEquals (Double.doubleToLongBits (doubles [i]),
+                       Double.doubleToLongBits (doublesOut [i]));
+
+      int [] ints = { 0, 127, 128, 16383, 16384, -1, 2147483647 };
+      b = new ByteBuf ();
+      Vlc.writeU32Array (ints, b);
+      b.flip ();
+      int [] intsOut = new int [ints.length];
+      Vlc.readU32Array (b, intsOut);
+      assertEquals (0, b.available ());
+      assertArrayEquals (ints, intsOut);
+   }
+
+   @Test public void longMap ()
+   {
+      LongMap<String> m = new LongMap<String> (2);
+      for (long i = 0; i < 1000; ++ i)
+         assertNull (m.put (i * 4096 - 500, "v" + i));
+      assertEquals (1000, m.size ());
+      assertEquals ("v17", m.get (17 * 4096 - 500));
+      assertNull (m.get (4711));
+
+      for (long i = 0; i < 1000; i += 2)
+         assertEquals ("v" + i, m.remove (i * 4096 - 500));
+      assertEquals (500, m.size ());
+      for (long i = 0; i < 1000; ++ i)
+         assertEquals (i % 2 == 0 ? null : "v" + i, m.get (i * 4096 - 500));
+
+      assertEquals ("v1", m.put (4096 - 500, "w1"));
+      assertEquals ("w1", m.get (4096 - 500));
+      m.clear ();
+      assertTrue (m.isEmpty ());
+      assertFalse (m.containsKey (4096 - 500));
+   }
+
    @Test public void readSimpleSchema ()
       throws BlinkException, IOException
    {
@@ -201,6 +267,920 @@ public class TestCases
       assertEquals ("Hello", result.getBaz ());
    }
 
+   @Test public void stringCache ()
+      throws BlinkException, IOException
+   {
+      // @Foo|Baz=Hello, @Foo|Baz=Hello, @Foo|Baz=World
+
+      String data = "08 01 00 05 48 65 6c 6c 6f 08 01 00 05 48 65 6c 6c 6f " +
+         "08 01 00 05 57 6f 72 6c 64";
+
+      CompactReader rd = new CompactReader (
+         toModel ("Foo/1 -> u32 Bar, string Baz"));
+      StringCache cache = new StringCache (1);
+      rd.setStringCache (cache);
+      DefaultBlock result = new DefaultBlock ();
+      rd.read (toBuf (data), result);
+
+      assertEquals (3, result.size ());
+      Foo f1 = (Foo)result.getObjects ().get (0);
+      Foo f2 = (Foo)result.getObjects ().get (1);
+      Foo f3 = (Foo)result.getObjects ().get (2);
+      assertEquals ("Hello", f1.getBaz ());
+      assertSame (f1.getBaz (), f2.getBaz ());
+      assertEquals ("World", f3.getBaz ());
+      assertEquals (1, cache.getHits ());
+      assertEquals (2, cache.getMisses ());
+      assertEquals (1, cache.size ());
+
+      // Per field opt-in without a reader level cache
+
+      rd = new CompactReader (
+         toModel ("Foo/1 -> u32 Bar, string @blink:cache='yes' Baz"));
+      result = new DefaultBlock ();
+      rd.read (toBuf (data), result);
+      assertSame (((Foo)result.getObjects ().get (0)).getBaz (),
+                  ((Foo)result.getObjects ().get (1)).getBaz ());
+      assertNotNull (rd.getStringCache ());
+      assertEquals (1, rd.getStringCache ().getHits ());
+
+      // Per field opt-out
+
+      rd = new CompactReader (
+         toModel ("Foo/1 -> u32 Bar, string @blink:cache='no' Baz"));
+      rd.setStringCache (new StringCache ());
+      result = new DefaultBlock ();
+      rd.read (toBuf (data), result);
+      assertNotSame (((Foo)result.getObjects ().get (0)).getBaz (),
+                     ((Foo)result.getObjects ().get (1)).getBaz ());
+      assertEquals (0, rd.getStringCache ().getMisses ());
+   }
+
+   public static class Sym
+   {
+      public Utf8Slice getName () { return name; }
+      public void setName (Utf8Slice v) { name = v; }
+      public Utf8Slice getVenue () { return venue; }
+
+      private Utf8Slice name = new Utf8Slice ();
+      private final Utf8Slice venue = new Utf8Slice ();
+   }
+
+   @Test public void utf8SliceCompactRoundtrip ()
+      throws BlinkException, IOException
+   {
+      Sym s = new Sym ();
+      s.getName ().set ("ERIC B");
+      s.getVenue ().set ("København");
+      Utf8Slice name = s.getName ();
+      Utf8Slice venue = s.getVenue ();
+
+      Sym result = (Sym)compactRoundtrip (
+         "Sym/1 -> string Name, string Venue", s);
+      assertTrue (result.getName ().contentEquals ("ERIC B"));
+      assertEquals ("København", result.getVenue ().toString ());
+      assertEquals (9, result.getVenue ().length ());
+      assertEquals (10, result.getVenue ().size ());
+      assertEquals ('ø', result.getVenue ().charAt (1));
+      assertEquals (name, result.getName ());
+
+      // Decoding into an existing object reuses its slices
+
+      ObjectModel om = toModel ("Sym/1 -> string Name, string Venue");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      wr.write (s);
+      wr.close ();
+      CompactReader.Decoder dec = new CompactReaderCompiler (om).getDecoder (1);
+      ByteBuf buf = new ByteBuf (os.toByteArray ());
+      Vlc.readU32 (buf);
+      Vlc.readU64 (buf);
+      Sym tgt = new Sym ();
+      Utf8Slice tgtName = tgt.getName ();
+      dec.decode (buf, tgt, new CompactReader (om));
+      assertSame (tgtName, tgt.getName ());
+      assertEquals ("ERIC B", tgt.getName ().toString ());
+      assertEquals ("København", tgt.getVenue ().toString ());
+   }
+
+   @Test public void parallelDecode ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      for (int i = 0; i < 1000; ++ i)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (i);
+         foo.setBaz (i % 7 == 0 ? repeat ('x', i) : "Hello");
+         wr.write (foo);
+      }
+      wr.close ();
+      byte [] data = os.toByteArray ();
+
+      int [] bounds = ParallelReader.frame (data, 0, data.length, 64,
+                                            CompactReader.DefaultMaxMsgSize);
+      assertEquals (0, bounds [0]);
+      assertEquals (data.length, bounds [bounds.length - 1]);
+      assertTrue (bounds.length > 10);
+
+      ParallelReader rd = new ParallelReader (om);
+      rd.setChunkSize (256);
+      DefaultBlock block = new DefaultBlock ();
+      rd.read (data, 0, data.length, block);
+      assertEquals (1000, block.size ());
+      for (int i = 0; i < 1000; ++ i)
+         assertEquals (i, ((Foo)block.getObjects ().get (i)).getBar ());
+
+      // Stream input with a window that has to grow to hold the
+      // longest message
+      
+      rd.setWindowSize (128);
+      block = new DefaultBlock ();
+      rd.read (new ByteArrayInputStream (data), block);
+      assertEquals (1000, block.size ());
+      for (int i = 0; i < 1000; ++ i)
+         assertEquals (i, ((Foo)block.getObjects ().get (i)).getBar ());
+      assertEquals (repeat ('x', 994),
+                    ((Foo)block.getObjects ().get (994)).getBaz ());
+
+      try
+      {
+         rd.read (data, 0, data.length - 1);
+         fail ("Expected decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+
+      try
+      {
+         rd.read (new ByteArrayInputStream (data, 0, data.length - 1));
+         fail ("Expected decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+      
+      rd.close ();
+   }
+
+   @Test public void pullDecode ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      for (int i = 0; i < 1000; ++ i)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (i);
+         foo.setBaz (i % 7 == 0 ? repeat ('x', i) : "Hello");
+         wr.write (foo);
+      }
+      wr.close ();
+      byte [] data = os.toByteArray ();
+
+      // An input stream that returns at most 5 bytes per read, so
+      // that preambles and messages are split between reads
+      
+      java.io.InputStream is = new ByteArrayInputStream (data) {
+            @Override public int read (byte [] b, int off, int len)
+            {
+               return super.read (b, off, Math.min (len, 5));
+            }
+         };
+
+      MessageIterator it = new MessageIterator (new CompactReader (om), is);
+      int n = 0;
+      while (it.hasNext ())
+         assertEquals (n ++, ((Foo)it.next ()).getBar ());
+      assertEquals (1000, n);
+
+      it = new MessageIterator (new CompactReader (om), new ByteBuf (data));
+      for (n = 0; it.hasNext (); ++ n)
+         assertEquals (n, ((Foo)it.next ()).getBar ());
+      assertEquals (1000, n);
+
+      // Parallel stream over small chunks, collected in order
+      
+      List<Object> all = java.util.stream.StreamSupport.stream (
+         new MessageSpliterator (om, null, data, 0, data.length, 256),
+         true).collect (java.util.stream.Collectors.toList ());
+      assertEquals (1000, all.size ());
+      for (int i = 0; i < 1000; ++ i)
+         assertEquals (i, ((Foo)all.get (i)).getBar ());
+
+      // Truncated input
+      
+      it = new MessageIterator (
+         new CompactReader (om),
+         new ByteArrayInputStream (data, 0, data.length - 1));
+      try
+      {
+         while (it.hasNext ())
+            it.next ();
+         fail ("Expected an incomplete message error");
+      }
+      catch (RuntimeException e)
+      {
+         assertTrue (e.getCause () instanceof BlinkException.Decode);
+      }
+   }
+
+   @Test public void publisherBackpressure ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      for (int i = 0; i < 1000; ++ i)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (i);
+         foo.setBaz ("Hello");
+         wr.write (foo);
+      }
+      wr.close ();
+
+      final List<Object> got = new java.util.ArrayList<Object> ();
+      final java.util.concurrent.Flow.Subscription [] subn =
+         new java.util.concurrent.Flow.Subscription [1];
+      final boolean [] completed = new boolean [1];
+
+      java.util.concurrent.Executor direct =
+         new java.util.concurrent.Executor () {
+            @Override public void execute (Runnable r) { r.run (); }
+         };
+
+      MessagePublisher pub = new MessagePublisher (
+         new CompactReader (om), new ByteArrayInputStream (os.toByteArray ()),
+         direct, 16);
+      
+      pub.subscribe (new java.util.concurrent.Flow.Subscriber<Object> () {
+            @Override public void onSubscribe (
+               java.util.concurrent.Flow.Subscription s)
+            {
+               subn [0] = s;
+            }
+            @Override public void onNext (Object o) { got.add (o); }
+            @Override public void onError (Throwable e) { fail (e.toString ()); }
+            @Override public void onComplete () { completed [0] = true; }
+         });
+
+      assertEquals (0, got.size ());
+      subn [0].request (10);
+      assertEquals (10, got.size ());
+      subn [0].request (Long.MAX_VALUE);
+      assertEquals (1000, got.size ());
+      assertTrue (completed [0]);
+      for (int i = 0; i < 1000; ++ i)
+         assertEquals (i, ((Foo)got.get (i)).getBar ());
+
+      // A non-positive request is signalled through onError and a
+      // throwing subscriber cancels the subscription
+
+      final Throwable [] err = new Throwable [1];
+      final int [] calls = new int [1];
+      pub = new MessagePublisher (
+         new CompactReader (om), new ByteArrayInputStream (os.toByteArray ()),
+         direct, 16);
+      pub.subscribe (new java.util.concurrent.Flow.Subscriber<Object> () {
+            @Override public void onSubscribe (
+               java.util.concurrent.Flow.Subscription s)
+            {
+               subn [0] = s;
+            }
+            @Override public void onNext (Object o)
+            {
+               if (++ calls [0] == 5)
+                  throw new IllegalStateException ("Broken subscriber");
+            }
+            @Override public void onError (Throwable e) { err [0] = e; }
+            @Override public void onComplete () { fail ("Completed"); }
+         });
+
+      subn [0].request (10);
+      assertEquals (5, calls [0]);
+      subn [0].request (10);
+      assertEquals (5, calls [0]);
+      subn [0].request (0);
+      assertNull (err [0]);
+
+      pub = new MessagePublisher (
+         new CompactReader (om), new ByteArrayInputStream (os.toByteArray ()),
+         direct, 16);
+      pub.subscribe (new java.util.concurrent.Flow.Subscriber<Object> () {
+            @Override public void onSubscribe (
+               java.util.concurrent.Flow.Subscription s)
+            {
+               subn [0] = s;
+            }
+            @Override public void onNext (Object o) { }
+            @Override public void onError (Throwable e) { err [0] = e; }
+            @Override public void onComplete () { fail ("Completed"); }
+         });
+
+      subn [0].request (0);
+      assertTrue (err [0] instanceof IllegalArgumentException);
+
+      // A rejected yield after a full batch terminates the subscription
+
+      java.util.concurrent.Executor once =
+         new java.util.concurrent.Executor () {
+            @Override public void execute (Runnable r)
+            {
+               if (runs ++ > 0)
+                  throw new java.util.concurrent.RejectedExecutionException ();
+               r.run ();
+            }
+            int runs;
+         };
+
+      err [0] = null;
+      calls [0] = 0;
+      pub = new MessagePublisher (
+         new CompactReader (om), new ByteArrayInputStream (os.toByteArray ()),
+         once, 16);
+      pub.subscribe (new java.util.concurrent.Flow.Subscriber<Object> () {
+            @Override public void onSubscribe (
+               java.util.concurrent.Flow.Subscription s)
+            {
+               subn [0] = s;
+            }
+            @Override public void onNext (Object o) { ++ calls [0]; }
+            @Override public void onError (Throwable e) { err [0] = e; }
+            @Override public void onComplete () { fail ("Completed"); }
+         });
+
+      subn [0].request (100);
+      assertEquals (16, calls [0]);
+      assertTrue (err [0] instanceof
+                  java.util.concurrent.RejectedExecutionException);
+   }
+
+   @Test public void parallelEncode ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      Object [] objs = new Object [1000];
+      for (int i = 0; i < objs.length; ++ i)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (i);
+         foo.setBaz (i % 7 == 0 ? repeat ('x', i) : "Hello");
+         objs [i] = foo;
+      }
+
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      wr.write (objs);
+      wr.close ();
+      byte [] expected = os.toByteArray ();
+
+      java.util.concurrent.ForkJoinPool pool =
+         new java.util.concurrent.ForkJoinPool (4);
+      ParallelWriter pwr = new ParallelWriter (om, pool);
+      pwr.setSliceSize (64);
+      pwr.setMaxPendingSlices (3);
+
+      os = new ByteArrayOutputStream ();
+      pwr.write (java.util.Arrays.asList (objs), os);
+      assertArrayEquals (expected, os.toByteArray ());
+
+      ByteBuf buf = new ByteBuf ();
+      pwr.write (objs, 0, objs.length, buf);
+      buf.flip ();
+      assertEquals (expected.length, buf.size ());
+      assertEquals (new ByteBuf (expected).toHexString (), buf.toHexString ());
+
+      // An object without a binding fails the whole write
+
+      objs [500] = "not a message";
+      boolean failed = false;
+      try
+      {
+         pwr.write (java.util.Arrays.asList (objs), new ByteBuf ());
+      }
+      catch (Exception e)
+      {
+         failed = true;
+      }
+      assertTrue (failed);
+      
+      pool.shutdown ();
+   }
+
+   @Test public void concurrentWriter ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+
+      // A small ring buffer makes producers wrap and wait for space
+      
+      final ConcurrentWriter wr = new ConcurrentWriter (om, os, 256);
+      final int producers = 4;
+      final int count = 2000;
+      final Throwable [] err = new Throwable [1];
+      Thread [] threads = new Thread [producers];
+      for (int t = 0; t < producers; ++ t)
+      {
+         final int id = t;
+         threads [t] = new Thread () {
+               @Override public void run ()
+               {
+                  try
+                  {
+                     for (int i = 0; i < count; ++ i)
+                     {
+                        Foo foo = new Foo ();
+                        foo.setBar (i);
+                        foo.setBaz (id + (i % 5 == 0 ? repeat ('x', i % 60)
+                                          : ""));
+                        wr.write (foo);
+                        if (i % 100 == 0)
+                           wr.flush ();
+                     }
+                  }
+                  catch (Throwable e)
+                  {
+                     err [0] = e;
+                  }
+               }
+            };
+         threads [t].start ();
+      }
+      for (Thread t : threads)
+         t.join ();
+      wr.flush ();
+      assertNull (err [0]);
+
+      DefaultBlock result = new DefaultBlock ();
+      new CompactReader (om).read (os.toByteArray (), result);
+      assertEquals (producers * count, result.size ());
+      int [] next = new int [producers];
+      for (Object o : result)
+      {
+         Foo foo = (Foo)o;
+         int id = foo.getBaz ().charAt (0) - '0';
+         assertEquals (next [id] ++, foo.getBar ());
+      }
+   }
+
+   @Test public void concurrentWriterOutputError ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      final boolean [] closed = new boolean [1];
+      java.io.OutputStream os = new java.io.OutputStream () {
+            @Override public void write (int b) throws IOException
+            {
+               write (new byte [] { (byte)b }, 0, 1);
+            }
+            
+            @Override public void write (byte [] b, int off, int len)
+               throws IOException
+            {
+               written += len;
+               if (written > 1000)
+                  throw new IOException ("Disk full");
+            }
+
+            @Override public void close ()
+            {
+               closed [0] = true;
+            }
+
+            int written;
+         };
+
+      // Producers waiting for space must fail instead of waiting for
+      // a producer that failed before them
+
+      final ConcurrentWriter wr = new ConcurrentWriter (om, os, 64);
+      final int producers = 4;
+      final Throwable [] err = new Throwable [producers];
+      Thread [] threads = new Thread [producers];
+      for (int t = 0; t < producers; ++ t)
+      {
+         final int id = t;
+         threads [t] = new Thread () {
+               @Override public void run ()
+               {
+                  try
+                  {
+                     Foo foo = new Foo ();
+                     foo.setBaz ("baz");
+                     for (int i = 0; i < 100000; ++ i)
+                     {
+                        foo.setBar (i);
+                        wr.write (foo);
+                     }
+                  }
+                  catch (Throwable e)
+                  {
+                     err [id] = e;
+                  }
+               }
+            };
+         threads [t].start ();
+      }
+      for (Thread t : threads)
+      {
+         t.join (10000);
+         assertFalse (t.isAlive ());
+      }
+      for (Throwable e : err)
+         assertTrue (e instanceof IOException);
+
+      try
+      {
+         wr.close ();
+         fail ("Expected an output error");
+      }
+      catch (IOException e)
+      {
+      }
+      assertTrue (closed [0]);
+   }
+
+   public static class FooSeqObs
+   {
+      public void onFoo (Foo foo)
+      {
+         synchronized (this)
+         {
+            if (last [foo.getBar ()] >= Integer.parseInt (foo.getBaz ()))
+               ++ outOfOrder;
+            last [foo.getBar ()] = Integer.parseInt (foo.getBaz ());
+            ++ count;
+         }
+      }
+
+      int [] last = { -1, -1, -1, -1, -1, -1, -1 };
+      int outOfOrder;
+      int count;
+   }
+
+   @Test public void partitionedDecode ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      for (int i = 0; i < 5000; ++ i)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (i % 7);
+         foo.setBaz (String.valueOf (i));
+         wr.write (foo);
+      }
+      wr.close ();
+      byte [] data = os.toByteArray ();
+
+      FooSeqObs obs = new FooSeqObs ();
+      DefaultObsRegistry oreg = new DefaultObsRegistry (om);
+      oreg.addObserver (obs);
+      PartitionedReader rd = new PartitionedReader (
+         om, oreg, 3, PartitionedReader.FirstFieldKey);
+
+      // Feed the data in odd sized pieces so that messages are split
+      // between calls
+      
+      for (int pos = 0; pos < data.length; pos += 37)
+         rd.read (data, pos, Math.min (37, data.length - pos));
+      rd.close ();
+
+      assertEquals (5000, obs.count);
+      assertEquals (0, obs.outOfOrder);
+
+      // In-band schema exchange is rejected. Blink:GroupDecl without
+      // any fields
+
+      rd = new PartitionedReader (om, oreg, 2);
+      try
+      {
+         rd.read (hexToBytes ("09 c8 26 be 68 21 dd 27 27 09"), 0, 10);
+         fail ("Expected decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+      rd.close ();
+
+      // An empty frame or a truncated type identifier is rejected,
+      // also when followed by another message
+
+      String [] bad = { "00", "00 02 01 00", "01 c2 01 02 01 00" };
+      for (String hex : bad)
+      {
+         byte [] b = hexToBytes (hex);
+         rd = new PartitionedReader (
+            om, oreg, 2, PartitionedReader.FirstFieldKey);
+         try
+         {
+            rd.read (b, 0, b.length);
+            fail ("Expected decode exception: " + hex);
+         }
+         catch (BlinkException.Decode e)
+         {
+         }
+         rd.close ();
+      }
+   }
+
+   private static String repeat (char c, int n)
+   {
+      StringBuilder sb = new StringBuilder ();
+      for (int i = 0; i < n; ++ i)
+         sb.append (c);
+      return sb.toString ();
+   }
+
+   @Test public void precompiledCodecPickup ()
+      throws Exception
+   {
+      String schema = "Foo/1 -> u32 Bar, string Baz";
+      ObjectModel om = toModel (schema);
+      final Map<String, byte []> classes = PrecompiledCodecs.generate (om);
+      String fp = PrecompiledCodecs.getFingerprint (om.getGroupBinding (1));
+      String decName = PrecompiledCodecs.Package + ".Foo_" + fp + "_dec";
+      String encName = PrecompiledCodecs.Package + ".Foo_" + fp + "_enc";
+
+      // Load the library and the bound classes in a separate class
+      // loader that also provides the generated classes, as if they
+      // were on the class path of the application
+      
+      final java.util.Set<String> defined = new java.util.HashSet<String> ();
+      java.net.URL [] urls = {
+         getLocation (TestCases.class), getLocation (ObjectModel.class),
+         getLocation (org.junit.Assert.class)
+      };
+      ClassLoader cl = new java.net.URLClassLoader (
+         urls, ClassLoader.getSystemClassLoader ().getParent ()) {
+            @Override
+            protected Class<?> findClass (String name)
+               throws ClassNotFoundException
+            {
+               byte [] b = classes.get (name);
+               if (b == null)
+                  return super.findClass (name);
+               defined.add (name);
+               return defineClass (name, b, 0, b.length);
+            }
+         };
+
+      java.lang.reflect.Method roundtrip =
+         cl.loadClass (TestCases.class.getName ()).getDeclaredMethod (
+            "isolatedRoundtrip", String.class);
+
+      // A fresh object model picks up the generated codecs through
+      // the class loader of the bound class
+
+      assertEquals ("17|Hello", roundtrip.invoke (null, schema));
+      assertTrue (defined.contains (decName));
+      assertTrue (defined.contains (encName));
+
+      // A changed binding has a different fingerprint and falls back
+      // to dynamic generation
+
+      defined.clear ();
+      assertEquals ("17|Hello",
+                    roundtrip.invoke (null, "Foo/1 -> i32 Bar, string Baz"));
+      assertTrue (defined.isEmpty ());
+   }
+
+   private static java.net.URL getLocation (Class<?> c)
+   {
+      return c.getProtectionDomain ().getCodeSource ().getLocation ();
+   }
+
+   // Runs a compact roundtrip of a Foo bound to the specified schema
+   // and returns the decoded fields. Invoked by precompiledCodecPickup
+   // in a separate class loader
+
+   public static String isolatedRoundtrip (String schema)
+      throws BlinkException, IOException
+   {
+      Foo foo = new Foo ();
+      foo.setBar (17);
+      foo.setBaz ("Hello");
+      Foo out = (Foo)compactRoundtrip (schema, foo);
+      return out.getBar () + "|" + out.getBaz ();
+   }
+
+   @Test public void precompiledCodecs ()
+      throws Exception
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      final Map<String, byte []> classes = PrecompiledCodecs.generate (om);
+      ObjectModel.GroupBinding bnd = om.getGroupBinding (1);
+      String fp = PrecompiledCodecs.getFingerprint (bnd);
+      String decName = PrecompiledCodecs.Package + ".Foo_" + fp + "_dec";
+      assertTrue (classes.containsKey (decName));
+      assertTrue (classes.containsKey (
+                     PrecompiledCodecs.Package + ".Foo_" + fp + "_enc"));
+
+      // A different schema gives a different fingerprint
+      
+      ObjectModel om2 = toModel ("Foo/1 -> u32 Bar, string Baz?");
+      assertFalse (fp.equals (
+                      PrecompiledCodecs.getFingerprint (
+                         om2.getGroupBinding (1))));
+
+      // Decode with the generated class
+      
+      ClassLoader cl = new ClassLoader (TestCases.class.getClassLoader ()) {
+            @Override
+            protected Class<?> findClass (String name)
+               throws ClassNotFoundException
+            {
+               byte [] b = classes.get (name);
+               if (b == null)
+                  throw new ClassNotFoundException (name);
+               return defineClass (name, b, 0, b.length);
+            }
+         };
+
+      CompactReader.Decoder dec = (CompactReader.Decoder)
+         cl.loadClass (decName).getConstructor (
+            Class.class, Schema.Group.class, Observer.class,
+            SchemaExchangeDecoder.class).newInstance (
+               Foo.class, bnd.getGroup (), null, null);
+
+      // @Foo|Bar=17|Baz=Hello
+      
+      ByteBuf buf = new ByteBuf (hexToBytes ("11 05 48 65 6c 6c 6f"));
+      Foo foo = (Foo)dec.newInstance ();
+      dec.decode (buf, foo, new CompactReader (om));
+      assertEquals (17, foo.getBar ());
+      assertEquals ("Hello", foo.getBaz ());
+   }
+
+   @Test public void sharedCodecClasses ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+
+      // Readers with and without observers share the decoder class
+      // but not the decoder instance
+      
+      FooSeqObs obs = new FooSeqObs ();
+      DefaultObsRegistry oreg = new DefaultObsRegistry (om);
+      oreg.addObserver (obs);
+      CompactReaderCompiler plain = new CompactReaderCompiler (om);
+      CompactReaderCompiler observed = new CompactReaderCompiler (om, oreg);
+      CompactReader.Decoder d1 = plain.getDecoder (1);
+      CompactReader.Decoder d2 = observed.getDecoder (1);
+      assertNotSame (d1, d2);
+      assertSame (d1.getClass (), d2.getClass ());
+
+      CompactWriter.Encoder e1 =
+         new CompactWriterCompiler (om).getEncoder (Foo.class);
+      CompactWriter.Encoder e2 =
+         new CompactWriterCompiler (om).getEncoder (Foo.class);
+      assertNotSame (e1, e2);
+      assertSame (e1.getClass (), e2.getClass ());
+
+      // Each reader still consumes messages its own way
+
+      // @Foo|Bar=1|Baz=7
+      
+      byte [] msg = hexToBytes ("04 01 01 01 37");
+      DefaultBlock result = new DefaultBlock ();
+      new CompactReader (om).read (msg, result);
+      assertEquals (1, result.size ());
+      assertEquals (0, obs.count);
+      new CompactReader (om, oreg).read (msg);
+      assertEquals (1, obs.count);
+   }
+
+   @Test public void regeneratedCodecClasses ()
+      throws BlinkException, IOException
+   {
+      Schema s = toSchema ("Foo/1 -> u32 Bar");
+      ObjectModel om = new DefaultObjectModel (s, TestCases.class);
+      Foo foo = new Foo ();
+
+      // Replacing a group, as schema exchange does, makes all codecs
+      // regenerate classes for the new binding in the same loader
+
+      for (int i = 0; i < 4; ++ i)
+      {
+         Schema.Group g = s.replaceGroup (NsName.get ("Foo"));
+         g.setId (1L);
+         g.addField ("Bar", new Schema.Type (Schema.TypeCode.U32),
+                     Schema.Presence.Required);
+         s.finalizeSchema ();
+
+         foo.setBar (i);
+         assertEquals (i, ((Foo)compactRoundtrip (om, foo)).getBar ());
+         assertEquals (i, ((Foo)nativeRoundtrip (om, foo)).getBar ());
+         assertEquals (i, ((Foo)jsonRoundtrip (om, foo)).getBar ());
+         assertEquals ("@Foo|Bar=" + i + "\n", encodeTag (om, foo));
+      }
+   }
+
+   @Test public void bindingsAfterFailedLookup ()
+      throws BlinkException, IOException
+   {
+      Schema s = toSchema ("Foo/1 -> u32 Bar");
+      ObjectModel om = new DefaultObjectModel (s, TestCases.class);
+      ObjectModel.GroupBinding before = om.getGroupBinding (1);
+      assertSame (before, om.getGroupBinding (1));
+
+      // Adding a schema makes the next miss refresh all bindings. The
+      // refreshed bindings must be seen even though the miss fails
+      
+      SchemaReader.readFromString ("Other/2 -> u32 Baz", s);
+      s.finalizeSchema ();
+      try
+      {
+         om.getGroupBinding (99);
+         fail ("Expected binding exception");
+      }
+      catch (BlinkException e)
+      {
+      }
+
+      ObjectModel.GroupBinding after = om.getGroupBinding (1);
+      assertNotSame (before, after);
+      assertSame (after, om.getGroupBinding (NsName.get ("Foo")));
+   }
+
+   @Test public void concurrentBindingLookups ()
+      throws Exception
+   {
+      final ObjectModel om = toModel (ShapeSchema);
+      final ObjectModel.GroupBinding [] found =
+         new ObjectModel.GroupBinding [8];
+      final Exception [] failure = new Exception [1];
+      Thread [] threads = new Thread [found.length];
+      for (int i = 0; i < threads.length; ++ i)
+      {
+         final int slot = i;
+         threads [i] = new Thread () {
+               @Override public void run ()
+               {
+                  try
+                  {
+                     for (int n = 0; n < 10000; ++ n)
+                     {
+                        ObjectModel.GroupBinding b = om.getGroupBinding (1);
+                        if (b != om.getGroupBinding (Rect.class) ||
+                            b != om.getGroupBinding (NsName.get ("Rect")))
+                           throw new Exception ("Inconsistent bindings");
+                        found [slot] = b;
+                     }
+                  }
+                  catch (Exception e)
+                  {
+                     failure [0] = e;
+                  }
+               }
+            };
+         threads [i].start ();
+      }
+
+      for (Thread t : threads)
+         t.join ();
+
+      assertNull (failure [0]);
+      for (ObjectModel.GroupBinding b : found)
+         assertSame (found [0], b);
+      assertEquals (Rect.class, found [0].getTargetType ());
+   }
+
+   @Test public void concurrentNsNameInterning ()
+      throws Exception
+   {
+      final NsName [][] found = new NsName [4][500];
+      Thread [] threads = new Thread [found.length];
+      for (int i = 0; i < threads.length; ++ i)
+      {
+         final NsName [] mine = found [i];
+         threads [i] = new Thread () {
+               @Override public void run ()
+               {
+                  for (int n = 0; n < mine.length; ++ n)
+                     mine [n] = NsName.get ("InternTest", "Name" + n);
+               }
+            };
+      }
+
+      for (Thread t : threads)
+         t.start ();
+      for (Thread t : threads)
+         t.join ();
+
+      for (int n = 0; n < found [0].length; ++ n)
+         for (NsName [] other : found)
+            assertSame (found [0][n], other [n]);
+      assertSame (found [0][7], NsName.parse ("InternTest:Name7"));
+   }
+
    public static class Strings
    {
       public String [] getValue () { return val; }
@@ -253,6 +1233,91 @@ public class TestCases
       assertEquals (((Foo)compactRoundtrip (om, foo)).getBaz (), foo.getBaz ());
    }
 
+   @Test public void bulkStringEncoding ()
+      throws BlinkException, IOException
+   {
+      String [] strs = { "", "ERIC B", "AAPL.O", repeat ('x', 127),
+                         repeat ('y', 128), repeat ('z', 20000),
+                         "r\u00e4ksm\u00f6rg\u00e5s", "abc\u00e4",
+                         "\ud83d\ude00", "x\u20ac" };
+
+      for (String str : strs)
+      {
+         ByteBuf ref = new ByteBuf ();
+         CompactWriter.writeStringCharwise (str, ref);
+         ref.flip ();
+
+         Buf [] bufs = { new ByteBuf (), DirectBuf.newInstance (4) };
+         for (Buf buf : bufs)
+         {
+            CompactWriter.writeString (str, buf);
+            buf.flip ();
+            assertEquals (ref.toHexString (), buf.toHexString ());
+            assertEquals (str, buf.readUtf8String (Vlc.readU32 (buf)));
+         }
+      }
+
+      // A surrogate pair is encoded as a single four byte sequence
+      
+      ByteBuf buf = new ByteBuf ();
+      CompactWriter.writeString ("\ud83d\ude00", buf);
+      buf.flip ();
+      assertEquals ("04 f0 9f 98 80", buf.toHexString ());
+   }
+
+   @Test public void vlcWordLoad ()
+      throws BlinkException, IOException
+   {
+      for (int w = 1; w <= 8; ++ w)
+      {
+         byte [] val = new byte [w];
+         long u = 0;
+         for (int i = 0; i < w; ++ i)
+         {
+            val [i] = (byte)(0x81 + i * 0x13);
+            u |= (long)(val [i] & 0xff) << (i << 3);
+         }
+         int bits = (8 - w) << 3;
+         long s = (u << bits) >> bits;
+
+         // Followed by padding, which takes the word load path and
+         // must be masked away, or at the very end of the buffer,
+         // which takes the byte-wise path
+
+         for (int padding : new int [] { 8, 0 })
+         {
+            Buf [] bufs = { new ByteBuf (w + 1), DirectBuf.newInstance (w + 1) };
+            for (Buf buf : bufs)
+            {
+               for (int n = 0; n < 2; ++ n)
+               {
+                  buf.reserve (w + 1 + padding);
+                  buf.write (0xc0 | w);
+                  buf.write (val);
+                  for (int i = 0; i < padding; ++ i)
+                     buf.write (0xff);
+                  buf.flip ();
+                  String what = buf.getClass ().getSimpleName () + ", w=" +
+                     w + ", padding=" + padding;
+                  if (n == 0)
+                     assertEquals (what, u, Vlc.readU64 (buf));
+                  else
+                     assertEquals (what, s, Vlc.readI64 (buf));
+                  assertEquals (what, w + 1, buf.getPos ());
+                  if (w <= 4 && n == 0)
+                  {
+                     buf.setPos (0);
+                     assertEquals (what, (int)u, Vlc.readU32 (buf));
+                     buf.setPos (0);
+                     assertEquals (what, (int)s, Vlc.readI32 (buf));
+                  }
+                  buf.clear ();
+               }
+            }
+         }
+      }
+   }
+
    @Test public void largeMsgCompactRoundtrip ()
       throws BlinkException, IOException
    {
@@ -618,6 +1683,62 @@ public class TestCases
       assertEquals (6, matrix [5]);
    }
 
+   @Test public void hiddenCodecClasses ()
+      throws BlinkException, IOException
+   {
+      if (! DynClassLoader.isHiddenClassSupported ())
+         return;
+      
+      ObjectModel om = toModel (ShapeSchema);
+      CompactReaderCompiler rdc = new CompactReaderCompiler (om);
+      rdc.setUseHiddenClasses (true);
+      CompactWriterCompiler wrc = new CompactWriterCompiler (om);
+      wrc.setUseHiddenClasses (true);
+
+      // Point is a static subgroup of Rect and must keep a name that
+      // the Rect codecs can refer to. Hidden class names contain a
+      // slash
+      
+      Class<?> rectDec = rdc.getDecoder (NsName.get ("Rect")).getClass ();
+      Class<?> pointDec = rdc.getDecoder (NsName.get ("Point")).getClass ();
+      Class<?> rectEnc = wrc.getEncoder (Rect.class).getClass ();
+      assertTrue (rectDec.getName ().indexOf ('/') != -1);
+      assertTrue (rectEnc.getName ().indexOf ('/') != -1);
+      assertTrue (pointDec.getName ().indexOf ('/') == -1);
+
+      Rect r = new Rect ();
+      Point p = new Point ();
+      p.setX (1);
+      p.setY (2);
+      r.setPos (p);
+      r.setWidth (10);
+      r.setHeight (20);
+      ByteBuf buf = new ByteBuf ();
+      CompactWriter wr = new CompactWriter (om, buf);
+      wr.write (r);
+      buf.flip ();
+      DefaultBlock result = new DefaultBlock ();
+      new CompactReader (om).read (buf, result);
+      Rect r2 = (Rect)result.getObjects ().get (0);
+      assertEquals (2, r2.getPos ().getY ());
+      assertEquals (20, r2.getHeight ());
+      
+      // Observers can be hidden too
+
+      FooSeqObs obs = new FooSeqObs ();
+      ObjectModel om2 = toModel ("Foo/1 -> u32 Bar, string Baz");
+      DefaultObsRegistry oreg = new DefaultObsRegistry (
+         om2, DefaultObsRegistry.LoadMode.Hidden);
+      oreg.addObserver (obs);
+      Observer o = oreg.findObserver (Foo.class);
+      assertTrue (o.getClass ().getName ().indexOf ('/') != -1);
+
+      // @Foo|Bar=1|Baz=7
+      
+      new CompactReader (om2, oreg).read (hexToBytes ("04 01 01 01 37"));
+      assertEquals (1, obs.count);
+   }
+
    public static class Car
    {
       public void setColor (Color v) { color = v; }
@@ -654,6 +1775,80 @@ public class TestCases
       assertEquals (Color.Blue, result.getColor ());
    }
 
+   @Test public void compactDecodeSparseEnum ()
+      throws BlinkException, IOException
+   {
+      String schema = "Car/1 -> Color Color " +
+         "Color = Red/-1000 | Green/7 | Blue/100000";
+
+      DefaultBlock result = new DefaultBlock ();
+
+      // @Car|Color=Blue, @Car|Color=Red, @Car|Color=8
+
+      decodeCompact (schema, "05 01 c3 a0 86 01 03 01 98 f0 02 01 08", result);
+
+      assertEquals (3, result.size ());
+      assertEquals (Color.Blue, ((Car)result.getObjects ().get (0)).getColor ());
+      assertEquals (Color.Red, ((Car)result.getObjects ().get (1)).getColor ());
+      assertNull (((Car)result.getObjects ().get (2)).getColor ());
+   }
+
+   @Test public void primeAndWarmup ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (ShapeSchema + "Car/6 -> Color Color " +
+                                "Color = Red | Green | Blue");
+      ByteBuf out = new ByteBuf ();
+      CompactWriter wr = new CompactWriter (om, out);
+      DefaultBlock result = new DefaultBlock ();
+      CompactReader rd = new CompactReader (om);
+      assertEquals (8, rd.primeAll ());
+      assertEquals (8, wr.primeAll ());
+
+      Warmup w = new Warmup (om);
+      w.run (wr, rd, 10);
+
+      // One message per group with an id
+
+      assertEquals (6, w.getMessages ().size ());
+      assertEquals (0, out.getPos ());
+
+      // The reader and writer are still usable
+      
+      Car car = new Car ();
+      car.setColor (Color.Green);
+      wr.write (car);
+      out.flip ();
+      rd.read (out, result);
+      assertEquals (1, result.size ());
+      assertEquals (Color.Green, ((Car)result.getObjects ().get (0)).getColor ());
+   }
+
+   @Test public void warmupLeavesStringCache ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      CompactWriter wr = new CompactWriter (om, new ByteBuf ());
+      CompactReader rd = new CompactReader (om);
+      StringCache cache = new StringCache ();
+      rd.setStringCache (cache);
+      rd.read (toBuf ("08 01 00 05 48 65 6c 6c 6f"), new DefaultBlock ());
+
+      new Warmup (om).run (wr, rd, 10);
+
+      assertSame (cache, rd.getStringCache ());
+      assertEquals (0, cache.getHits ());
+      assertEquals (1, cache.getMisses ());
+      assertEquals (1, cache.size ());
+
+      // Fields opting in must not create a cache on the reader
+
+      om = toModel ("Foo/1 -> u32 Bar, string @blink:cache='yes' Baz");
+      rd = new CompactReader (om);
+      new Warmup (om).run (new CompactWriter (om, new ByteBuf ()), rd, 10);
+      assertNull (rd.getStringCache ());
+   }
+
    public static interface Bar
    {
       String get ();
@@ -1075,6 +2270,167 @@ public class TestCases
       assertEquals (data, bytesToHex (result.getData ()));
    }   
 
+   @Test public void exactEncodedSize () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (
+         ShapeSchema +
+         "Car/6 -> Color Color " +
+         "Color = Red/-1000 | Green/7 | Blue/100000 " +
+         "Price/7 -> f64 Value " +
+         "Msg/8 -> fixed (4) Host, fixed (16) Id?, binary Data " +
+         "Foo/9 -> u32 Bar, string Baz");
+
+      List<Object> msgs = new java.util.ArrayList<Object> ();
+
+      Point p1 = new Point ();
+      p1.setX (1);
+      p1.setY (100000);
+      Point p2 = new Point ();
+      p2.setX (Integer.MAX_VALUE);
+      p2.setY (-1);
+      Rect r = new Rect ();
+      r.setPos (p1);
+      r.setWidth (10);
+      r.setHeight (20000);
+      r.setDescr ("Test");
+      msgs.add (r);
+      Polygon poly = new Polygon ();
+      poly.setPoints (new Point [] { p1, p2, p1 });
+      msgs.add (poly);
+      Canvas c = new Canvas ();
+      c.setShapes (new Shape [] { r, poly, new Circle () });
+      msgs.add (c);
+      Transform t = new Transform ();
+      t.setMatrix (new int [] { 0, -1, 63, 64, -8193, Integer.MIN_VALUE });
+      msgs.add (t);
+      for (Color col : Color.values ())
+      {
+         Car car = new Car ();
+         car.setColor (col);
+         msgs.add (car);
+      }
+      msgs.add (new Price (123.456789));
+      msgs.add (new Price (0));
+      Msg m = new Msg ();
+      m.setHost (hexToBytes ("3e 6d 3c ea"));
+      m.setData (new byte [300]);
+      msgs.add (m);
+      Msg mid = new Msg ();
+      mid.setHost (hexToBytes ("3e 6d"));
+      mid.setId (new byte [16]);
+      mid.setData (new byte [0]);
+      msgs.add (mid);
+      String [] strs = { "", "Hello", "r\u00e4ksm\u00f6rg\u00e5s",
+                         "\u20ac \ud83d\ude00", repeat ('x', 200),
+                         repeat ('\u00e4', 100), repeat ('y', 20000) };
+      for (String str : strs)
+      {
+         Foo foo = new Foo ();
+         foo.setBar (-1);
+         foo.setBaz (str);
+         msgs.add (foo);
+      }
+
+      for (boolean exact : new boolean [] { false, true })
+      {
+         ByteBuf out = new ByteBuf ();
+         CompactWriter wr = new CompactWriter (om, out);
+         ByteBuf ref = new ByteBuf ();
+         CompactWriter refWr = new CompactWriter (om, ref);
+         wr.setUseExactSizing (exact);
+         for (Object o : msgs)
+         {
+            int start = out.getPos ();
+            wr.write (o);
+            assertEquals (o.getClass ().getName (),
+                          out.getPos () - start, wr.encodedSize (o));
+            refWr.write (o);
+         }
+
+         // Exact sizing produces the same bytes
+         
+         out.flip ();
+         ref.flip ();
+         assertTrue (out.size () > 20000);
+         assertEquals (ref.toHexString (), out.toHexString ());
+      }
+   }
+
+   @Test public void encodedMessageCache () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz");
+      EncodedMessageCache cache = new EncodedMessageCache (om, 20);
+
+      Foo foo = new Foo ();
+      foo.setBar (1);
+      foo.setBaz ("Hello");
+      assertTrue (cache.put (foo, 1));
+      assertEquals (1, cache.size ());
+      assertEquals (10, cache.getBytes ());
+
+      ByteBuf out = new ByteBuf ();
+      CompactWriter wr = new CompactWriter (om, out);
+      wr.setEncodedMessageCache (cache);
+
+      // Changes are not seen until the message is put with a new version
+      
+      foo.setBaz ("World");
+      wr.write (foo);
+      assertTrue (cache.put (foo, 1));
+      wr.write (foo);
+      assertTrue (cache.put (foo, 2));
+      wr.write (foo);
+      assertEquals (3, cache.getHits ());
+      out.flip ();
+      assertEquals ("88 00 01 01 05 48 65 6c 6c 6f " +
+                    "88 00 01 01 05 48 65 6c 6c 6f " +
+                    "88 00 01 01 05 57 6f 72 6c 64", out.toHexString ());
+      
+      // The least recently used message is evicted when over the limit
+
+      Foo foo2 = new Foo ();
+      foo2.setBaz ("Hi");
+      Foo foo3 = new Foo ();
+      foo3.setBaz ("Hey");
+      assertTrue (cache.put (foo2));
+      assertTrue (cache.put (foo3));
+      assertEquals (1, cache.getEvictions ());
+      assertNull (cache.get (foo));
+      assertNotNull (cache.get (foo2));
+      assertEquals (15, cache.getBytes ());
+
+      foo2.setBaz (repeat ('x', 100));
+      assertFalse (cache.put (foo2));
+      assertTrue (cache.invalidate (foo3));
+      assertEquals (0, cache.size ());
+      assertEquals (0, cache.getBytes ());
+
+      // A cached dynamic subgroup is counted once per write also when
+      // the writer sizes messages before encoding them
+
+      om = toModel (ShapeSchema);
+      Rect r = new Rect ();
+      r.setPos (new Point ());
+      r.setDescr ("Cached");
+      Canvas c = new Canvas ();
+      c.setShapes (new Shape [] { r, new Circle () });
+      ByteArrayOutputStream ref = new ByteArrayOutputStream ();
+      CompactWriter refWr = new CompactWriter (om, ref);
+      refWr.write (c);
+      refWr.close ();
+
+      cache = new EncodedMessageCache (om);
+      assertTrue (cache.put (r));
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      wr = new CompactWriter (om, os);
+      wr.setUseExactSizing (true);
+      wr.setEncodedMessageCache (cache);
+      wr.write (c);
+      wr.close ();
+      assertEquals (1, cache.getHits ());
+      assertArrayEquals (ref.toByteArray (), os.toByteArray ());
+   }
+
    public static class TestCases_
    {
       public String getFoo () { return foo; }
@@ -1353,6 +2709,702 @@ public class TestCases
          "to get field 'fixedDec(2) Foo': type mismatch");
    }
 
+   @Test public void nativeRoundtripShapes ()
+      throws BlinkException, IOException
+   {
+      DefaultBlock result = new DefaultBlock ();
+
+      // @Canvas|Shapes=[@Rect|Pos={X=1|Y=2}|Width=1|Height=2;
+      //                 @Polygon|Points=[X=1|Y=2;X=17|Y=18]|Descr=Elephant]
+
+      decodeCompact (ShapeSchema,
+                     "1b 04 02 86 00 01 c0 01 02 01 02 8f 00 03 08 45" +
+                     "6c 65 70 68 61 6e 74 02 01 02 11 12", result);
+      Canvas c = (Canvas)result.getObjects ().get (0);
+
+      Canvas c2 = (Canvas)nativeRoundtrip (toModel (ShapeSchema), c);
+      
+      Shape [] shapes = c2.getShapes ();
+      assertNotNull (shapes);
+      assertEquals (2, shapes.length);
+      assertTrue (shapes [0] instanceof Rect);
+      assertFalse (shapes [0].hasDescr ());
+      Rect r = (Rect)shapes [0];
+      assertEquals (2, r.getPos ().getY ());
+      assertEquals (2, r.getHeight ());
+      assertTrue (shapes [1] instanceof Polygon);
+      Polygon p = (Polygon)shapes [1];
+      assertEquals ("Elephant", p.getDescr ());
+      assertNotNull (p.getPoints ());
+      assertEquals (2, p.getPoints ().length);
+      assertEquals (17, p.getPoints () [1].getX ());
+      assertEquals (18, p.getPoints () [1].getY ());
+
+      Transform t = new Transform ();
+      t.setMatrix (new int [] { 1, -2, 3 });
+      Transform t2 = (Transform)nativeRoundtrip (toModel (ShapeSchema), t);
+      assertEquals (3, t2.getMatrix ().length);
+      assertEquals (-2, t2.getMatrix () [1]);
+   }
+
+   @Test public void nativeRoundtripTypes ()
+      throws BlinkException, IOException
+   {
+      Car car = new Car ();
+      car.setColor (Color.Blue);
+      Car car2 = (Car)nativeRoundtrip (
+         toModel ("Car/1 -> Color Color Color = Red | Green | Blue"), car);
+      assertEquals (Color.Blue, car2.getColor ());
+
+      String host = "3e 6d 3c ea";
+      Msg msg = new Msg ();
+      msg.setHost (hexToBytes (host));
+      msg.setData (hexToBytes ("01 02 03"));
+      Msg msg2 = (Msg)nativeRoundtrip (
+         toModel ("Msg/1 -> fixed (4) Host, fixed (16) Id?, binary Data"),
+         msg);
+      assertFalse (msg2.hasId ());
+      assertEquals (host, bytesToHex (msg2.getHost ()));
+      assertEquals ("01 02 03", bytesToHex (msg2.getData ()));
+
+      Catalog cat = new Catalog ();
+      cat.setPrices7 (new FixedDec._7 [] { FixedDec._7.valueOf (10) });
+      cat.setPrices (new FixedDec [] { FixedDec.valueOf ("1.5") });
+      Catalog cat2 = (Catalog)nativeRoundtrip (
+         toModel ("Catalog/1 -> fixedDec(7) [] Prices7, " +
+                  "fixedDec(11) [] PricesN?, fixedDec(2) [] Prices"), cat);
+      assertEquals (10, cat2.getPrices7 () [0].longValue ());
+      assertNull (cat2.getPricesN ());
+      assertEquals (2, cat2.getPrices () [0].getScale ());
+      assertEquals ("150E-2", cat2.getPrices () [0].toString ());
+   }
+
+   @Test public void nativeIncrementalRead ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz?");
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      NativeWriter wr = new NativeWriter (om, os);
+      Foo foo = new Foo ();
+      foo.setBar (17);
+      foo.setBaz ("Hello");
+      wr.write (foo);
+      foo.setBar (4711);
+      foo.setBaz (null);
+      wr.write (foo);
+      wr.close ();
+
+      // Feed the reader one byte at a time
+
+      byte [] data = os.toByteArray ();
+      DefaultBlock result = new DefaultBlock ();
+      NativeReader rd = new NativeReader (om);
+      for (int i = 0; i < data.length; ++ i)
+      {
+         rd.read (data, i, 1, result);
+         if (i == 0)
+            assertFalse (rd.isComplete ());
+      }
+
+      assertTrue (rd.isComplete ());
+      assertEquals (2, result.size ());
+      Foo foo1 = (Foo)result.getObjects ().get (0);
+      Foo foo2 = (Foo)result.getObjects ().get (1);
+      assertEquals (17, foo1.getBar ());
+      assertEquals ("Hello", foo1.getBaz ());
+      assertEquals (4711, foo2.getBar ());
+      assertNull (foo2.getBaz ());
+
+      // A truncated message is reported on close
+
+      rd.read (data, 0, 10);
+      assertFalse (rd.isComplete ());
+      try
+      {
+         rd.close ();
+         fail ("Expected a decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+   }
+
+   @Test public void tagWriteShapes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (ShapeSchema);
+
+      Point pos = new Point ();
+      pos.setX (1);
+      pos.setY (2);
+      Rect r = new Rect ();
+      r.setDescr ("Big");
+      r.setPos (pos);
+      r.setWidth (10);
+      r.setHeight (20);
+      assertEquals ("@Rect|Descr=Big|Pos={X=1|Y=2}|Width=10|Height=20\n",
+                    encodeTag (om, r));
+
+      Circle c = new Circle ();
+      c.setRadius (1);
+      r.setDescr (null);
+      Canvas cv = new Canvas ();
+      cv.setShapes (new Shape [] { c, r });
+      assertEquals ("@Canvas|Shapes=[@Circle|Radius=1;" +
+                    "@Rect|Pos={X=1|Y=2}|Width=10|Height=20]\n",
+                    encodeTag (om, cv));
+
+      Canvas cv2 = (Canvas)tagRoundtrip (om, cv);
+      assertEquals (2, cv2.getShapes ().length);
+      assertEquals (1, ((Circle)cv2.getShapes () [0]).getRadius ());
+      Rect r2 = (Rect)cv2.getShapes () [1];
+      assertFalse (r2.hasDescr ());
+      assertEquals (2, r2.getPos ().getY ());
+      assertEquals (20, r2.getHeight ());
+
+      Polygon p = new Polygon ();
+      p.setPoints (new Point [] { pos, pos });
+      assertEquals ("@Polygon|Points=[X=1|Y=2;X=1|Y=2]\n", encodeTag (om, p));
+      Polygon p2 = (Polygon)tagRoundtrip (om, p);
+      assertEquals (2, p2.getPoints () [1].getY ());
+   }
+
+   public static class Tagged
+   {
+      public byte getSmall () { return small; }
+      public void setSmall (byte v) { small = v; }
+      public long getHuge () { return huge; }
+      public void setHuge (long v) { huge = v; }
+      public double getRatio () { return ratio; }
+      public void setRatio (double v) { ratio = v; }
+      public Decimal getPx () { return px; }
+      public void setPx (Decimal v) { px = v; }
+      public long getAmount () { return amount; }
+      public void setAmount (long v) { amount = v; }
+      public int getDay () { return day; }
+      public void setDay (int v) { day = v; }
+      public int getTod () { return tod; }
+      public void setTod (int v) { tod = v; }
+      public long getMs () { return ms; }
+      public void setMs (long v) { ms = v; }
+      public long getNs () { return ns; }
+      public void setNs (long v) { ns = v; }
+      public boolean getFlag () { return flag; }
+      public void setFlag (boolean v) { flag = v; }
+      public String getText () { return text; }
+      public void setText (String v) { text = v; }
+      public byte [] getBlob () { return blob; }
+      public void setBlob (byte [] v) { blob = v; }
+      public Color getCol () { return col; }
+      public void setCol (Color v) { col = v; }
+      public String [] getWords () { return words; }
+      public void setWords (String [] v) { words = v; }
+
+      private byte small;
+      private long huge;
+      private double ratio;
+      private Decimal px;
+      private long amount;
+      private int day;
+      private int tod;
+      private long ms;
+      private long ns;
+      private boolean flag;
+      private String text;
+      private byte [] blob;
+      private Color col;
+      private String [] words;
+   }
+
+   private final static String TaggedSchema =
+      "Tagged/1 -> u8 Small, u64 Huge, f64 Ratio, decimal Px, " +
+      "fixedDec(2) Amount, date Day, timeOfDayMilli Tod, millitime Ms, " +
+      "nanotime Ns, bool Flag, string Text, binary Blob, Color Col, " +
+      "string [] Words " +
+      "Color = Red | Green | Blue";
+   
+   @Test public void tagRoundtripTypes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (TaggedSchema);
+
+      Tagged t = new Tagged ();
+      t.setSmall ((byte)200);
+      t.setHuge (-1);
+      t.setRatio (0.25);
+      t.setPx (Decimal.valueOf (-15, -3));
+      t.setAmount (-5);
+      t.setDay (Time.toDaysSinceEpoch (2013, 12, 31));
+      t.setTod (86399999);
+      t.setMs (1388534399999L);
+      t.setNs (-1);
+      t.setFlag (true);
+      t.setText ("a|b;c]\\\u00e5\n");
+      t.setBlob (hexToBytes ("00 ff 10"));
+      t.setCol (Color.Green);
+      t.setWords (new String [] { "x", "", "[y]" });
+
+      assertEquals ("@Tagged|Small=200|Huge=18446744073709551615|" +
+                    "Ratio=0.25|Px=-0.015|Amount=-0.05|Day=2013-12-31|" +
+                    "Tod=23:59:59.999|Ms=2013-12-31T23:59:59.999Z|" +
+                    "Ns=1969-12-31T23:59:59.999999999Z|Flag=Y|" +
+                    "Text=a\\|b\\;c\\]\\\\\u00e5\\n|Blob=[00 ff 10]|" +
+                    "Col=Green|Words=[x;;\\[y\\]]\n",
+                    new String (encodeTag (om, t).getBytes ("ISO-8859-1"),
+                                "UTF-8"));
+      
+      Tagged t2 = (Tagged)tagRoundtrip (om, t);
+      assertEquals ((byte)200, t2.getSmall ());
+      assertEquals (-1, t2.getHuge ());
+      assertEquals (0.25, t2.getRatio (), 0);
+      assertEquals (Decimal.valueOf (-15, -3), t2.getPx ());
+      assertEquals (-5, t2.getAmount ());
+      assertEquals (t.getDay (), t2.getDay ());
+      assertEquals (86399999, t2.getTod ());
+      assertEquals (1388534399999L, t2.getMs ());
+      assertEquals (-1, t2.getNs ());
+      assertTrue (t2.getFlag ());
+      assertEquals (t.getText (), t2.getText ());
+      assertEquals ("00 ff 10", bytesToHex (t2.getBlob ()));
+      assertEquals (Color.Green, t2.getCol ());
+      assertEquals (3, t2.getWords ().length);
+      assertEquals ("", t2.getWords () [1]);
+      assertEquals ("[y]", t2.getWords () [2]);
+   }
+
+   @Test public void tagIncrementalRead () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz?");
+      byte [] data = ("# A comment\n" +
+                      "@Foo|Bar=17|Unknown={X=[1;2]}|Baz=Hello\r\n" +
+                      "\n" +
+                      "@Foo|Bar=4711\n").getBytes ("UTF-8");
+
+      // Feed the reader one byte at a time
+      
+      DefaultBlock result = new DefaultBlock ();
+      TagReader rd = new TagReader (om);
+      for (int i = 0; i < data.length; ++ i)
+         rd.read (data, i, 1, result);
+
+      assertTrue (rd.isComplete ());
+      assertEquals (2, result.size ());
+      Foo foo1 = (Foo)result.getObjects ().get (0);
+      Foo foo2 = (Foo)result.getObjects ().get (1);
+      assertEquals (17, foo1.getBar ());
+      assertEquals ("Hello", foo1.getBaz ());
+      assertEquals (4711, foo2.getBar ());
+      assertNull (foo2.getBaz ());
+
+      // A line without a newline is incomplete
+
+      rd.read ("@Foo|Bar=1".getBytes ("UTF-8"));
+      assertFalse (rd.isComplete ());
+      try
+      {
+         rd.close ();
+         fail ("Expected a decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+   }
+
+   @Test public void jsonWriteShapes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (ShapeSchema);
+
+      Point pos = new Point ();
+      pos.setX (1);
+      pos.setY (2);
+      Rect r = new Rect ();
+      r.setDescr ("Big \"one\"");
+      r.setPos (pos);
+      r.setWidth (10);
+      r.setHeight (20);
+      assertEquals ("{\"$type\":\"Rect\",\"Descr\":\"Big \\\"one\\\"\"," +
+                    "\"Pos\":{\"X\":1,\"Y\":2},\"Width\":10,\"Height\":20}\n",
+                    encodeJson (om, r));
+
+      Circle c = new Circle ();
+      c.setRadius (1);
+      r.setDescr (null);
+      Canvas cv = new Canvas ();
+      cv.setShapes (new Shape [] { c, r });
+      assertEquals ("{\"$type\":\"Canvas\",\"Shapes\":[" +
+                    "{\"$type\":\"Circle\",\"Radius\":1}," +
+                    "{\"$type\":\"Rect\",\"Pos\":{\"X\":1,\"Y\":2}," +
+                    "\"Width\":10,\"Height\":20}]}\n",
+                    encodeJson (om, cv));
+
+      Canvas cv2 = (Canvas)jsonRoundtrip (om, cv);
+      assertEquals (2, cv2.getShapes ().length);
+      assertEquals (1, ((Circle)cv2.getShapes () [0]).getRadius ());
+      Rect r2 = (Rect)cv2.getShapes () [1];
+      assertFalse (r2.hasDescr ());
+      assertEquals (2, r2.getPos ().getY ());
+      assertEquals (20, r2.getHeight ());
+
+      Polygon p = new Polygon ();
+      p.setPoints (new Point [] { pos, pos });
+      assertEquals ("{\"$type\":\"Polygon\",\"Points\":" +
+                    "[{\"X\":1,\"Y\":2},{\"X\":1,\"Y\":2}]}\n",
+                    encodeJson (om, p));
+      Polygon p2 = (Polygon)jsonRoundtrip (om, p);
+      assertEquals (2, p2.getPoints () [1].getY ());
+   }
+
+   @Test public void jsonRoundtripTypes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (TaggedSchema);
+
+      Tagged t = new Tagged ();
+      t.setSmall ((byte)200);
+      t.setHuge (-1);
+      t.setRatio (0.25);
+      t.setPx (Decimal.valueOf (-15, -3));
+      t.setAmount (-5);
+      t.setDay (Time.toDaysSinceEpoch (2013, 12, 31));
+      t.setTod (86399999);
+      t.setMs (1388534399999L);
+      t.setNs (-1);
+      t.setFlag (true);
+      t.setText ("a\"b\\\u00e5\n\u0001\ud83d\ude00");
+      t.setBlob (hexToBytes ("00 ff 10"));
+      t.setCol (Color.Green);
+      t.setWords (new String [] { "x", "", null });
+
+      assertEquals ("{\"$type\":\"Tagged\",\"Small\":200," +
+                    "\"Huge\":18446744073709551615,\"Ratio\":0.25," +
+                    "\"Px\":-0.015,\"Amount\":-0.05,\"Day\":\"2013-12-31\"," +
+                    "\"Tod\":\"23:59:59.999\"," +
+                    "\"Ms\":\"2013-12-31T23:59:59.999Z\"," +
+                    "\"Ns\":\"1969-12-31T23:59:59.999999999Z\",\"Flag\":true," +
+                    "\"Text\":\"a\\\"b\\\\\u00e5\\n\\u0001\ud83d\ude00\"," +
+                    "\"Blob\":\"00ff10\",\"Col\":\"Green\"," +
+                    "\"Words\":[\"x\",\"\",null]}\n",
+                    encodeJson (om, t));
+      
+      Tagged t2 = (Tagged)jsonRoundtrip (om, t);
+      assertEquals ((byte)200, t2.getSmall ());
+      assertEquals (-1, t2.getHuge ());
+      assertEquals (0.25, t2.getRatio (), 0);
+      assertEquals (Decimal.valueOf (-15, -3), t2.getPx ());
+      assertEquals (-5, t2.getAmount ());
+      assertEquals (t.getDay (), t2.getDay ());
+      assertEquals (86399999, t2.getTod ());
+      assertEquals (1388534399999L, t2.getMs ());
+      assertEquals (-1, t2.getNs ());
+      assertTrue (t2.getFlag ());
+      assertEquals (t.getText (), t2.getText ());
+      assertEquals ("00 ff 10", bytesToHex (t2.getBlob ()));
+      assertEquals (Color.Green, t2.getCol ());
+      assertEquals (3, t2.getWords ().length);
+      assertEquals ("", t2.getWords () [1]);
+      assertNull (t2.getWords () [2]);
+
+      // Floats that are not finite are written as null and read back
+      // as absent
+
+      t.setRatio (Double.NaN);
+      assertTrue (encodeJson (om, t).contains ("\"Ratio\":null,"));
+      assertEquals (0.0, ((Tagged)jsonRoundtrip (om, t)).getRatio (), 0);
+   }
+
+   @Test public void jsonRead () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel ("Foo/1 -> u32 Bar, string Baz?");
+      byte [] data = ("{\"$type\":\"Foo\",\"Bar\":17," +
+                      "\"Unknown\":{\"X\":[1,\"]\"]},\"Baz\":\"Hello\"}\r\n" +
+                      "\n" +
+                      " { \"$type\" : \"Foo\" , \"Baz\" : null ," +
+                      " \"Bar\" : 4711 }\n" +
+                      "{\"$type\":\"Foo\",\"Baz\":\"\\u00e5\",\"Bar\":1}\n")
+         .getBytes ("UTF-8");
+
+      // Feed the reader one byte at a time
+      
+      DefaultBlock result = new DefaultBlock ();
+      JsonReader rd = new JsonReader (om);
+      for (int i = 0; i < data.length; ++ i)
+         rd.read (data, i, 1, result);
+
+      assertTrue (rd.isComplete ());
+      assertEquals (3, result.size ());
+      Foo foo1 = (Foo)result.getObjects ().get (0);
+      Foo foo2 = (Foo)result.getObjects ().get (1);
+      Foo foo3 = (Foo)result.getObjects ().get (2);
+      assertEquals (17, foo1.getBar ());
+      assertEquals ("Hello", foo1.getBaz ());
+      assertEquals (4711, foo2.getBar ());
+      assertNull (foo2.getBaz ());
+      assertEquals ("\u00e5", foo3.getBaz ());
+
+      // The type must come first
+
+      try
+      {
+         rd.read ("{\"Bar\":1,\"$type\":\"Foo\"}\n".getBytes ("UTF-8"));
+         fail ("Expected a decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+      
+      // A line without a newline is incomplete
+
+      rd.read ("{\"$type\":\"Foo\"".getBytes ("UTF-8"));
+      assertFalse (rd.isComplete ());
+      try
+      {
+         rd.close ();
+         fail ("Expected a decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+   }
+
+   @Test public void jsonStreamsLongSequences ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (TaggedSchema);
+      String [] words = new String [100000];
+      java.util.Arrays.fill (words, "word");
+      Tagged t = new Tagged ();
+      t.setWords (words);
+
+      // The sink is flushed to the stream while the sequence is
+      // written, before the writer itself is flushed
+
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      JsonWriter wr = new JsonWriter (om, os);
+      wr.write (t);
+      assertTrue (os.size () > 0);
+      wr.close ();
+
+      DefaultBlock result = new DefaultBlock ();
+      new JsonReader (om).read (os.toByteArray (), result);
+      assertEquals (1, result.size ());
+      assertEquals (100000, ((Tagged)result.getObjects ().get (0))
+                    .getWords ().length);
+
+      // A plain buffer keeps the whole message
+
+      ByteBuf buf = new ByteBuf ();
+      new JsonWriter (om, buf).write (t);
+      assertEquals (os.size (), buf.getPos ());
+   }
+
+   @Test public void columnarShapes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (ShapeSchema);
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      for (int i = 0; i < 3; ++ i)
+      {
+         Rect r = new Rect ();
+         Point p = new Point ();
+         p.setX (i);
+         p.setY (10 * i);
+         r.setPos (p);
+         r.setWidth (100 + i);
+         r.setHeight (200 + i);
+         if (i != 1)
+            r.setDescr ("Box");
+         wr.write (r);
+      }
+
+      Polygon poly = new Polygon ();
+      poly.setDescr ("Tri");
+      poly.setPoints (new Point [] { new Point (), new Point () });
+      wr.write (poly);
+      Canvas canvas = new Canvas ();
+      canvas.setShapes (new Shape [] { poly, new Circle () });
+      wr.write (canvas);
+      Transform t = new Transform ();
+      t.setMatrix (new int [] { 1, -2, 3 });
+      wr.write (t);
+      t.setMatrix (new int [0]);
+      wr.write (t);
+      wr.close ();
+
+      ColumnarConverter conv = new ColumnarConverter (om);
+      conv.read (os.toByteArray ());
+      assertTrue (conv.isComplete ());
+      assertEquals (7, conv.getMessageCount ());
+
+      ColumnarFile cf = writeColumnar (conv);
+      assertEquals (4, cf.getTables ().size ());
+
+      // Super group fields come first and the static subgroup is
+      // flattened
+
+      ColumnarFile.Table rects = cf.getTable ("Rect");
+      assertEquals (3, rects.getRowCount ());
+      assertEquals (5, rects.getColumns ().size ());
+      assertEquals ("Descr", rects.getColumns ().get (0).getName ());
+      assertEquals ("Pos.X", rects.getColumns ().get (1).getName ());
+      
+      ColumnarFile.Column descr = rects.getColumn ("Descr");
+      assertEquals (ColumnarFile.Kind.Dict, descr.getKind ());
+      assertTrue (descr.isOptional ());
+      assertTrue (descr.isPresent (0));
+      assertFalse (descr.isPresent (1));
+      assertTrue (descr.isPresent (2));
+      assertEquals (1, descr.getDictSize ());
+      assertEquals (descr.getCode (0), descr.getCode (2));
+      assertEquals ("Box", descr.getString (descr.getCode (2)));
+
+      ColumnarFile.Column y = rects.getColumn ("Pos.Y");
+      assertEquals (ColumnarFile.Kind.Int64, y.getKind ());
+      assertEquals ("U32", y.getType ());
+      assertFalse (y.isOptional ());
+      assertEquals (20, y.getLong (2));
+      assertEquals (102, rects.getColumn ("Width").getLongs ().get (2));
+
+      // Sequences of subgroups and dynamic groups are skipped
+
+      ColumnarFile.Table polys = cf.getTable ("Polygon");
+      assertEquals (1, polys.getColumns ().size ());
+      ColumnarFile.Column polyDescr = polys.getColumn ("Descr");
+      assertEquals ("Tri", polyDescr.getString (polyDescr.getCode (0)));
+      assertEquals (1, cf.getTable ("Canvas").getRowCount ());
+      assertEquals (0, cf.getTable ("Canvas").getColumns ().size ());
+      assertNull (cf.getTable ("Circle"));
+
+      ColumnarFile.Column m = cf.getTable ("Transform").getColumn ("Matrix");
+      assertTrue (m.isList ());
+      assertEquals (2, m.getRowCount ());
+      assertEquals (3, m.getValueCount ());
+      assertEquals (0, m.getStart (0));
+      assertEquals (3, m.getEnd (0));
+      assertEquals (-2, m.getLong (1));
+      assertEquals (3, m.getStart (1));
+      assertEquals (3, m.getEnd (1));
+   }
+
+   @Test public void columnarMalformedMessage ()
+      throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (ShapeSchema);
+      ColumnarConverter conv = new ColumnarConverter (om);
+
+      // @Rect|Pos.X=5|Pos.Y=6|Width=7|Height=8
+      
+      conv.read (hexToBytes ("06 01 c0 05 06 07 08"));
+
+      // The same message with a size that ends it after Pos.X
+      
+      try
+      {
+         conv.read (hexToBytes ("03 01 c0 05 06 07 08"));
+         fail ("Expected decode exception");
+      }
+      catch (BlinkException.Decode e)
+      {
+      }
+
+      conv.read (hexToBytes ("06 01 c0 15 16 17 18"));
+      assertEquals (2, conv.getMessageCount ());
+
+      ColumnarFile.Table rects = writeColumnar (conv).getTable ("Rect");
+      assertEquals (2, rects.getRowCount ());
+      for (ColumnarFile.Column c : rects.getColumns ())
+         assertEquals (c.getName (), 2, c.getValueCount ());
+      assertFalse (rects.getColumn ("Descr").isPresent (1));
+      assertEquals (0x15, rects.getColumn ("Pos.X").getLong (1));
+      assertEquals (0x18, rects.getColumn ("Height").getLong (1));
+   }
+
+   @Test public void columnarTypes () throws BlinkException, IOException
+   {
+      ObjectModel om = toModel (TaggedSchema);
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      CompactWriter wr = new CompactWriter (om, os);
+      Tagged t = new Tagged ();
+      t.setSmall ((byte)200);
+      t.setHuge (-1);
+      t.setRatio (0.25);
+      t.setPx (Decimal.valueOf (-15, -3));
+      t.setAmount (-5);
+      t.setDay (Time.toDaysSinceEpoch (2013, 12, 31));
+      t.setTod (86399999);
+      t.setMs (1388534399999L);
+      t.setNs (-1);
+      t.setFlag (true);
+      t.setText ("å");
+      t.setBlob (hexToBytes ("00 ff 10"));
+      t.setCol (Color.Green);
+      t.setWords (new String [] { "x", "", "å" });
+      wr.write (t);
+      t.setFlag (false);
+      t.setCol (Color.Blue);
+      t.setWords (new String [0]);
+      wr.write (t);
+      wr.close ();
+
+      // Feeding a byte at a time keeps incomplete messages pending
+
+      byte [] data = os.toByteArray ();
+      ColumnarConverter conv = new ColumnarConverter (om);
+      for (int i = 0; i < data.length; ++ i)
+      {
+         conv.read (data, i, 1);
+         if (i == data.length - 2)
+            assertFalse (conv.isComplete ());
+      }
+      assertTrue (conv.isComplete ());
+      assertEquals (2, conv.getMessageCount ());
+
+      ColumnarFile.Table tbl = writeColumnar (conv).getTable ("Tagged");
+      assertEquals (2, tbl.getRowCount ());
+      assertEquals (1, tbl.getTypeId ());
+      assertEquals (200, tbl.getColumn ("Small").getLong (0));
+      assertEquals (-1, tbl.getColumn ("Huge").getLong (0));
+      assertEquals (0.25, tbl.getColumn ("Ratio").getDouble (0), 0);
+      assertEquals (-0.015, tbl.getColumn ("Px").getDouble (0), 0);
+      assertEquals ("Decimal", tbl.getColumn ("Px").getType ());
+      assertEquals (-5, tbl.getColumn ("Amount").getLong (1));
+      assertEquals (2, tbl.getColumn ("Amount").getScale ());
+      assertEquals (Time.toDaysSinceEpoch (2013, 12, 31),
+                    tbl.getColumn ("Day").getLong (0));
+      assertEquals (86399999, tbl.getColumn ("Tod").getLong (0));
+      assertEquals (1388534399999L, tbl.getColumn ("Ms").getLong (0));
+      assertEquals (-1, tbl.getColumn ("Ns").getLong (0));
+      assertEquals (1, tbl.getColumn ("Flag").getLong (0));
+      assertEquals (0, tbl.getColumn ("Flag").getLong (1));
+
+      ColumnarFile.Column text = tbl.getColumn ("Text");
+      assertEquals ("å", text.getString (text.getCode (1)));
+      ColumnarFile.Column blob = tbl.getColumn ("Blob");
+      assertArrayEquals (hexToBytes ("00 ff 10"),
+                         blob.getBytes (blob.getCode (0)));
+
+      // Enum dictionaries hold all symbols in schema order
+
+      ColumnarFile.Column col = tbl.getColumn ("Col");
+      assertEquals ("Enum", col.getType ());
+      assertEquals (3, col.getDictSize ());
+      assertEquals ("Green", col.getString (col.getCode (0)));
+      assertEquals ("Blue", col.getString (col.getCode (1)));
+
+      ColumnarFile.Column words = tbl.getColumn ("Words");
+      assertTrue (words.isList ());
+      assertEquals (3, words.getValueCount ());
+      assertEquals (3, words.getDictSize ());
+      assertEquals ("å", words.getString (words.getCode (2)));
+      assertEquals (words.getCode (2), text.getCode (0) + 2);
+      assertEquals (3, words.getEnd (1));
+
+      try
+      {
+         conv.read (hexToBytes ("01 7f"));
+         fail ("Expected unknown type id error");
+      }
+      catch (BlinkException.NoBinding e)
+      {
+      }
+   }
+
    private static void assertReadTypeMismatch (String schema, String msg)
       throws IOException
    {
@@ -1422,6 +3474,86 @@ public class TestCases
       return o;
    }
    
+   private static Object nativeRoundtrip (ObjectModel om, Object in)
+      throws BlinkException, IOException
+   {
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      NativeWriter wr = new NativeWriter (om, os);
+
+      wr.write (in);
+      wr.close ();
+
+      DefaultBlock result = new DefaultBlock ();
+      NativeReader rd = new NativeReader (om);
+      rd.read (os.toByteArray (), result);
+      assertEquals (1, result.size ());
+      Object o = result.getObjects ().get (0);  
+      assertEquals (in.getClass (), o.getClass ());
+      return o;
+   }
+   
+   private static Object tagRoundtrip (ObjectModel om, Object in)
+      throws BlinkException, IOException
+   {
+      DefaultBlock result = new DefaultBlock ();
+      TagReader rd = new TagReader (om);
+      rd.read (encodeTag (om, in).getBytes ("ISO-8859-1"), result);
+      assertEquals (1, result.size ());
+      Object o = result.getObjects ().get (0);  
+      assertEquals (in.getClass (), o.getClass ());
+      return o;
+   }
+
+   private static Object jsonRoundtrip (ObjectModel om, Object in)
+      throws BlinkException, IOException
+   {
+      DefaultBlock result = new DefaultBlock ();
+      JsonReader rd = new JsonReader (om);
+      rd.read (encodeJson (om, in).getBytes ("UTF-8"), result);
+      assertEquals (1, result.size ());
+      Object o = result.getObjects ().get (0);  
+      assertEquals (in.getClass (), o.getClass ());
+      return o;
+   }
+
+   private static String encodeJson (ObjectModel om, Object in)
+      throws BlinkException, IOException
+   {
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      JsonWriter wr = new JsonWriter (om, os);
+      wr.write (in);
+      wr.close ();
+      return os.toString ("UTF-8");
+   }
+   
+   private static ColumnarFile writeColumnar (ColumnarConverter conv)
+      throws BlinkException, IOException
+   {
+      java.io.File f = java.io.File.createTempFile ("blink", ".col");
+      try
+      {
+         conv.write (f);
+         return new ColumnarFile (f);
+      }
+      finally
+      {
+         f.delete ();
+      }
+   }
+
+   // Returns the encoded bytes as a Latin-1 string, keeping one char
+   // per byte
+   
+   private static String encodeTag (ObjectModel om, Object in)
+      throws BlinkException, IOException
+   {
+      ByteArrayOutputStream os = new ByteArrayOutputStream ();
+      TagWriter wr = new TagWriter (om, os);
+      wr.write (in);
+      wr.close ();
+      return os.toString ("ISO-8859-1");
+   }
+   
    private static String encodeCompact (String schema, Object in)
       throws BlinkException, IOException
    {